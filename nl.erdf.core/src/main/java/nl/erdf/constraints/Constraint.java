@@ -1,9 +1,11 @@
 package nl.erdf.constraints;
 
+import java.util.Collection;
 import java.util.Set;
 
 import nl.erdf.datalayer.DataLayer;
 import nl.erdf.model.Solution;
+import nl.erdf.model.Triple;
 import nl.erdf.model.TripleSet;
 
 import org.slf4j.Logger;
@@ -25,6 +27,25 @@ public interface Constraint {
 	 */
 	abstract RewardsTable getRewards(Solution solution, DataLayer dataLayer, TripleSet blackList);
 
+	/**
+	 * List the triples getRewards() checks the validity of first for a given
+	 * solution. This is used to check them all at once before the evaluation
+	 * 
+	 * @param solution
+	 * @return the triples to check
+	 */
+	abstract Collection<Triple> getTriples(Solution solution);
+
+	/**
+	 * List the triples getRewards() checks next when one of the triples given
+	 * by getTriples() is not valid
+	 * 
+	 * @param triple
+	 *            a triple given by getTriples() and found not valid
+	 * @return the triples to check
+	 */
+	abstract Collection<Triple> getFallbackTriples(Triple triple);
+
 	/**
 	 * @return the set of variables used in the constraint
 	 */
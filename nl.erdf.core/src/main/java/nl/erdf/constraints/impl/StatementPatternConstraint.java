@@ -1,6 +1,9 @@
 package nl.erdf.constraints.impl;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import nl.erdf.constraints.Constraint;
@@ -117,13 +120,13 @@ public class StatementPatternConstraint implements Constraint {
 			// There was a null in it
 			if (t.getNumberNulls() == 1) {
 				if (!pattern.getSubjectVar().hasValue())
-					if (solution.getVariable(pattern.getSubjectVar().getName()).getValue() != null)
+					if (solution.getValue(pattern.getSubjectVar().getName()) != null)
 						rewards.set(pattern.getSubjectVar().getName(), Reward.MEDIUM);
 				if (!pattern.getPredicateVar().hasValue())
-					if (solution.getVariable(pattern.getPredicateVar().getName()).getValue() != null)
+					if (solution.getValue(pattern.getPredicateVar().getName()) != null)
 						rewards.set(pattern.getPredicateVar().getName(), Reward.MEDIUM);
 				if (!pattern.getObjectVar().hasValue())
-					if (solution.getVariable(pattern.getObjectVar().getName()).getValue() != null)
+					if (solution.getValue(pattern.getObjectVar().getName()) != null)
 						rewards.set(pattern.getObjectVar().getName(), Reward.MEDIUM);
 				return rewards;
 			}
@@ -132,28 +135,28 @@ public class StatementPatternConstraint implements Constraint {
 		// If we arrive here, that triple is wrong or has a null in it.
 		if (t.getNumberNulls() == 0 && dataLayer.isValid(new Triple(t.getSubject(), t.getPredicate(), null))) {
 			if (!pattern.getSubjectVar().hasValue())
-				if (solution.getVariable(pattern.getSubjectVar().getName()).getValue() != null)
+				if (solution.getValue(pattern.getSubjectVar().getName()) != null)
 					rewards.set(pattern.getSubjectVar().getName(), Reward.MEDIUM);
 			if (!pattern.getPredicateVar().hasValue())
-				if (solution.getVariable(pattern.getPredicateVar().getName()).getValue() != null)
+				if (solution.getValue(pattern.getPredicateVar().getName()) != null)
 					rewards.set(pattern.getPredicateVar().getName(), Reward.MEDIUM);
 			return rewards;
 		}
 		if (t.getNumberNulls() == 0 && dataLayer.isValid(new Triple(null, t.getPredicate(), t.getObject()))) {
 			if (!pattern.getPredicateVar().hasValue())
-				if (solution.getVariable(pattern.getPredicateVar().getName()).getValue() != null)
+				if (solution.getValue(pattern.getPredicateVar().getName()) != null)
 					rewards.set(pattern.getPredicateVar().getName(), Reward.MEDIUM);
 			if (!pattern.getObjectVar().hasValue())
-				if (solution.getVariable(pattern.getObjectVar().getName()).getValue() != null)
+				if (solution.getValue(pattern.getObjectVar().getName()) != null)
 					rewards.set(pattern.getObjectVar().getName(), Reward.MEDIUM);
 			return rewards;
 		}
 		if (t.getNumberNulls() == 0 && dataLayer.isValid(new Triple(t.getSubject(), null, t.getObject()))) {
 			if (!pattern.getSubjectVar().hasValue())
-				if (solution.getVariable(pattern.getSubjectVar().getName()).getValue() != null)
+				if (solution.getValue(pattern.getSubjectVar().getName()) != null)
 					rewards.set(pattern.getSubjectVar().getName(), Reward.MEDIUM);
 			if (!pattern.getObjectVar().hasValue())
-				if (solution.getVariable(pattern.getObjectVar().getName()).getValue() != null)
+				if (solution.getValue(pattern.getObjectVar().getName()) != null)
 					rewards.set(pattern.getObjectVar().getName(), Reward.MEDIUM);
 			return rewards;
 		}
@@ -161,6 +164,43 @@ public class StatementPatternConstraint implements Constraint {
 		return rewards;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * nl.erdf.constraints.Constraint#getTriples(nl.erdf.model.Solution)
+	 */
+	public Collection<Triple> getTriples(Solution solution) {
+		List<Triple> triples = new ArrayList<Triple>();
+
+		// Instantiate the pattern with the solution
+		Triple t = Convert.toTriple(pattern, solution);
+		if (t == null || t.getNumberNulls() > 1)
+			return triples;
+
+		triples.add(t);
+		return triples;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * nl.erdf.constraints.Constraint#getFallbackTriples(nl.erdf.model.Triple)
+	 */
+	public Collection<Triple> getFallbackTriples(Triple t) {
+		List<Triple> triples = new ArrayList<Triple>();
+
+		// The partial triples that may still be valid
+		if (t.getNumberNulls() == 0) {
+			triples.add(new Triple(t.getSubject(), t.getPredicate(), null));
+			triples.add(new Triple(null, t.getPredicate(), t.getObject()));
+			triples.add(new Triple(t.getSubject(), null, t.getObject()));
+		}
+
+		return triples;
+	}
+
 	/**
 	 * @return the pattern of this constraint
 	 */
@@ -1,7 +1,9 @@
 package nl.erdf.constraints.impl;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 
@@ -9,6 +11,7 @@ import nl.erdf.constraints.Constraint;
 import nl.erdf.constraints.RewardsTable;
 import nl.erdf.datalayer.DataLayer;
 import nl.erdf.model.Solution;
+import nl.erdf.model.Triple;
 import nl.erdf.model.TripleSet;
 
 /**
@@ -103,6 +106,32 @@ public class StatementPatternSetConstraint implements Constraint {
 		return rewards;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * nl.erdf.constraints.Constraint#getTriples(nl.erdf.model.Solution)
+	 */
+	public Collection<Triple> getTriples(Solution solution) {
+		List<Triple> triples = new ArrayList<Triple>();
+		for (StatementPatternConstraint pattern : patterns)
+			triples.addAll(pattern.getTriples(solution));
+		return triples;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * nl.erdf.constraints.Constraint#getFallbackTriples(nl.erdf.model.Triple)
+	 */
+	public Collection<Triple> getFallbackTriples(Triple triple) {
+		Set<Triple> triples = new HashSet<Triple>();
+		for (StatementPatternConstraint pattern : patterns)
+			triples.addAll(pattern.getFallbackTriples(triple));
+		return triples;
+	}
+
 	/**
 	 * @return the context
 	 */
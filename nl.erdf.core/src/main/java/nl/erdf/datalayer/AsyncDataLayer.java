@@ -0,0 +1,51 @@
+package nl.erdf.datalayer;
+
+import java.util.List;
+
+import nl.erdf.model.Triple;
+
+import org.openrdf.model.Value;
+
+/**
+ * A data layer whose look-ups can be sent without waiting for their answer.
+ * Many look-ups can then be in progress at the same time without having one
+ * thread blocked for each of them
+ * 
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ */
+public interface AsyncDataLayer extends DataLayer {
+	/**
+	 * Asynchronous version of getNumberOfResources(), the answer is known once
+	 * all the resources matching the pattern have been found
+	 * 
+	 * @param pattern
+	 * @precondition There is only one and only one WILDCARD value
+	 * @return the number of resources available for that query
+	 */
+	public DataFuture<Long> getNumberOfResourcesAsync(Triple pattern);
+
+	/**
+	 * Asynchronous version of sample(), the answer is known as soon as some
+	 * resources matching the pattern have been found. The random numbers are
+	 * drawn from a seed to keep the answer independent of the thread
+	 * completing it
+	 * 
+	 * @param pattern
+	 * @precondition There is only one and only one WILDCARD value
+	 * @param k
+	 *            the number of resources to draw
+	 * @param seed
+	 *            the seed of the random numbers used for the draws
+	 * @return a list of at most k resources, empty if nothing matches
+	 */
+	public DataFuture<List<Value>> sampleAsync(Triple pattern, int k, long seed);
+
+	/**
+	 * Asynchronous version of isValid()
+	 * 
+	 * @param pattern
+	 *            the pattern to check
+	 * @return true if the triple is valid
+	 */
+	public DataFuture<Boolean> isValidAsync(Triple pattern);
+}
@@ -0,0 +1,152 @@
+/**
+ * 
+ */
+package nl.erdf.datalayer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The answer of a data layer to a look-up that may still be running. The
+ * answer is set once by the data layer, the callers either wait for it with
+ * get() or register a listener called as soon as it is known. The listeners
+ * are run by the thread setting the answer and must be kept short
+ * 
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ * @param <T>
+ *            the type of the answer
+ */
+public class DataFuture<T> implements Future<T> {
+	// Released when the answer is set
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	// The answer
+	private volatile T value = null;
+
+	// Listeners waiting for the answer, null once it is set
+	private List<Runnable> listeners = new ArrayList<Runnable>();
+
+	/**
+	 * @param value
+	 *            an answer already known
+	 * @return a future holding that answer
+	 */
+	public static <T> DataFuture<T> completed(T value) {
+		DataFuture<T> future = new DataFuture<T>();
+		future.complete(value);
+		return future;
+	}
+
+	/**
+	 * Set the answer and call the listeners. Only the first call has an effect
+	 * 
+	 * @param value
+	 *            the answer
+	 */
+	public void complete(T value) {
+		List<Runnable> toRun;
+		synchronized (this) {
+			if (listeners == null)
+				return;
+			this.value = value;
+			toRun = listeners;
+			listeners = null;
+			done.countDown();
+		}
+		for (Runnable listener : toRun)
+			listener.run();
+	}
+
+	/**
+	 * Get called when the answer is known, right away if it is already
+	 * 
+	 * @param listener
+	 */
+	public void addListener(Runnable listener) {
+		synchronized (this) {
+			if (listeners != null) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.Future#cancel(boolean)
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		// The look-ups are shared with other callers, they are not stopped
+		return false;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.Future#isCancelled()
+	 */
+	public boolean isCancelled() {
+		return false;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.Future#isDone()
+	 */
+	public boolean isDone() {
+		return (done.getCount() == 0);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.Future#get()
+	 */
+	public T get() throws InterruptedException, ExecutionException {
+		done.await();
+		return value;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit)
+	 */
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit))
+			throw new TimeoutException();
+		return value;
+	}
+
+	/**
+	 * Wait for the answer, an interruption does not stop the wait. The thread
+	 * is interrupted again once the answer is known
+	 * 
+	 * @return the answer
+	 */
+	public T getUninterruptibly() {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					done.await();
+					return value;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -1,5 +1,9 @@
 package nl.erdf.datalayer;
 
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
 import nl.erdf.model.Triple;
 
 import org.openrdf.model.Statement;
@@ -27,6 +31,21 @@ public interface DataLayer {
 	 */
 	abstract Value getResource(Triple pattern);
 
+	/**
+	 * Draw k resources uniformly, with replacement, amongst those matching the
+	 * pattern. This is equivalent to k calls to getResource() but the set of
+	 * matching resources is looked up only once
+	 * 
+	 * @param pattern
+	 * @precondition There is only one and only one WILDCARD value
+	 * @param k
+	 *            the number of resources to draw
+	 * @param random
+	 *            the random number generator to use
+	 * @return a list of at most k resources, empty if nothing matches
+	 */
+	abstract List<Value> sample(Triple pattern, int k, Random random);
+
 	/**
 	 * Check is the combination of S,P and O is valid. This combination may
 	 * contain at most one null value
@@ -37,6 +56,17 @@ public interface DataLayer {
 	 */
 	public boolean isValid(Triple pattern);
 
+	/**
+	 * Check the validity of several patterns at once. This is equivalent to
+	 * calling isValid() on each of them but lets the data layer group the
+	 * look-ups into fewer requests
+	 * 
+	 * @param patterns
+	 *            the patterns to check
+	 * @return a set with the bit i set if the i-th pattern is valid
+	 */
+	public BitSet isValid(List<Triple> patterns);
+
 	/**
 	 * @param statement
 	 */
@@ -0,0 +1,86 @@
+/**
+ * 
+ */
+package nl.erdf.datalayer.impl;
+
+import java.util.List;
+
+import nl.erdf.datalayer.AsyncDataLayer;
+import nl.erdf.datalayer.DataFuture;
+import nl.erdf.model.Triple;
+
+import org.openrdf.model.Value;
+
+/**
+ * A {@link CachedDataLayer} over an asynchronous data layer. The asynchronous
+ * look-ups go straight to the wrapped data layer, except for the validity
+ * checks which are answered from the memo when possible and remembered once
+ * their answer is known.
+ * 
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ */
+public class CachedAsyncDataLayer extends CachedDataLayer implements AsyncDataLayer {
+	// The data layer to use for the checks
+	private final AsyncDataLayer dataLayer;
+
+	/**
+	 * @param dataLayer
+	 *            the data layer to wrap
+	 */
+	public CachedAsyncDataLayer(AsyncDataLayer dataLayer) {
+		this(dataLayer, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param dataLayer
+	 *            the data layer to wrap
+	 * @param capacity
+	 *            the maximum number of validity outcomes to keep
+	 */
+	public CachedAsyncDataLayer(AsyncDataLayer dataLayer, int capacity) {
+		super(dataLayer, capacity);
+		this.dataLayer = dataLayer;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * nl.erdf.datalayer.AsyncDataLayer#getNumberOfResourcesAsync(nl.erdf.model
+	 * .Triple)
+	 */
+	public DataFuture<Long> getNumberOfResourcesAsync(Triple pattern) {
+		return dataLayer.getNumberOfResourcesAsync(pattern);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.AsyncDataLayer#sampleAsync(nl.erdf.model.Triple,
+	 * int, long)
+	 */
+	public DataFuture<List<Value>> sampleAsync(Triple pattern, int k, long seed) {
+		return dataLayer.sampleAsync(pattern, k, seed);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.AsyncDataLayer#isValidAsync(nl.erdf.model.Triple)
+	 */
+	public DataFuture<Boolean> isValidAsync(final Triple pattern) {
+		Boolean valid = recall(pattern);
+		if (valid != null)
+			return DataFuture.completed(valid);
+
+		// Remember the answer once it is known
+		final DataFuture<Boolean> answer = dataLayer.isValidAsync(pattern);
+		answer.addListener(new Runnable() {
+			public void run() {
+				store(pattern, Boolean.TRUE.equals(answer.getUninterruptibly()));
+			}
+		});
+		return answer;
+	}
+}
@@ -0,0 +1,418 @@
+/**
+ * 
+ */
+package nl.erdf.datalayer.impl;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import nl.erdf.datalayer.AsyncDataLayer;
+import nl.erdf.datalayer.DataLayer;
+import nl.erdf.model.Triple;
+
+import org.openrdf.model.Statement;
+import org.openrdf.model.Value;
+
+/**
+ * A view over an other data layer that remembers the outcome of the validity
+ * checks. The memo is bounded and split into segments, each being an LRU
+ * protected by its own lock. Everything else than the validity checks goes
+ * straight to the wrapped data layer. A valid triple is remembered until it
+ * is evicted. A triple that is not valid is only remembered for a while, as
+ * the data layer may not have known the full answer yet. Use wrap() to keep
+ * the asynchronous look-ups of the data layers that have them.
+ * 
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ */
+public class CachedDataLayer implements DataLayer {
+	/** Default maximum number of validity outcomes kept */
+	public static final int DEFAULT_CAPACITY = 100000;
+
+	/** Default time a triple found not valid is remembered, in milliseconds */
+	public static final long DEFAULT_NEGATIVE_TIME_TO_LIVE = 60 * 1000;
+
+	// Expiry date of the valid triples
+	private static final long VALID = Long.MAX_VALUE;
+
+	/** Number of segments */
+	private static final int NB_SEGMENTS = 16;
+
+	// A segment of the memo, holding the date until which the validity of
+	// every triple is known
+	@SuppressWarnings("serial")
+	private static class Segment extends LinkedHashMap<Triple, Long> {
+		final ReentrantLock lock = new ReentrantLock();
+		final int capacity;
+
+		Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.LinkedHashMap#removeEldestEntry(java.util.Map.Entry)
+		 */
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Triple, Long> eldest) {
+			return size() > capacity;
+		}
+	}
+
+	// The data layer to use for the checks
+	private final DataLayer dataLayer;
+
+	// The memo
+	private final Segment[] segments = new Segment[NB_SEGMENTS];
+
+	// Time a triple found not valid is remembered, in milliseconds
+	private final long negativeTimeToLive;
+
+	// Statistics
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+
+	// The memo, without counting the hits of the single checks
+	private final DataLayer prefetchedView = new DataLayer() {
+		public boolean isValid(Triple pattern) {
+			return CachedDataLayer.this.isValid(pattern, false);
+		}
+
+		public BitSet isValid(List<Triple> patterns) {
+			return CachedDataLayer.this.isValid(patterns);
+		}
+
+		public long getNumberOfResources(Triple pattern) {
+			return CachedDataLayer.this.getNumberOfResources(pattern);
+		}
+
+		public Value getResource(Triple pattern) {
+			return CachedDataLayer.this.getResource(pattern);
+		}
+
+		public List<Value> sample(Triple pattern, int k, Random random) {
+			return CachedDataLayer.this.sample(pattern, k, random);
+		}
+
+		public void add(Statement statement) {
+			CachedDataLayer.this.add(statement);
+		}
+
+		public void clear() {
+			CachedDataLayer.this.clear();
+		}
+
+		public void shutdown() {
+			CachedDataLayer.this.shutdown();
+		}
+
+		public void waitForLatencyBuffer() {
+			CachedDataLayer.this.waitForLatencyBuffer();
+		}
+	};
+
+	/**
+	 * @param dataLayer
+	 *            the data layer to wrap
+	 */
+	public CachedDataLayer(DataLayer dataLayer) {
+		this(dataLayer, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param dataLayer
+	 *            the data layer to wrap
+	 * @param capacity
+	 *            the maximum number of validity outcomes to keep
+	 */
+	public CachedDataLayer(DataLayer dataLayer, int capacity) {
+		this(dataLayer, capacity, DEFAULT_NEGATIVE_TIME_TO_LIVE);
+	}
+
+	/**
+	 * @param dataLayer
+	 *            the data layer to wrap
+	 * @param capacity
+	 *            the maximum number of validity outcomes to keep
+	 * @param negativeTimeToLive
+	 *            the time a triple found not valid is remembered, in
+	 *            milliseconds
+	 */
+	public CachedDataLayer(DataLayer dataLayer, int capacity, long negativeTimeToLive) {
+		this.dataLayer = dataLayer;
+		this.negativeTimeToLive = negativeTimeToLive;
+		for (int i = 0; i < NB_SEGMENTS; i++)
+			segments[i] = new Segment(Math.max(1, capacity / NB_SEGMENTS));
+	}
+
+	/**
+	 * Wrap a data layer, the asynchronous data layers get a memo that is
+	 * asynchronous as well
+	 * 
+	 * @param dataLayer
+	 *            the data layer to wrap
+	 * @return the memo
+	 */
+	public static CachedDataLayer wrap(DataLayer dataLayer) {
+		if (dataLayer instanceof CachedDataLayer)
+			return (CachedDataLayer) dataLayer;
+		if (dataLayer instanceof AsyncDataLayer)
+			return new CachedAsyncDataLayer((AsyncDataLayer) dataLayer);
+		return new CachedDataLayer(dataLayer);
+	}
+
+	/**
+	 * @param triple
+	 * @return the segment in charge of that triple
+	 */
+	private Segment getSegment(Triple triple) {
+		int hash = triple.hashCode();
+		hash ^= (hash >>> 16);
+		return segments[(hash & 0x7fffffff) % NB_SEGMENTS];
+	}
+
+	/**
+	 * @param triple
+	 * @return the memorised validity or null if unknown
+	 */
+	private Boolean lookup(Triple triple) {
+		Segment segment = getSegment(triple);
+		segment.lock.lock();
+		try {
+			Long expiry = segment.get(triple);
+			if (expiry == null)
+				return null;
+			if (expiry.longValue() == VALID)
+				return Boolean.TRUE;
+			if (expiry.longValue() > System.currentTimeMillis())
+				return Boolean.FALSE;
+
+			// Ask again
+			segment.remove(triple);
+			return null;
+		} finally {
+			segment.lock.unlock();
+		}
+	}
+
+	/**
+	 * @param triple
+	 * @return the memorised validity or null if unknown, counted as a hit or
+	 *         as a miss
+	 */
+	protected Boolean recall(Triple triple) {
+		Boolean valid = lookup(triple);
+		if (valid != null)
+			hits.incrementAndGet();
+		else
+			misses.incrementAndGet();
+		return valid;
+	}
+
+	/**
+	 * @param triple
+	 * @param valid
+	 */
+	protected void store(Triple triple, boolean valid) {
+		Segment segment = getSegment(triple);
+		segment.lock.lock();
+		try {
+			long expiry = (valid ? VALID : System.currentTimeMillis() + negativeTimeToLive);
+			segment.put(triple, Long.valueOf(expiry));
+		} finally {
+			segment.lock.unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.DataLayer#isValid(nl.erdf.model.Triple)
+	 */
+	public boolean isValid(Triple pattern) {
+		return isValid(pattern, true);
+	}
+
+	/**
+	 * @param pattern
+	 * @param countHit
+	 *            count the answer from the memo as a hit
+	 * @return true if the pattern is valid
+	 */
+	private boolean isValid(Triple pattern, boolean countHit) {
+		Boolean valid = (countHit ? recall(pattern) : lookup(pattern));
+		if (valid != null)
+			return valid.booleanValue();
+		if (!countHit)
+			misses.incrementAndGet();
+
+		boolean result = dataLayer.isValid(pattern);
+		store(pattern, result);
+		return result;
+	}
+
+	/**
+	 * A view for the checks that follow a batch sent to isValid(List). The
+	 * batch already counted its triples as hits or misses, so the view only
+	 * counts the triples the batch did not cover. Otherwise every triple would
+	 * be counted as a miss and then as a hit, whatever the memo does
+	 * 
+	 * @return a view over the memo
+	 */
+	public DataLayer getPrefetchedView() {
+		return prefetchedView;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.DataLayer#isValid(java.util.List)
+	 */
+	public BitSet isValid(List<Triple> patterns) {
+		// Answer what is known and ask for the rest with one call
+		BitSet result = new BitSet(patterns.size());
+		List<Triple> unknown = new ArrayList<Triple>();
+		List<Integer> positions = new ArrayList<Integer>();
+		for (int i = 0; i < patterns.size(); i++) {
+			Boolean valid = lookup(patterns.get(i));
+			if (valid == null) {
+				unknown.add(patterns.get(i));
+				positions.add(i);
+			} else if (valid.booleanValue()) {
+				result.set(i);
+			}
+		}
+		hits.addAndGet(patterns.size() - unknown.size());
+		misses.addAndGet(unknown.size());
+
+		if (!unknown.isEmpty()) {
+			BitSet valid = dataLayer.isValid(unknown);
+			for (int i = 0; i < unknown.size(); i++) {
+				store(unknown.get(i), valid.get(i));
+				if (valid.get(i))
+					result.set(positions.get(i));
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return the number of validity checks answered from the memo
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of validity checks sent to the data layer
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of validity outcomes currently kept
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			segment.lock.lock();
+			try {
+				size += segment.size();
+			} finally {
+				segment.lock.unlock();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Forget all the validity outcomes, the statistics are kept
+	 */
+	public void invalidate() {
+		for (Segment segment : segments) {
+			segment.lock.lock();
+			try {
+				segment.clear();
+			} finally {
+				segment.lock.unlock();
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.DataLayer#getNumberOfResources(nl.erdf.model.Triple)
+	 */
+	public long getNumberOfResources(Triple pattern) {
+		return dataLayer.getNumberOfResources(pattern);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.DataLayer#getResource(nl.erdf.model.Triple)
+	 */
+	public Value getResource(Triple pattern) {
+		return dataLayer.getResource(pattern);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.DataLayer#sample(nl.erdf.model.Triple, int,
+	 * java.util.Random)
+	 */
+	public List<Value> sample(Triple pattern, int k, Random random) {
+		return dataLayer.sample(pattern, k, random);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.DataLayer#add(org.openrdf.model.Statement)
+	 */
+	public void add(Statement statement) {
+		// New data may turn invalid triples into valid ones
+		dataLayer.add(statement);
+		invalidate();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.DataLayer#clear()
+	 */
+	public void clear() {
+		invalidate();
+		dataLayer.clear();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.DataLayer#shutdown()
+	 */
+	public void shutdown() {
+		dataLayer.shutdown();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.DataLayer#waitForLatencyBuffer()
+	 */
+	public void waitForLatencyBuffer() {
+		dataLayer.waitForLatencyBuffer();
+	}
+}
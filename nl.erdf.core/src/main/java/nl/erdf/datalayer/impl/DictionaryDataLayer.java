@@ -0,0 +1,492 @@
+/**
+ * 
+ */
+package nl.erdf.datalayer.impl;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import nl.erdf.datalayer.DataLayer;
+import nl.erdf.model.Triple;
+import nl.erdf.util.Randomizer;
+
+import org.openrdf.model.Statement;
+import org.openrdf.model.Value;
+
+/**
+ * An in-memory data layer that encodes every term as an integer id and keeps
+ * the triples in three sorted arrays of ids (SPO, POS and OSP). Any pattern is
+ * answered by a binary search for the range of rows sharing its bound terms,
+ * so counts, random picks and validity checks are O(log n) and do not allocate.
+ * 
+ * The indexes are rebuilt lazily on the first read following a call to add()
+ * 
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ */
+public class DictionaryDataLayer implements DataLayer {
+	// Id used for the wildcard
+	private final static int WILDCARD = -1;
+
+	// Id used for terms that are not in the dictionary
+	private final static int UNKNOWN = -2;
+
+	// Initial number of triples the buffers can hold
+	private final static int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * A sorted array of triples, stored as three ids per row. The order array
+	 * gives which term of the triple (0=S, 1=P, 2=O) is stored in each column
+	 */
+	private final static class Index {
+		// The rows, three ids per row
+		final int[] rows;
+
+		// The number of rows
+		final int size;
+
+		// The position of S, P and O in the rows
+		final int[] order;
+
+		/**
+		 * @param rows
+		 * @param size
+		 * @param order
+		 */
+		Index(int[] rows, int size, int[] order) {
+			this.rows = rows;
+			this.size = size;
+			this.order = order;
+		}
+
+		/**
+		 * Compare the first width columns of a row with a key
+		 * 
+		 * @return a negative value if the row comes before the key, 0 if it
+		 *         matches and a positive value if it comes after
+		 */
+		int compare(int row, int a, int b, int c, int width) {
+			int base = 3 * row;
+			if (width > 0 && rows[base] != a)
+				return (rows[base] < a ? -1 : 1);
+			if (width > 1 && rows[base + 1] != b)
+				return (rows[base + 1] < b ? -1 : 1);
+			if (width > 2 && rows[base + 2] != c)
+				return (rows[base + 2] < c ? -1 : 1);
+			return 0;
+		}
+
+		/**
+		 * @return the first row not before the key
+		 */
+		int lowerBound(int a, int b, int c, int width) {
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (compare(middle, a, b, c, width) < 0)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			return low;
+		}
+
+		/**
+		 * @return the first row after the key
+		 */
+		int upperBound(int a, int b, int c, int width) {
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (compare(middle, a, b, c, width) <= 0)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			return low;
+		}
+	}
+
+	// Dictionary from terms to ids
+	private final Map<Value, Integer> ids = new ConcurrentHashMap<Value, Integer>();
+
+	// Dictionary from ids to terms
+	private volatile Value[] terms = new Value[INITIAL_CAPACITY];
+	private int nbTerms = 0;
+
+	// Triples added so far, three ids per triple in SPO order
+	private int[] triples = new int[3 * INITIAL_CAPACITY];
+	private int nbTriples = 0;
+
+	// Indexes, rebuilt when some triples have been added
+	private volatile Index spo = new Index(new int[0], 0, new int[] { 0, 1, 2 });
+	private volatile Index pos = new Index(new int[0], 0, new int[] { 1, 2, 0 });
+	private volatile Index osp = new Index(new int[0], 0, new int[] { 2, 0, 1 });
+	private volatile boolean isDirty = false;
+
+	/**
+	 * @param value
+	 * @return the id of the value, WILDCARD for null and UNKNOWN if the value
+	 *         is not in the dictionary
+	 */
+	private int getId(Value value) {
+		if (value == null)
+			return WILDCARD;
+		Integer id = ids.get(value);
+		return (id == null ? UNKNOWN : id.intValue());
+	}
+
+	/**
+	 * @param value
+	 * @return the id of the value, a new one is created if needed
+	 */
+	private int getOrCreateId(Value value) {
+		Integer id = ids.get(value);
+		if (id != null)
+			return id.intValue();
+
+		if (nbTerms == terms.length) {
+			Value[] tmp = new Value[2 * terms.length];
+			System.arraycopy(terms, 0, tmp, 0, nbTerms);
+			terms = tmp;
+		}
+		terms[nbTerms] = value;
+		ids.put(value, Integer.valueOf(nbTerms));
+		return nbTerms++;
+	}
+
+	/**
+	 * Pick the index in which the bound terms of the pattern are the leading
+	 * columns
+	 */
+	private Index getIndex(int s, int p, int o) {
+		if (s != WILDCARD && (p != WILDCARD || o == WILDCARD))
+			return spo;
+		if (p != WILDCARD)
+			return pos;
+		return osp;
+	}
+
+	/**
+	 * @param index
+	 * @param column
+	 * @param s
+	 * @param p
+	 * @param o
+	 * @return the key to use for a given column of the index
+	 */
+	private static int getKey(Index index, int column, int s, int p, int o) {
+		switch (index.order[column]) {
+		case 0:
+			return s;
+		case 1:
+			return p;
+		default:
+			return o;
+		}
+	}
+
+	/**
+	 * Find the rows of the index matching the pattern. The first and last
+	 * rows are packed into a single long to avoid allocating a result object
+	 * 
+	 * @return (first << 32) | last
+	 */
+	private static long getRange(Index index, int s, int p, int o, int width) {
+		int a = getKey(index, 0, s, p, o);
+		int b = getKey(index, 1, s, p, o);
+		int c = getKey(index, 2, s, p, o);
+		long first = index.lowerBound(a, b, c, width);
+		long last = index.upperBound(a, b, c, width);
+		return (first << 32) | last;
+	}
+
+	/**
+	 * @param t
+	 * @return the number of triples matching the pattern
+	 */
+	private long count(Triple t) {
+		ensureIndexed();
+
+		int s = getId(t.getSubject());
+		int p = getId(t.getPredicate());
+		int o = getId(t.getObject());
+		if (s == UNKNOWN || p == UNKNOWN || o == UNKNOWN)
+			return 0;
+
+		Index index = getIndex(s, p, o);
+		long range = getRange(index, s, p, o, 3 - t.getNumberNulls());
+		return (range & 0xFFFFFFFFL) - (range >>> 32);
+	}
+
+	/**
+	 * Rebuild the indexes if some triples have been added since the last call
+	 */
+	private void ensureIndexed() {
+		if (!isDirty)
+			return;
+
+		synchronized (this) {
+			if (!isDirty)
+				return;
+
+			// Sort the triples and remove the duplicates, the result is kept
+			// as the new set of triples
+			int[] rows = new int[3 * nbTriples];
+			System.arraycopy(triples, 0, rows, 0, rows.length);
+			sort(rows, 0, nbTriples);
+			int size = 0;
+			for (int row = 0; row < nbTriples; row++) {
+				if (size == 0 || compareRows(rows, row, size - 1) != 0) {
+					System.arraycopy(rows, 3 * row, rows, 3 * size, 3);
+					size++;
+				}
+			}
+			System.arraycopy(rows, 0, triples, 0, 3 * size);
+			nbTriples = size;
+
+			// Publish the indexes
+			spo = new Index(rows, size, spo.order);
+			pos = buildIndex(rows, size, pos.order);
+			osp = buildIndex(rows, size, osp.order);
+			isDirty = false;
+		}
+	}
+
+	/**
+	 * @param source
+	 *            triples in SPO order
+	 * @param size
+	 * @param order
+	 * @return a new sorted index with the columns in the given order
+	 */
+	private static Index buildIndex(int[] source, int size, int[] order) {
+		int[] rows = new int[3 * size];
+		for (int row = 0; row < size; row++)
+			for (int column = 0; column < 3; column++)
+				rows[3 * row + column] = source[3 * row + order[column]];
+		sort(rows, 0, size);
+		return new Index(rows, size, order);
+	}
+
+	/**
+	 * @return the lexicographic comparison of two rows
+	 */
+	private static int compareRows(int[] rows, int a, int b) {
+		for (int column = 0; column < 3; column++) {
+			int x = rows[3 * a + column];
+			int y = rows[3 * b + column];
+			if (x != y)
+				return (x < y ? -1 : 1);
+		}
+		return 0;
+	}
+
+	/**
+	 * Swap two rows
+	 */
+	private static void swap(int[] rows, int a, int b) {
+		for (int column = 0; column < 3; column++) {
+			int tmp = rows[3 * a + column];
+			rows[3 * a + column] = rows[3 * b + column];
+			rows[3 * b + column] = tmp;
+		}
+	}
+
+	/**
+	 * In-place quicksort of the rows in [from, to)
+	 */
+	private static void sort(int[] rows, int from, int to) {
+		while (to - from > 16) {
+			// Use the median of three as a pivot and move it at the end
+			int middle = (from + to) >>> 1;
+			if (compareRows(rows, middle, from) < 0)
+				swap(rows, middle, from);
+			if (compareRows(rows, to - 1, from) < 0)
+				swap(rows, to - 1, from);
+			if (compareRows(rows, middle, to - 1) < 0)
+				swap(rows, middle, to - 1);
+			int pivot = to - 1;
+
+			// Partition
+			int store = from;
+			for (int row = from; row < pivot; row++)
+				if (compareRows(rows, row, pivot) < 0)
+					swap(rows, row, store++);
+			swap(rows, store, pivot);
+
+			// Recurse on the smallest part, loop on the other one
+			if (store - from < to - store) {
+				sort(rows, from, store);
+				from = store + 1;
+			} else {
+				sort(rows, store + 1, to);
+				to = store;
+			}
+		}
+
+		// Insertion sort for the small ranges
+		for (int i = from + 1; i < to; i++)
+			for (int j = i; j > from && compareRows(rows, j, j - 1) < 0; j--)
+				swap(rows, j, j - 1);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * nl.erdf.datalayer.DataLayer#getNumberOfResources(nl.erdf.model.Triple)
+	 */
+	public long getNumberOfResources(Triple t) {
+		if (t.getNumberNulls() > 1)
+			return 0;
+
+		return count(t);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.DataLayer#getResource(nl.erdf.model.Triple)
+	 */
+	public Value getResource(Triple t) {
+		if (t.getNumberNulls() != 1)
+			return null;
+
+		ensureIndexed();
+
+		int s = getId(t.getSubject());
+		int p = getId(t.getPredicate());
+		int o = getId(t.getObject());
+		if (s == UNKNOWN || p == UNKNOWN || o == UNKNOWN)
+			return null;
+
+		// The wildcard is the last column of the index
+		Index index = getIndex(s, p, o);
+		long range = getRange(index, s, p, o, 2);
+		int first = (int) (range >>> 32);
+		int last = (int) range;
+		if (first == last)
+			return null;
+
+		int row = first + Randomizer.instance().nextInt(last - first);
+		return terms[index.rows[3 * row + 2]];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.DataLayer#sample(nl.erdf.model.Triple, int,
+	 * java.util.Random)
+	 */
+	public List<Value> sample(Triple t, int k, Random random) {
+		List<Value> values = new ArrayList<Value>(k);
+		if (t.getNumberNulls() != 1)
+			return values;
+
+		ensureIndexed();
+
+		int s = getId(t.getSubject());
+		int p = getId(t.getPredicate());
+		int o = getId(t.getObject());
+		if (s == UNKNOWN || p == UNKNOWN || o == UNKNOWN)
+			return values;
+
+		// Look up the range once for all the draws
+		Index index = getIndex(s, p, o);
+		long range = getRange(index, s, p, o, 2);
+		int first = (int) (range >>> 32);
+		int last = (int) range;
+		if (first == last)
+			return values;
+
+		Value[] dictionary = terms;
+		for (int i = 0; i < k; i++) {
+			int row = first + random.nextInt(last - first);
+			values.add(dictionary[index.rows[3 * row + 2]]);
+		}
+
+		return values;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.DataLayer#isValid(nl.erdf.model.Triple)
+	 */
+	public boolean isValid(Triple t) {
+		return (count(t) != 0);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.DataLayer#isValid(java.util.List)
+	 */
+	public BitSet isValid(List<Triple> patterns) {
+		BitSet result = new BitSet(patterns.size());
+		for (int i = 0; i < patterns.size(); i++)
+			if (isValid(patterns.get(i)))
+				result.set(i);
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.DataLayer#add(org.openrdf.model.Statement)
+	 */
+	public synchronized void add(Statement statement) {
+		if (3 * nbTriples == triples.length) {
+			int[] tmp = new int[2 * triples.length];
+			System.arraycopy(triples, 0, tmp, 0, triples.length);
+			triples = tmp;
+		}
+
+		triples[3 * nbTriples] = getOrCreateId(statement.getSubject());
+		triples[3 * nbTriples + 1] = getOrCreateId(statement.getPredicate());
+		triples[3 * nbTriples + 2] = getOrCreateId(statement.getObject());
+		nbTriples++;
+		isDirty = true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.DataLayer#clear()
+	 */
+	public synchronized void clear() {
+		ids.clear();
+		terms = new Value[INITIAL_CAPACITY];
+		nbTerms = 0;
+		triples = new int[3 * INITIAL_CAPACITY];
+		nbTriples = 0;
+		spo = new Index(new int[0], 0, spo.order);
+		pos = new Index(new int[0], 0, pos.order);
+		osp = new Index(new int[0], 0, osp.order);
+		isDirty = false;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.DataLayer#shutdown()
+	 */
+	public void shutdown() {
+		clear();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.DataLayer#waitForLatencyBuffer()
+	 */
+	public void waitForLatencyBuffer() {
+	}
+}
@@ -4,11 +4,14 @@
 package nl.erdf.datalayer.impl;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Random;
 
 import nl.erdf.datalayer.DataLayer;
 import nl.erdf.model.Triple;
+import nl.erdf.util.Randomizer;
+import nl.erdf.util.Reservoir;
 
 import org.openrdf.model.Statement;
 import org.openrdf.model.Value;
@@ -23,9 +26,6 @@ import org.openrdf.sail.memory.MemoryStore;
  * 
  */
 public class MemoryDataLayer implements DataLayer {
-	// Random number generator
-	private final static Random rand = new Random();
-
 	// The Sesame repository
 	private final SailRepository repository;
 
@@ -53,6 +53,44 @@ public class MemoryDataLayer implements DataLayer {
 		return new ArrayList<Statement>();
 	}
 
+	/**
+	 * Go over the statements matching a pattern without keeping them
+	 * 
+	 * @param t
+	 * @param reservoir
+	 *            the reservoir offered every statement. If null, the
+	 *            statements are only counted
+	 * @return the number of statements matching the pattern
+	 */
+	private long scan(Triple t, Reservoir<Statement> reservoir) {
+		long count = 0;
+		SailRepositoryConnection c = null;
+		try {
+			c = repository.getConnection();
+			RepositoryResult<Statement> res = c.getStatements(t.getSubject(), t.getPredicate(), t.getObject(), true);
+			try {
+				while (res.hasNext()) {
+					Statement statement = res.next();
+					if (reservoir != null)
+						reservoir.offer(statement);
+					count++;
+				}
+			} finally {
+				res.close();
+			}
+		} catch (RepositoryException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				if (c != null)
+					c.close();
+			} catch (RepositoryException e) {
+				e.printStackTrace();
+			}
+		}
+		return count;
+	}
+
 	/**
 	 * @throws RepositoryException
 	 * 
@@ -73,7 +111,7 @@ public class MemoryDataLayer implements DataLayer {
 		if (t.getNumberNulls() > 1)
 			return 0;
 
-		return getTriples(t).size();
+		return scan(t, null);
 	}
 
 	/*
@@ -82,22 +120,36 @@ public class MemoryDataLayer implements DataLayer {
 	 * @see nl.erdf.datalayer.DataLayer#getResource(nl.erdf.model.impl.Triple)
 	 */
 	public Value getResource(Triple t) {
-		if (t.getNumberNulls() > 1)
-			return null;
+		List<Value> values = sample(t, 1, Randomizer.instance());
+		return (values.isEmpty() ? null : values.get(0));
+	}
 
-		List<Statement> stmts = getTriples(t);
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.DataLayer#sample(nl.erdf.model.Triple, int,
+	 * java.util.Random)
+	 */
+	public List<Value> sample(Triple t, int k, Random random) {
+		List<Value> values = new ArrayList<Value>(k);
+		if (t.getNumberNulls() != 1)
+			return values;
+
+		// Draw the statements while going over them once, instead of keeping
+		// them all
+		Reservoir<Statement> reservoir = new Reservoir<Statement>(k, random);
+		scan(t, reservoir);
 
-		if (stmts.size() > 0) {
-			Statement s = stmts.get(rand.nextInt(stmts.size()));
+		for (Statement s : reservoir.getSample()) {
 			if (t.getSubject() == null)
-				return s.getSubject();
-			if (t.getPredicate() == null)
-				return s.getPredicate();
-			if (t.getObject() == null)
-				return s.getObject();
+				values.add(s.getSubject());
+			else if (t.getPredicate() == null)
+				values.add(s.getPredicate());
+			else
+				values.add(s.getObject());
 		}
 
-		return null;
+		return values;
 	}
 
 	/*
@@ -110,6 +162,19 @@ public class MemoryDataLayer implements DataLayer {
 		return (stmts.size() != 0);
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.DataLayer#isValid(java.util.List)
+	 */
+	public BitSet isValid(List<Triple> patterns) {
+		BitSet result = new BitSet(patterns.size());
+		for (int i = 0; i < patterns.size(); i++)
+			if (isValid(patterns.get(i)))
+				result.set(i);
+		return result;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
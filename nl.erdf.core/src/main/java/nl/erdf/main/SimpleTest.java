@@ -12,7 +12,7 @@ import java.util.SortedSet;
 
 import nl.erdf.constraints.impl.StatementPatternConstraint;
 import nl.erdf.datalayer.DataLayer;
-import nl.erdf.datalayer.impl.MemoryDataLayer;
+import nl.erdf.datalayer.impl.DictionaryDataLayer;
 import nl.erdf.model.Request;
 import nl.erdf.model.Solution;
 import nl.erdf.model.impl.StatementPatternProvider;
@@ -43,7 +43,7 @@ public class SimpleTest implements Observer {
 	 */
 	public SimpleTest(String dataFile, String queryFile) throws Exception {
 		// Create a simple in memory data layer
-		DataLayer dataLayer = new MemoryDataLayer();
+		DataLayer dataLayer = new DictionaryDataLayer();
 
 		// Load some data
 		MyHandler handler = new MyHandler(dataLayer);
@@ -38,6 +38,9 @@ public class Request {
 	// Data layer
 	private final DataLayer dataLayer;
 
+	// Positions of the variables in the solutions
+	private final VariableIndex variableIndex = new VariableIndex();
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -64,10 +67,14 @@ public class Request {
 	 * @return the solution prototype
 	 */
 	public Solution getSolutionPrototype() {
-		Solution solution = new Solution();
-		for (String variable : constraints.keySet())
-			solution.add(new Variable(variable));
-		return solution;
+		return new Solution(variableIndex);
+	}
+
+	/**
+	 * @return the positions of the variables in the solutions
+	 */
+	public VariableIndex getVariableIndex() {
+		return variableIndex;
 	}
 
 	/**
@@ -113,6 +120,7 @@ public class Request {
 	 */
 	public void addConstraint(Constraint constraint) {
 		for (String var : constraint.getVariables()) {
+			variableIndex.add(var);
 			List<Constraint> cstrs = null;
 			if (!constraints.containsKey(var)) {
 				cstrs = new ArrayList<Constraint>();
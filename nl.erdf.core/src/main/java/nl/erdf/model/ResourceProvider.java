@@ -3,8 +3,11 @@
  */
 package nl.erdf.model;
 
+import java.util.Random;
 import java.util.Set;
 
+import nl.erdf.datalayer.AsyncDataLayer;
+import nl.erdf.datalayer.DataFuture;
 import nl.erdf.datalayer.DataLayer;
 
 import org.openrdf.model.Value;
@@ -22,6 +25,30 @@ public interface ResourceProvider {
 	 */
 	abstract public Value getResource(String variableName, Solution solution, DataLayer dataLayer);
 
+	/**
+	 * @param variableName
+	 * @param solution
+	 * @param dataLayer
+	 * @param random
+	 *            the random number generator to use
+	 * @return a resource
+	 */
+	abstract public Value getResource(String variableName, Solution solution, DataLayer dataLayer, Random random);
+
+	/**
+	 * Same as getResource() but does not wait for the data layer to answer
+	 * 
+	 * @param variableName
+	 * @param solution
+	 * @param dataLayer
+	 * @param random
+	 *            the random number generator to use, only called before the
+	 *            method returns
+	 * @return a resource, once known
+	 */
+	abstract public DataFuture<Value> getResourceAsync(String variableName, Solution solution,
+			AsyncDataLayer dataLayer, Random random);
+
 	/**
 	 * @return the set of variables used by the provider
 	 */
@@ -35,4 +62,16 @@ public interface ResourceProvider {
 	 */
 	abstract public long getNumberResources(String variableName, Solution solution, DataLayer dataLayer);
 
+	/**
+	 * Same as getNumberResources() but does not wait for the data layer to
+	 * answer
+	 * 
+	 * @param variableName
+	 * @param solution
+	 * @param dataLayer
+	 * @return the number of resources the provider can serve, once known
+	 */
+	abstract public DataFuture<Long> getNumberResourcesAsync(String variableName, Solution solution,
+			AsyncDataLayer dataLayer);
+
 }
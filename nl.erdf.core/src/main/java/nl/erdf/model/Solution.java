@@ -1,9 +1,16 @@
 package nl.erdf.model;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.Set;
 
+import nl.erdf.constraints.Constraint;
+import nl.erdf.constraints.RewardsTable;
 import nl.erdf.util.Format;
 
 import org.openrdf.model.Value;
@@ -11,7 +18,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * A solution to a request is a set of bindings
+ * A solution to a request is a set of bindings. The values and the rewards are
+ * stored in arrays, at the positions given by a variable index shared by all
+ * the solutions of the same request.
  * 
  * @author Christophe Guéret <christophe.gueret@gmail.com>
  * 
@@ -26,14 +35,61 @@ public class Solution implements Comparable<Solution> {
 	// Is that an optimal solution?
 	private boolean isOptimal = false;
 
-	// Index the variables by name (sorted tree is important for the hash code)
-	private final Map<String, Variable> variables = new TreeMap<String, Variable>();
+	// Position of the variables in the arrays
+	private final VariableIndex index;
+
+	// The values bound to the variables
+	private Value[] values;
+
+	// The rewards the bindings were credited with
+	private double[] rewards;
+
+	// Cached hash code, invalidated every time a value changes
+	private int hashCode = 0;
+	private boolean isHashCodeValid = false;
+
+	// Rewards given by every constraint at the last evaluation
+	private final Map<Constraint, RewardsTable> constraintRewards = new HashMap<Constraint, RewardsTable>();
+
+	// Variables changed since the last evaluation, null if never evaluated
+	private Set<String> changedVariables = null;
+
+	// Size of the black list used for the last evaluation
+	private int blackListSize = -1;
+
+	/**
+	 * Create an empty solution with its own variable index
+	 */
+	public Solution() {
+		this(new VariableIndex());
+	}
+
+	/**
+	 * Create a solution with an unbound slot for every variable of the index
+	 * 
+	 * @param index
+	 *            the variable index, shared with the other solutions
+	 */
+	public Solution(VariableIndex index) {
+		this.index = index;
+		this.values = new Value[index.size()];
+		this.rewards = new double[index.size()];
+	}
 
 	/**
+	 * Copy the binding of a variable into the solution
+	 * 
 	 * @param variable
 	 */
 	public void add(Variable variable) {
-		variables.put(variable.getName(), variable);
+		int position = index.add(variable.getName());
+		if (position >= values.length) {
+			values = Arrays.copyOf(values, index.size());
+			rewards = Arrays.copyOf(rewards, index.size());
+		}
+		values[position] = variable.getValue();
+		rewards[position] = variable.getReward();
+		isHashCodeValid = false;
 	}
 
 	/*
@@ -43,11 +99,19 @@ public class Solution implements Comparable<Solution> {
 	 */
 	@Override
 	public Solution clone() {
-		Solution solution = new Solution();
+		Solution solution = new Solution(index);
 
-		// Perform a deep copy of the variables
-		for (Variable variable : this.variables.values())
-			solution.add(variable.clone());
+		// Values are immutable, copying the arrays is enough
+		solution.values = values.clone();
+		solution.rewards = rewards.clone();
+		solution.hashCode = hashCode;
+		solution.isHashCodeValid = isHashCodeValid;
+
+		// The rewards tables are not modified once set, they can be shared
+		solution.constraintRewards.putAll(constraintRewards);
+		if (changedVariables != null)
+			solution.changedVariables = new HashSet<String>(changedVariables);
+		solution.blackListSize = blackListSize;
 
 		return solution;
 	}
@@ -83,26 +147,43 @@ public class Solution implements Comparable<Solution> {
 			return false;
 		Solution other = (Solution) obj;
 
-		// Compare the assignments
-		for (String var : variables.keySet()) {
-			if (this.getValue(var) == null && other.getValue(var) != null)
-				return false;
-			else if (this.getValue(var) != null && other.getValue(var) == null)
-				return false;
-			else if (this.getValue(var) != null && !this.getValue(var).equals(other.getValue(var)))
-				return false;
+		// Different hash codes, different assignments
+		if (hashCode() != other.hashCode())
+			return false;
+
+		// Compare the assignments, position by position if possible
+		if (index == other.index) {
+			int length = Math.max(values.length, other.values.length);
+			for (int i = 0; i < length; i++)
+				if (!equals(getValue(i), other.getValue(i)))
+					return false;
+			return true;
 		}
+		for (int i = 0; i < index.size(); i++)
+			if (!equals(getValue(i), other.getValue(index.getName(i))))
+				return false;
 
 		return true;
 	}
 
+	/**
+	 * @param a
+	 * @param b
+	 * @return true if both values are null or equal
+	 */
+	private static boolean equals(Value a, Value b) {
+		if (a == null)
+			return b == null;
+		return a.equals(b);
+	}
+
 	/**
 	 * @return the total reward of the variables
 	 */
 	public double getTotalReward() {
 		double sum = 0;
-		for (Variable variable : this.variables.values())
-			sum += variable.getReward();
+		for (double reward : rewards)
+			sum += reward;
 		return sum;
 	}
 
@@ -113,19 +194,120 @@ public class Solution implements Comparable<Solution> {
 	 * @return the value bound to the variable
 	 */
 	public Value getValue(String variableName) {
-		if (!variables.containsKey(variableName))
+		int position = index.indexOf(variableName);
+		if (position == -1)
 			return null;
-		return variables.get(variableName).getValue();
+		return getValue(position);
+	}
+
+	/**
+	 * @param position
+	 *            the position of the variable in the index
+	 * @return the value bound to the variable
+	 */
+	public Value getValue(int position) {
+		if (position >= values.length)
+			return null;
+		return values[position];
 	}
 
 	/**
 	 * @param variableName
-	 * @return the variable
+	 * @param value
+	 *            the value to bind to the variable
+	 * @throws IllegalStateException
+	 *             if the variable is not known and the index is frozen
+	 */
+	public void setValue(String variableName, Value value) {
+		setValue(index.add(variableName), value);
+	}
+
+	/**
+	 * @param position
+	 *            the position of the variable in the index
+	 * @param value
+	 *            the value to bind to the variable
+	 */
+	public void setValue(int position, Value value) {
+		grow(position);
+		values[position] = value;
+		isHashCodeValid = false;
+	}
+
+	/**
+	 * @param variableName
+	 * @return the reward credited to the variable
+	 */
+	public double getReward(String variableName) {
+		int position = index.indexOf(variableName);
+		if (position == -1)
+			return 0;
+		return getReward(position);
+	}
+
+	/**
+	 * @param position
+	 *            the position of the variable in the index
+	 * @return the reward credited to the variable
+	 */
+	public double getReward(int position) {
+		if (position >= rewards.length)
+			return 0;
+		return rewards[position];
+	}
+
+	/**
+	 * @param variableName
+	 * @param reward
+	 *            the reward to credit the variable with
+	 * @throws IllegalStateException
+	 *             if the variable is not known and the index is frozen
+	 */
+	public void setReward(String variableName, double reward) {
+		setReward(index.add(variableName), reward);
+	}
+
+	/**
+	 * @param position
+	 *            the position of the variable in the index
+	 * @param reward
+	 *            the reward to credit the variable with
+	 */
+	public void setReward(int position, double reward) {
+		grow(position);
+		rewards[position] = reward;
+	}
+
+	/**
+	 * Make room for a variable added to the index after the creation of the
+	 * solution
+	 * 
+	 * @param position
+	 */
+	private void grow(int position) {
+		if (position >= values.length) {
+			values = Arrays.copyOf(values, Math.max(position + 1, index.size()));
+			rewards = Arrays.copyOf(rewards, values.length);
+		}
+	}
+
+	/**
+	 * @param variableName
+	 * @return a view over the binding of the variable, null if the variable is
+	 *         not known
 	 */
 	public Variable getVariable(String variableName) {
-		if (!variables.containsKey(variableName))
+		int position = index.indexOf(variableName);
+		if (position == -1)
 			return null;
-		return variables.get(variableName);
+		return new Variable(this, position, variableName);
+	}
+
+	/**
+	 * @return the variable index used by that solution
+	 */
+	public VariableIndex getVariableIndex() {
+		return index;
 	}
 
 	/*
@@ -135,10 +317,17 @@ public class Solution implements Comparable<Solution> {
 	 */
 	@Override
 	public int hashCode() {
-		final int prime = 31;
+		if (isHashCodeValid)
+			return hashCode;
+
+		// Combine the bindings independently of their position so that the
+		// hash code is consistent with equals() across indexes
 		int result = 1;
-		for (Variable var : variables.values())
-			result = prime * result + ((var.getValue() == null) ? 0 : var.getValue().hashCode());
+		for (int i = 0; i < values.length; i++)
+			if (values[i] != null)
+				result += index.getName(i).hashCode() ^ values[i].hashCode();
+		hashCode = result;
+		isHashCodeValid = true;
 		return result;
 	}
 
@@ -161,7 +350,7 @@ public class Solution implements Comparable<Solution> {
 	 * @return the number of variables
 	 */
 	public int size() {
-		return variables.size();
+		return index.size();
 	}
 
 	/*
@@ -173,9 +362,9 @@ public class Solution implements Comparable<Solution> {
 	public String toString() {
 		StringBuffer buffer = new StringBuffer();
 		buffer.append(Format.format.format(getFitness())).append(" ").append(" [");
-		for (Variable variable : this.variables.values()) {
-			buffer.append(variable.getName()).append("=").append(variable.getValue()).append(" (");
-			buffer.append(Format.format.format(variable.getReward())).append("),");
+		for (int i = 0; i < index.size(); i++) {
+			buffer.append(index.getName(i)).append("=").append(getValue(i)).append(" (");
+			buffer.append(Format.format.format(getReward(i))).append("),");
 		}
 		buffer.setCharAt(buffer.length() - 1, ']');
 		return buffer.toString();
@@ -187,8 +376,7 @@ public class Solution implements Comparable<Solution> {
 	public void resetScores() {
 		setOptimal(false);
 		fitness = 0;
-		for (Variable variable : this.variables.values())
-			variable.setReward(0.0);
+		Arrays.fill(rewards, 0.0);
 	}
 
 	/**
@@ -206,9 +394,65 @@ public class Solution implements Comparable<Solution> {
 	}
 
 	/**
-	 * @return the list of variables
+	 * Record that some variables got a new value since the last evaluation
+	 * 
+	 * @param variableNames
+	 */
+	public void markChanged(Collection<String> variableNames) {
+		if (changedVariables != null)
+			changedVariables.addAll(variableNames);
+	}
+
+	/**
+	 * @return the variables changed since the last evaluation, or null if the
+	 *         solution has never been evaluated
+	 */
+	public Set<String> getChangedVariables() {
+		return changedVariables;
+	}
+
+	/**
+	 * @return the size of the black list used for the last evaluation
+	 */
+	public int getBlackListSize() {
+		return blackListSize;
+	}
+
+	/**
+	 * @param constraint
+	 * @param rewards
+	 *            the rewards given by the constraint
+	 */
+	public void setRewards(Constraint constraint, RewardsTable rewards) {
+		constraintRewards.put(constraint, rewards);
+	}
+
+	/**
+	 * @return the rewards given by all the constraints evaluated so far
+	 */
+	public Collection<RewardsTable> getRewards() {
+		return constraintRewards.values();
+	}
+
+	/**
+	 * Flag the solution as evaluated, no variable is considered as changed
+	 * anymore
+	 * 
+	 * @param blackListSize
+	 *            the size of the black list used for the evaluation
+	 */
+	public void setEvaluated(int blackListSize) {
+		this.blackListSize = blackListSize;
+		changedVariables = new HashSet<String>();
+	}
+
+	/**
+	 * @return views over all the variables
 	 */
 	public Collection<Variable> getVariables() {
-		return variables.values();
+		List<Variable> variables = new ArrayList<Variable>(index.size());
+		for (int i = 0; i < index.size(); i++)
+			variables.add(new Variable(this, i, index.getName(i)));
+		return variables;
 	}
 }
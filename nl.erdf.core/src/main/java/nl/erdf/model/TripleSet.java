@@ -3,15 +3,18 @@
  */
 package nl.erdf.model;
 
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * A thread safe set of triples
+ * 
  * @author Christophe Guéret <christophe.gueret@gmail.com>
  * 
  */
 public class TripleSet {
-	private final Set<Triple> triples = new HashSet<Triple>();
+	private final Set<Triple> triples = Collections.newSetFromMap(new ConcurrentHashMap<Triple, Boolean>());
 
 	/**
 	 * @param t
@@ -28,4 +31,11 @@ public class TripleSet {
 		triples.addAll(tripleSet);
 	}
 
+	/**
+	 * @return the number of triples in the set
+	 */
+	public int size() {
+		return triples.size();
+	}
+
 }
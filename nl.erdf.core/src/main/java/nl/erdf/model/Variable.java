@@ -6,6 +6,9 @@ package nl.erdf.model;
 import org.openrdf.model.Value;
 
 /**
+ * A named binding. A variable obtained from a solution is a view over the
+ * arrays of that solution, changing it changes the solution.
+ * 
  * @author Christophe Guéret <christophe.gueret@gmail.com>
  * 
  */
@@ -19,6 +22,12 @@ public class Variable {
 	// The reward the binding was credited with
 	private double reward = 0.0;
 
+	// The solution holding the binding, null for a free standing variable
+	private final Solution solution;
+
+	// The position of the binding in the solution
+	private final int index;
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -29,7 +38,7 @@ public class Variable {
 		final int prime = 31;
 		int result = 1;
 		result = prime * result + ((name == null) ? 0 : name.hashCode());
-		result = prime * result + ((value == null) ? 0 : value.hashCode());
+		result = prime * result + ((getValue() == null) ? 0 : getValue().hashCode());
 		return result;
 	}
 
@@ -52,10 +61,10 @@ public class Variable {
 				return false;
 		} else if (!name.equals(other.name))
 			return false;
-		if (value == null) {
-			if (other.value != null)
+		if (getValue() == null) {
+			if (other.getValue() != null)
 				return false;
-		} else if (!value.equals(other.value))
+		} else if (!getValue().equals(other.getValue()))
 			return false;
 		return true;
 	}
@@ -65,6 +74,21 @@ public class Variable {
 	 */
 	public Variable(String name) {
 		this.name = name;
+		this.solution = null;
+		this.index = -1;
+	}
+
+	/**
+	 * @param solution
+	 *            the solution holding the binding
+	 * @param index
+	 *            the position of the binding in the solution
+	 * @param name
+	 */
+	protected Variable(Solution solution, int index, String name) {
+		this.name = name;
+		this.solution = solution;
+		this.index = index;
 	}
 
 	/**
@@ -87,6 +111,8 @@ public class Variable {
 	 * @return the reward
 	 */
 	public double getReward() {
+		if (solution != null)
+			return solution.getReward(index);
 		return reward;
 	}
 
@@ -95,13 +121,18 @@ public class Variable {
 	 *            the reward to set
 	 */
 	public void setReward(double reward) {
-		this.reward = reward;
+		if (solution != null)
+			solution.setReward(index, reward);
+		else
+			this.reward = reward;
 	}
 
 	/**
 	 * @return the value
 	 */
 	public Value getValue() {
+		if (solution != null)
+			return solution.getValue(index);
 		return value;
 	}
 
@@ -110,7 +141,10 @@ public class Variable {
 	 *            the value to set
 	 */
 	public void setValue(Value value) {
-		this.value = value;
+		if (solution != null)
+			solution.setValue(index, value);
+		else
+			this.value = value;
 	}
 
 	/*
@@ -120,9 +154,10 @@ public class Variable {
 	 */
 	@Override
 	public Variable clone() {
+		// The copy is always free standing
 		Variable v = new Variable(name);
-		v.value = value;
-		v.reward = reward;
+		v.value = getValue();
+		v.reward = getReward();
 		return v;
 	}
 }
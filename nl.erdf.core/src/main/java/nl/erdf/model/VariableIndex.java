@@ -0,0 +1,101 @@
+/**
+ * 
+ */
+package nl.erdf.model;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Assign a dense position to every variable of a request. The solutions of a
+ * same request share the index and store their bindings in arrays following
+ * these positions.
+ * 
+ * The index is read without locking by the threads evaluating the solutions.
+ * Adding a variable replaces the arrays instead of changing them, and an
+ * index can be frozen once the request is complete so that no variable can
+ * be added by mistake during the search.
+ * 
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ */
+public class VariableIndex {
+	// The names of the variables, by position. Never modified, only replaced
+	private volatile String[] names = new String[0];
+
+	// The position of every variable. Never modified, only replaced
+	private volatile Map<String, Integer> positions = Collections.emptyMap();
+
+	// Can variables still be added?
+	private boolean isFrozen = false;
+
+	/**
+	 * Register a variable, nothing changes if it is already known
+	 * 
+	 * @param name
+	 *            the name of the variable
+	 * @return the position of the variable
+	 * @throws IllegalStateException
+	 *             if the variable is not known and the index is frozen
+	 */
+	public synchronized int add(String name) {
+		Integer position = positions.get(name);
+		if (position != null)
+			return position.intValue();
+		if (isFrozen)
+			throw new IllegalStateException("Unknown variable " + name);
+
+		// Publish the names first, a position is never beyond them
+		String[] newNames = Arrays.copyOf(names, names.length + 1);
+		newNames[names.length] = name;
+		Map<String, Integer> newPositions = new HashMap<String, Integer>(positions);
+		newPositions.put(name, names.length);
+		names = newNames;
+		positions = newPositions;
+		return newNames.length - 1;
+	}
+
+	/**
+	 * Prevent any variable from being added
+	 */
+	public synchronized void freeze() {
+		isFrozen = true;
+	}
+
+	/**
+	 * @return true if no variable can be added
+	 */
+	public synchronized boolean isFrozen() {
+		return isFrozen;
+	}
+
+	/**
+	 * @param name
+	 *            the name of the variable
+	 * @return the position of the variable or -1 if it is not known
+	 */
+	public int indexOf(String name) {
+		Integer position = positions.get(name);
+		if (position == null)
+			return -1;
+		return position.intValue();
+	}
+
+	/**
+	 * @param index
+	 *            the position of the variable
+	 * @return the name of the variable
+	 */
+	public String getName(int index) {
+		return names[index];
+	}
+
+	/**
+	 * @return the number of variables
+	 */
+	public int size() {
+		return names.length;
+	}
+}
@@ -3,14 +3,23 @@
  */
 package nl.erdf.model.impl;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
+import nl.erdf.datalayer.AsyncDataLayer;
+import nl.erdf.datalayer.DataFuture;
 import nl.erdf.datalayer.DataLayer;
 import nl.erdf.model.ResourceProvider;
 import nl.erdf.model.Solution;
 import nl.erdf.model.Triple;
 import nl.erdf.util.Convert;
+import nl.erdf.util.Randomizer;
 
 import org.openrdf.model.Value;
 import org.openrdf.query.algebra.StatementPattern;
@@ -26,9 +35,25 @@ public class StatementPatternProvider implements ResourceProvider {
 	/** Logger */
 	final Logger logger = LoggerFactory.getLogger(StatementPatternProvider.class);
 
+	/** Number of values drawn at once for an instantiated pattern */
+	public static final int SAMPLE_SIZE = 10;
+
+	/** Maximum number of instantiated patterns with values kept aside */
+	private static final int MAX_POOLS = 1000;
+
 	// The graph pattern is a triple with variables in it
 	private final StatementPattern pattern;
 
+	// Values drawn but not handed out yet, indexed by instantiated pattern
+	@SuppressWarnings("serial")
+	private final Map<Triple, LinkedList<Value>> pools = new LinkedHashMap<Triple, LinkedList<Value>>(16, 0.75f,
+			true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Triple, LinkedList<Value>> eldest) {
+			return size() > MAX_POOLS;
+		}
+	};
+
 	/**
 	 * @param pattern
 	 */
@@ -44,24 +69,114 @@ public class StatementPatternProvider implements ResourceProvider {
 	 * nl.erdf.model.Solution, nl.erdf.datalayer.DataLayer)
 	 */
 	public Value getResource(String variableName, Solution solution, DataLayer dataLayer) {
-		// Instantiate the pattern
-		Triple t = Convert.toTriple(pattern, solution);
+		return getResource(variableName, solution, dataLayer, Randomizer.instance());
+	}
 
-		// Return null in case of invalid triple
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.model.ResourceProvider#getResource(java.lang.String,
+	 * nl.erdf.model.Solution, nl.erdf.datalayer.DataLayer, java.util.Random)
+	 */
+	public Value getResource(String variableName, Solution solution, DataLayer dataLayer, Random random) {
+		// Return nothing in case of invalid triple
+		Triple t = getTriple(variableName, solution);
 		if (t == null)
 			return null;
 
-		// Set back the requested variable to null
-		if (pattern.getSubjectVar().getName().equals(variableName))
-			t = new Triple(null, t.getPredicate(), t.getObject());
-		if (pattern.getPredicateVar().getName().equals(variableName))
-			t = new Triple(t.getSubject(), null, t.getObject());
-		if (pattern.getObjectVar().getName().equals(variableName))
-			t = new Triple(t.getSubject(), t.getPredicate(), null);
+		// Take the next value drawn for that pattern, draw a new batch of
+		// them once they have all been used
+		Value value = poll(t);
+		if (value == null)
+			value = keep(t, dataLayer.sample(t, SAMPLE_SIZE, random));
+		return value;
+	}
 
-		// Get a value and return it
-		Value resource = dataLayer.getResource(t);
-		return resource;
+	/**
+	 * @param t
+	 * @return a value drawn earlier for the pattern, or null if there is none
+	 *         left
+	 */
+	private Value poll(Triple t) {
+		synchronized (pools) {
+			LinkedList<Value> pool = pools.get(t);
+			return (pool == null ? null : pool.poll());
+		}
+	}
+
+	/**
+	 * @param t
+	 * @param sample
+	 *            values drawn for the pattern
+	 * @return the first value of the sample, the others are kept for the next
+	 *         calls
+	 */
+	private Value keep(Triple t, List<Value> sample) {
+		if (sample == null || sample.isEmpty())
+			return null;
+		synchronized (pools) {
+			LinkedList<Value> pool = pools.get(t);
+			if (pool == null) {
+				pool = new LinkedList<Value>();
+				pools.put(t, pool);
+			}
+			pool.addAll(sample.subList(1, sample.size()));
+		}
+		return sample.get(0);
+	}
+
+	/**
+	 * Draw several candidate values for a variable at once
+	 * 
+	 * @param variableName
+	 * @param solution
+	 * @param dataLayer
+	 * @param k
+	 *            the number of values to draw
+	 * @param random
+	 *            the random number generator to use
+	 * @return a list of at most k resources
+	 */
+	public List<Value> getResources(String variableName, Solution solution, DataLayer dataLayer, int k,
+			Random random) {
+		// Return nothing in case of invalid triple
+		Triple t = getTriple(variableName, solution);
+		if (t == null)
+			return new ArrayList<Value>();
+
+		// Get the values and return them
+		return dataLayer.sample(t, k, random);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.model.ResourceProvider#getResourceAsync(java.lang.String,
+	 * nl.erdf.model.Solution, nl.erdf.datalayer.AsyncDataLayer,
+	 * java.util.Random)
+	 */
+	public DataFuture<Value> getResourceAsync(String variableName, Solution solution, AsyncDataLayer dataLayer,
+			Random random) {
+		// Return nothing in case of invalid triple
+		final Triple t = getTriple(variableName, solution);
+		if (t == null)
+			return DataFuture.completed(null);
+
+		// Use a value drawn earlier if there is one left
+		Value value = poll(t);
+		if (value != null)
+			return DataFuture.completed(value);
+
+		// Otherwise keep the first value of a new sample, and the others for
+		// later
+		final DataFuture<List<Value>> sample = dataLayer.sampleAsync(t, SAMPLE_SIZE, random.nextLong());
+		final DataFuture<Value> result = new DataFuture<Value>();
+		sample.addListener(new Runnable() {
+			public void run() {
+				result.complete(keep(t, sample.getUninterruptibly()));
+			}
+		});
+		return result;
 	}
 
 	/*
@@ -71,13 +186,43 @@ public class StatementPatternProvider implements ResourceProvider {
 	 * nl.erdf.model.Solution, nl.erdf.datalayer.DataLayer)
 	 */
 	public long getNumberResources(String variableName, Solution solution, DataLayer dataLayer) {
-		// Instantiate the pattern
-		Triple t = Convert.toTriple(pattern, solution);
-
 		// Return 0 in case of invalid triple
+		Triple t = getTriple(variableName, solution);
 		if (t == null)
 			return 0;
 
+		return dataLayer.getNumberOfResources(t);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * nl.erdf.model.ResourceProvider#getNumberResourcesAsync(java.lang.String,
+	 * nl.erdf.model.Solution, nl.erdf.datalayer.AsyncDataLayer)
+	 */
+	public DataFuture<Long> getNumberResourcesAsync(String variableName, Solution solution,
+			AsyncDataLayer dataLayer) {
+		// Return 0 in case of invalid triple
+		Triple t = getTriple(variableName, solution);
+		if (t == null)
+			return DataFuture.completed(Long.valueOf(0));
+
+		return dataLayer.getNumberOfResourcesAsync(t);
+	}
+
+	/**
+	 * @param variableName
+	 * @param solution
+	 * @return the pattern instantiated with the solution, with the requested
+	 *         variable left to null, or null if it can not be instantiated
+	 */
+	private Triple getTriple(String variableName, Solution solution) {
+		// Instantiate the pattern
+		Triple t = Convert.toTriple(pattern, solution);
+		if (t == null)
+			return null;
+
 		// Set back the requested variable to null
 		if (pattern.getSubjectVar().getName().equals(variableName))
 			t = new Triple(null, t.getPredicate(), t.getObject());
@@ -85,8 +230,7 @@ public class StatementPatternProvider implements ResourceProvider {
 			t = new Triple(t.getSubject(), null, t.getObject());
 		if (pattern.getObjectVar().getName().equals(variableName))
 			t = new Triple(t.getSubject(), t.getPredicate(), null);
-
-		return dataLayer.getNumberOfResources(t);
+		return t;
 	}
 
 	/*
@@ -8,10 +8,14 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import nl.erdf.datalayer.AsyncDataLayer;
+import nl.erdf.datalayer.DataFuture;
 import nl.erdf.datalayer.DataLayer;
 import nl.erdf.model.ResourceProvider;
 import nl.erdf.model.Solution;
+import nl.erdf.util.Randomizer;
 
 import org.openrdf.model.Value;
 
@@ -38,8 +42,30 @@ public class StatementPatternSetProvider implements ResourceProvider {
 	 * nl.erdf.model.Solution, nl.erdf.datalayer.DataLayer)
 	 */
 	public Value getResource(String variable, Solution solution, DataLayer dataLayer) {
-		Random rand = new Random();
-		return providers.get(rand.nextInt(providers.size())).getResource(variable, solution, dataLayer);
+		return getResource(variable, solution, dataLayer, Randomizer.instance());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.model.ResourceProvider#getResource(java.lang.String,
+	 * nl.erdf.model.Solution, nl.erdf.datalayer.DataLayer, java.util.Random)
+	 */
+	public Value getResource(String variable, Solution solution, DataLayer dataLayer, Random random) {
+		return providers.get(random.nextInt(providers.size())).getResource(variable, solution, dataLayer, random);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.model.ResourceProvider#getResourceAsync(java.lang.String,
+	 * nl.erdf.model.Solution, nl.erdf.datalayer.AsyncDataLayer,
+	 * java.util.Random)
+	 */
+	public DataFuture<Value> getResourceAsync(String variable, Solution solution, AsyncDataLayer dataLayer,
+			Random random) {
+		return providers.get(random.nextInt(providers.size())).getResourceAsync(variable, solution, dataLayer,
+				random);
 	}
 
 	/**
@@ -91,4 +117,37 @@ public class StatementPatternSetProvider implements ResourceProvider {
 		return total;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * nl.erdf.model.ResourceProvider#getNumberResourcesAsync(java.lang.String,
+	 * nl.erdf.model.Solution, nl.erdf.datalayer.AsyncDataLayer)
+	 */
+	public DataFuture<Long> getNumberResourcesAsync(String variableName, Solution solution,
+			AsyncDataLayer dataLayer) {
+		if (providers.isEmpty())
+			return DataFuture.completed(Long.valueOf(0));
+
+		// Sum the counts once they are all known
+		final List<DataFuture<Long>> counts = new ArrayList<DataFuture<Long>>();
+		for (StatementPatternProvider provider : providers)
+			counts.add(provider.getNumberResourcesAsync(variableName, solution, dataLayer));
+		final DataFuture<Long> result = new DataFuture<Long>();
+		final AtomicInteger missing = new AtomicInteger(counts.size());
+		Runnable sum = new Runnable() {
+			public void run() {
+				if (missing.decrementAndGet() > 0)
+					return;
+				long total = 0;
+				for (DataFuture<Long> count : counts)
+					total += count.getUninterruptibly().longValue();
+				result.complete(Long.valueOf(total));
+			}
+		};
+		for (DataFuture<Long> count : counts)
+			count.addListener(sum);
+		return result;
+	}
+
 }
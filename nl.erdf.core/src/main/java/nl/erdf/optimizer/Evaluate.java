@@ -1,9 +1,14 @@
 package nl.erdf.optimizer;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
@@ -11,10 +16,11 @@ import java.util.concurrent.Future;
 import nl.erdf.constraints.Constraint;
 import nl.erdf.constraints.RewardsTable;
 import nl.erdf.datalayer.DataLayer;
+import nl.erdf.datalayer.impl.CachedDataLayer;
 import nl.erdf.model.Request;
 import nl.erdf.model.Solution;
+import nl.erdf.model.Triple;
 import nl.erdf.model.TripleSet;
-import nl.erdf.model.Variable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,42 +42,87 @@ public class Evaluate {
 	// Set of black listed triples
 	private TripleSet blackListedTriples;
 
-	// Data layer
-	private DataLayer dataLayer;
+	// Data layer, seen through a memo of the validity checks
+	private CachedDataLayer dataLayer;
 
 	/**
 	 * @param request
 	 * @param dataLayer
+	 *            the data layer, wrapped into a memo unless it is already a
+	 *            {@link CachedDataLayer}
 	 * @param blackListedTriples
 	 * @param executor
 	 */
 	public Evaluate(Request request, DataLayer dataLayer, TripleSet blackListedTriples, ExecutorService executor) {
 		this.request = request;
-		this.dataLayer = dataLayer;
+		this.dataLayer = CachedDataLayer.wrap(dataLayer);
 		this.executor = executor;
 		this.blackListedTriples = blackListedTriples;
 	}
 
 	/**
-	 * Evaluate all the candidate solutions, this is a threaded operation
+	 * Evaluate all the candidate solutions, this is a threaded operation. Only
+	 * the constraints involving variables changed since the last evaluation of
+	 * a solution are re-evaluated
 	 * 
 	 * @param population
 	 */
 	public void evaluatePopulation(Collection<Solution> population) {
+		// Find the constraints to evaluate for every solution
+		final List<Solution> solutions = new ArrayList<Solution>(population);
+		final List<Collection<Constraint>> constraints = new ArrayList<Collection<Constraint>>();
+		for (Solution solution : solutions)
+			constraints.add(getConstraintsToEvaluate(solution));
+
+		// Check the validity of all the triples of the generation at once,
+		// then of the triples checked next for those that are not valid. The
+		// outcomes are kept in the memo of the data layer
+		Map<Triple, Set<Constraint>> triples = new HashMap<Triple, Set<Constraint>>();
+		for (int i = 0; i < solutions.size(); i++) {
+			for (Constraint cstr : constraints.get(i)) {
+				for (Triple triple : cstr.getTriples(solutions.get(i))) {
+					Set<Constraint> owners = triples.get(triple);
+					if (owners == null) {
+						owners = new HashSet<Constraint>();
+						triples.put(triple, owners);
+					}
+					owners.add(cstr);
+				}
+			}
+		}
+		if (!triples.isEmpty()) {
+			List<Triple> checked = new ArrayList<Triple>(triples.keySet());
+			BitSet valid = dataLayer.isValid(checked);
+			Set<Triple> fallbacks = new HashSet<Triple>();
+			for (int i = 0; i < checked.size(); i++) {
+				Triple triple = checked.get(i);
+				if (!valid.get(i) && !blackListedTriples.contains(triple))
+					for (Constraint cstr : triples.get(triple))
+						fallbacks.addAll(cstr.getFallbackTriples(triple));
+			}
+			if (!fallbacks.isEmpty())
+				dataLayer.isValid(new ArrayList<Triple>(fallbacks));
+		}
+
+		// The triples have been counted by the batch
+		final DataLayer prefetched = dataLayer.getPrefetchedView();
+
 		if (executor == null) {
 
 			// No executor, sequential code
-			for (final Solution solution : population)
-				evaluate(solution);
+			for (int i = 0; i < solutions.size(); i++)
+				evaluate(solutions.get(i), constraints.get(i), prefetched);
 
 		} else {
 
 			// Start all the evaluations
 			List<Future<?>> list = new ArrayList<Future<?>>();
-			for (final Solution solution : population) {
+			for (int i = 0; i < solutions.size(); i++) {
+				final Solution solution = solutions.get(i);
+				final Collection<Constraint> solutionConstraints = constraints.get(i);
 				Future<?> job = executor.submit(new Runnable() {
 					public void run() {
-						evaluate(solution);
+						evaluate(solution, solutionConstraints, prefetched);
 					}
 				});
 				list.add(job);
@@ -93,25 +144,69 @@ public class Evaluate {
 
 	/**
 	 * The fitness of that candidate solution is defined as the average of the
-	 * individual rewards each binding received.
+	 * individual rewards each binding received. All the constraints are
+	 * evaluated.
 	 * 
 	 * @param solution
 	 */
 	public void evaluate(Solution solution) {
+		evaluate(solution, request.constraints(), dataLayer);
+	}
+
+	/**
+	 * @return the memo of the validity checks, for its statistics
+	 */
+	public CachedDataLayer getValidityCache() {
+		return dataLayer;
+	}
+
+	/**
+	 * A solution that has never been evaluated, or has been evaluated with a
+	 * different black list, needs all its constraints evaluated. Otherwise,
+	 * only the constraints over the variables that changed are needed.
+	 * 
+	 * @param solution
+	 * @return the constraints to evaluate
+	 */
+	private Collection<Constraint> getConstraintsToEvaluate(Solution solution) {
+		Set<String> changed = solution.getChangedVariables();
+		if (changed == null || solution.getBlackListSize() != blackListedTriples.size())
+			return request.constraints();
+
+		Set<Constraint> result = new HashSet<Constraint>();
+		for (String variable : changed)
+			result.addAll(request.getConstraintsFor(variable));
+		return result;
+	}
+
+	/**
+	 * @param solution
+	 *            the solution to evaluate
+	 * @param constraints
+	 *            the constraints to (re-)evaluate, the rewards of the others
+	 *            are taken from the previous evaluation
+	 * @param dataLayer
+	 *            the data layer to check the triples against
+	 */
+	private void evaluate(Solution solution, Collection<Constraint> constraints, DataLayer dataLayer) {
+		// The black list may be extended by someone else in the meantime
+		int blackListSize = blackListedTriples.size();
+
+		// Test the constraints
+		for (Constraint cstr : constraints)
+			solution.setRewards(cstr, cstr.getRewards(solution, dataLayer, blackListedTriples));
+
 		// Reset the rewards of that solution
 		solution.resetScores();
 
-		// Test all the constraints
-		for (Constraint cstr : request.constraints()) {
-			RewardsTable rewards = cstr.getRewards(solution, dataLayer, blackListedTriples);
-
-			// Increment the reward of the variables
+		// Increment the reward of the variables
+		for (RewardsTable rewards : solution.getRewards()) {
 			for (Entry<String, Double> r : rewards.getRewards()) {
-				Variable variable = solution.getVariable(r.getKey());
-				double reward = variable.getReward();
-				variable.setReward(reward + r.getValue().doubleValue());
+				double reward = solution.getReward(r.getKey());
+				solution.setReward(r.getKey(), reward + r.getValue().doubleValue());
 			}
 		}
+		solution.setEvaluated(blackListSize);
 
 		// Set the fitness of the solution
 		solution.setFitness(solution.getTotalReward() / request.getMaximumReward());
@@ -3,6 +3,7 @@ package nl.erdf.optimizer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -15,12 +16,14 @@ import java.util.concurrent.ExecutorService;
 import nl.erdf.constraints.Constraint;
 import nl.erdf.constraints.impl.StatementPatternConstraint;
 import nl.erdf.constraints.impl.StatementPatternSetConstraint;
+import nl.erdf.datalayer.AsyncDataLayer;
+import nl.erdf.datalayer.DataFuture;
 import nl.erdf.datalayer.DataLayer;
 import nl.erdf.model.Request;
 import nl.erdf.model.ResourceProvider;
 import nl.erdf.model.Solution;
 import nl.erdf.model.Triple;
-import nl.erdf.model.Variable;
+import nl.erdf.model.VariableIndex;
 import nl.erdf.util.Convert;
 import nl.erdf.util.Randomizer;
 
@@ -40,6 +43,18 @@ public class Generate {
 	/** Logger */
 	final Logger logger = LoggerFactory.getLogger(Generate.class);
 
+	/** Number of candidate values drawn from every pattern when propagating */
+	private static final int SAMPLE_SIZE = 5;
+
+	/** Maximum number of provider roulettes kept during a generation */
+	private static final int MAX_PROVIDER_WHEELS = 1000;
+
+	/** Weight of a provider whose number of resources is not known yet */
+	private static final double UNKNOWN_PROVIDER_WEIGHT = 0.5;
+
+	/** Maximum number of children waiting for a value from the data layer */
+	private static final int MAX_PENDING_CHILDREN = 256;
+
 	// Data layer
 	private final DataLayer dataLayer;
 
@@ -52,6 +67,34 @@ public class Generate {
 	// Roulette for picking up a variable to change
 	private Roulette rouletteVariable = null;
 
+	// Roulette for picking up the parents, re-filled at every generation
+	private final Roulette parents = new Roulette();
+
+	// Roulettes for picking up a provider, indexed by the variable to change
+	// followed by the values of the variables the cardinalities depend on
+	@SuppressWarnings("serial")
+	private final Map<List<Object>, Roulette> providerWheels = new LinkedHashMap<List<Object>, Roulette>(16, 0.75f,
+			true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<List<Object>, Roulette> eldest) {
+			return size() > MAX_PROVIDER_WHEELS;
+		}
+	};
+
+	// Numbers of resources still expected by the roulettes built without them
+	private final Map<List<Object>, List<DataFuture<Long>>> pendingCounts = new HashMap<List<Object>,
+			List<DataFuture<Long>>>();
+
+	// Variables used by the providers of every variable, but the variable
+	// itself
+	private final Map<String, List<String>> providerDependencies = new HashMap<String, List<String>>();
+
+	// Number of offspring created per parent
+	private final int offspringFactor;
+
+	// Random numbers stream of that generator
+	private final Random random = Randomizer.newStream();
+
 	/**
 	 * @param dataLayer
 	 * @param request
@@ -59,9 +102,22 @@ public class Generate {
 	 * @param executor
 	 */
 	public Generate(DataLayer dataLayer, Request request, ExecutorService executor) {
+		this(dataLayer, request, executor, new OptimizerConfig().getOffspringFactor());
+	}
+
+	/**
+	 * @param dataLayer
+	 * @param request
+	 *            the request to solve
+	 * @param executor
+	 * @param offspringFactor
+	 *            the number of offspring created per parent
+	 */
+	public Generate(DataLayer dataLayer, Request request, ExecutorService executor, int offspringFactor) {
 		this.dataLayer = dataLayer;
 		this.request = request;
 		this.executor = executor;
+		this.offspringFactor = offspringFactor;
 	}
 
 	/**
@@ -73,34 +129,47 @@ public class Generate {
 	 * 
 	 */
 	public void createPopulation(final SortedSet<Solution> population, final Set<Solution> target) {
+		// The data layer may know more resources since the last generation
+		providerWheels.clear();
+		pendingCounts.clear();
+
 		// Prepare a roulette with the parents
-		Roulette parents = new Roulette();
+		parents.clear();
 		for (Solution parent : population)
 			parents.add(parent, parent.getFitness());
 		parents.prepare();
 
 		// Enforce the values of some variable using the value of some
-		// others
-		for (int i = 0; i < 7 * population.size(); i++) {
-			// Pick a parent
-			Solution parent = (Solution) parents.nextElement();
-
-			// Generate a child
-			Solution child = enforce(parent);
+		// others. With an asynchronous data layer, the look-ups for a batch of
+		// children are all sent before waiting for the first answer
+		int size = offspringFactor * population.size();
+		int batchSize = (dataLayer instanceof AsyncDataLayer ? MAX_PENDING_CHILDREN : 1);
+		List<Offspring> pending = new ArrayList<Offspring>(Math.min(size, batchSize));
+		for (int i = 0; i < size; i += batchSize) {
+			// Pick the parents and start the children
+			pending.clear();
+			for (int j = i; j < Math.min(size, i + batchSize); j++) {
+				Solution parent = (Solution) parents.nextElement(random);
+				pending.add(startEnforce(parent));
+			}
 
-			// Add the new individual
-			if (!target.contains(child))
-				target.add(child);
+			// Finish the children
+			for (Offspring offspring : pending) {
+				Solution child = endEnforce(offspring);
 
+				// Add the new individual
+				if (!target.contains(child))
+					target.add(child);
+			}
 		}
 
 		// Do some crossover for higher randomization
 		/*
 		 * for (int i = 0; i < 2 * population.size(); i++) { // Pick a parent
-		 * Solution parent1 = (Solution) parents.nextElement();
+		 * Solution parent1 = (Solution) parents.nextElement(random);
 		 * 
 		 * // Pick a second parent Solution parent2 = parent1; while
-		 * (parent2.equals(parent1)) parent2 = (Solution) parents.nextElement();
+		 * (parent2.equals(parent1)) parent2 = (Solution) parents.nextElement(random);
 		 * 
 		 * // Generate a child Solution child = crossover(parent1, parent2);
 		 * 
@@ -114,25 +183,28 @@ public class Generate {
 	}
 
 	/**
-	 * @param population
-	 * @param target
+	 * Clone a parent and pick the new value of one of its variables. With an
+	 * asynchronous data layer, the value is not waited for
+	 * 
+	 * @param parent
+	 * @return the child, waiting for its value
 	 */
-	private Solution enforce(Solution parent) {
-		// Keep track of changed values
-		Set<String> changed = new HashSet<String>();
-
+	private Offspring startEnforce(Solution parent) {
 		// Clone the parent
+		Offspring offspring = new Offspring();
 		Solution child = parent.clone();
+		offspring.child = child;
 
 		// Build a roulette for the variable to change
 		// we give higher chances to the most constrained variables
 		if (rouletteVariable == null) {
 			rouletteVariable = new Roulette();
 			TreeSet<Pair> list = new TreeSet<Pair>();
-			for (Variable variable : child.getVariables()) {
-				int nbProviders = request.getResourceProvidersFor(variable.getName()).size();
+			VariableIndex index = child.getVariableIndex();
+			for (int j = 0; j < index.size(); j++) {
+				int nbProviders = request.getResourceProvidersFor(index.getName(j)).size();
 				if (nbProviders > 0)
-					list.add(new Pair(variable.getName(), nbProviders));
+					list.add(new Pair(index.getName(j), nbProviders));
 			}
 
 			int i = 1;
@@ -142,28 +214,44 @@ public class Generate {
 			}
 			rouletteVariable.prepare();
 		}
-		String variableName = (String) rouletteVariable.nextElement();
+		String variableName = (String) rouletteVariable.nextElement(random);
 		//logger.info("Change " + variableName);
+		offspring.variableName = variableName;
 
-		// Build a roulette for the provider to use
-		// we give higher chances to the providers with low cardinality
-		// TODO Sort based on size and assign fixed scores to get rid of
-		// constant value
-		// list.clear();
-		Roulette rouletteProvider = new Roulette();
-		for (ResourceProvider provider : request.getResourceProvidersFor(variableName)) {
-			long nbResources = provider.getNumberResources(variableName, child, dataLayer);
-			if (nbResources > 0)
-				rouletteProvider.add(provider, 1.0 / (1.0 + (nbResources / 10000.0)));
-		}
-		rouletteProvider.prepare();
+		// Get a roulette for the provider to use
+		Roulette rouletteProvider = getProviderWheel(variableName, child);
 
 		if (!rouletteProvider.isEmpty()) {
-			ResourceProvider provider = (ResourceProvider) rouletteProvider.nextElement();
+			ResourceProvider provider = (ResourceProvider) rouletteProvider.nextElement(random);
+
+			// Ask for a new value
+			if (dataLayer instanceof AsyncDataLayer)
+				offspring.value = provider.getResourceAsync(variableName, child, (AsyncDataLayer) dataLayer, random);
+			else
+				offspring.value = DataFuture.completed(provider.getResource(variableName, child, dataLayer, random));
+		}
 
-			// Get a new value
-			Value v = provider.getResource(variableName, child, dataLayer);
-			child.getVariable(variableName).setValue(v);
+		return offspring;
+	}
+
+	/**
+	 * Assign the new value to the child and propagate it to the other
+	 * variables
+	 * 
+	 * @param offspring
+	 *            the child started by startEnforce()
+	 * @return the child
+	 */
+	private Solution endEnforce(Offspring offspring) {
+		// Keep track of changed values
+		Set<String> changed = new HashSet<String>();
+
+		Solution child = offspring.child;
+		String variableName = offspring.variableName;
+		// Get the new value, if the provider found one
+		Value v = (offspring.value == null ? null : offspring.value.getUninterruptibly());
+		if (v != null) {
+			child.setValue(variableName, v);
 			// logger.info("Assign " + v + " to " + variableName);
 
 			// Add this variable to the changed variables
@@ -173,9 +261,106 @@ public class Generate {
 			propagateChange(child, variableName, changed);
 		}
 
+		// Only the constraints over these variables need to be re-evaluated
+		child.markChanged(changed);
+
 		return child;
 	}
 
+	/**
+	 * A child waiting for the new value of one of its variables
+	 */
+	private static class Offspring {
+		// The child
+		Solution child;
+
+		// The variable to change
+		String variableName;
+
+		// The new value, null if no provider could give one
+		DataFuture<Value> value;
+	}
+
+	/**
+	 * Get the roulette used to pick up a provider for a variable. The
+	 * roulette only depends on the values of the other variables used by the
+	 * providers, it is shared by all the children having the same values
+	 * 
+	 * @param variableName
+	 * @param child
+	 * @return the roulette
+	 */
+	private Roulette getProviderWheel(String variableName, Solution child) {
+		// Find the variables the cardinalities depend on
+		List<String> dependencies = providerDependencies.get(variableName);
+		if (dependencies == null) {
+			Set<String> variables = new HashSet<String>();
+			for (ResourceProvider provider : request.getResourceProvidersFor(variableName))
+				variables.addAll(provider.getVariables());
+			variables.remove(variableName);
+			dependencies = new ArrayList<String>(variables);
+			providerDependencies.put(variableName, dependencies);
+		}
+
+		// Look for an existing roulette
+		List<Object> key = new ArrayList<Object>(dependencies.size() + 1);
+		key.add(variableName);
+		for (String dependency : dependencies)
+			key.add(child.getValue(dependency));
+		Roulette wheel = providerWheels.get(key);
+		if (wheel != null && !isOutdated(key))
+			return wheel;
+
+		// Build a roulette for the provider to use
+		// we give higher chances to the providers with low cardinality. With
+		// an asynchronous data layer, the providers whose number of resources
+		// is not known yet get a default weight until it is
+		// TODO Sort based on size and assign fixed scores to get rid of
+		// constant value
+		wheel = new Roulette();
+		List<DataFuture<Long>> pending = new ArrayList<DataFuture<Long>>();
+		for (ResourceProvider provider : request.getResourceProvidersFor(variableName)) {
+			long nbResources;
+			if (dataLayer instanceof AsyncDataLayer) {
+				DataFuture<Long> count = provider.getNumberResourcesAsync(variableName, child,
+						(AsyncDataLayer) dataLayer);
+				if (!count.isDone()) {
+					wheel.add(provider, UNKNOWN_PROVIDER_WEIGHT);
+					pending.add(count);
+					continue;
+				}
+				nbResources = count.getUninterruptibly().longValue();
+			} else {
+				nbResources = provider.getNumberResources(variableName, child, dataLayer);
+			}
+			if (nbResources > 0)
+				wheel.add(provider, 1.0 / (1.0 + (nbResources / 10000.0)));
+		}
+		wheel.prepare();
+		providerWheels.put(key, wheel);
+		if (pending.isEmpty())
+			pendingCounts.remove(key);
+		else
+			pendingCounts.put(key, pending);
+		return wheel;
+	}
+
+	/**
+	 * @param key
+	 *            the key of a roulette
+	 * @return true if the roulette was built before knowing the number of
+	 *         resources of some providers and they are all known now
+	 */
+	private boolean isOutdated(List<Object> key) {
+		List<DataFuture<Long>> counts = pendingCounts.get(key);
+		if (counts == null)
+			return false;
+		for (DataFuture<Long> count : counts)
+			if (!count.isDone())
+				return false;
+		return true;
+	}
+
 	/**
 	 * @param variable
 	 * @param changed
@@ -236,20 +421,19 @@ public class Generate {
 					if (s instanceof Resource && p instanceof URI) {
 						Triple t = new Triple((Resource) s, (URI) p, o);
 
-						// Get a value
-						Value value = dataLayer.getResource(t);
-						values.add(value);
+						// Get a sample of values, every pattern gets the same
+						// share of the draws
+						values.addAll(dataLayer.sample(t, SAMPLE_SIZE, random));
 					}
 				}
 
-				Random rand = Randomizer.instance();
 				if (!values.isEmpty()) {
 					// Assign one of the new value
-					Value value = values.get(rand.nextInt(values.size()));
-					child.getVariable(entry.getKey()).setValue(value);
+					Value value = values.get(random.nextInt(values.size()));
+					child.setValue(entry.getKey(), value);
 
 				} else {
-					child.getVariable(entry.getKey()).setValue(null);
+					child.setValue(entry.getKey(), null);
 				}
 
 				// See what can be changed from here
@@ -264,13 +448,19 @@ public class Generate {
 	 * @param target
 	 */
 	protected Solution crossover(Solution parentA, Solution parentB) {
+		Set<String> changed = new HashSet<String>();
 		Solution child = parentA.clone();
-		for (Variable variable : child.getVariables()) {
-			double firstR = parentA.getVariable(variable.getName()).getReward();
-			double secondR = parentB.getVariable(variable.getName()).getReward();
-			if (secondR > firstR)
-				child.getVariable(variable.getName()).setValue(parentB.getVariable(variable.getName()).getValue());
+		VariableIndex index = child.getVariableIndex();
+		for (int i = 0; i < index.size(); i++) {
+			String name = index.getName(i);
+			double firstR = parentA.getReward(i);
+			double secondR = parentB.getReward(name);
+			if (secondR > firstR) {
+				child.setValue(i, parentB.getValue(name));
+				changed.add(name);
+			}
 		}
+		child.markChanged(changed);
 
 		return child;
 	}
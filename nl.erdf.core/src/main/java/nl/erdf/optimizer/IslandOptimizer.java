@@ -0,0 +1,387 @@
+package nl.erdf.optimizer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Observable;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import nl.erdf.datalayer.DataLayer;
+import nl.erdf.datalayer.impl.CachedDataLayer;
+import nl.erdf.model.Request;
+import nl.erdf.model.Solution;
+import nl.erdf.model.TripleSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Island model driver: several independent populations are evolved in
+ * parallel on a shared executor. Every few generations the best solutions of
+ * every island migrate to the next island (ring topology). All the islands
+ * share the same black list and the same memo of validity checks. Observers are
+ * notified after every epoch with the union of the populations.
+ * 
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ */
+public class IslandOptimizer extends Observable implements Runnable {
+	/** Default number of generations between two migrations */
+	public static final int DEFAULT_MIGRATION_INTERVAL = 10;
+
+	/** Number of solutions sent by an island at every migration */
+	private static final int NB_MIGRANTS = 1;
+
+	/** Logger */
+	protected final Logger logger = LoggerFactory.getLogger(IslandOptimizer.class);
+
+	// The islands
+	private final List<Optimizer> islands = new ArrayList<Optimizer>();
+
+	// Executor running the islands, may be null
+	private final ExecutorService executor;
+
+	// Number of generations between two migrations
+	private final int migrationInterval;
+
+	// Black listed triples shared by all the islands
+	private final TripleSet blackListedTriples = new TripleSet();
+
+	// The request
+	private final Request request;
+
+	// Epoch counter
+	private int epoch = 0;
+
+	// Parameters of the islands
+	private final OptimizerConfig config;
+
+	// Best fitness seen so far and the epoch at which it was seen
+	private double bestFitness = 0;
+	private int bestFitnessEpoch = 0;
+
+	// Time at which the run started
+	private long startTime = 0;
+
+	/** Activity control */
+	private boolean isPaused = false;
+	private boolean isTerminated = false;
+	private ReentrantLock pauseLock = new ReentrantLock();
+	private Condition unpaused = pauseLock.newCondition();
+
+	/**
+	 * @param datalayer
+	 * @param request
+	 * @param executor
+	 *            the executor used to run the islands, if null the islands are
+	 *            run one after the other
+	 * @param nbIslands
+	 *            the number of populations
+	 */
+	public IslandOptimizer(final DataLayer datalayer, final Request request, final ExecutorService executor,
+			int nbIslands) {
+		this(datalayer, request, executor, nbIslands, DEFAULT_MIGRATION_INTERVAL);
+	}
+
+	/**
+	 * @param datalayer
+	 * @param request
+	 * @param executor
+	 *            the executor used to run the islands, if null the islands are
+	 *            run one after the other
+	 * @param nbIslands
+	 *            the number of populations
+	 * @param migrationInterval
+	 *            the number of generations between two migrations
+	 */
+	public IslandOptimizer(final DataLayer datalayer, final Request request, final ExecutorService executor,
+			int nbIslands, int migrationInterval) {
+		this(datalayer, request, executor, new OptimizerConfig(), nbIslands, migrationInterval);
+	}
+
+	/**
+	 * @param datalayer
+	 * @param request
+	 * @param executor
+	 *            the executor used to run the islands, if null the islands are
+	 *            run one after the other
+	 * @param config
+	 *            the parameters of every island, the termination criteria
+	 *            apply to the islands as a whole
+	 * @param nbIslands
+	 *            the number of populations
+	 * @param migrationInterval
+	 *            the number of generations between two migrations
+	 */
+	public IslandOptimizer(final DataLayer datalayer, final Request request, final ExecutorService executor,
+			final OptimizerConfig config, int nbIslands, int migrationInterval) {
+		this.request = request;
+		this.executor = executor;
+		this.config = config;
+		this.migrationInterval = migrationInterval;
+
+		// Share the validity checks among the islands
+		DataLayer cached = CachedDataLayer.wrap(datalayer);
+
+		// The islands evaluate their solutions sequentially, the parallelism
+		// comes from having several islands
+		for (int i = 0; i < nbIslands; i++)
+			islands.add(new Optimizer(cached, request, null, config, blackListedTriples));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		// Do not run something terminated
+		if (isTerminated())
+			return;
+
+		logger.info("Run " + islands.size() + " islands");
+		epoch = 0;
+		bestFitness = 0;
+		bestFitnessEpoch = 0;
+		startTime = System.currentTimeMillis();
+		while (!isTerminated()) {
+			pauseLock.lock();
+			try {
+				while (isPaused)
+					unpaused.await();
+				if (isTerminated)
+					return;
+			} catch (InterruptedException ie) {
+				// Finish
+				return;
+			} finally {
+				pauseLock.unlock();
+			}
+
+			// Evolve all the islands, an epoch cut short by the termination
+			// is neither counted nor followed by a migration
+			evolve();
+			if (isTerminated())
+				break;
+			++epoch;
+
+			// Migrate the best solutions
+			migrate();
+
+			// Notify observers that an epoch has been done
+			setChanged();
+			notifyObservers(getPopulation());
+
+			// Stop if the termination criteria are met
+			for (Optimizer island : islands) {
+				if (island.getBestFitness() > bestFitness) {
+					bestFitness = island.getBestFitness();
+					bestFitnessEpoch = epoch;
+				}
+			}
+			if (isTerminationReached())
+				terminate();
+		}
+	}
+
+	/**
+	 * @return true if the termination criteria set in the configuration are
+	 *         met. The stagnation is only updated at the end of every epoch
+	 */
+	public boolean isTerminationReached() {
+		long elapsedTime = System.currentTimeMillis() - startTime;
+		int stagnation = (epoch - bestFitnessEpoch) * migrationInterval;
+		return config.isTerminationReached(elapsedTime, getEvaluationsCounter(), stagnation, getOptimalSolutions()
+				.size());
+	}
+
+	/**
+	 * Run migrationInterval generations on an island, or less if the run has
+	 * to stop in the mean time
+	 * 
+	 * @param island
+	 */
+	private void evolve(Optimizer island) {
+		for (int i = 0; i < migrationInterval && !isTerminated(); i++) {
+			island.step();
+			if (isTerminationReached())
+				terminate();
+		}
+	}
+
+	/**
+	 * Run migrationInterval generations on every island
+	 */
+	private void evolve() {
+		if (executor == null) {
+			for (Optimizer island : islands)
+				evolve(island);
+			return;
+		}
+
+		// Start all the islands
+		List<Future<?>> list = new ArrayList<Future<?>>();
+		for (final Optimizer island : islands) {
+			Future<?> job = executor.submit(new Runnable() {
+				public void run() {
+					evolve(island);
+				}
+			});
+			list.add(job);
+		}
+
+		// Wait for all of them
+		for (Future<?> future : list) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Send copies of the best solutions of every island to the next one
+	 */
+	void migrate() {
+		if (islands.size() < 2)
+			return;
+
+		// Pick all the migrants first so that they don't travel further
+		List<List<Solution>> migrants = new ArrayList<List<Solution>>();
+		for (Optimizer island : islands)
+			migrants.add(island.getBestSolutions(NB_MIGRANTS));
+
+		for (int i = 0; i < islands.size(); i++)
+			islands.get((i + 1) % islands.size()).addSolutions(migrants.get(i));
+	}
+
+	/**
+	 * @return the islands
+	 */
+	List<Optimizer> getIslands() {
+		return islands;
+	}
+
+	/**
+	 * @return the union of the populations of all the islands
+	 */
+	public SortedSet<Solution> getPopulation() {
+		SortedSet<Solution> population = new TreeSet<Solution>();
+		for (Optimizer island : islands)
+			population.addAll(island.getPopulation());
+		return population;
+	}
+
+	/**
+	 * @return the distinct optimal solutions found by all the islands
+	 */
+	public Set<Solution> getOptimalSolutions() {
+		Set<Solution> solutions = new HashSet<Solution>();
+		for (Optimizer island : islands)
+			solutions.addAll(island.getOptimalSolutions());
+		return solutions;
+	}
+
+	/**
+	 * Stop the execution of the optimizer
+	 */
+	public void terminate() {
+		logger.info("Terminate optimizer");
+		pauseLock.lock();
+		try {
+			// Set the status to true
+			isTerminated = true;
+		} finally {
+			pauseLock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if the optimizer is stopped
+	 */
+	public boolean isTerminated() {
+		boolean res;
+		pauseLock.lock();
+		try {
+			res = isTerminated;
+		} finally {
+			pauseLock.unlock();
+		}
+		return res;
+	}
+
+	/**
+	 * Pause the algorithm
+	 */
+	public void pause() {
+		logger.info("Pause optimizer " + this);
+		pauseLock.lock();
+		try {
+			isPaused = true;
+		} finally {
+			pauseLock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if the search algorithm is paused
+	 */
+	public boolean isPaused() {
+		boolean res;
+		pauseLock.lock();
+		try {
+			res = isPaused;
+		} finally {
+			pauseLock.unlock();
+		}
+		return res;
+	}
+
+	/**
+	 * Continue the execution
+	 */
+	public void resume() {
+		logger.info("Resume optimizer " + this);
+		pauseLock.lock();
+		try {
+			isPaused = false;
+			unpaused.signalAll();
+		} finally {
+			pauseLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the evaluations counter, summed over all the islands
+	 */
+	public int getEvaluationsCounter() {
+		int total = 0;
+		for (Optimizer island : islands)
+			total += island.getEvaluationsCounter();
+		return total;
+	}
+
+	/**
+	 * @return the number of epochs run so far
+	 */
+	public int getEpochsCounter() {
+		return epoch;
+	}
+
+	/**
+	 * @return the request
+	 */
+	public Request getRequest() {
+		return request;
+	}
+}
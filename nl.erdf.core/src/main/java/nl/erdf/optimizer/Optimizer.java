@@ -1,6 +1,7 @@
 package nl.erdf.optimizer;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Observable;
@@ -24,17 +25,14 @@ import org.slf4j.LoggerFactory;
  * 
  */
 public class Optimizer extends Observable implements Runnable {
-	/** Population size */
-	private static final int POPULATION_SIZE = 5;
-
 	/** Logger */
 	protected final Logger logger = LoggerFactory.getLogger(Optimizer.class);
 
 	/** Population */
 	protected final SortedSet<Solution> population = new TreeSet<Solution>();
 
-	// Black listed triples
-	private final TripleSet blackListedTriples = new TripleSet();
+	// Black listed triples, may be shared with other optimizers
+	private final TripleSet blackListedTriples;
 
 	/** Mutation operator used to generate new populations */
 	private final Generate generateOp;
@@ -43,7 +41,7 @@ public class Optimizer extends Observable implements Runnable {
 	private final Evaluate evaluateOp;
 
 	/** Counter for statistics about the number of evaluations */
-	private int evaluationsCounter = 0;
+	private volatile int evaluationsCounter = 0;
 	private final Request request;
 
 	/** Activity control */
@@ -55,6 +53,19 @@ public class Optimizer extends Observable implements Runnable {
 	// Generation counter
 	private int generation = 0;
 
+	// Parameters of the optimizer
+	private final OptimizerConfig config;
+
+	// Time at which the first generation started, 0 before
+	private long startTime = 0;
+
+	// Best fitness seen so far and the generation at which it was seen
+	private double bestFitness = 0;
+	private int bestFitnessGeneration = 0;
+
+	// Distinct optimal solutions found so far
+	private final Set<Solution> optimalSolutions = new HashSet<Solution>();
+
 	private DataLayer datalayer;
 
 	/**
@@ -66,14 +77,50 @@ public class Optimizer extends Observable implements Runnable {
 	 * 
 	 */
 	public Optimizer(final DataLayer datalayer, final Request request, final ExecutorService executor) {
+		this(datalayer, request, executor, new OptimizerConfig());
+	}
+
+	/**
+	 * Optimizer
+	 * 
+	 * @param datalayer
+	 * @param request
+	 * @param executor
+	 * @param config
+	 *            the parameters of the optimizer
+	 * 
+	 */
+	public Optimizer(final DataLayer datalayer, final Request request, final ExecutorService executor,
+			final OptimizerConfig config) {
+		this(datalayer, request, executor, config, new TripleSet());
+	}
+
+	/**
+	 * Optimizer
+	 * 
+	 * @param datalayer
+	 * @param request
+	 * @param executor
+	 * @param config
+	 *            the parameters of the optimizer
+	 * @param blackListedTriples
+	 *            the black list to use, can be shared with other optimizers
+	 * 
+	 */
+	public Optimizer(final DataLayer datalayer, final Request request, final ExecutorService executor,
+			final OptimizerConfig config, final TripleSet blackListedTriples) {
 		// Save a pointer to the request and the datalayer
 		this.request = request;
 		this.datalayer = datalayer;
+		this.config = config;
+		this.blackListedTriples = blackListedTriples;
 
 		// Create the operators
-		this.generateOp = new Generate(datalayer, request, executor);
+		this.generateOp = new Generate(datalayer, request, executor, config.getOffspringFactor());
 		this.evaluateOp = new Evaluate(request, datalayer, blackListedTriples, executor);
 
+		// The request is complete, the solutions share its variables
+		request.getVariableIndex().freeze();
 	}
 
 	/*
@@ -88,6 +135,9 @@ public class Optimizer extends Observable implements Runnable {
 
 		logger.info("Run optimizer");
 		generation = 0;
+		bestFitness = 0;
+		bestFitnessGeneration = 0;
+		startTime = System.currentTimeMillis();
 		while (!isTerminated()) {
 			pauseLock.lock();
 			try {
@@ -102,105 +152,190 @@ public class Optimizer extends Observable implements Runnable {
 				pauseLock.unlock();
 			}
 
-			//
-			// Initialise the population with a dummy individual
-			//
-			if (population.isEmpty())
-				population.add(getRequest().getSolutionPrototype());
-
-			// Increment the generation counter
-			++generation;
-
-			//
-			// Generate a new set of offspring and copy the parents into it
-			// first
-			//
-			// logger.info("Generate");
-			Set<Solution> newPopulation = new HashSet<Solution>();
-			newPopulation.addAll(population);// Add the parents
-			generateOp.createPopulation(population, newPopulation);
-
-			//
-			// Evaluate all of them
-			//
-			// logger.info("Evaluate " + newPopulation.size());
-			// Counts the number of different solutions
-			evaluationsCounter += newPopulation.size() - population.size();
-			evaluateOp.evaluatePopulation(newPopulation);
-
-			/*
-			 * String buffer = "Fitnesses "; for (Solution s : newPopulation)
-			 * buffer += s.getFitness() + " "; logger.info(buffer);
-			 */
-			// for (Solution s : newPopulation)
-			// logger.info(s.toString());
+			step();
 
-			// Provide feed back to the generation operator
-			// generateOp.updateProviderRewards(newPopulation);
-
-			//
-			// Get rid of the previous population and insert the kids
-			//
-			// logger.info("Cut");
-			population.clear();
-			population.addAll(newPopulation);
-			while (population.size() > POPULATION_SIZE)
-				population.remove(population.first());
-
-			//
-			// Track for optimality
-			//
-			double topFitness = population.last().getFitness();
-			for (Solution s : population) {
-				// Increment age
-				// if (s.getFitness() != topFitness)
-				// s.setAge(0);
-				// s.setAge(s.getAge() + 1);
-
-				// Check optimality
-				s.setOptimal(false);
-				if (s.getFitness() == 1.0d)
-					s.setOptimal(true);
-
-				// If the solution is optimal add its (valid!) triples to the
-				// black
-				// list
-				if (s.isOptimal()) {
-					synchronized (blackListedTriples) {
-						blackListedTriples.addAll(getRequest().getTripleSet(s));
-					}
-				}
+			// Stop if the termination criteria are met
+			if (isTerminationReached())
+				terminate();
+		}
+	}
+
+	/**
+	 * @return true if the termination criteria set in the configuration are
+	 *         met
+	 */
+	public boolean isTerminationReached() {
+		long elapsedTime = (startTime == 0 ? 0 : System.currentTimeMillis() - startTime);
+		return config.isTerminationReached(elapsedTime, evaluationsCounter, generation - bestFitnessGeneration,
+				getOptimalSolutions().size());
+	}
 
-				// Print solution
-				// logger.info(s.toString());
+	/**
+	 * Run one generation: create offspring, evaluate them, keep the best and
+	 * black list the optimal solutions
+	 */
+	public void step() {
+		// The generations may be run without run()
+		if (startTime == 0)
+			startTime = System.currentTimeMillis();
+
+		//
+		// Initialise the population with a dummy individual
+		//
+		if (population.isEmpty())
+			population.add(getRequest().getSolutionPrototype());
+
+		// Increment the generation counter
+		++generation;
+
+		//
+		// Generate a new set of offspring and copy the parents into it
+		// first
+		//
+		// logger.info("Generate");
+		Set<Solution> newPopulation = new HashSet<Solution>();
+		newPopulation.addAll(population);// Add the parents
+		generateOp.createPopulation(population, newPopulation);
+
+		//
+		// Evaluate all of them
+		//
+		// logger.info("Evaluate " + newPopulation.size());
+		// Counts the number of different solutions
+		evaluationsCounter += newPopulation.size() - population.size();
+		evaluateOp.evaluatePopulation(newPopulation);
+
+		/*
+		 * String buffer = "Fitnesses "; for (Solution s : newPopulation)
+		 * buffer += s.getFitness() + " "; logger.info(buffer);
+		 */
+		// for (Solution s : newPopulation)
+		// logger.info(s.toString());
+
+		// Provide feed back to the generation operator
+		// generateOp.updateProviderRewards(newPopulation);
+
+		//
+		// Get rid of the previous population and insert the kids
+		//
+		// logger.info("Cut");
+		population.clear();
+		population.addAll(newPopulation);
+		while (population.size() > config.getPopulationSize())
+			population.remove(population.first());
+
+		//
+		// Track for optimality
+		//
+		double topFitness = population.last().getFitness();
+		if (topFitness > bestFitness) {
+			bestFitness = topFitness;
+			bestFitnessGeneration = generation;
+		}
+		for (Solution s : population) {
+			// Increment age
+			// if (s.getFitness() != topFitness)
+			// s.setAge(0);
+			// s.setAge(s.getAge() + 1);
+
+			// Check optimality
+			s.setOptimal(false);
+			if (s.getFitness() == 1.0d)
+				s.setOptimal(true);
+
+			// If the solution is optimal add its (valid!) triples to the
+			// black
+			// list
+			if (s.isOptimal()) {
+				blackListedTriples.addAll(getRequest().getTripleSet(s));
+				Solution copy = s.clone();
+				copy.setFitness(s.getFitness());
+				synchronized (optimalSolutions) {
+					optimalSolutions.add(copy);
+				}
 			}
 
-			logger.info("Generation " + generation + ", best fitness=" + topFitness);
-
-			//
-			// Notify observers that a loop has been done
-			//
-			setChanged();
-			notifyObservers(population);
-
-			// for (Solution s : population)
-			// if (s.isOptimal())
-			// this.terminate();
-
-			//
-			// Wait a bit for the data layer
-			//
-			datalayer.waitForLatencyBuffer();
-
-			//
-			// Remove all optimum individuals from the population
-			//
-			List<Solution> toRemove = new ArrayList<Solution>();
-			for (Solution s : population)
-				if (s.isOptimal())
-					toRemove.add(s);
-			population.removeAll(toRemove);
+			// Print solution
+			// logger.info(s.toString());
+		}
+
+		logger.info("Generation " + generation + ", best fitness=" + topFitness + ", validity memo hits="
+				+ evaluateOp.getValidityCache().getHits() + " misses=" + evaluateOp.getValidityCache().getMisses());
+
+		//
+		// Notify observers that a loop has been done
+		//
+		setChanged();
+		notifyObservers(population);
+
+		// for (Solution s : population)
+		// if (s.isOptimal())
+		// this.terminate();
+
+		//
+		// Wait a bit for the data layer
+		//
+		datalayer.waitForLatencyBuffer();
+
+		//
+		// Remove all optimum individuals from the population
+		//
+		List<Solution> toRemove = new ArrayList<Solution>();
+		for (Solution s : population)
+			if (s.isOptimal())
+				toRemove.add(s);
+		population.removeAll(toRemove);
+	}
+
+	/**
+	 * @param n
+	 * @return copies of the n best solutions of the population, best first
+	 */
+	public List<Solution> getBestSolutions(int n) {
+		List<Solution> best = new ArrayList<Solution>();
+		List<Solution> sorted = new ArrayList<Solution>(population);
+		for (int i = sorted.size() - 1; i >= 0 && best.size() < n; i--) {
+			Solution solution = sorted.get(i);
+			Solution copy = solution.clone();
+			copy.setFitness(solution.getFitness());
+			best.add(copy);
 		}
+		return best;
+	}
+
+	/**
+	 * Insert some solutions coming from somewhere else into the population.
+	 * The worst solutions are removed to keep the population size constant
+	 * 
+	 * @param solutions
+	 */
+	public void addSolutions(Collection<Solution> solutions) {
+		population.addAll(solutions);
+		while (population.size() > config.getPopulationSize())
+			population.remove(population.first());
+	}
+
+	/**
+	 * @return copies of the distinct optimal solutions found so far
+	 */
+	public Set<Solution> getOptimalSolutions() {
+		synchronized (optimalSolutions) {
+			return new HashSet<Solution>(optimalSolutions);
+		}
+	}
+
+	/**
+	 * @return the best fitness seen so far
+	 */
+	public double getBestFitness() {
+		return bestFitness;
+	}
+
+	/**
+	 * @return the current population
+	 */
+	public SortedSet<Solution> getPopulation() {
+		return population;
 	}
 
 	/**
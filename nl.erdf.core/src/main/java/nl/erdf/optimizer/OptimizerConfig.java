@@ -0,0 +1,145 @@
+package nl.erdf.optimizer;
+
+/**
+ * Parameters of the optimizer: size of the population, number of offspring and
+ * termination policy. A value of 0 for any of the termination criteria
+ * disables it, the optimizer then runs until terminate() is called.
+ * 
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ */
+public class OptimizerConfig {
+	// Number of solutions kept from one generation to the next
+	private int populationSize = 5;
+
+	// Number of offspring created per parent
+	private int offspringFactor = 7;
+
+	// Maximum running time, in milliseconds
+	private long timeBudget = 0;
+
+	// Maximum number of evaluations
+	private long evaluationBudget = 0;
+
+	// Number of generations without improvement of the best fitness
+	private int stagnationWindow = 0;
+
+	// Number of distinct optimal solutions to find
+	private int nbOptimalSolutions = 0;
+
+	/**
+	 * Check if the run is over according to the termination criteria
+	 * 
+	 * @param elapsedTime
+	 *            the running time so far, in milliseconds
+	 * @param evaluations
+	 *            the number of evaluations so far
+	 * @param stagnation
+	 *            the number of generations since the best fitness improved
+	 * @param optimalSolutions
+	 *            the number of distinct optimal solutions found so far
+	 * @return true if one of the criteria is met
+	 */
+	public boolean isTerminationReached(long elapsedTime, long evaluations, int stagnation, int optimalSolutions) {
+		if (timeBudget > 0 && elapsedTime >= timeBudget)
+			return true;
+		if (evaluationBudget > 0 && evaluations >= evaluationBudget)
+			return true;
+		if (stagnationWindow > 0 && stagnation >= stagnationWindow)
+			return true;
+		if (nbOptimalSolutions > 0 && optimalSolutions >= nbOptimalSolutions)
+			return true;
+		return false;
+	}
+
+	/**
+	 * @return the population size
+	 */
+	public int getPopulationSize() {
+		return populationSize;
+	}
+
+	/**
+	 * @param populationSize
+	 *            the population size to set
+	 */
+	public void setPopulationSize(int populationSize) {
+		this.populationSize = populationSize;
+	}
+
+	/**
+	 * @return the number of offspring created per parent
+	 */
+	public int getOffspringFactor() {
+		return offspringFactor;
+	}
+
+	/**
+	 * @param offspringFactor
+	 *            the number of offspring created per parent
+	 */
+	public void setOffspringFactor(int offspringFactor) {
+		this.offspringFactor = offspringFactor;
+	}
+
+	/**
+	 * @return the time budget, in milliseconds
+	 */
+	public long getTimeBudget() {
+		return timeBudget;
+	}
+
+	/**
+	 * @param timeBudget
+	 *            the time budget to set, in milliseconds
+	 */
+	public void setTimeBudget(long timeBudget) {
+		this.timeBudget = timeBudget;
+	}
+
+	/**
+	 * @return the maximum number of evaluations
+	 */
+	public long getEvaluationBudget() {
+		return evaluationBudget;
+	}
+
+	/**
+	 * @param evaluationBudget
+	 *            the maximum number of evaluations to set
+	 */
+	public void setEvaluationBudget(long evaluationBudget) {
+		this.evaluationBudget = evaluationBudget;
+	}
+
+	/**
+	 * @return the number of generations without improvement before stopping
+	 */
+	public int getStagnationWindow() {
+		return stagnationWindow;
+	}
+
+	/**
+	 * @param stagnationWindow
+	 *            the number of generations without improvement before
+	 *            stopping
+	 */
+	public void setStagnationWindow(int stagnationWindow) {
+		this.stagnationWindow = stagnationWindow;
+	}
+
+	/**
+	 * @return the number of distinct optimal solutions to find
+	 */
+	public int getNbOptimalSolutions() {
+		return nbOptimalSolutions;
+	}
+
+	/**
+	 * @param nbOptimalSolutions
+	 *            the number of distinct optimal solutions to find
+	 */
+	public void setNbOptimalSolutions(int nbOptimalSolutions) {
+		this.nbOptimalSolutions = nbOptimalSolutions;
+	}
+}
@@ -5,10 +5,16 @@ import java.util.Collection;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Random;
 
 import nl.erdf.util.Randomizer;
 
 /**
+ * A roulette wheel using the alias method of Vose: once prepared, every draw
+ * takes a constant time whatever the number of entries. The tables are kept
+ * from one preparation to the next so that a wheel can be cleared and filled
+ * again without allocating new ones.
+ * 
  * @author tolgam
  * 
  */
@@ -40,12 +46,34 @@ public class Roulette implements Enumeration<Object> {
 	// Sum of their weights
 	private double total = 0;
 
+	// Probability of keeping the entry drawn, per entry
+	private double[] probability = new double[0];
+
+	// Entry to return instead of the one drawn, per entry
+	private int[] alias = new int[0];
+
+	// Work list used to build the tables
+	private int[] worklist = new int[0];
+
+	// Are the tables in line with the content?
+	private boolean isPrepared = false;
+
 	/**
 	 * @param object
 	 * @param value
 	 */
 	public void add(Object object, double value) {
 		content.add(new Entry(object, value));
+		isPrepared = false;
+	}
+
+	/**
+	 * Remove all the entries, the tables are kept for the next preparation
+	 */
+	public void clear() {
+		content.clear();
+		total = 0;
+		isPrepared = false;
 	}
 
 	/**
@@ -56,7 +84,7 @@ public class Roulette implements Enumeration<Object> {
 	}
 
 	/**
-	 * Normalize the content of the wheel
+	 * Normalize the content of the wheel and build the alias tables
 	 */
 	public void prepare() {
 		total = 0;
@@ -69,6 +97,47 @@ public class Roulette implements Enumeration<Object> {
 				total += 1;
 			}
 		}
+
+		// Only grow the tables
+		int size = content.size();
+		if (probability.length < size) {
+			probability = new double[size];
+			alias = new int[size];
+			worklist = new int[size];
+		}
+
+		// Split the entries in those below the average weight, stacked from
+		// the start of the work list, and those above, stacked from its end
+		int nbSmall = 0;
+		int nbLarge = 0;
+		for (int i = 0; i < size; i++) {
+			probability[i] = content.get(i).value * size / total;
+			alias[i] = i;
+			if (probability[i] < 1)
+				worklist[nbSmall++] = i;
+			else
+				worklist[size - 1 - nbLarge++] = i;
+		}
+
+		// Fill the column of every small entry with a part of a large one
+		while (nbSmall > 0 && nbLarge > 0) {
+			int small = worklist[--nbSmall];
+			int large = worklist[size - nbLarge--];
+			alias[small] = large;
+			probability[large] = probability[large] + probability[small] - 1;
+			if (probability[large] < 1)
+				worklist[nbSmall++] = large;
+			else
+				worklist[size - 1 - nbLarge++] = large;
+		}
+
+		// What remains is full, up to rounding errors
+		while (nbLarge > 0)
+			probability[worklist[size - nbLarge--]] = 1;
+		while (nbSmall > 0)
+			probability[worklist[--nbSmall]] = 1;
+
+		isPrepared = true;
 	}
 
 	/*
@@ -86,22 +155,26 @@ public class Roulette implements Enumeration<Object> {
 	 * @see java.util.Enumeration#nextElement()
 	 */
 	public Object nextElement() {
+		return nextElement(Randomizer.instance());
+	}
+
+	/**
+	 * @param random
+	 *            the random number generator to use
+	 * @return an element picked with a probability proportional to its value
+	 */
+	public Object nextElement(Random random) {
 		if (!hasMoreElements())
 			throw new NoSuchElementException();
 
-		double value = Randomizer.instance().nextFloat() * total;
-		double min = 0;
-		for (Entry entry : content) {
-			double entryVal = entry.value;
-			if ((min <= value) && (value < min + entryVal))
-				return entry.object;
-			min += entryVal;
-		}
-
-		// FIXME BUG !!! if this is printed
-		// System.out.println("BUG");
+		if (!isPrepared)
+			prepare();
 
-		return content.get(0).object;
+		// Pick a column and then one of its two entries
+		int column = random.nextInt(content.size());
+		if (random.nextDouble() < probability[column])
+			return content.get(column).object;
+		return content.get(alias[column]).object;
 	}
 
 	/**
@@ -4,31 +4,93 @@
 package nl.erdf.util;
 
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Source of all the random numbers. Every stream is a distinct generator
+ * seeded from the seed of the run, so that threads never contend on the same
+ * generator. Components that need reproducible runs whatever the scheduling
+ * of the threads get their own stream with newStream(), the others use the
+ * stream of the current thread.
+ * 
  * @author Christophe Guéret <christophe.gueret@gmail.com>
  * 
  */
 public class Randomizer {
-	// The seed for the number generator
-	private static long seed = System.currentTimeMillis() / 1000L;
-	private static Random rand;
+	// Distance between the seeds of two consecutive streams (golden ratio)
+	private static final long GAMMA = 0x9E3779B97F4A7C15L;
+
+	// The seed of the run
+	private static volatile long seed = System.currentTimeMillis() / 1000L;
+
+	// Incremented every time the seed changes, to renew the thread streams
+	private static volatile int generation = 0;
+
+	// Number of streams created with the current seed
+	private static final AtomicLong streams = new AtomicLong(0);
+
+	// The stream of every thread
+	private static final ThreadLocal<ThreadStream> threadStream = new ThreadLocal<ThreadStream>();
+
+	// A stream attached to a thread
+	private static class ThreadStream {
+		final int generation;
+		final Random random;
+
+		ThreadStream(int generation, Random random) {
+			this.generation = generation;
+			this.random = random;
+		}
+	}
 
 	/**
-	 * @return the random number generator
-	 * 
+	 * @return the random number generator of the current thread
 	 */
 	public static Random instance() {
-		if (rand == null)
-			rand = new Random(seed);
-		return rand;
+		ThreadStream stream = threadStream.get();
+		if (stream == null || stream.generation != generation) {
+			stream = new ThreadStream(generation, newStream());
+			threadStream.set(stream);
+		}
+		return stream.random;
+	}
+
+	/**
+	 * Create a new stream. The n-th stream created after setting the seed is
+	 * always the same for a given seed.
+	 * 
+	 * @return a random number generator not shared with anything else
+	 */
+	public static Random newStream() {
+		return new Random(mix(seed + streams.incrementAndGet() * GAMMA));
 	}
 
 	/**
 	 * @param newSeed
 	 */
-	public static void setSeed(long newSeed) {
+	public static synchronized void setSeed(long newSeed) {
 		seed = newSeed;
-		rand = null;
+		streams.set(0);
+		generation++;
+	}
+
+	/**
+	 * @return the seed of the run
+	 */
+	public static long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Spread the bits of a value, as in SplitMix64, so that close seeds give
+	 * unrelated streams
+	 * 
+	 * @param z
+	 * @return the mixed value
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
 	}
 }
@@ -0,0 +1,99 @@
+/**
+ * 
+ */
+package nl.erdf.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Draw k items uniformly, with replacement, out of a sequence of unknown
+ * length seen only once. Every draw is a reservoir of one item, which the n-th
+ * item replaces with a probability of 1/n. Instead of throwing a number for
+ * every item, each reservoir computes the position of the next item to take,
+ * so that long sequences cost a few random numbers per draw only.
+ * 
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ */
+public class Reservoir<T> {
+	// The random number generator
+	private final Random random;
+
+	// The item currently held by every draw
+	private final Object[] slots;
+
+	// The position of the next item taken by every draw, starting at 1
+	private final long[] next;
+
+	// The smallest of those positions
+	private long nearest = 1;
+
+	// The number of items seen so far
+	private long count = 0;
+
+	/**
+	 * @param k
+	 *            the number of draws
+	 * @param random
+	 *            the random number generator to use
+	 */
+	public Reservoir(int k, Random random) {
+		this.random = random;
+		this.slots = new Object[k];
+		this.next = new long[k];
+		for (int i = 0; i < k; i++)
+			next[i] = 1;
+	}
+
+	/**
+	 * @param item
+	 *            the next item of the sequence
+	 */
+	public void offer(T item) {
+		count++;
+		if (count < nearest)
+			return;
+
+		nearest = Long.MAX_VALUE;
+		for (int i = 0; i < slots.length; i++) {
+			if (next[i] == count) {
+				slots[i] = item;
+				next[i] = skip();
+			}
+			nearest = Math.min(nearest, next[i]);
+		}
+	}
+
+	/**
+	 * The next item taken after the current one is beyond position j with a
+	 * probability of count/j
+	 * 
+	 * @return the position of the next item taken by a draw
+	 */
+	private long skip() {
+		double position = Math.floor(count / (1.0 - random.nextDouble())) + 1;
+		return (position >= Long.MAX_VALUE ? Long.MAX_VALUE : (long) position);
+	}
+
+	/**
+	 * @return the k items drawn, or nothing if the sequence was empty
+	 */
+	@SuppressWarnings("unchecked")
+	public List<T> getSample() {
+		List<T> sample = new ArrayList<T>(slots.length);
+		if (count == 0)
+			return sample;
+		for (Object item : slots)
+			sample.add((T) item);
+		return sample;
+	}
+
+	/**
+	 * @return the number of items seen
+	 */
+	public long getCount() {
+		return count;
+	}
+}
@@ -0,0 +1,84 @@
+/**
+ * 
+ */
+package nl.erdf.datalayer.impl;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import nl.erdf.model.Triple;
+
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+
+/**
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ */
+public class DictionaryDataLayerTest {
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		ValueFactory f = new ValueFactoryImpl();
+		URI type = f.createURI("http://www.w3.org/1999/02/22-rdf-syntax-ns#type");
+		URI knows = f.createURI("http://xmlns.com/foaf/0.1/knows");
+		URI person = f.createURI("http://xmlns.com/foaf/0.1/Person");
+		URI[] people = new URI[100];
+		for (int i = 0; i < people.length; i++)
+			people[i] = f.createURI("http://example.com/person" + i);
+
+		// Everyone is a person and knows the next 3 persons, the first
+		// statement is added twice
+		DictionaryDataLayer dataLayer = new DictionaryDataLayer();
+		for (int i = 0; i < people.length; i++) {
+			dataLayer.add(new Triple(people[i], type, person));
+			for (int j = 1; j <= 3; j++)
+				dataLayer.add(new Triple(people[i], knows, people[(i + j) % people.length]));
+		}
+		dataLayer.add(new Triple(people[0], type, person));
+
+		// Counts
+		System.out.println(dataLayer.getNumberOfResources(new Triple(null, type, person)) == 100);
+		System.out.println(dataLayer.getNumberOfResources(new Triple(people[5], knows, null)) == 3);
+		System.out.println(dataLayer.getNumberOfResources(new Triple(null, knows, people[5])) == 3);
+		System.out.println(dataLayer.getNumberOfResources(new Triple(people[5], null, people[6])) == 1);
+		System.out.println(dataLayer.getNumberOfResources(new Triple(people[5], null, person)) == 1);
+		System.out.println(dataLayer.getNumberOfResources(new Triple(people[5], null, people[50])) == 0);
+		System.out.println(dataLayer.getNumberOfResources(new Triple(person, null, null)) == 0);
+
+		// Random picks
+		for (int i = 0; i < 10; i++) {
+			Value v = dataLayer.getResource(new Triple(people[10], knows, null));
+			System.out.println(v.equals(people[11]) || v.equals(people[12]) || v.equals(people[13]));
+		}
+		System.out.println(dataLayer.getResource(new Triple(people[1], null, people[2])).equals(knows));
+		System.out.println(dataLayer.getResource(new Triple(person, knows, null)) == null);
+
+		// Validity
+		System.out.println(dataLayer.isValid(new Triple(people[99], knows, people[0])));
+		System.out.println(!dataLayer.isValid(new Triple(people[0], knows, people[99])));
+		System.out.println(dataLayer.isValid(new Triple(people[3], null, null)));
+		System.out.println(dataLayer.isValid(new Triple(null, knows, null)));
+		System.out.println(dataLayer.isValid(new Triple(null, null, person)));
+		System.out.println(!dataLayer.isValid(new Triple(null, null, knows)));
+
+		// Batched validity
+		List<Triple> batch = new ArrayList<Triple>();
+		batch.add(new Triple(people[99], knows, people[0]));
+		batch.add(new Triple(people[0], knows, people[99]));
+		batch.add(new Triple(null, null, person));
+		BitSet valid = dataLayer.isValid(batch);
+		System.out.println(valid.get(0) && !valid.get(1) && valid.get(2));
+
+		// Adding more data triggers a new indexing
+		dataLayer.add(new Triple(people[0], knows, people[99]));
+		System.out.println(dataLayer.isValid(new Triple(people[0], knows, people[99])));
+		System.out.println(dataLayer.getNumberOfResources(new Triple(people[0], knows, null)) == 4);
+	}
+
+}
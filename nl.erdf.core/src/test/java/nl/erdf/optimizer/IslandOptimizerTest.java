@@ -0,0 +1,169 @@
+/**
+ * 
+ */
+package nl.erdf.optimizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import nl.erdf.constraints.impl.StatementPatternConstraint;
+import nl.erdf.datalayer.impl.DictionaryDataLayer;
+import nl.erdf.model.Request;
+import nl.erdf.model.Solution;
+import nl.erdf.model.Triple;
+import nl.erdf.model.impl.StatementPatternProvider;
+import nl.erdf.util.Randomizer;
+
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.Var;
+
+/**
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ */
+public class IslandOptimizerTest {
+	// Maximum number of evaluations of a generation of an island
+	private static final int GENERATION_SIZE = new OptimizerConfig().getPopulationSize()
+			* new OptimizerConfig().getOffspringFactor();
+
+	/**
+	 * @param dataLayer
+	 *            the data layer to fill
+	 * @return a request for the persons knowing someone who knows a person
+	 */
+	private static Request createRequest(DictionaryDataLayer dataLayer) {
+		ValueFactory f = new ValueFactoryImpl();
+		URI type = f.createURI("http://www.w3.org/1999/02/22-rdf-syntax-ns#type");
+		URI knows = f.createURI("http://xmlns.com/foaf/0.1/knows");
+		URI person = f.createURI("http://xmlns.com/foaf/0.1/Person");
+
+		// One resource out of three is a person, everyone knows someone
+		URI[] people = new URI[200];
+		for (int i = 0; i < people.length; i++)
+			people[i] = f.createURI("http://example.com/person" + i);
+		for (int i = 0; i < people.length; i++) {
+			if (i % 3 == 0)
+				dataLayer.add(new Triple(people[i], type, person));
+			dataLayer.add(new Triple(people[i], knows, people[(i * 13 + 5) % people.length]));
+		}
+
+		Request request = new Request(dataLayer);
+		StatementPattern[] patterns = {
+				new StatementPattern(new Var("a"), new Var("knows", knows), new Var("b")),
+				new StatementPattern(new Var("b"), new Var("knows", knows), new Var("c")),
+				new StatementPattern(new Var("a"), new Var("type", type), new Var("person", person)),
+				new StatementPattern(new Var("c"), new Var("type", type), new Var("person", person)) };
+		for (StatementPattern pattern : patterns) {
+			request.addStatementPattern(pattern);
+			request.addConstraint(new StatementPatternConstraint(pattern));
+			request.addResourceProvider(new StatementPatternProvider(pattern));
+		}
+		return request;
+	}
+
+	/**
+	 * @param island
+	 * @param migrant
+	 * @return true if the migrant joined the island or was too bad to stay
+	 */
+	private static boolean hasReceived(Optimizer island, Solution migrant) {
+		for (Solution solution : island.getPopulation())
+			if (solution.equals(migrant))
+				return true;
+		for (Solution solution : island.getPopulation())
+			if (solution.getTotalReward() < migrant.getTotalReward())
+				return false;
+		return true;
+	}
+
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		Randomizer.setSeed(7);
+		DictionaryDataLayer dataLayer = new DictionaryDataLayer();
+		Request request = createRequest(dataLayer);
+
+		// Migration along the ring, done by hand after a few generations. The
+		// optimal solutions leave the populations, which may be smaller
+		IslandOptimizer optimizer = new IslandOptimizer(dataLayer, request, null, 3);
+		List<Optimizer> islands = optimizer.getIslands();
+		System.out.println(islands.size() == 3);
+		List<Solution> migrants = new ArrayList<Solution>();
+		for (Optimizer island : islands) {
+			for (int i = 0; i < 5; i++)
+				island.step();
+			migrants.add(island.getBestSolutions(1).get(0));
+		}
+		optimizer.migrate();
+		for (int i = 0; i < islands.size(); i++) {
+			Optimizer next = islands.get((i + 1) % islands.size());
+			System.out.println(hasReceived(next, migrants.get(i)));
+			System.out.println(next.getPopulation().size() <= new OptimizerConfig().getPopulationSize());
+		}
+
+		// A single island has no one to send its solutions to
+		IslandOptimizer single = new IslandOptimizer(dataLayer, request, null, 1);
+		Optimizer alone = single.getIslands().get(0);
+		alone.step();
+		List<Solution> before = new ArrayList<Solution>(alone.getPopulation());
+		single.migrate();
+		System.out.println(before.equals(new ArrayList<Solution>(alone.getPopulation())));
+
+		// The evaluation budget stops the run in the middle of the first
+		// epoch, which is not counted
+		OptimizerConfig config = new OptimizerConfig();
+		config.setEvaluationBudget(10 * GENERATION_SIZE);
+		optimizer = new IslandOptimizer(dataLayer, request, null, config, 2, 1000);
+		optimizer.run();
+		System.out.println(optimizer.isTerminated());
+		System.out.println(optimizer.isTerminationReached());
+		System.out.println(optimizer.getEpochsCounter() == 0);
+		System.out.println(optimizer.getEvaluationsCounter() >= 10 * GENERATION_SIZE);
+		System.out.println(optimizer.getEvaluationsCounter() < 11 * GENERATION_SIZE);
+
+		// Running it again does nothing
+		int evaluations = optimizer.getEvaluationsCounter();
+		optimizer.run();
+		System.out.println(optimizer.getEvaluationsCounter() == evaluations);
+
+		// The same with the islands running in parallel, the observers are
+		// told about every epoch
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		config = new OptimizerConfig();
+		config.setEvaluationBudget(60 * GENERATION_SIZE);
+		optimizer = new IslandOptimizer(dataLayer, request, executor, config, 3, 5);
+		final int[] epochs = { 0 };
+		optimizer.addObserver(new Observer() {
+			public void update(Observable o, Object arg) {
+				epochs[0]++;
+			}
+		});
+		optimizer.run();
+		System.out.println(optimizer.isTerminated());
+		System.out.println(epochs[0] == optimizer.getEpochsCounter());
+		System.out.println(optimizer.getEpochsCounter() > 1);
+		System.out.println(optimizer.getEvaluationsCounter() >= 60 * GENERATION_SIZE);
+		System.out.println(optimizer.getEvaluationsCounter() < 63 * GENERATION_SIZE);
+		executor.shutdown();
+
+		// Stagnation is counted in generations, a run without improvement
+		// stops after the window
+		config = new OptimizerConfig();
+		config.setStagnationWindow(20);
+		config.setEvaluationBudget(10000 * GENERATION_SIZE);
+		optimizer = new IslandOptimizer(dataLayer, request, null, config, 2, 10);
+		optimizer.run();
+		System.out.println(optimizer.isTerminated());
+		System.out.println(optimizer.getEvaluationsCounter() < 10000 * GENERATION_SIZE);
+	}
+
+}
@@ -0,0 +1,320 @@
+/**
+ * 
+ */
+package nl.erdf.datalayer.hbase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Sort (key, value) pairs of byte arrays, in the byte order of the keys and
+ * then of the values. The pairs are kept in memory until a given amount is
+ * reached, then sorted and written to a run file on disk. The runs are merged
+ * when the pairs are read back, by several passes if there are more runs than
+ * can be read at once. Every run is deleted as soon as it has been merged.
+ * Identical pairs are only read once
+ * 
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ */
+public class ExternalSorter {
+	// Size of the buffers of the run files
+	private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+	// Maximum number of runs read at the same time
+	private static final int MAX_FAN_IN = 64;
+
+	// Memory taken by a pair on top of its content, roughly
+	private static final int PAIR_OVERHEAD = 64;
+
+	// Compare the pairs on their key and then on their value
+	private static final Comparator<byte[][]> PAIR_COMPARATOR = new Comparator<byte[][]>() {
+		public int compare(byte[][] a, byte[][] b) {
+			int c = Bytes.compareTo(a[0], b[0]);
+			return (c != 0 ? c : Bytes.compareTo(a[1], b[1]));
+		}
+	};
+
+	// Where to write the runs
+	private final File directory;
+
+	// Amount of memory to fill before writing a run
+	private final long maxRunSize;
+
+	// Pairs waiting to be written
+	private final List<byte[][]> pairs = new ArrayList<byte[][]>();
+	private long runSize = 0;
+
+	// Runs written
+	private final List<File> runs = new ArrayList<File>();
+
+	/**
+	 * @param directory
+	 *            where to write the runs
+	 * @param maxRunSize
+	 *            the amount of memory, in bytes, to fill before writing a run
+	 */
+	public ExternalSorter(File directory, long maxRunSize) {
+		this.directory = directory;
+		this.maxRunSize = maxRunSize;
+	}
+
+	/**
+	 * @param key
+	 * @param value
+	 * @throws IOException
+	 */
+	public void add(byte[] key, byte[] value) throws IOException {
+		pairs.add(new byte[][] { key, value });
+		runSize += key.length + value.length + PAIR_OVERHEAD;
+		if (runSize >= maxRunSize)
+			spill();
+	}
+
+	/**
+	 * Sort the pairs in memory and write them to a new run
+	 * 
+	 * @throws IOException
+	 */
+	private void spill() throws IOException {
+		if (pairs.isEmpty())
+			return;
+
+		Collections.sort(pairs, PAIR_COMPARATOR);
+		File run = File.createTempFile("run-", ".bin", directory);
+		boolean written = false;
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run),
+				IO_BUFFER_SIZE));
+		try {
+			for (byte[][] pair : pairs)
+				write(output, pair[0], pair[1]);
+			written = true;
+		} finally {
+			output.close();
+			if (!written)
+				run.delete();
+		}
+		runs.add(run);
+
+		pairs.clear();
+		runSize = 0;
+	}
+
+	/**
+	 * Merge groups of runs into bigger ones until they can all be read at the
+	 * same time
+	 * 
+	 * @throws IOException
+	 */
+	private void merge() throws IOException {
+		while (runs.size() > MAX_FAN_IN) {
+			List<File> merged = new ArrayList<File>();
+			for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+				List<File> group = runs.subList(i, Math.min(runs.size(), i + MAX_FAN_IN));
+				merged.add(group.size() == 1 ? group.get(0) : merge(group));
+			}
+			runs.clear();
+			runs.addAll(merged);
+		}
+	}
+
+	/**
+	 * Merge some runs into a new one, the runs merged are deleted
+	 * 
+	 * @param group
+	 *            the runs to merge
+	 * @return the new run
+	 * @throws IOException
+	 */
+	private File merge(List<File> group) throws IOException {
+		File run = File.createTempFile("run-", ".bin", directory);
+		boolean written = false;
+		Reader reader = new Reader(group);
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run),
+				IO_BUFFER_SIZE));
+		try {
+			while (reader.next())
+				write(output, reader.getKey(), reader.getValue());
+			written = true;
+		} finally {
+			output.close();
+			reader.close();
+			if (!written)
+				run.delete();
+		}
+		return run;
+	}
+
+	/**
+	 * @param output
+	 * @param key
+	 * @param value
+	 * @throws IOException
+	 */
+	private static void write(DataOutputStream output, byte[] key, byte[] value) throws IOException {
+		output.writeInt(key.length);
+		output.write(key);
+		output.writeInt(value.length);
+		output.write(value);
+	}
+
+	/**
+	 * Get the sorted pairs. No pair can be added after this call
+	 * 
+	 * @return a reader over the pairs
+	 * @throws IOException
+	 */
+	public Reader read() throws IOException {
+		spill();
+		merge();
+		Reader reader = new Reader(runs);
+		runs.clear();
+		return reader;
+	}
+
+	/**
+	 * Merge the runs
+	 */
+	public static class Reader {
+		// The head of every run, ordered by their current pair
+		private final PriorityQueue<Run> heads = new PriorityQueue<Run>(11, new Comparator<Run>() {
+			public int compare(Run a, Run b) {
+				return PAIR_COMPARATOR.compare(a.pair, b.pair);
+			}
+		});
+
+		// The current pair
+		private byte[][] pair = null;
+
+		/**
+		 * @param files
+		 * @throws IOException
+		 */
+		private Reader(List<File> files) throws IOException {
+			try {
+				for (File file : files) {
+					Run run = new Run(file);
+					if (run.next())
+						heads.add(run);
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Move to the next pair, skipping the pairs identical to the current
+		 * one
+		 * 
+		 * @return false if there is no more pair
+		 * @throws IOException
+		 */
+		public boolean next() throws IOException {
+			byte[][] previous = pair;
+			do {
+				Run run = heads.poll();
+				if (run == null) {
+					pair = null;
+					return false;
+				}
+				pair = run.pair;
+				if (run.next())
+					heads.add(run);
+			} while (previous != null && PAIR_COMPARATOR.compare(previous, pair) == 0);
+			return true;
+		}
+
+		/**
+		 * @return the key of the current pair
+		 */
+		public byte[] getKey() {
+			return pair[0];
+		}
+
+		/**
+		 * @return the value of the current pair
+		 */
+		public byte[] getValue() {
+			return pair[1];
+		}
+
+		/**
+		 * Close and delete the runs
+		 */
+		public void close() {
+			for (Run run : heads)
+				run.close();
+			heads.clear();
+		}
+	}
+
+	/**
+	 * A run being read
+	 */
+	private static class Run {
+		// The file of the run
+		private final File file;
+
+		// The content of the run
+		private final DataInputStream input;
+
+		// The current pair
+		byte[][] pair = null;
+
+		/**
+		 * @param file
+		 * @throws IOException
+		 */
+		Run(File file) throws IOException {
+			this.file = file;
+			this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER_SIZE));
+		}
+
+		/**
+		 * @return false, and close the run, if there is no more pair
+		 * @throws IOException
+		 */
+		boolean next() throws IOException {
+			int length;
+			try {
+				length = input.readInt();
+			} catch (EOFException e) {
+				close();
+				return false;
+			}
+			byte[] key = new byte[length];
+			input.readFully(key);
+			byte[] value = new byte[input.readInt()];
+			input.readFully(value);
+			pair = new byte[][] { key, value };
+			return true;
+		}
+
+		/**
+		 * Close and delete the run
+		 */
+		void close() {
+			try {
+				input.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			file.delete();
+		}
+	}
+}
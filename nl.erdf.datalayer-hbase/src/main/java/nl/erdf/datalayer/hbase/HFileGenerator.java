@@ -0,0 +1,345 @@
+/**
+ * 
+ */
+package nl.erdf.datalayer.hbase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.openrdf.model.Statement;
+
+/**
+ * Produce the content of the tables of a {@link SpyrosHBaseDataLayer} without
+ * going through HBase. The statements are sorted on local disk, then the rows
+ * are handed out table by table in the order of their keys, as expected by the
+ * writers of HFiles. The rows are the same as those inserted by the data
+ * layer, the positions of the values being counted during the merge instead of
+ * by the counter tables. Statements found several times are only stored once.
+ * 
+ * If the keys are encoded, the identifiers of the resources are given while
+ * writing the table of the {@link TermDictionary}: the occurrences of the
+ * resources are sorted a first time to give them their identifier, then a
+ * second time to put the statements back together.
+ * 
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ */
+public class HFileGenerator {
+	/**
+	 * Where the rows of the tables go
+	 */
+	public interface CellSink {
+		/**
+		 * @param tableName
+		 * @return a writer for the rows of that table
+		 * @throws IOException
+		 */
+		public CellWriter create(String tableName) throws IOException;
+	}
+
+	/**
+	 * Writes the rows of a table, the rows come in increasing order
+	 */
+	public interface CellWriter {
+		/**
+		 * @param row
+		 * @param qualifier
+		 * @param value
+		 * @throws IOException
+		 */
+		public void append(byte[] row, byte[] qualifier, byte[] value) throws IOException;
+
+		/**
+		 * @throws IOException
+		 */
+		public void close() throws IOException;
+	}
+
+	// The name of the schema, used as a suffix for table names
+	private final String schemaName;
+
+	// Sorted content of the indexes
+	private final ExternalSorter sp;
+	private final ExternalSorter po;
+	private final ExternalSorter so;
+	private final ExternalSorter spo;
+
+	// Occurrences of the resources and encoded statements, if the keys are
+	// encoded
+	private final ExternalSorter terms;
+	private final ExternalSorter statements;
+
+	// The resources of the identifiers, written after all the resources
+	private final ExternalSorter ids;
+
+	// Number of statements added
+	private long total = 0;
+
+	/**
+	 * @param schemaName
+	 *            the name of the data set
+	 * @param directory
+	 *            where to write the temporary files
+	 * @param memory
+	 *            the amount of memory, in bytes, used to sort the statements
+	 */
+	public HFileGenerator(String schemaName, File directory, long memory) {
+		this(schemaName, directory, memory, false);
+	}
+
+	/**
+	 * @param schemaName
+	 *            the name of the data set
+	 * @param directory
+	 *            where to write the temporary files
+	 * @param memory
+	 *            the amount of memory, in bytes, used to sort the statements
+	 * @param encoded
+	 *            use identifiers in the row keys
+	 */
+	public HFileGenerator(String schemaName, File directory, long memory, boolean encoded) {
+		this.schemaName = schemaName;
+		sp = new ExternalSorter(directory, memory / 4);
+		po = new ExternalSorter(directory, memory / 4);
+		so = new ExternalSorter(directory, memory / 4);
+		spo = new ExternalSorter(directory, memory / 4);
+
+		// Those are filled one after the other, before the indexes
+		terms = (encoded ? new ExternalSorter(directory, memory) : null);
+		statements = (encoded ? new ExternalSorter(directory, memory) : null);
+		ids = (encoded ? new ExternalSorter(directory, memory) : null);
+	}
+
+	/**
+	 * @param schemaName
+	 * @return the names of all the tables of a data set
+	 */
+	public static String[] getTableNames(String schemaName) {
+		return getTableNames(schemaName, false);
+	}
+
+	/**
+	 * @param schemaName
+	 * @param encoded
+	 *            if the keys of the data set are encoded
+	 * @return the names of all the tables of a data set
+	 */
+	public static String[] getTableNames(String schemaName, boolean encoded) {
+		List<String> names = new ArrayList<String>(Arrays.asList("sp_data_" + schemaName, "po_data_" + schemaName,
+				"so_data_" + schemaName, "sp_counts_" + schemaName, "po_counts_" + schemaName, "so_counts_"
+						+ schemaName, "spo_data_" + schemaName));
+		if (encoded)
+			names.add(TermDictionary.getTableName(schemaName));
+		return names.toArray(new String[names.size()]);
+	}
+
+	/**
+	 * @param statement
+	 * @throws IOException
+	 */
+	public void add(Statement statement) throws IOException {
+		byte[] s = NodeSerializer.toBytes(statement.getSubject());
+		byte[] p = NodeSerializer.toBytes(statement.getPredicate());
+		byte[] o = NodeSerializer.toBytes(statement.getObject());
+
+		// Keep the occurrences of the resources, numbered after the statement
+		// and their position in it
+		if (terms != null) {
+			long n = total++;
+			terms.add(s, occurrence(n, 0));
+			terms.add(p, occurrence(n, 1));
+			terms.add(o, occurrence(n, 2));
+			return;
+		}
+
+		add(s, s, p, p, o, o);
+	}
+
+	/**
+	 * @param s
+	 *            the key of the subject
+	 * @param sValue
+	 *            the serialised subject
+	 * @param p
+	 *            the key of the predicate
+	 * @param pValue
+	 *            the serialised predicate
+	 * @param o
+	 *            the key of the object
+	 * @param oValue
+	 *            the serialised object
+	 * @throws IOException
+	 */
+	private void add(byte[] s, byte[] sValue, byte[] p, byte[] pValue, byte[] o, byte[] oValue) throws IOException {
+		sp.add(concat(s, p), oValue);
+		po.add(concat(p, o), sValue);
+		so.add(concat(s, o), pValue);
+		spo.add(concat(s, concat(p, o)), SpyrosHBaseDataLayer.EMPTY_BYTEARRAY);
+	}
+
+	/**
+	 * @param n
+	 *            the number of the statement
+	 * @param position
+	 *            the position of the resource in the statement
+	 * @return the occurrence, in the order of the statements
+	 */
+	private static byte[] occurrence(long n, int position) {
+		byte[] occurrence = new byte[9];
+		Bytes.putLong(occurrence, 0, n);
+		occurrence[8] = (byte) position;
+		return occurrence;
+	}
+
+	/**
+	 * Write the content of all the tables. No statement can be added after
+	 * this call
+	 * 
+	 * @param sink
+	 * @throws IOException
+	 */
+	public void generate(CellSink sink) throws IOException {
+		if (terms != null)
+			encode(sink);
+
+		generate(sp, "sp", sink);
+		generate(po, "po", sink);
+		generate(so, "so", sink);
+
+		// The table of all the triples only records their existence
+		CellWriter data = sink.create("spo_data_" + schemaName);
+		ExternalSorter.Reader reader = spo.read();
+		try {
+			while (reader.next())
+				data.append(reader.getKey(), SpyrosHBaseDataLayer.EXISTENCE_QUALIFIER,
+						SpyrosHBaseDataLayer.EMPTY_BYTEARRAY);
+		} finally {
+			reader.close();
+			data.close();
+		}
+	}
+
+	/**
+	 * Give an identifier to every resource and write the dictionary, then put
+	 * the encoded statements in the indexes. The resources come in the order
+	 * of the dictionary table, the identifiers are given in the same order so
+	 * their rows, which come after those of the resources, are sorted too
+	 * 
+	 * @param sink
+	 * @throws IOException
+	 */
+	private void encode(CellSink sink) throws IOException {
+		// Give the identifiers, from 1 like the dictionary does
+		CellWriter dictionary = sink.create(TermDictionary.getTableName(schemaName));
+		ExternalSorter.Reader reader = terms.read();
+		try {
+			byte[] term = null;
+			long id = 0;
+			byte[] value = null;
+			while (reader.next()) {
+				if (term == null || !Arrays.equals(term, reader.getKey())) {
+					term = reader.getKey();
+					value = concat(Bytes.toBytes(++id), term);
+					dictionary.append(term, TermDictionary.ID_QUALIFIER, Bytes.toBytes(id));
+					ids.add(Bytes.toBytes(id), term);
+				}
+				statements.add(reader.getValue(), value);
+			}
+			reader.close();
+
+			// Then the resources of the identifiers
+			reader = ids.read();
+			while (reader.next())
+				dictionary.append(TermDictionary.getIdRow(reader.getKey()), TermDictionary.TERM_QUALIFIER,
+						reader.getValue());
+
+			// The counter sorts after everything else
+			dictionary.append(TermDictionary.COUNTER_ROW, SpyrosHBaseDataLayer.COUNT_QUALIFIER, Bytes.toBytes(id));
+		} finally {
+			reader.close();
+			dictionary.close();
+		}
+
+		// Put the statements back together, their three resources come one
+		// after the other
+		reader = statements.read();
+		try {
+			byte[][] keys = new byte[3][];
+			byte[][] values = new byte[3][];
+			int position = 0;
+			while (reader.next()) {
+				byte[] value = reader.getValue();
+				keys[position] = new byte[TermDictionary.ID_SIZE];
+				System.arraycopy(value, 0, keys[position], 0, TermDictionary.ID_SIZE);
+				values[position] = new byte[value.length - TermDictionary.ID_SIZE];
+				System.arraycopy(value, TermDictionary.ID_SIZE, values[position], 0, values[position].length);
+				if (++position == 3) {
+					add(keys[0], values[0], keys[1], values[1], keys[2], values[2]);
+					position = 0;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Write the data and the counts tables of an index. The values of a key
+	 * come one after the other and get consecutive positions. The serialised
+	 * resources are self-delimiting and the identifiers have a fixed size, so
+	 * no key is a prefix of an other and the rows made of a key followed by a
+	 * position are in increasing order
+	 * 
+	 * @param sorter
+	 *            the content of the index
+	 * @param index
+	 *            the name of the index
+	 * @param sink
+	 * @throws IOException
+	 */
+	private void generate(ExternalSorter sorter, String index, CellSink sink) throws IOException {
+		CellWriter data = sink.create(index + "_data_" + schemaName);
+		CellWriter counts = sink.create(index + "_counts_" + schemaName);
+		ExternalSorter.Reader reader = sorter.read();
+		try {
+			byte[] key = null;
+			long c = 0;
+			while (reader.next()) {
+				// Write the count of the previous key
+				if (key == null || !Arrays.equals(key, reader.getKey())) {
+					if (key != null)
+						counts.append(key, SpyrosHBaseDataLayer.COUNT_QUALIFIER, Bytes.toBytes(c));
+					key = reader.getKey();
+					c = 0;
+				}
+
+				byte[] nKey = new byte[key.length + 8];
+				System.arraycopy(key, 0, nKey, 0, key.length);
+				Bytes.putLong(nKey, key.length, c++);
+				data.append(nKey, SpyrosHBaseDataLayer.RESOURCE_QUALIFIER, reader.getValue());
+			}
+			if (key != null)
+				counts.append(key, SpyrosHBaseDataLayer.COUNT_QUALIFIER, Bytes.toBytes(c));
+		} finally {
+			reader.close();
+			data.close();
+			counts.close();
+		}
+	}
+
+	/**
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] ret = new byte[a.length + b.length];
+		System.arraycopy(a, 0, ret, 0, a.length);
+		System.arraycopy(b, 0, ret, a.length, b.length);
+		return ret;
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * 
+ */
+package nl.erdf.datalayer.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.io.hfile.CacheConfig;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Write the rows of the tables into HFiles ready to be bulk imported. The
+ * files of a table go in the directory <output>/<table>/<column family>, a
+ * new file is started every time a file gets bigger than a given size. The
+ * first rows of the files are kept, they make good split points for the
+ * regions of the tables
+ * 
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ */
+public class HFileSink implements HFileGenerator.CellSink {
+	// Default size after which a new file is started
+	public static final long DEFAULT_MAX_FILE_SIZE = 1024L * 1024L * 1024L;
+
+	// Configuration of Hadoop
+	private final Configuration conf;
+
+	// Where to write the files
+	private final Path output;
+
+	// Size after which a new file is started
+	private final long maxFileSize;
+
+	// Time stamp given to all the cells
+	private final long timestamp = System.currentTimeMillis();
+
+	// The first rows of the files of every table, but the first file
+	private final Map<String, List<byte[]>> splitKeys = new HashMap<String, List<byte[]>>();
+
+	/**
+	 * @param conf
+	 * @param output
+	 *            the directory where to write the files of all the tables
+	 * @param maxFileSize
+	 *            the size, in bytes, after which a new file is started
+	 */
+	public HFileSink(Configuration conf, Path output, long maxFileSize) {
+		this.conf = conf;
+		this.output = output;
+		this.maxFileSize = maxFileSize;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * nl.erdf.datalayer.hbase.HFileGenerator.CellSink#create(java.lang.String)
+	 */
+	public HFileGenerator.CellWriter create(String tableName) throws IOException {
+		final List<byte[]> splits = new ArrayList<byte[]>();
+		splitKeys.put(tableName, splits);
+		final Path directory = new Path(new Path(output, tableName), Bytes.toString(SpyrosHBaseDataLayer.COLUMN));
+		final FileSystem fs = directory.getFileSystem(conf);
+		fs.mkdirs(directory);
+
+		return new HFileGenerator.CellWriter() {
+			// The file being written
+			private HFile.Writer writer = null;
+			private long size = 0;
+			private int files = 0;
+
+			public void append(byte[] row, byte[] qualifier, byte[] value) throws IOException {
+				if (writer == null || size >= maxFileSize) {
+					if (writer != null)
+						splits.add(row);
+					close();
+					Path path = new Path(directory, String.format("part-%05d", files++));
+					writer = HFile.getWriterFactory(conf, new CacheConfig(conf)).withPath(fs, path)
+							.withComparator(KeyValue.KEY_COMPARATOR).create();
+					size = 0;
+				}
+				KeyValue kv = new KeyValue(row, SpyrosHBaseDataLayer.COLUMN, qualifier, timestamp, value);
+				writer.append(kv);
+				size += kv.getLength();
+			}
+
+			public void close() throws IOException {
+				if (writer == null)
+					return;
+				writer.appendFileInfo(StoreFile.BULKLOAD_TIME_KEY, Bytes.toBytes(System.currentTimeMillis()));
+				writer.appendFileInfo(StoreFile.MAJOR_COMPACTION_KEY, Bytes.toBytes(true));
+				writer.close();
+				writer = null;
+			}
+		};
+	}
+
+	/**
+	 * @param tableName
+	 * @return the rows at which the regions of the table can be split so that
+	 *         every file goes in one region, none if the table was not written
+	 */
+	public byte[][] getSplitKeys(String tableName) {
+		List<byte[]> splits = splitKeys.get(tableName);
+		if (splits == null)
+			return new byte[0][];
+		return splits.toArray(new byte[splits.size()][]);
+	}
+}
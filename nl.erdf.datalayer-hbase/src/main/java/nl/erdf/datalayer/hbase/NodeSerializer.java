@@ -1,9 +1,5 @@
 package nl.erdf.datalayer.hbase;
 
-import java.io.IOException;
-
-import org.apache.hadoop.io.DataInputBuffer;
-import org.apache.hadoop.io.DataOutputBuffer;
 import org.openrdf.model.BNode;
 import org.openrdf.model.Literal;
 import org.openrdf.model.URI;
@@ -11,6 +7,29 @@ import org.openrdf.model.Value;
 import org.openrdf.model.ValueFactory;
 import org.openrdf.model.impl.ValueFactoryImpl;
 
+/**
+ * Serialise the resources to bytes. A resource is written as its type
+ * followed by its label and, for the typed and localised literals, the data
+ * type or the language. Every string is written in the modified UTF-8 of
+ * writeUTF() with its length in front, so a serialised resource is
+ * self-delimiting and several of them can be put one after the other in a row
+ * key.
+ * 
+ * The length takes two bytes, as with writeUTF(), or, for the strings of more
+ * than 65535 bytes, two bytes set to 0xff followed by the length on four
+ * bytes. The resources written before with writeUTF() get the same bytes,
+ * including the null character, the characters outside of the basic plane and
+ * the strings of exactly 65535 bytes. The four byte sequences of standard
+ * UTF-8 are still read.
+ * 
+ * A length of 0xffff is only read as the marker of a long length when the
+ * four bytes that follow give a length above 65535 that fits in the rest of
+ * the array. Modified UTF-8 has no null byte, so the first bytes of a string
+ * of 65535 bytes read as a length always give 16 MB or more.
+ * 
+ * The resources are written straight into the arrays given by the callers
+ * and read from them, the only temporary buffer used is kept by each thread
+ */
 public class NodeSerializer {
 	protected static final byte URI = 0;
 	protected static final byte PLAIN_LITERAL = 1;
@@ -19,50 +38,75 @@ public class NodeSerializer {
 	protected static final byte BNODE = 4;
 	protected static final ValueFactory f = new ValueFactoryImpl();
 
+	// Length written in front of the strings that have a long length, and
+	// longest length written on two bytes
+	private static final int LONG_STRING = 0xffff;
+
+	// The characters being decoded by each thread
+	private static final ThreadLocal<char[]> chars = new ThreadLocal<char[]>() {
+		@Override
+		protected char[] initialValue() {
+			return new char[256];
+		}
+	};
+
 	/**
 	 * @param bytes
 	 * @return
 	 */
 	public static Value fromBytes(byte[] in) {
-		Value resource = null;
-		DataInputBuffer dib = new DataInputBuffer();
-		dib.reset(in, in.length);
-		try {
-			byte type = dib.readByte();
-			String label = dib.readUTF();
-			switch (type) {
-			case BNODE:
-				resource = f.createBNode(label);
-				break;
-			case PLAIN_LITERAL:
-				resource = f.createLiteral(label);
-				break;
-			case TYPED_LITERAL:
-				URI datatype = f.createURI(dib.readUTF());
-				resource = f.createLiteral(label, datatype);
-				break;
-			case LANG_LITERAL:
-				String lang = dib.readUTF();
-				resource = f.createLiteral(label, lang);
-				break;
-			case URI:
-				return f.createURI(label);
-			default:
-				throw new IllegalArgumentException("Unrecognized object type: " + type);
-			}
+		return fromBytes(in, 0);
+	}
 
-		} catch (IOException e) {
-			throw new IllegalStateException("Something went wrong in deserialization");
-		} finally {
-			try {
-				if (dib != null)
-					dib.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+	/**
+	 * Decode one resource out of several ones put one after the other
+	 * 
+	 * @param in
+	 * @param offset
+	 *            where the resource starts
+	 * @return the resource
+	 */
+	public static Value fromBytes(byte[] in, int offset) {
+		byte type = in[offset];
+		int labelOffset = offset + 1;
+		switch (type) {
+		case BNODE:
+			return f.createBNode(readString(in, labelOffset));
+		case PLAIN_LITERAL:
+			return f.createLiteral(readString(in, labelOffset));
+		case TYPED_LITERAL:
+			return f.createLiteral(readString(in, labelOffset), f.createURI(readString(in, skipString(in,
+					labelOffset))));
+		case LANG_LITERAL:
+			return f.createLiteral(readString(in, labelOffset), readString(in, skipString(in, labelOffset)));
+		case URI:
+			return f.createURI(readString(in, labelOffset));
+		default:
+			throw new IllegalArgumentException("Unrecognized object type: " + type);
 		}
+	}
 
-		return resource;
+	/**
+	 * Find the end of a resource without decoding it
+	 * 
+	 * @param in
+	 * @param offset
+	 *            where the resource starts
+	 * @return where the resource ends
+	 */
+	public static int skip(byte[] in, int offset) {
+		byte type = in[offset];
+		switch (type) {
+		case BNODE:
+		case PLAIN_LITERAL:
+		case URI:
+			return skipString(in, offset + 1);
+		case TYPED_LITERAL:
+		case LANG_LITERAL:
+			return skipString(in, skipString(in, offset + 1));
+		default:
+			throw new IllegalArgumentException("Unrecognized object type: " + type);
+		}
 	}
 
 	/**
@@ -70,40 +114,212 @@ public class NodeSerializer {
 	 * @return
 	 */
 	public static byte[] toBytes(Value resource) {
-		DataOutputBuffer dob = new DataOutputBuffer(2048);
-		dob.reset();
-
-		try {
-			if (resource instanceof BNode) {
-				dob.write(BNODE);
-				dob.writeUTF(((BNode) resource).getID());
-			} else if (resource instanceof URI) {
-				dob.write(URI);
-				dob.writeUTF(((URI) resource).stringValue());
-			} else if (resource instanceof Literal) {
-				if (((Literal) resource).getDatatype() == null && ((Literal) resource).getLanguage() == null) {
-					dob.write(PLAIN_LITERAL);
-					dob.writeUTF(((Literal) resource).getLabel());
-				}
-				if (((Literal) resource).getDatatype() != null && ((Literal) resource).getLanguage() == null) {
-					dob.write(TYPED_LITERAL);
-					dob.writeUTF(((Literal) resource).getLabel());
-					dob.writeUTF(((Literal) resource).getDatatype().stringValue());
-				}
-				if (((Literal) resource).getDatatype() == null && ((Literal) resource).getLanguage() != null) {
-					dob.write(LANG_LITERAL);
-					dob.writeUTF(((Literal) resource).getLabel());
-					dob.writeUTF(((Literal) resource).getLanguage());
-				}
+		byte[] ret = new byte[size(resource)];
+		write(resource, ret, 0);
+		return ret;
+	}
+
+	/**
+	 * @param resource
+	 * @return the number of bytes taken by the serialised resource
+	 */
+	public static int size(Value resource) {
+		if (resource instanceof BNode) {
+			return 1 + size(((BNode) resource).getID());
+		} else if (resource instanceof URI) {
+			return 1 + size(((URI) resource).stringValue());
+		} else if (resource instanceof Literal) {
+			Literal literal = (Literal) resource;
+			if (literal.getDatatype() != null)
+				return 1 + size(literal.getLabel()) + size(literal.getDatatype().stringValue());
+			if (literal.getLanguage() != null)
+				return 1 + size(literal.getLabel()) + size(literal.getLanguage());
+			return 1 + size(literal.getLabel());
+		}
+		throw new IllegalStateException("Unknown resource class" + resource.getClass().getName());
+	}
+
+	/**
+	 * Serialise a resource into an array
+	 * 
+	 * @param resource
+	 * @param out
+	 *            the array, it must have size(resource) bytes left after
+	 *            offset
+	 * @param offset
+	 *            where to write the resource
+	 * @return where the resource ends
+	 */
+	public static int write(Value resource, byte[] out, int offset) {
+		if (resource instanceof BNode) {
+			out[offset] = BNODE;
+			return writeString(((BNode) resource).getID(), out, offset + 1);
+		} else if (resource instanceof URI) {
+			out[offset] = URI;
+			return writeString(((URI) resource).stringValue(), out, offset + 1);
+		} else if (resource instanceof Literal) {
+			Literal literal = (Literal) resource;
+			if (literal.getDatatype() != null) {
+				out[offset] = TYPED_LITERAL;
+				offset = writeString(literal.getLabel(), out, offset + 1);
+				return writeString(literal.getDatatype().stringValue(), out, offset);
+			}
+			if (literal.getLanguage() != null) {
+				out[offset] = LANG_LITERAL;
+				offset = writeString(literal.getLabel(), out, offset + 1);
+				return writeString(literal.getLanguage(), out, offset);
+			}
+			out[offset] = PLAIN_LITERAL;
+			return writeString(literal.getLabel(), out, offset + 1);
+		}
+		throw new IllegalStateException("Unknown resource class" + resource.getClass().getName());
+	}
+
+	/**
+	 * @param s
+	 * @return the number of bytes taken by the string and its length
+	 */
+	private static int size(String s) {
+		int length = utf8Length(s);
+		return (length <= LONG_STRING ? 2 : 6) + length;
+	}
+
+	/**
+	 * @param s
+	 * @return the number of bytes of the string in modified UTF-8
+	 */
+	private static int utf8Length(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c != 0 && c < 0x80)
+				length++;
+			else if (c < 0x800)
+				length += 2;
+			else
+				length += 3;
+		}
+		return length;
+	}
+
+	/**
+	 * @param s
+	 * @param out
+	 * @param offset
+	 * @return where the string ends
+	 */
+	private static int writeString(String s, byte[] out, int offset) {
+		int length = utf8Length(s);
+		if (length <= LONG_STRING) {
+			out[offset++] = (byte) (length >>> 8);
+			out[offset++] = (byte) length;
+		} else {
+			out[offset++] = (byte) 0xff;
+			out[offset++] = (byte) 0xff;
+			out[offset++] = (byte) (length >>> 24);
+			out[offset++] = (byte) (length >>> 16);
+			out[offset++] = (byte) (length >>> 8);
+			out[offset++] = (byte) length;
+		}
+
+		for (int i = 0; i < s.length(); i++) {
+			// As writeUTF(), the null character takes two bytes and the
+			// surrogates are written one by one
+			char c = s.charAt(i);
+			if (c != 0 && c < 0x80) {
+				out[offset++] = (byte) c;
+			} else if (c < 0x800) {
+				out[offset++] = (byte) (0xc0 | (c >> 6));
+				out[offset++] = (byte) (0x80 | (c & 0x3f));
 			} else {
-				throw new IllegalStateException("Unknown resource class" + resource.getClass().getName());
+				out[offset++] = (byte) (0xe0 | (c >> 12));
+				out[offset++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				out[offset++] = (byte) (0x80 | (c & 0x3f));
 			}
-		} catch (IOException e) {
-			throw new IllegalStateException("Something went wrong in deserialization");
 		}
+		return offset;
+	}
 
-		byte[] ret = new byte[dob.getLength()];
-		System.arraycopy(dob.getData(), 0, ret, 0, dob.getLength());
-		return ret;
+	/**
+	 * @param in
+	 * @param offset
+	 *            where the string starts
+	 * @return the number of bytes taken by the length of the string
+	 */
+	private static int headerLength(byte[] in, int offset) {
+		int length = ((in[offset] & 0xff) << 8) | (in[offset + 1] & 0xff);
+		if (length != LONG_STRING || in.length - offset < 6)
+			return 2;
+		int longLength = readInt(in, offset + 2);
+		return (longLength > LONG_STRING && longLength <= in.length - offset - 6 ? 6 : 2);
+	}
+
+	/**
+	 * @param in
+	 * @param offset
+	 *            where the string starts
+	 * @return the number of bytes of the string, without its length
+	 */
+	private static int stringLength(byte[] in, int offset) {
+		if (headerLength(in, offset) == 6)
+			return readInt(in, offset + 2);
+		return ((in[offset] & 0xff) << 8) | (in[offset + 1] & 0xff);
+	}
+
+	/**
+	 * @param in
+	 * @param offset
+	 * @return the four bytes at the offset, as an integer
+	 */
+	private static int readInt(byte[] in, int offset) {
+		return ((in[offset] & 0xff) << 24) | ((in[offset + 1] & 0xff) << 16) | ((in[offset + 2] & 0xff) << 8)
+				| (in[offset + 3] & 0xff);
+	}
+
+	/**
+	 * @param in
+	 * @param offset
+	 *            where the string starts
+	 * @return where the string ends
+	 */
+	private static int skipString(byte[] in, int offset) {
+		return offset + headerLength(in, offset) + stringLength(in, offset);
+	}
+
+	/**
+	 * @param in
+	 * @param offset
+	 *            where the string starts
+	 * @return the string
+	 */
+	private static String readString(byte[] in, int offset) {
+		int length = stringLength(in, offset);
+		int i = offset + headerLength(in, offset);
+		int end = i + length;
+
+		// There are never more characters than bytes
+		char[] buffer = chars.get();
+		if (buffer.length < length) {
+			buffer = new char[Math.max(length, 2 * buffer.length)];
+			chars.set(buffer);
+		}
+
+		int n = 0;
+		while (i < end) {
+			int b = in[i++] & 0xff;
+			if (b < 0x80) {
+				buffer[n++] = (char) b;
+			} else if (b < 0xe0) {
+				buffer[n++] = (char) (((b & 0x1f) << 6) | (in[i++] & 0x3f));
+			} else if (b < 0xf0) {
+				buffer[n++] = (char) (((b & 0x0f) << 12) | ((in[i++] & 0x3f) << 6) | (in[i++] & 0x3f));
+			} else {
+				// Standard UTF-8, written by older versions
+				int code = ((b & 0x07) << 18) | ((in[i++] & 0x3f) << 12) | ((in[i++] & 0x3f) << 6)
+						| (in[i++] & 0x3f);
+				n += Character.toChars(code, buffer, n);
+			}
+		}
+		return new String(buffer, 0, n);
 	}
 }
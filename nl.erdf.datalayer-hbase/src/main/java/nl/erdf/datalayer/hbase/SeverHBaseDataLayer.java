@@ -5,12 +5,16 @@ package nl.erdf.datalayer.hbase;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import nl.erdf.datalayer.DataLayer;
 import nl.erdf.model.Triple;
 import nl.erdf.util.Randomizer;
+import nl.erdf.util.Reservoir;
 import nl.vu.datalayer.hbase.HBaseClientSolution;
 import nl.vu.datalayer.hbase.HBaseFactory;
 import nl.vu.datalayer.hbase.connection.HBaseConnection;
@@ -93,32 +97,79 @@ public class SeverHBaseDataLayer implements DataLayer {
 	 * @see nl.erdf.datalayer.DataLayer#getResource(nl.erdf.model.Triple)
 	 */
 	public Value getResource(Triple pattern) {
+		List<Value> values = sample(pattern, 1, Randomizer.instance());
+		return (values.isEmpty() ? null : values.get(0));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.DataLayer#sample(nl.erdf.model.Triple, int,
+	 * java.util.Random)
+	 */
+	public List<Value> sample(Triple pattern, int k, Random random) {
 		logger.info("[GET] " + pattern);
 
-		// Get all the triples that match the pattern
+		List<Value> values = new ArrayList<Value>(k);
 		Value[] quad = { pattern.getSubject(), pattern.getPredicate(), pattern.getObject(), null };
-		ArrayList<Value> t = null;
+
+		// Position of the value for the sought variable (assuming there is
+		// only one)
+		int position;
+		if (pattern.getSubject() == null)
+			position = 0;
+		else if (pattern.getPredicate() == null)
+			position = 1;
+		else if (pattern.getObject() == null)
+			position = 2;
+		else
+			return values;
+
+		// A single draw only needs a single result
+		if (k == 1) {
+			ArrayList<Value> t = null;
+			try {
+				t = sol.util.getSingleResult(quad, random);
+			} catch (Exception e) {
+				logger.error("Error in datalayer !");
+				e.printStackTrace();
+			}
+			if (t != null)
+				values.add(t.get(position));
+			return values;
+		}
+
+		// Otherwise draw the values while going over the matching triples
+		// once, without indexing into them (the client only hands out
+		// complete lists of results)
+		ArrayList<ArrayList<Value>> results = null;
 		try {
-			t = sol.util.getSingleResult(quad, Randomizer.instance());
+			results = sol.util.getResults(quad);
 		} catch (Exception e) {
 			logger.error("Error in datalayer !");
 			e.printStackTrace();
 		}
+		if (results == null)
+			return values;
+		Reservoir<Value> reservoir = new Reservoir<Value>(k, random);
+		for (ArrayList<Value> result : results)
+			reservoir.offer(result.get(position));
+		values.addAll(reservoir.getSample());
 
-		// In case there is no result, return null
-		if (t == null)
-			return null;
+		return values;
+	}
 
-		// Return the value for the sought variable (assuming there is only
-		// one)
-		if (pattern.getSubject() == null)
-			return t.get(0);
-		else if (pattern.getPredicate() == null)
-			return t.get(1);
-		else if (pattern.getObject() == null)
-			return t.get(2);
-		else
-			return null;
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.DataLayer#isValid(java.util.List)
+	 */
+	public BitSet isValid(List<Triple> patterns) {
+		BitSet result = new BitSet(patterns.size());
+		for (int i = 0; i < patterns.size(); i++)
+			if (isValid(patterns.get(i)))
+				result.set(i);
+		return result;
 	}
 
 	/*
@@ -1,7 +1,18 @@
 package nl.erdf.datalayer.hbase;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
 
 import nl.erdf.datalayer.DataLayer;
 import nl.erdf.model.Triple;
@@ -13,6 +24,7 @@ import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HBaseAdmin;
 import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Increment;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -34,6 +46,23 @@ import org.slf4j.LoggerFactory;
  * 
  * All tables have a single family, "a" and a single value "v".
  * 
+ * In bulk load mode the statements are buffered and written by batches. The
+ * counters are incremented once per key and batch, by the number of values
+ * added for that key, and the rows of the data tables are numbered from the
+ * value the counters had before the increment. A batch that could not be
+ * fully written is finished by the next flush, the counters that were
+ * already incremented are not incremented again.
+ * 
+ * The counts are kept in a bounded cache, so a look-up only costs one call to
+ * the data table once the count of its key is known. The counts do not change
+ * after the load, the entries updated by this client are dropped from the
+ * cache.
+ * 
+ * Optionally, the resources are replaced in the row keys by identifiers of 8
+ * bytes taken from a {@link TermDictionary}. The values stay the serialised
+ * resources, so reading them does not need the dictionary. A data set keeps
+ * the encoding it was created with.
+ * 
  * @author spyros
  * 
  */
@@ -41,12 +70,53 @@ public class SpyrosHBaseDataLayer implements DataLayer {
 	// Logger
 	protected static Logger logger = LoggerFactory.getLogger(SpyrosHBaseDataLayer.class);
 
-	// Prefixes
-	private static final byte[] COLUMN = "a".getBytes();
-	private static final byte[] COUNT_QUALIFIER = "c".getBytes();
-	private static final byte[] EMPTY_BYTEARRAY = new byte[0];
-	private static final byte[] EXISTENCE_QUALIFIER = "e".getBytes();
-	private static final byte[] RESOURCE_QUALIFIER = "r".getBytes();
+	// Prefixes, shared with the HFile generator
+	static final byte[] COLUMN = "a".getBytes();
+	static final byte[] COUNT_QUALIFIER = "c".getBytes();
+	static final byte[] EMPTY_BYTEARRAY = new byte[0];
+	static final byte[] EXISTENCE_QUALIFIER = "e".getBytes();
+	static final byte[] RESOURCE_QUALIFIER = "r".getBytes();
+
+	// Number of statements buffered in bulk load mode before being written
+	private static final int BULK_BATCH_SIZE = 50000;
+
+	// Size of the client side write buffer of the tables in bulk load mode
+	private static final long BULK_WRITE_BUFFER_SIZE = 16 * 1024 * 1024;
+
+	// Maximum number of counts cached for every count table
+	private static final int COUNT_CACHE_SIZE = 100000;
+
+	// A cache of the counts of a table, the least recently used are dropped
+	@SuppressWarnings("serial")
+	private static class CountCache extends LinkedHashMap<ByteBuffer, Long> {
+		final ReentrantLock lock = new ReentrantLock();
+
+		CountCache() {
+			super(16, 0.75f, true);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.LinkedHashMap#removeEldestEntry(java.util.Map.Entry)
+		 */
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Long> eldest) {
+			return size() > COUNT_CACHE_SIZE;
+		}
+	}
+
+	// A batch of statements taken out of the buffer. The counters are not
+	// idempotent, so a batch that failed half way is resumed from where it
+	// stopped: the values which got their positions are not counted again
+	private static class PendingBatch {
+		// Values still waiting for their positions, by data table
+		final Map<HTable, Map<ByteBuffer, List<byte[]>>> unreserved =
+				new LinkedHashMap<HTable, Map<ByteBuffer, List<byte[]>>>();
+
+		// Rows ready to be written, by data table
+		final Map<HTable, List<Put>> rows = new LinkedHashMap<HTable, List<Put>>();
+	}
 
 	// HBase interface
 	private HBaseAdmin admin;
@@ -64,16 +134,47 @@ public class SpyrosHBaseDataLayer implements DataLayer {
 	// All triples table
 	protected HTable spo_data;
 
+	// Cached counts
+	private final CountCache sp_cache = new CountCache();
+	private final CountCache so_cache = new CountCache();
+	private final CountCache po_cache = new CountCache();
+
 	// The name of the schema, used as a suffix for table names
 	protected final String schemaName;
 
+	// Statements waiting to be written, in bulk load mode only
+	private List<Statement> buffer = null;
+
+	// Lock protecting the buffer, held while it is written
+	private final Object bufferLock = new Object();
+
+	// The batch being written, kept until it is fully stored
+	private PendingBatch pending = null;
+
+	// Use identifiers in the row keys
+	private boolean encoded;
+
+	// The identifiers of the resources, if the keys are encoded
+	protected TermDictionary dictionary = null;
+
 	/**
 	 * @param schemaName
 	 * @return
 	 */
 	public static DataLayer getInstance(String schemaName) {
+		return getInstance(schemaName, false);
+	}
+
+	/**
+	 * @param schemaName
+	 * @param encoded
+	 *            use identifiers in the row keys of a new data set. An
+	 *            existing data set keeps its encoding
+	 * @return
+	 */
+	public static DataLayer getInstance(String schemaName, boolean encoded) {
 		try {
-			DataLayer dl = new SpyrosHBaseDataLayer(schemaName);
+			DataLayer dl = new SpyrosHBaseDataLayer(schemaName, encoded);
 			return dl;
 		} catch (IOException e) {
 			return null;
@@ -82,10 +183,12 @@ public class SpyrosHBaseDataLayer implements DataLayer {
 
 	/**
 	 * @param schemaName
+	 * @param encoded
 	 * @throws IOException
 	 */
-	private SpyrosHBaseDataLayer(String schemaName) throws IOException {
+	private SpyrosHBaseDataLayer(String schemaName, boolean encoded) throws IOException {
 		this.schemaName = schemaName;
+		this.encoded = encoded;
 
 		// Get configuration from the path
 		admin = new HBaseAdmin(HBaseConfiguration.create());
@@ -114,6 +217,14 @@ public class SpyrosHBaseDataLayer implements DataLayer {
 
 			disableAndDeleteTable(spo_data);
 
+			if (dictionary != null) {
+				disableAndDeleteTable(dictionary.getTable());
+				dictionary.clearCache();
+			}
+
+			for (CountCache cache : new CountCache[] { sp_cache, so_cache, po_cache })
+				invalidate(cache, null);
+
 			initialiseTables();
 
 		} catch (IOException e) {
@@ -127,9 +238,26 @@ public class SpyrosHBaseDataLayer implements DataLayer {
 	 * @throws IOException
 	 */
 	protected void createTable(String tableName) throws IOException {
+		createTable(admin, tableName, null);
+	}
+
+	/**
+	 * Create a table with the layout of the tables of the data layer
+	 * 
+	 * @param admin
+	 * @param tableName
+	 * @param splitKeys
+	 *            the rows at which the table is split into regions, may be
+	 *            null or empty for a table made of a single region
+	 * @throws IOException
+	 */
+	public static void createTable(HBaseAdmin admin, String tableName, byte[][] splitKeys) throws IOException {
 		HTableDescriptor hTableDescriptor = new HTableDescriptor(tableName);
 		hTableDescriptor.addFamily(new HColumnDescriptor(COLUMN));
-		admin.createTable(hTableDescriptor);
+		if (splitKeys == null || splitKeys.length == 0)
+			admin.createTable(hTableDescriptor);
+		else
+			admin.createTable(hTableDescriptor, splitKeys);
 		logger.info("Created table: " + tableName);
 	}
 
@@ -191,15 +319,121 @@ public class SpyrosHBaseDataLayer implements DataLayer {
 	}
 
 	/**
+	 * @param count_table
+	 * @return the cache of the counts of that table
+	 */
+	private CountCache getCountCache(HTable count_table) {
+		if (count_table == sp_counts)
+			return sp_cache;
+		else if (count_table == so_counts)
+			return so_cache;
+		return po_cache;
+	}
+
+	/**
+	 * Get the count of a key, from the cache if it is there
+	 * 
+	 * @param count_table
+	 * @param key
+	 * @return the count, 0 if the key is unknown
+	 * @throws IOException
+	 */
+	private long getCount(HTable count_table, byte[] key) throws IOException {
+		CountCache cache = getCountCache(count_table);
+		ByteBuffer k = ByteBuffer.wrap(key);
+		cache.lock.lock();
+		try {
+			Long count = cache.get(k);
+			if (count != null)
+				return count.longValue();
+		} finally {
+			cache.lock.unlock();
+		}
+
+		Result r = count_table.get(new Get(key));
+		return store(cache, key, r);
+	}
+
+	/**
+	 * @param cache
+	 * @param key
 	 * @param r
-	 * @return
+	 *            the row of the key in the count table
+	 * @return the count found in the row, 0 if there is none
 	 */
-	private byte[] resourcesToBytes(Value... r) {
+	private long store(CountCache cache, byte[] key, Result r) {
+		byte[] c = (r == null ? null : r.getValue(COLUMN, COUNT_QUALIFIER));
+		long count = (c == null ? 0 : Bytes.toLong(c));
+		cache.lock.lock();
+		try {
+			cache.put(ByteBuffer.wrap(key), Long.valueOf(count));
+		} finally {
+			cache.lock.unlock();
+		}
+		return count;
+	}
+
+	/**
+	 * Drop the count of a key that is being changed
+	 * 
+	 * @param cache
+	 * @param key
+	 *            the key, null to drop everything
+	 */
+	private void invalidate(CountCache cache, byte[] key) {
+		cache.lock.lock();
+		try {
+			if (key == null)
+				cache.clear();
+			else
+				cache.remove(ByteBuffer.wrap(key));
+		} finally {
+			cache.lock.unlock();
+		}
+	}
+
+	/**
+	 * @param r
+	 * @return the key of the resources, null if one of them has no identifier
+	 * @throws IOException
+	 */
+	private byte[] resourcesToBytes(Value... r) throws IOException {
+		return resourcesToBytes(null, r);
+	}
+
+	/**
+	 * @param ids
+	 *            the identifiers already fetched for the resources, null to
+	 *            fetch them
+	 * @param r
+	 * @return the key of the resources, null if one of them has no identifier
+	 * @throws IOException
+	 */
+	private byte[] resourcesToBytes(Map<ByteBuffer, byte[]> ids, Value... r) throws IOException {
+		// Without dictionary the resources are written straight into the key
+		if (dictionary == null) {
+			int size = 0;
+			for (Value resource : r)
+				size += NodeSerializer.size(resource);
+			byte[] ret = new byte[size];
+			int offset = 0;
+			for (Value resource : r)
+				offset = NodeSerializer.write(resource, ret, offset);
+			return ret;
+		}
+
+		// Get all the identifiers with one call
 		byte[][] ba = new byte[r.length][];
-		int count = 0;
+		for (int i = 0; i < ba.length; i++)
+			ba[i] = NodeSerializer.toBytes(r[i]);
+		if (ids == null)
+			ids = dictionary.getIds(Arrays.asList(ba), false);
 
+		int count = 0;
 		for (int i = 0; i < ba.length; i++) {
-			ba[i] = NodeSerializer.toBytes(r[i]);
+			ba[i] = ids.get(ByteBuffer.wrap(ba[i]));
+			if (ba[i] == null)
+				return null;
 			count += ba[i].length;
 		}
 
@@ -212,6 +446,27 @@ public class SpyrosHBaseDataLayer implements DataLayer {
 		return ret;
 	}
 
+	/**
+	 * @param terms
+	 *            serialised resources
+	 * @param create
+	 *            give an identifier to the resources that have none
+	 * @return the parts of the row keys standing for the resources, null for
+	 *         a resource that has no identifier
+	 * @throws IOException
+	 */
+	private byte[][] encode(byte[][] terms, boolean create) throws IOException {
+		if (dictionary == null)
+			return terms;
+
+		// Get all the identifiers with one call
+		Map<ByteBuffer, byte[]> ids = dictionary.getIds(Arrays.asList(terms), create);
+		byte[][] keys = new byte[terms.length][];
+		for (int i = 0; i < terms.length; i++)
+			keys[i] = ids.get(ByteBuffer.wrap(terms[i]));
+		return keys;
+	}
+
 	/**
 	 * @throws IOException
 	 */
@@ -225,6 +480,12 @@ public class SpyrosHBaseDataLayer implements DataLayer {
 				createTable(n);
 		}
 
+		// The keys are encoded if the data set has a dictionary
+		String dictionaryName = TermDictionary.getTableName(schemaName);
+		encoded |= admin.tableExists(dictionaryName);
+		if (encoded && !admin.tableExists(dictionaryName))
+			createTable(dictionaryName);
+
 		// Initialise the tables
 		sp_data = new HTable("sp_data_" + schemaName);
 		po_data = new HTable("po_data_" + schemaName);
@@ -233,6 +494,8 @@ public class SpyrosHBaseDataLayer implements DataLayer {
 		po_counts = new HTable("po_counts_" + schemaName);
 		so_counts = new HTable("so_counts_" + schemaName);
 		spo_data = new HTable("spo_data_" + schemaName);
+		dictionary = (encoded ? new TermDictionary(new HTable(dictionaryName)) : null);
+		configureWriteBuffers();
 
 		logger.info("Tables initialised");
 	}
@@ -264,6 +527,7 @@ public class SpyrosHBaseDataLayer implements DataLayer {
 	protected void insert(byte[] key, HTable data_table, HTable count_table, byte[] value) throws IOException {
 		// Minus one because it returns post-increment
 		long c = count_table.incrementColumnValue(key, COLUMN, COUNT_QUALIFIER, 1, true) - 1;
+		invalidate(getCountCache(count_table), key);
 		if (c >= Long.MAX_VALUE) {
 			logger.error("Too many values for key " + Arrays.toString(key) + " for table " + count_table);
 		}
@@ -282,23 +546,63 @@ public class SpyrosHBaseDataLayer implements DataLayer {
 	}
 
 	/**
-	 * Converts a query pattern to a byte array. FIXME: optimise: reduce object
-	 * allocations
+	 * Converts a query pattern to a byte array. The callers compute it once per
+	 * look-up and use it for both the count and the data tables
 	 * 
 	 * @param pattern
-	 * @return
+	 * @return the key, null if nothing can match the pattern
+	 * @throws IOException
+	 */
+	protected byte[] queryPatternToByteArray(Triple pattern) throws IOException {
+		return queryPatternToByteArray(pattern, null);
+	}
+
+	/**
+	 * @param pattern
+	 * @param ids
+	 *            the identifiers already fetched for the resources, null to
+	 *            fetch them
+	 * @return the key, null if nothing can match the pattern
+	 * @throws IOException
 	 */
-	protected byte[] queryPatternToByteArray(Triple pattern) {
+	private byte[] queryPatternToByteArray(Triple pattern, Map<ByteBuffer, byte[]> ids) throws IOException {
 		if (pattern.getSubject() == null)
-			return resourcesToBytes(pattern.getPredicate(), pattern.getObject());
+			return resourcesToBytes(ids, pattern.getPredicate(), pattern.getObject());
 		else if (pattern.getPredicate() == null)
-			return resourcesToBytes(pattern.getSubject(), pattern.getObject());
+			return resourcesToBytes(ids, pattern.getSubject(), pattern.getObject());
 		else if (pattern.getObject() == null)
-			return resourcesToBytes(pattern.getSubject(), pattern.getPredicate());
+			return resourcesToBytes(ids, pattern.getSubject(), pattern.getPredicate());
 		else
 			throw new IllegalArgumentException("Query pattern has no wildcards: " + pattern);
 	}
 
+	/**
+	 * Get the identifiers of all the resources of some triples with one call
+	 * 
+	 * @param triples
+	 * @return the identifiers, null if the keys are not encoded or if they
+	 *         could not be fetched
+	 */
+	private Map<ByteBuffer, byte[]> getIds(List<Triple> triples) {
+		if (dictionary == null)
+			return null;
+
+		List<byte[]> terms = new ArrayList<byte[]>(3 * triples.size());
+		for (Triple triple : triples) {
+			if (triple.getNumberNulls() > 1)
+				continue;
+			for (Value value : new Value[] { triple.getSubject(), triple.getPredicate(), triple.getObject() })
+				if (value != null)
+					terms.add(NodeSerializer.toBytes(value));
+		}
+		try {
+			return dictionary.getIds(terms, false);
+		} catch (IOException e) {
+			logger.error("Could not get the identifiers of " + terms.size() + " resources", e);
+			return null;
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -307,19 +611,13 @@ public class SpyrosHBaseDataLayer implements DataLayer {
 	 * .Triple)
 	 */
 	public long getNumberOfResources(Triple queryPattern) {
-		HTable t = getCountTable(queryPattern);
-
-		Get g = new Get(queryPatternToByteArray(queryPattern));
 		try {
-			Result r = t.get(g);
-			byte[] c = r.getValue(COLUMN, COUNT_QUALIFIER);
-			if (c == null)
+			byte[] key = queryPatternToByteArray(queryPattern);
+			if (key == null)
 				return 0;
-			else {
-				long ret = Bytes.toLong(c);
-				assert ret > 0 : ret;
-				return ret;
-			}
+			long ret = getCount(getCountTable(queryPattern), key);
+			assert ret >= 0 : ret;
+			return ret;
 		} catch (IOException e) {
 			logger.error("Could not get counts", e);
 			return -1;
@@ -334,8 +632,10 @@ public class SpyrosHBaseDataLayer implements DataLayer {
 	public boolean isValid(Triple triple) {
 		try {
 			if (triple.getNumberNulls() == 0) {
-				Get g = new Get(resourcesToBytes(triple.getSubject(), triple.getPredicate(), triple.getObject()));
-				Result res = spo_data.get(g);
+				byte[] key = resourcesToBytes(triple.getSubject(), triple.getPredicate(), triple.getObject());
+				if (key == null)
+					return false;
+				Result res = spo_data.get(new Get(key));
 				return !res.isEmpty();
 			} else if (triple.getNumberNulls() == 1) {
 				return (getResource(triple) != null);
@@ -349,6 +649,90 @@ public class SpyrosHBaseDataLayer implements DataLayer {
 		return false;
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.DataLayer#isValid(java.util.List)
+	 */
+	public BitSet isValid(List<Triple> triples) {
+		BitSet valid = new BitSet(triples.size());
+
+		// Group the look ups per table. A fully instantiated triple is checked
+		// against the data and a partial one against the counters
+		HTable[] tables = { spo_data, sp_counts, so_counts, po_counts };
+		List<List<Get>> gets = new ArrayList<List<Get>>();
+		List<List<Integer>> positions = new ArrayList<List<Integer>>();
+		for (int i = 0; i < tables.length; i++) {
+			gets.add(new ArrayList<Get>());
+			positions.add(new ArrayList<Integer>());
+		}
+		Map<ByteBuffer, byte[]> ids = getIds(triples);
+		for (int index = 0; index < triples.size(); index++) {
+			Triple triple = triples.get(index);
+			int table;
+			byte[] key = null;
+			try {
+				if (triple.getNumberNulls() == 0)
+					key = resourcesToBytes(ids, triple.getSubject(), triple.getPredicate(), triple.getObject());
+				else if (triple.getNumberNulls() == 1)
+					key = queryPatternToByteArray(triple, ids);
+			} catch (IOException e) {
+				logger.error("Could not encode " + triple, e);
+			}
+
+			// In doubt, or if a resource has no identifier, say the triple is
+			// not valid
+			if (key == null)
+				continue;
+
+			if (triple.getNumberNulls() == 0) {
+				table = 0;
+			} else {
+				HTable t = getCountTable(triple);
+
+				// Use the count if it is known
+				CountCache cache = getCountCache(t);
+				Long count;
+				cache.lock.lock();
+				try {
+					count = cache.get(ByteBuffer.wrap(key));
+				} finally {
+					cache.lock.unlock();
+				}
+				if (count != null) {
+					if (count.longValue() > 0)
+						valid.set(index);
+					continue;
+				}
+				table = (t == sp_counts ? 1 : (t == so_counts ? 2 : 3));
+			}
+
+			gets.get(table).add(new Get(key));
+			positions.get(table).add(index);
+		}
+
+		// Send one multi-get per table
+		for (int i = 0; i < tables.length; i++) {
+			if (gets.get(i).isEmpty())
+				continue;
+			try {
+				Result[] results = tables[i].get(gets.get(i));
+				for (int j = 0; j < results.length; j++) {
+					if (results[j] != null && !results[j].isEmpty())
+						valid.set(positions.get(i).get(j));
+
+					// Remember the counts
+					if (i > 0)
+						store(getCountCache(tables[i]), gets.get(i).get(j).getRow(), results[j]);
+				}
+			} catch (IOException e) {
+				logger.error("Could not check existence for " + gets.get(i).size() + " triples", e);
+			}
+		}
+
+		return valid;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -356,6 +740,9 @@ public class SpyrosHBaseDataLayer implements DataLayer {
 	 */
 	public void shutdown() {
 		try {
+			// Write what is still buffered
+			flush();
+
 			sp_data.close();
 			po_data.close();
 			so_data.close();
@@ -365,6 +752,9 @@ public class SpyrosHBaseDataLayer implements DataLayer {
 			so_counts.close();
 
 			spo_data.close();
+
+			if (dictionary != null)
+				dictionary.getTable().close();
 		} catch (IOException e) {
 			logger.error("could not close tables", e);
 			throw new IllegalStateException(e);
@@ -393,44 +783,55 @@ public class SpyrosHBaseDataLayer implements DataLayer {
 	public Value getResource(Triple pattern) {
 		// logger.info("[GET] " + pattern.toString());
 
+		List<Value> values = sample(pattern, 1, Randomizer.instance());
+		return (values.isEmpty() ? null : values.get(0));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.DataLayer#sample(nl.erdf.model.Triple, int,
+	 * java.util.Random)
+	 */
+	public List<Value> sample(Triple pattern, int k, Random random) {
+		List<Value> values = new ArrayList<Value>(k);
+
 		if (pattern.getNumberNulls() != 1)
-			return null;
+			return values;
 
 		try {
+			// The count usually comes from the cache, leaving only one call
 			byte[] query = queryPatternToByteArray(pattern);
+			if (query == null)
+				return values; // Some resource is not known
+			long numberOfResources = getCount(getCountTable(pattern), query);
+			if (numberOfResources <= 0)
+				return values; // Nothing matches this pattern
 
-			long numberOfResources = getNumberOfResources(pattern);
-			if (numberOfResources == 0)
-				return null; // Nothing matches this pattern
+			// Draw all the indexes first and fetch them with a single call
+			List<Get> gets = new ArrayList<Get>(k);
+			for (int i = 0; i < k; i++) {
+				long index = random.nextInt((int) numberOfResources);
 
-			// FIXME: optimize: reuse computation
-			long index = Randomizer.instance().nextInt((int) numberOfResources);
+				byte[] queryWithRandom = new byte[query.length + 8];
+				System.arraycopy(query, 0, queryWithRandom, 0, query.length);
+				Bytes.putLong(queryWithRandom, query.length, index);
 
-			byte[] queryWithRandom = new byte[query.length + 8];
-			System.arraycopy(query, 0, queryWithRandom, 0, query.length);
-			Bytes.putLong(queryWithRandom, query.length, index);
-
-			Get g = new Get(queryWithRandom);
+				gets.add(new Get(queryWithRandom));
+			}
 
 			HTable t = getDataTable(pattern);
 
-			Result r = t.get(g);
-			byte[] c = r.getValue(COLUMN, RESOURCE_QUALIFIER);
-
-			/*
-			 * if (logger.isDebugEnabled()) logger.debug("Getting " +
-			 * Arrays.toString(queryWithRandom) + " from table " +
-			 * t.getTableDescriptor().getNameAsString() + " -> " + (c == null ?
-			 * "null" : Arrays.toString(c)));
-			 */
-
-			if (c != null)
-				return NodeSerializer.fromBytes(c);
+			for (Result r : t.get(gets)) {
+				byte[] c = (r == null ? null : r.getValue(COLUMN, RESOURCE_QUALIFIER));
+				if (c != null)
+					values.add(NodeSerializer.fromBytes(c));
+			}
 		} catch (IOException e) {
 			logger.error("Could not perform scan", e);
 		}
 
-		return null;
+		return values;
 	}
 
 	/*
@@ -439,19 +840,39 @@ public class SpyrosHBaseDataLayer implements DataLayer {
 	 * @see nl.erdf.datalayer.DataLayer#add(nl.erdf.model.Triple)
 	 */
 	public void add(Statement statement) {
+		// Buffer the statement in bulk load mode
+		synchronized (bufferLock) {
+			if (buffer != null) {
+				buffer.add(statement);
+				if (buffer.size() >= BULK_BATCH_SIZE) {
+					try {
+						flush();
+					} catch (IOException e) {
+						// The next flush finishes the batch
+						logger.error("Could not insert a batch of triples", e);
+						throw new IllegalStateException(e);
+					}
+				}
+				return;
+			}
+		}
+
 		try {
 			// if (logger.isDebugEnabled())
 			// logger.debug("Inserting: " + statement);
 
-			// FIXME: Can be made more compact by using resourcesToBytes
 			byte[] s = NodeSerializer.toBytes(statement.getSubject());
 			byte[] p = NodeSerializer.toBytes(statement.getPredicate());
 			byte[] o = NodeSerializer.toBytes(statement.getObject());
+			byte[][] keys = encode(new byte[][] { s, p, o }, true);
+			byte[] sKey = keys[0];
+			byte[] pKey = keys[1];
+			byte[] oKey = keys[2];
 
-			byte[] sp = concat(s, p);
-			byte[] po = concat(p, o);
-			byte[] so = concat(s, o);
-			byte[] spo = concat(s, concat(p, o));
+			byte[] sp = concat(sKey, pKey);
+			byte[] po = concat(pKey, oKey);
+			byte[] so = concat(sKey, oKey);
+			byte[] spo = concat(sKey, concat(pKey, oKey));
 
 			insert(sp, sp_data, sp_counts, o);
 			insert(po, po_data, po_counts, s);
@@ -462,4 +883,235 @@ public class SpyrosHBaseDataLayer implements DataLayer {
 			logger.error("Could not insert triple", e);
 		}
 	}
+
+	/**
+	 * Switch the bulk load mode on or off. In bulk load mode the statements
+	 * are buffered and written by batches, they may not be readable before the
+	 * next call to flush(). Switching the mode off flushes the buffer
+	 * 
+	 * @param enabled
+	 * @throws IOException
+	 */
+	public void setBulkLoad(boolean enabled) throws IOException {
+		synchronized (bufferLock) {
+			if (enabled == (buffer != null))
+				return;
+
+			if (!enabled)
+				flush();
+			buffer = (enabled ? new ArrayList<Statement>(BULK_BATCH_SIZE) : null);
+			configureWriteBuffers();
+		}
+	}
+
+	/**
+	 * In bulk load mode, let the client group the puts sent to a region server
+	 * 
+	 * @throws IOException
+	 */
+	private void configureWriteBuffers() throws IOException {
+		for (HTable table : new HTable[] { sp_data, po_data, so_data, spo_data }) {
+			table.setAutoFlush(buffer == null);
+			if (buffer != null)
+				table.setWriteBufferSize(BULK_WRITE_BUFFER_SIZE);
+		}
+	}
+
+	/**
+	 * Write the statements buffered in bulk load mode. If the batch could not
+	 * be fully written the next call finishes it before writing the new
+	 * statements, without incrementing the counters twice
+	 * 
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		synchronized (bufferLock) {
+			// Finish the batch that failed before
+			if (pending != null) {
+				write(pending);
+				pending = null;
+			}
+
+			if (buffer == null || buffer.isEmpty())
+				return;
+
+			// Once the batch is prepared the statements are part of it
+			pending = prepare(buffer);
+			buffer.clear();
+			write(pending);
+			pending = null;
+		}
+	}
+
+	/**
+	 * @param statements
+	 *            the statements to write
+	 * @return the batch of the statements, nothing is written yet
+	 * @throws IOException
+	 */
+	private PendingBatch prepare(List<Statement> statements) throws IOException {
+		// Serialise every resource only once
+		List<byte[]> terms = new ArrayList<byte[]>(3 * statements.size());
+		for (Statement statement : statements) {
+			terms.add(NodeSerializer.toBytes(statement.getSubject()));
+			terms.add(NodeSerializer.toBytes(statement.getPredicate()));
+			terms.add(NodeSerializer.toBytes(statement.getObject()));
+		}
+
+		// Get all the identifiers needed at once
+		Map<ByteBuffer, byte[]> ids = (dictionary == null ? null : dictionary.getIds(terms, true));
+
+		Map<ByteBuffer, List<byte[]>> sp = new LinkedHashMap<ByteBuffer, List<byte[]>>();
+		Map<ByteBuffer, List<byte[]>> po = new LinkedHashMap<ByteBuffer, List<byte[]>>();
+		Map<ByteBuffer, List<byte[]>> so = new LinkedHashMap<ByteBuffer, List<byte[]>>();
+		List<Put> spo = new ArrayList<Put>(terms.size() / 3);
+		for (int i = 0; i < terms.size(); i += 3) {
+			byte[] s = terms.get(i);
+			byte[] p = terms.get(i + 1);
+			byte[] o = terms.get(i + 2);
+			byte[] sKey = (ids == null ? s : ids.get(ByteBuffer.wrap(s)));
+			byte[] pKey = (ids == null ? p : ids.get(ByteBuffer.wrap(p)));
+			byte[] oKey = (ids == null ? o : ids.get(ByteBuffer.wrap(o)));
+
+			group(sp, concat(sKey, pKey), o);
+			group(po, concat(pKey, oKey), s);
+			group(so, concat(sKey, oKey), p);
+
+			Put put = new Put(concat(sKey, concat(pKey, oKey)));
+			put.add(COLUMN, EXISTENCE_QUALIFIER, EMPTY_BYTEARRAY);
+			spo.add(put);
+		}
+
+		PendingBatch batch = new PendingBatch();
+		batch.unreserved.put(sp_data, sp);
+		batch.unreserved.put(po_data, po);
+		batch.unreserved.put(so_data, so);
+		batch.rows.put(spo_data, spo);
+		return batch;
+	}
+
+	/**
+	 * Reserve the positions of the values and write the rows of a batch. What
+	 * is done is removed from the batch, so it can be called again if it
+	 * fails. Writing the same row twice does no harm
+	 * 
+	 * @param batch
+	 * @throws IOException
+	 */
+	private void write(PendingBatch batch) throws IOException {
+		Iterator<Entry<HTable, Map<ByteBuffer, List<byte[]>>>> groups = batch.unreserved.entrySet().iterator();
+		while (groups.hasNext()) {
+			Entry<HTable, Map<ByteBuffer, List<byte[]>>> entry = groups.next();
+			List<Put> rows = batch.rows.get(entry.getKey());
+			if (rows == null) {
+				rows = new ArrayList<Put>();
+				batch.rows.put(entry.getKey(), rows);
+			}
+			reserve(entry.getValue(), getCountTable(entry.getKey()), rows);
+			groups.remove();
+		}
+
+		Iterator<Entry<HTable, List<Put>>> rows = batch.rows.entrySet().iterator();
+		while (rows.hasNext()) {
+			Entry<HTable, List<Put>> entry = rows.next();
+			entry.getKey().put(entry.getValue());
+			entry.getKey().flushCommits();
+			rows.remove();
+		}
+	}
+
+	/**
+	 * @param data_table
+	 * @return the count table of that data table
+	 */
+	private HTable getCountTable(HTable data_table) {
+		if (data_table == sp_data)
+			return sp_counts;
+		else if (data_table == so_data)
+			return so_counts;
+		return po_counts;
+	}
+
+	/**
+	 * @param groups
+	 *            the values to insert, grouped by key
+	 * @param key
+	 * @param value
+	 */
+	private void group(Map<ByteBuffer, List<byte[]>> groups, byte[] key, byte[] value) {
+		ByteBuffer k = ByteBuffer.wrap(key);
+		List<byte[]> values = groups.get(k);
+		if (values == null) {
+			values = new ArrayList<byte[]>(1);
+			groups.put(k, values);
+		}
+		values.add(value);
+	}
+
+	/**
+	 * Batch version of insert(), the counter of every key is incremented only
+	 * once by the number of values and all the counters are sent together.
+	 * The keys whose counter was incremented are removed from the groups and
+	 * their rows added to the list, even if some other counters failed
+	 * 
+	 * @param groups
+	 *            the values to insert, grouped by key
+	 * @param count_table
+	 * @param rows
+	 *            receives the rows to write in the data table
+	 * @throws IOException
+	 *             if some counters could not be incremented
+	 */
+	protected void reserve(Map<ByteBuffer, List<byte[]>> groups, HTable count_table, List<Put> rows)
+			throws IOException {
+		// Reserve a range of positions for every key
+		List<Increment> increments = new ArrayList<Increment>(groups.size());
+		for (Entry<ByteBuffer, List<byte[]>> entry : groups.entrySet()) {
+			Increment increment = new Increment(entry.getKey().array());
+			increment.addColumn(COLUMN, COUNT_QUALIFIER, entry.getValue().size());
+			increments.add(increment);
+		}
+		Object[] results = new Object[increments.size()];
+		IOException failure = null;
+		try {
+			count_table.batch(increments, results);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failure = new InterruptedIOException("Interrupted while incrementing " + increments.size() + " counters");
+		} catch (IOException e) {
+			failure = e;
+		}
+
+		// Number the values of the keys whose counter was incremented
+		Iterator<Entry<ByteBuffer, List<byte[]>>> entries = groups.entrySet().iterator();
+		int i = 0;
+		while (entries.hasNext()) {
+			Entry<ByteBuffer, List<byte[]>> entry = entries.next();
+			Object result = results[i++];
+			if (!(result instanceof Result))
+				continue;
+			byte[] key = entry.getKey().array();
+			List<byte[]> values = entry.getValue();
+
+			// The increment returns the end of the range
+			long c = Bytes.toLong(((Result) result).getValue(COLUMN, COUNT_QUALIFIER)) - values.size();
+			invalidate(getCountCache(count_table), key);
+
+			for (byte[] value : values) {
+				byte[] nKey = new byte[key.length + 8];
+				System.arraycopy(key, 0, nKey, 0, key.length);
+				Bytes.putLong(nKey, key.length, c++);
+
+				Put put = new Put(nKey);
+				put.add(COLUMN, RESOURCE_QUALIFIER, value);
+				rows.add(put);
+			}
+			entries.remove();
+		}
+
+		if (failure != null)
+			throw failure;
+		if (!groups.isEmpty())
+			throw new IOException("Could not increment " + groups.size() + " counters");
+	}
 }
@@ -0,0 +1,338 @@
+/**
+ * 
+ */
+package nl.erdf.datalayer.hbase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * A dictionary giving a fixed size identifier to every serialised resource.
+ * The identifiers replace the resources in the row keys of the tables of a
+ * {@link SpyrosHBaseDataLayer}, which makes them much shorter than the URIs
+ * they stand for.
+ * 
+ * The dictionary is stored in a single table, the rows are the serialised
+ * resources and the values their identifier. Every identifier also has a row,
+ * made of a prefix and the identifier, holding its resource. It is written
+ * before the identifier is given. The last identifier given is kept in a
+ * counter row. The resources start with their type, so they sort before the
+ * rows of the identifiers and the counter comes last. The identifiers start at 1. Two client side caches keep the
+ * identifiers and the resources most recently used
+ * 
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ */
+public class TermDictionary {
+	// Qualifier of the identifiers
+	static final byte[] ID_QUALIFIER = "i".getBytes();
+
+	// Qualifier of the resources, in the rows of the identifiers
+	static final byte[] TERM_QUALIFIER = "t".getBytes();
+
+	// Prefix of the rows of the identifiers
+	static final byte ID_ROW_PREFIX = (byte) 0xfe;
+
+	// Row of the counter of identifiers
+	static final byte[] COUNTER_ROW = { (byte) 0xff };
+
+	// Size of an identifier
+	public static final int ID_SIZE = 8;
+
+	// Maximum number of identifiers, and of resources, cached
+	private static final int CACHE_SIZE = 500000;
+
+	// The entries most recently used
+	@SuppressWarnings("serial")
+	private static class LruCache extends LinkedHashMap<ByteBuffer, byte[]> {
+		final ReentrantLock lock = new ReentrantLock();
+
+		LruCache() {
+			super(16, 0.75f, true);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.LinkedHashMap#removeEldestEntry(java.util.Map.Entry)
+		 */
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ByteBuffer, byte[]> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	}
+
+	// The table of the dictionary
+	private final HTable table;
+
+	// The identifiers of the resources
+	private final LruCache ids = new LruCache();
+
+	// The resources of the identifiers
+	private final LruCache terms = new LruCache();
+
+	/**
+	 * @param table
+	 *            the table of the dictionary
+	 */
+	public TermDictionary(HTable table) {
+		this.table = table;
+	}
+
+	/**
+	 * @param schemaName
+	 * @return the name of the table of the dictionary of that data set
+	 */
+	public static String getTableName(String schemaName) {
+		return "terms_" + schemaName;
+	}
+
+	/**
+	 * @return the table of the dictionary
+	 */
+	public HTable getTable() {
+		return table;
+	}
+
+	/**
+	 * @param id
+	 * @return the row holding the resource of the identifier
+	 */
+	static byte[] getIdRow(byte[] id) {
+		byte[] row = new byte[1 + id.length];
+		row[0] = ID_ROW_PREFIX;
+		System.arraycopy(id, 0, row, 1, id.length);
+		return row;
+	}
+
+	/**
+	 * Forget all the cached identifiers and resources
+	 */
+	public void clearCache() {
+		for (LruCache cache : new LruCache[] { ids, terms }) {
+			cache.lock.lock();
+			try {
+				cache.clear();
+			} finally {
+				cache.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @param term
+	 *            the serialised resource
+	 * @param create
+	 *            give an identifier to the resource if it has none
+	 * @return the identifier, null if the resource is not known and create is
+	 *         false
+	 * @throws IOException
+	 */
+	public byte[] getId(byte[] term, boolean create) throws IOException {
+		byte[] id = lookup(ids, term);
+		if (id != null)
+			return id;
+
+		List<byte[]> terms = new ArrayList<byte[]>(1);
+		terms.add(term);
+		return getIds(terms, create).get(ByteBuffer.wrap(term));
+	}
+
+	/**
+	 * Get the identifiers of several resources with one call for those that
+	 * are not cached
+	 * 
+	 * @param terms
+	 *            the serialised resources
+	 * @param create
+	 *            give an identifier to the resources that have none
+	 * @return the identifiers found, indexed by resource
+	 * @throws IOException
+	 */
+	public Map<ByteBuffer, byte[]> getIds(Collection<byte[]> terms, boolean create) throws IOException {
+		Map<ByteBuffer, byte[]> ids = new HashMap<ByteBuffer, byte[]>();
+
+		// Fetch the missing identifiers
+		List<Get> gets = new ArrayList<Get>();
+		for (byte[] term : terms) {
+			ByteBuffer key = ByteBuffer.wrap(term);
+			if (ids.containsKey(key))
+				continue;
+			byte[] id = lookup(this.ids, term);
+			ids.put(key, id);
+			if (id == null)
+				gets.add(new Get(term));
+		}
+		List<byte[]> unknown = new ArrayList<byte[]>();
+		if (!gets.isEmpty()) {
+			Result[] results = table.get(gets);
+			for (int i = 0; i < results.length; i++) {
+				byte[] term = gets.get(i).getRow();
+				byte[] id = (results[i] == null ? null : results[i].getValue(SpyrosHBaseDataLayer.COLUMN,
+						ID_QUALIFIER));
+				if (id != null)
+					store(term, id);
+				else
+					unknown.add(term);
+				ids.put(ByteBuffer.wrap(term), id);
+			}
+		}
+
+		// Give an identifier to the new resources. A range is reserved with a
+		// single increment and the rows of the identifiers are written first,
+		// so that an identifier is never given without its row. If an other
+		// client gave an identifier to the same resource in between its
+		// identifier is used instead, the row of the unused one does no harm
+		if (create && !unknown.isEmpty()) {
+			long next = table.incrementColumnValue(COUNTER_ROW, SpyrosHBaseDataLayer.COLUMN,
+					SpyrosHBaseDataLayer.COUNT_QUALIFIER, unknown.size(), true) - unknown.size() + 1;
+			List<byte[]> newIds = new ArrayList<byte[]>(unknown.size());
+			List<Put> reverses = new ArrayList<Put>(unknown.size());
+			for (int i = 0; i < unknown.size(); i++) {
+				byte[] id = Bytes.toBytes(next++);
+				Put reverse = new Put(getIdRow(id));
+				reverse.add(SpyrosHBaseDataLayer.COLUMN, TERM_QUALIFIER, unknown.get(i));
+				reverses.add(reverse);
+				newIds.add(id);
+			}
+			table.put(reverses);
+			table.flushCommits();
+
+			List<Get> conflicts = new ArrayList<Get>();
+			for (int i = 0; i < unknown.size(); i++) {
+				byte[] term = unknown.get(i);
+				byte[] id = newIds.get(i);
+				Put put = new Put(term);
+				put.add(SpyrosHBaseDataLayer.COLUMN, ID_QUALIFIER, id);
+				if (table.checkAndPut(term, SpyrosHBaseDataLayer.COLUMN, ID_QUALIFIER, null, put)) {
+					store(term, id);
+					ids.put(ByteBuffer.wrap(term), id);
+				} else {
+					conflicts.add(new Get(term));
+				}
+			}
+
+			// Get the identifiers given by the other clients
+			if (!conflicts.isEmpty()) {
+				Result[] results = table.get(conflicts);
+				for (int i = 0; i < results.length; i++) {
+					byte[] term = conflicts.get(i).getRow();
+					byte[] id = (results[i] == null ? null : results[i].getValue(SpyrosHBaseDataLayer.COLUMN,
+							ID_QUALIFIER));
+					if (id == null)
+						throw new IOException("Lost the identifier of " + Arrays.toString(term));
+					store(term, id);
+					ids.put(ByteBuffer.wrap(term), id);
+				}
+			}
+		}
+
+		return ids;
+	}
+
+	/**
+	 * @param id
+	 *            the identifier
+	 * @return the serialised resource, null if the identifier is not known
+	 * @throws IOException
+	 */
+	public byte[] getTerm(byte[] id) throws IOException {
+		byte[] term = lookup(terms, id);
+		if (term != null)
+			return term;
+
+		List<byte[]> ids = new ArrayList<byte[]>(1);
+		ids.add(id);
+		return getTerms(ids).get(ByteBuffer.wrap(id));
+	}
+
+	/**
+	 * Get the resources of several identifiers with one call for those that
+	 * are not cached
+	 * 
+	 * @param ids
+	 *            the identifiers
+	 * @return the serialised resources found, indexed by identifier
+	 * @throws IOException
+	 */
+	public Map<ByteBuffer, byte[]> getTerms(Collection<byte[]> ids) throws IOException {
+		Map<ByteBuffer, byte[]> terms = new HashMap<ByteBuffer, byte[]>();
+
+		// Fetch the missing resources
+		List<byte[]> missing = new ArrayList<byte[]>();
+		List<Get> gets = new ArrayList<Get>();
+		for (byte[] id : ids) {
+			ByteBuffer key = ByteBuffer.wrap(id);
+			if (terms.containsKey(key))
+				continue;
+			byte[] term = lookup(this.terms, id);
+			terms.put(key, term);
+			if (term == null) {
+				missing.add(id);
+				gets.add(new Get(getIdRow(id)));
+			}
+		}
+		if (!gets.isEmpty()) {
+			Result[] results = table.get(gets);
+			for (int i = 0; i < results.length; i++) {
+				byte[] id = missing.get(i);
+				byte[] term = (results[i] == null ? null : results[i].getValue(SpyrosHBaseDataLayer.COLUMN,
+						TERM_QUALIFIER));
+				if (term != null)
+					store(term, id);
+				terms.put(ByteBuffer.wrap(id), term);
+			}
+		}
+
+		return terms;
+	}
+
+	/**
+	 * @param cache
+	 * @param key
+	 * @return the cached entry, null if it is not cached
+	 */
+	private static byte[] lookup(LruCache cache, byte[] key) {
+		cache.lock.lock();
+		try {
+			return cache.get(ByteBuffer.wrap(key));
+		} finally {
+			cache.lock.unlock();
+		}
+	}
+
+	/**
+	 * Cache both ways of an entry of the dictionary
+	 * 
+	 * @param term
+	 * @param id
+	 */
+	private void store(byte[] term, byte[] id) {
+		ids.lock.lock();
+		try {
+			ids.put(ByteBuffer.wrap(term), id);
+		} finally {
+			ids.lock.unlock();
+		}
+		terms.lock.lock();
+		try {
+			terms.put(ByteBuffer.wrap(id), term);
+		} finally {
+			terms.lock.unlock();
+		}
+	}
+}
@@ -89,6 +89,8 @@ public class DataLoader implements RDFHandler, ParseErrorListener {
 		} else if (line.getOptionValue("c").equals("load")) {
 			// Load
 			logger.info("Load " + line.getOptionValue("i") + " into data set " + line.getOptionValue("d"));
+			if (dataLayer instanceof SpyrosHBaseDataLayer)
+				((SpyrosHBaseDataLayer) dataLayer).setBulkLoad(true);
 			dataLoader.load(line.getOptionValue("i"));
 			dataLayer.shutdown();
 		} else {
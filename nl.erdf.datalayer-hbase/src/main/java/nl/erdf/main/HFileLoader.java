@@ -0,0 +1,247 @@
+/**
+ * 
+ */
+package nl.erdf.main;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import nl.erdf.datalayer.hbase.HFileGenerator;
+import nl.erdf.datalayer.hbase.HFileSink;
+import nl.erdf.datalayer.hbase.SpyrosHBaseDataLayer;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
+import org.openrdf.model.Statement;
+import org.openrdf.rio.ParseErrorListener;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.RDFParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Load a data set by writing the HFiles of its tables and bulk importing them
+ * into HBase, instead of inserting the triples one by one like
+ * {@link DataLoader} does. The triples are sorted on the local disk
+ * 
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ */
+public class HFileLoader implements RDFHandler, ParseErrorListener {
+	// Logger
+	protected static Logger logger = LoggerFactory.getLogger(HFileLoader.class);
+
+	// Default amount of memory used to sort the triples, in MB
+	private static final String DEFAULT_MEMORY = "512";
+
+	// Generator of the content of the tables
+	private final HFileGenerator generator;
+
+	// Number of triples loaded
+	private long total = 0;
+
+	/**
+	 * @param generator
+	 */
+	public HFileLoader(HFileGenerator generator) {
+		this.generator = generator;
+	}
+
+	/**
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		// Compose the options
+		Options options = new Options();
+		options.addOption("i", "input", true, "data input file (data.nt.bz2)");
+		options.addOption("d", "dataset", true, "data set name");
+		options.addOption("o", "output", true, "directory where to write the HFiles");
+		options.addOption("t", "tmp", true, "local directory used to sort the triples");
+		options.addOption("m", "memory", true, "memory used to sort the triples, in MB (" + DEFAULT_MEMORY + ")");
+		options.addOption("l", "load", false, "bulk import the HFiles into HBase once written");
+		options.addOption("e", "encode", false, "use identifiers for the resources in the row keys");
+		options.addOption("h", "help", false, "print help message");
+
+		// Parse the command line
+		CommandLineParser parser = new PosixParser();
+		CommandLine line = null;
+		try {
+			line = parser.parse(options, args);
+		} catch (ParseException e) {
+			printHelpAndExit(options, -1);
+		}
+
+		// Handle request for help
+		if (line.hasOption("h"))
+			printHelpAndExit(options, 0);
+
+		// Handle miss-use
+		if (!line.hasOption("i") || !line.hasOption("d") || !line.hasOption("o"))
+			printHelpAndExit(options, -1);
+
+		String dataset = line.getOptionValue("d");
+		boolean encoded = line.hasOption("e");
+		File tmp = new File(line.getOptionValue("t", System.getProperty("java.io.tmpdir")));
+		long memory = Long.parseLong(line.getOptionValue("m", DEFAULT_MEMORY)) * 1024L * 1024L;
+		Configuration conf = HBaseConfiguration.create();
+		Path output = new Path(line.getOptionValue("o"));
+
+		// Sort the triples and write the files, stop if the input could not
+		// be read entirely
+		HFileGenerator generator = new HFileGenerator(dataset, tmp, memory, encoded);
+		HFileLoader loader = new HFileLoader(generator);
+		try {
+			loader.load(line.getOptionValue("i"));
+		} catch (Exception e) {
+			logger.error("Could not read " + line.getOptionValue("i"), e);
+			System.exit(1);
+		}
+		logger.info("Write the HFiles into " + output);
+		HFileSink sink = new HFileSink(conf, output, HFileSink.DEFAULT_MAX_FILE_SIZE);
+		generator.generate(sink);
+
+		// Import them
+		if (line.hasOption("l")) {
+			// Create the new tables split along the files, so that every file
+			// goes in its own region, then let the data layer check them
+			HBaseAdmin admin = new HBaseAdmin(conf);
+			for (String table : HFileGenerator.getTableNames(dataset, encoded)) {
+				if (admin.tableExists(table))
+					logger.info("Import into the existing table " + table);
+				else
+					SpyrosHBaseDataLayer.createTable(admin, table, sink.getSplitKeys(table));
+			}
+			SpyrosHBaseDataLayer.getInstance(dataset, encoded).shutdown();
+
+			LoadIncrementalHFiles importer = new LoadIncrementalHFiles(conf);
+			for (String table : HFileGenerator.getTableNames(dataset, encoded)) {
+				logger.info("Import " + table);
+				importer.doBulkLoad(new Path(output, table), new HTable(conf, table));
+			}
+		}
+	}
+
+	/**
+	 * @param exitCode
+	 */
+	public static void printHelpAndExit(Options options, int exitCode) {
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp(HFileLoader.class.getName(), options);
+		System.exit(exitCode);
+	}
+
+	/**
+	 * @param fileName
+	 * @throws IOException
+	 *             if the file could not be read or the triples could not be
+	 *             sorted
+	 * @throws RDFParseException
+	 *             if the file could not be parsed
+	 * @throws RDFHandlerException
+	 */
+	public void load(String fileName) throws IOException, RDFParseException, RDFHandlerException {
+		logger.info("Start sorting " + fileName);
+		FileInputStream input = new FileInputStream(fileName);
+		RDFParser parser = new NTriplesParser();
+		parser.setRDFHandler(this);
+		parser.setStopAtFirstError(false);
+		parser.setVerifyData(false);
+		parser.setParseErrorListener(this);
+		try {
+			parser.parse(new BZip2CompressorInputStream(input), "http://dbpedia.org");
+		} finally {
+			input.close();
+		}
+		logger.info("End (" + total + " triples)");
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.openrdf.rio.RDFHandler#startRDF()
+	 */
+	public void startRDF() throws RDFHandlerException {
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.openrdf.rio.RDFHandler#endRDF()
+	 */
+	public void endRDF() throws RDFHandlerException {
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.openrdf.rio.RDFHandler#handleNamespace(java.lang.String,
+	 * java.lang.String)
+	 */
+	public void handleNamespace(String prefix, String uri) throws RDFHandlerException {
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.openrdf.rio.RDFHandler#handleStatement(org.openrdf.model.Statement)
+	 */
+	public void handleStatement(Statement st) throws RDFHandlerException {
+		try {
+			generator.add(st);
+		} catch (IOException e) {
+			throw new RDFHandlerException(e);
+		}
+		total++;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.openrdf.rio.RDFHandler#handleComment(java.lang.String)
+	 */
+	public void handleComment(String comment) throws RDFHandlerException {
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.openrdf.rio.ParseErrorListener#warning(java.lang.String, int,
+	 * int)
+	 */
+	public void warning(String msg, int lineNo, int colNo) {
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.openrdf.rio.ParseErrorListener#error(java.lang.String, int, int)
+	 */
+	public void error(String msg, int lineNo, int colNo) {
+		logger.warn("Skip line " + lineNo + ": " + msg);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.openrdf.rio.ParseErrorListener#fatalError(java.lang.String, int,
+	 * int)
+	 */
+	public void fatalError(String msg, int lineNo, int colNo) {
+		logger.error("Line " + lineNo + ": " + msg);
+	}
+}
@@ -0,0 +1,62 @@
+/**
+ * 
+ */
+package nl.erdf.datalayer.hbase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ */
+public class ExternalSorterTest {
+	/**
+	 * Sort enough runs to need several merge passes
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testMultiPassMerge() throws IOException {
+		File directory = File.createTempFile("sorter-", "");
+		directory.delete();
+		directory.mkdir();
+
+		// Runs of about 10 pairs, some pairs are added twice
+		int count = 2000;
+		ExternalSorter sorter = new ExternalSorter(directory, 10 * 72);
+		Random random = new Random(0);
+		for (int i = 0; i < count; i++) {
+			byte[] key = Bytes.toBytes(random.nextInt(count));
+			sorter.add(key, Bytes.toBytes(i % 7));
+			if (i % 10 == 0)
+				sorter.add(key, Bytes.toBytes(i % 7));
+		}
+
+		// The pairs come sorted and only once
+		ExternalSorter.Reader reader = sorter.read();
+		byte[] key = null;
+		byte[] value = null;
+		int read = 0;
+		while (reader.next()) {
+			if (key != null) {
+				int c = Bytes.compareTo(key, reader.getKey());
+				Assert.assertTrue(c < 0 || (c == 0 && Bytes.compareTo(value, reader.getValue()) < 0));
+			}
+			key = reader.getKey();
+			value = reader.getValue();
+			read++;
+		}
+		reader.close();
+		Assert.assertTrue(read > 0 && read <= count);
+
+		// The runs are gone
+		Assert.assertEquals(0, directory.list().length);
+		directory.delete();
+	}
+}
@@ -0,0 +1,189 @@
+/**
+ * 
+ */
+package nl.erdf.datalayer.hbase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+
+/**
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ */
+public class HFileGeneratorTest {
+	protected ValueFactory f = new ValueFactoryImpl();
+
+	// Rows written for every table
+	private final Map<String, List<byte[][]>> tables = new HashMap<String, List<byte[][]>>();
+
+	// Keep the rows in memory instead of writing HFiles
+	private final HFileGenerator.CellSink sink = new HFileGenerator.CellSink() {
+		public HFileGenerator.CellWriter create(String tableName) throws IOException {
+			final List<byte[][]> rows = new ArrayList<byte[][]>();
+			tables.put(tableName, rows);
+			return new HFileGenerator.CellWriter() {
+				public void append(byte[] row, byte[] qualifier, byte[] value) throws IOException {
+					rows.add(new byte[][] { row, qualifier, value });
+				}
+
+				public void close() throws IOException {
+				}
+			};
+		}
+	};
+
+	/**
+	 * Sort enough statements to have several runs and check the rows
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testGenerate() throws IOException {
+		// Run with a tiny amount of memory to get many runs
+		HFileGenerator generator = new HFileGenerator("test", new File(System.getProperty("java.io.tmpdir")), 4096);
+
+		Set<Statement> statements = generate(generator);
+
+		// All the tables are there and sorted
+		for (String table : HFileGenerator.getTableNames("test")) {
+			List<byte[][]> rows = tables.get(table);
+			Assert.assertNotNull(table, rows);
+			for (int i = 1; i < rows.size(); i++)
+				Assert.assertTrue(table, Bytes.compareTo(rows.get(i - 1)[0], rows.get(i)[0]) < 0);
+		}
+
+		// No duplicate
+		Assert.assertEquals(statements.size(), tables.get("spo_data_test").size());
+		Assert.assertEquals(statements.size(), tables.get("sp_data_test").size());
+
+		// The counts match the data and the positions go from 0 to count - 1
+		for (String index : new String[] { "sp", "po", "so" }) {
+			Map<ByteBuffer, Long> counts = new HashMap<ByteBuffer, Long>();
+			long total = 0;
+			for (byte[][] row : tables.get(index + "_counts_test")) {
+				counts.put(ByteBuffer.wrap(row[0]), Bytes.toLong(row[2]));
+				total += Bytes.toLong(row[2]);
+			}
+			Assert.assertEquals(statements.size(), total);
+
+			Map<ByteBuffer, Long> positions = new HashMap<ByteBuffer, Long>();
+			for (byte[][] row : tables.get(index + "_data_test")) {
+				byte[] key = new byte[row[0].length - 8];
+				System.arraycopy(row[0], 0, key, 0, key.length);
+				Long expected = positions.get(ByteBuffer.wrap(key));
+				expected = (expected == null ? 0 : expected);
+				Assert.assertEquals(expected.longValue(), Bytes.toLong(row[0], key.length));
+				Assert.assertTrue(expected < counts.get(ByteBuffer.wrap(key)));
+				positions.put(ByteBuffer.wrap(key), expected + 1);
+			}
+		}
+
+		// The objects of the first subject and the first predicate
+		byte[] key = Bytes.add(NodeSerializer.toBytes(f.createURI("http://example.org/s0")),
+				NodeSerializer.toBytes(f.createURI("http://example.org/p1")));
+		checkObjects(key);
+	}
+
+	/**
+	 * Same with identifiers in the keys
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testGenerateEncoded() throws IOException {
+		HFileGenerator generator = new HFileGenerator("test", new File(System.getProperty("java.io.tmpdir")), 4096,
+				true);
+		Set<Statement> statements = generate(generator);
+
+		// All the tables are there and sorted
+		for (String table : HFileGenerator.getTableNames("test", true)) {
+			List<byte[][]> rows = tables.get(table);
+			Assert.assertNotNull(table, rows);
+			for (int i = 1; i < rows.size(); i++)
+				Assert.assertTrue(table, Bytes.compareTo(rows.get(i - 1)[0], rows.get(i)[0]) < 0);
+		}
+		Assert.assertEquals(statements.size(), tables.get("spo_data_test").size());
+
+		// The identifiers go from 1 to the value of the counter, the last row.
+		// The rows of the identifiers give their resource back
+		Map<Value, byte[]> ids = new HashMap<Value, byte[]>();
+		List<byte[][]> dictionary = tables.get("terms_test");
+		int count = (dictionary.size() - 1) / 2;
+		for (int i = 0; i < count; i++) {
+			Assert.assertEquals(i + 1, Bytes.toLong(dictionary.get(i)[2]));
+			ids.put(NodeSerializer.fromBytes(dictionary.get(i)[0]), dictionary.get(i)[2]);
+			byte[][] reverse = dictionary.get(count + i);
+			Assert.assertTrue(Bytes.compareTo(TermDictionary.getIdRow(dictionary.get(i)[2]), reverse[0]) == 0);
+			Assert.assertTrue(Bytes.compareTo(dictionary.get(i)[0], reverse[2]) == 0);
+		}
+		byte[][] counter = dictionary.get(dictionary.size() - 1);
+		Assert.assertTrue(Bytes.compareTo(TermDictionary.COUNTER_ROW, counter[0]) == 0);
+		Assert.assertEquals(count, Bytes.toLong(counter[2]));
+
+		// The keys are made of identifiers
+		for (byte[][] row : tables.get("sp_data_test"))
+			Assert.assertEquals(2 * TermDictionary.ID_SIZE + 8, row[0].length);
+		for (byte[][] row : tables.get("spo_data_test"))
+			Assert.assertEquals(3 * TermDictionary.ID_SIZE, row[0].length);
+
+		// The objects of the first subject and the first predicate
+		byte[] key = Bytes.add(ids.get(f.createURI("http://example.org/s0")),
+				ids.get(f.createURI("http://example.org/p1")));
+		checkObjects(key);
+	}
+
+	/**
+	 * Add statements to the generator and write the tables. Every subject
+	 * gets several predicates and objects, one statement is added twice
+	 * 
+	 * @param generator
+	 * @return the statements added
+	 * @throws IOException
+	 */
+	private Set<Statement> generate(HFileGenerator generator) throws IOException {
+		URI p1 = f.createURI("http://example.org/p1");
+		URI p2 = f.createURI("http://example.org/p2");
+		Set<Statement> statements = new HashSet<Statement>();
+		for (int i = 0; i < 50; i++) {
+			URI s = f.createURI("http://example.org/s" + i);
+			for (int j = 0; j < 10; j++)
+				statements.add(f.createStatement(s, (j % 2 == 0 ? p1 : p2), f.createLiteral("value " + (i + j))));
+		}
+		for (Statement statement : statements)
+			generator.add(statement);
+		generator.add(statements.iterator().next());
+		generator.generate(sink);
+		return statements;
+	}
+
+	/**
+	 * Check the objects of the first subject and the first predicate
+	 * 
+	 * @param key
+	 *            the key of that subject and predicate
+	 */
+	private void checkObjects(byte[] key) {
+		Set<Value> objects = new HashSet<Value>();
+		for (byte[][] row : tables.get("sp_data_test"))
+			if (row[0].length == key.length + 8 && Bytes.compareTo(row[0], 0, key.length, key, 0, key.length) == 0)
+				objects.add(NodeSerializer.fromBytes(row[2]));
+		Assert.assertEquals(5, objects.size());
+		Assert.assertTrue(objects.contains(f.createLiteral("value 0")));
+	}
+}
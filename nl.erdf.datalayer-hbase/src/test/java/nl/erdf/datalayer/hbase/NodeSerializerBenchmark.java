@@ -0,0 +1,131 @@
+/**
+ * 
+ */
+package nl.erdf.datalayer.hbase;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.openrdf.model.Literal;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+
+/**
+ * Compare the time taken to serialise and read back the resources of
+ * {@link NodeSerializerTest} with the serializer and with writeUTF() and
+ * readUTF(), as it was done before
+ * 
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ */
+public class NodeSerializerBenchmark {
+	// Number of rounds over the resources
+	private static final int ROUNDS = 1000000;
+
+	// Something to keep the JIT from dropping the work
+	private static long sink = 0;
+
+	/**
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		ValueFactory f = new ValueFactoryImpl();
+		Value[] values = { f.createURI("http://dbpedia.org/resource/Amsterdam"),
+				f.createLiteral("ceci est un test"), f.createLiteral("ceci est un test", "fr"), f.createLiteral(10),
+				f.createBNode("identifier") };
+
+		// Warm up, then measure
+		for (int i = 0; i < 3; i++) {
+			long writeUTF = time(values, true);
+			long serializer = time(values, false);
+			System.out.println("writeUTF: " + writeUTF + " ms, NodeSerializer: " + serializer + " ms");
+		}
+		System.out.println(sink);
+	}
+
+	/**
+	 * @param values
+	 * @param writeUTF
+	 *            use writeUTF() instead of the serializer
+	 * @return the time taken, in ms
+	 * @throws IOException
+	 */
+	private static long time(Value[] values, boolean writeUTF) throws IOException {
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < ROUNDS; i++) {
+			for (Value value : values) {
+				byte[] bytes = (writeUTF ? toBytesUTF(value) : NodeSerializer.toBytes(value));
+				Value read = (writeUTF ? fromBytesUTF(bytes) : NodeSerializer.fromBytes(bytes));
+				sink += bytes.length + read.stringValue().length();
+			}
+		}
+		return System.currentTimeMillis() - start;
+	}
+
+	/**
+	 * The serialisation as it was done with writeUTF()
+	 * 
+	 * @param resource
+	 * @return
+	 * @throws IOException
+	 */
+	private static byte[] toBytesUTF(Value resource) throws IOException {
+		DataOutputBuffer dob = new DataOutputBuffer(2048);
+		dob.reset();
+		if (resource instanceof URI) {
+			dob.write(NodeSerializer.URI);
+			dob.writeUTF(resource.stringValue());
+		} else if (resource instanceof Literal) {
+			Literal literal = (Literal) resource;
+			if (literal.getDatatype() != null) {
+				dob.write(NodeSerializer.TYPED_LITERAL);
+				dob.writeUTF(literal.getLabel());
+				dob.writeUTF(literal.getDatatype().stringValue());
+			} else if (literal.getLanguage() != null) {
+				dob.write(NodeSerializer.LANG_LITERAL);
+				dob.writeUTF(literal.getLabel());
+				dob.writeUTF(literal.getLanguage());
+			} else {
+				dob.write(NodeSerializer.PLAIN_LITERAL);
+				dob.writeUTF(literal.getLabel());
+			}
+		} else {
+			dob.write(NodeSerializer.BNODE);
+			dob.writeUTF(resource.stringValue());
+		}
+		byte[] ret = new byte[dob.getLength()];
+		System.arraycopy(dob.getData(), 0, ret, 0, dob.getLength());
+		return ret;
+	}
+
+	/**
+	 * The deserialisation as it was done with readUTF()
+	 * 
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	private static Value fromBytesUTF(byte[] in) throws IOException {
+		DataInputBuffer dib = new DataInputBuffer();
+		dib.reset(in, in.length);
+		ValueFactory f = NodeSerializer.f;
+		byte type = dib.readByte();
+		String label = dib.readUTF();
+		switch (type) {
+		case NodeSerializer.BNODE:
+			return f.createBNode(label);
+		case NodeSerializer.PLAIN_LITERAL:
+			return f.createLiteral(label);
+		case NodeSerializer.TYPED_LITERAL:
+			return f.createLiteral(label, f.createURI(dib.readUTF()));
+		case NodeSerializer.LANG_LITERAL:
+			return f.createLiteral(label, dib.readUTF());
+		default:
+			return f.createURI(label);
+		}
+	}
+}
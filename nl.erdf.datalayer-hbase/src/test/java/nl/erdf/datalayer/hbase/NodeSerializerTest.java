@@ -3,11 +3,17 @@
  */
 package nl.erdf.datalayer.hbase;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
 import org.junit.Assert;
 import org.junit.Test;
 import org.openrdf.model.BNode;
 import org.openrdf.model.Literal;
 import org.openrdf.model.URI;
+import org.openrdf.model.Value;
 import org.openrdf.model.ValueFactory;
 import org.openrdf.model.impl.ValueFactoryImpl;
 
@@ -63,4 +69,105 @@ public class NodeSerializerTest {
 		BNode nodeB = (BNode) NodeSerializer.fromBytes(bytesNode);
 		Assert.assertTrue(node.equals(nodeB));
 	}
+
+	/**
+	 * Test strings longer than what writeUTF() accepts
+	 */
+	@Test
+	public void testLongString() {
+		StringBuilder label = new StringBuilder();
+		while (label.length() < 100000)
+			label.append("ceci est un test \u00e9\u4e2d ");
+		Literal literal = f.createLiteral(label.toString(), "fr");
+		byte[] bytes = NodeSerializer.toBytes(literal);
+		Assert.assertTrue(literal.equals(NodeSerializer.fromBytes(bytes)));
+		Assert.assertEquals(bytes.length, NodeSerializer.skip(bytes, 0));
+	}
+
+	/**
+	 * Test characters outside of the basic plane and null characters
+	 */
+	@Test
+	public void testUnicode() {
+		Literal literal = f.createLiteral("\ud834\udd1e clef\u0000", f.createURI("http://example.org/type"));
+		byte[] bytes = NodeSerializer.toBytes(literal);
+		Assert.assertTrue(literal.equals(NodeSerializer.fromBytes(bytes)));
+	}
+
+	/**
+	 * Test that resources put one after the other can be told apart
+	 */
+	@Test
+	public void testSelfDelimiting() {
+		Value[] values = { f.createURI("http://dbpedia.org/resource/Amsterdam"), f.createLiteral(10),
+				f.createBNode("identifier"), f.createLiteral("ceci est un test", "fr") };
+		int size = 0;
+		for (Value value : values)
+			size += NodeSerializer.size(value);
+		byte[] bytes = new byte[size];
+		int offset = 0;
+		for (Value value : values)
+			offset = NodeSerializer.write(value, bytes, offset);
+		Assert.assertEquals(size, offset);
+
+		offset = 0;
+		for (Value value : values) {
+			Assert.assertTrue(value.equals(NodeSerializer.fromBytes(bytes, offset)));
+			offset = NodeSerializer.skip(bytes, offset);
+		}
+		Assert.assertEquals(size, offset);
+	}
+
+	/**
+	 * Test that the resources written with writeUTF() keep the same bytes
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testWriteUTFCompatibility() throws IOException {
+		Literal literal = f.createLiteral("caf\u00e9 \u4e2d \ud834\udd1e\u0000", "fr");
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(buffer);
+		output.write(NodeSerializer.LANG_LITERAL);
+		output.writeUTF(literal.getLabel());
+		output.writeUTF(literal.getLanguage());
+		output.close();
+		Assert.assertTrue(Arrays.equals(buffer.toByteArray(), NodeSerializer.toBytes(literal)));
+	}
+
+	/**
+	 * Test that a label of exactly 65535 bytes, the longest one writeUTF()
+	 * accepts, keeps its two byte length and is read back
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testLongestWriteUTF() throws IOException {
+		StringBuilder label = new StringBuilder("a");
+		while (label.length() < 32768)
+			label.append('\u00e9');
+		Literal literal = f.createLiteral(label.toString(), "fr");
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(buffer);
+		output.write(NodeSerializer.LANG_LITERAL);
+		output.writeUTF(literal.getLabel());
+		output.writeUTF(literal.getLanguage());
+		output.close();
+		byte[] bytes = buffer.toByteArray();
+		Assert.assertEquals(1 + 2 + 65535 + 2 + 2, bytes.length);
+		Assert.assertTrue(Arrays.equals(bytes, NodeSerializer.toBytes(literal)));
+		Assert.assertTrue(literal.equals(NodeSerializer.fromBytes(bytes)));
+		Assert.assertEquals(bytes.length, NodeSerializer.skip(bytes, 0));
+	}
+
+	/**
+	 * Test that the characters outside of the basic plane written in standard
+	 * UTF-8 can still be read
+	 */
+	@Test
+	public void testStandardUTF8() {
+		byte[] bytes = { NodeSerializer.PLAIN_LITERAL, 0, 5, 'a', (byte) 0xf0, (byte) 0x9d, (byte) 0x84, (byte) 0x9e };
+		Assert.assertTrue(f.createLiteral("a\ud834\udd1e").equals(NodeSerializer.fromBytes(bytes)));
+		Assert.assertEquals(bytes.length, NodeSerializer.skip(bytes, 0));
+	}
 }
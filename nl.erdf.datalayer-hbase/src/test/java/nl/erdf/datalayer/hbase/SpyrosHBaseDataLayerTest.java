@@ -79,4 +79,90 @@ public class SpyrosHBaseDataLayerTest {
 		}
 
 	}
+
+	/**
+	 * @throws IOException
+	 */
+	@Test
+	public void testBulkReadWrite() throws IOException {
+		ValueFactory f = new ValueFactoryImpl();
+
+		Random r1 = new Random(0);
+
+		// Write values, sharing the subject and predicate to get several
+		// values per key in a batch
+		((SpyrosHBaseDataLayer) dl).setBulkLoad(true);
+		Resource s = f.createURI("http://" + r1.nextLong());
+		URI p = f.createURI("http://" + r1.nextLong());
+		for (int i = 0; i < count; i++) {
+			Value o = f.createLiteral(r1.nextLong() + "", "no");
+			dl.add(new Triple(s, p, o));
+		}
+		((SpyrosHBaseDataLayer) dl).setBulkLoad(false);
+
+		r1 = new Random(0); // Use the same seed to get the same values
+		r1.nextLong();
+		r1.nextLong();
+
+		// Read values
+		Assert.assertEquals(count, dl.getNumberOfResources(new Triple(s, p, null)));
+		for (int i = 0; i < count; i++) {
+			Value o = f.createLiteral(r1.nextLong() + "", "no");
+
+			Assert.assertTrue(dl.isValid(new Triple(s, p, o)));
+			Assert.assertTrue(dl.getResource(new Triple(null, p, o)).equals(s));
+			Assert.assertTrue(dl.getResource(new Triple(s, null, o)).equals(p));
+		}
+	}
+
+	/**
+	 * The cached counts follow the insertions
+	 */
+	@Test
+	public void testCachedCounts() {
+		ValueFactory f = new ValueFactoryImpl();
+
+		Resource s = f.createURI("http://example.org/s");
+		URI p = f.createURI("http://example.org/p");
+		Triple pattern = new Triple(s, p, null);
+		Assert.assertEquals(0, dl.getNumberOfResources(pattern));
+		Assert.assertFalse(dl.isValid(pattern));
+
+		for (int i = 0; i < count; i++) {
+			dl.add(new Triple(s, p, f.createLiteral("value " + i)));
+			Assert.assertEquals(i + 1, dl.getNumberOfResources(pattern));
+		}
+		Assert.assertTrue(dl.isValid(pattern));
+		Assert.assertEquals(count, dl.sample(pattern, count, new Random(0)).size());
+	}
+
+	/**
+	 * Same as testReadWrite() with identifiers in the keys
+	 */
+	@Test
+	public void testEncodedReadWrite() {
+		DataLayer encoded = SpyrosHBaseDataLayer.getInstance("test_encoded", true);
+		Assert.assertTrue(encoded != null);
+		encoded.clear();
+
+		try {
+			ValueFactory f = new ValueFactoryImpl();
+			Resource s = f.createURI("http://example.org/s");
+			URI p = f.createURI("http://example.org/p");
+			Value o = f.createLiteral("value", "en");
+			encoded.add(new Triple(s, p, o));
+
+			Assert.assertTrue(encoded.isValid(new Triple(s, p, o)));
+			Assert.assertTrue(encoded.getResource(new Triple(s, p, null)).equals(o));
+			Assert.assertTrue(encoded.getResource(new Triple(null, p, o)).equals(s));
+			Assert.assertTrue(encoded.getResource(new Triple(s, null, o)).equals(p));
+
+			// Unknown resources match nothing
+			URI unknown = f.createURI("http://example.org/unknown");
+			Assert.assertFalse(encoded.isValid(new Triple(unknown, p, null)));
+			Assert.assertEquals(0, encoded.getNumberOfResources(new Triple(unknown, p, null)));
+		} finally {
+			encoded.shutdown();
+		}
+	}
 }
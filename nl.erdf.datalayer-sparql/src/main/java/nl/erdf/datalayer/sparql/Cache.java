@@ -1,66 +1,163 @@
 package nl.erdf.datalayer.sparql;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
+import nl.erdf.util.Randomizer;
+
+import org.openrdf.model.Value;
 import org.openrdf.query.algebra.StatementPattern;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * MTF-HashTables based implementation of a cache
- * 
+ * Bounded cache of the results of the SPARQL queries. The size of the cache is
+ * measured in number of values held by the cached sets rather than in number
+ * of sets. New entries first go into a small window and then have to prove
+ * they are asked for more often than the entry they would replace to stay
+ * (W-TinyLFU admission). Reads never lock, the insertions and the evictions
+ * are serialised. Listeners are told about every evicted set, the default one
+ * cancels the pending queries meant to fill the set. An optional persistent
+ * cache is looked up before querying the end points, and the patterns are
+ * only sent to the end points whose source index says they may answer.
  * 
  * @author Christophe Guéret <christophe.gueret@gmail.com>
  * 
- *         TODO replace with http://ehcache.org/downloads/catalog
  */
 public class Cache {
 	/** Logger instance */
 	protected final static Logger logger = LoggerFactory.getLogger(Cache.class);
 
+	/** Default maximum number of values kept */
+	public static final long DEFAULT_MAXIMUM_WEIGHT = 2000000;
+
+	/** Minimum number of entries in the admission window */
+	private static final int MIN_WINDOW_SIZE = 16;
+
+	/** Number of entries looked at to pick a victim */
+	private static final int SAMPLE_SIZE = 8;
+
+	/**
+	 * Receives the sets removed from the cache
+	 */
+	public interface EvictionListener {
+		/**
+		 * @param resources
+		 *            the set evicted
+		 */
+		public void evicted(NodeSet resources);
+	}
+
+	// An entry of the cache
+	private static class Node {
+		final NodeSet resources;
+
+		// Position in the main space, -1 if in the window
+		int index = -1;
+
+		// Last time the entry was read
+		volatile long lastAccess = System.nanoTime();
+
+		// True until the requests to fill the set have been emitted, the
+		// entry can not be evicted before
+		volatile boolean pending = true;
+
+		Node(NodeSet resources) {
+			this.resources = resources;
+		}
+	}
+
 	// The executors for the SPARQL queries
 	private final Collection<EndPointExecutor> executors;
 
 	// The cache content
-	private class Bucket {
-		final ReentrantLock lock = new ReentrantLock();
-		final LinkedList<NodeSet> content = new LinkedList<NodeSet>();
-	}
+	private final ConcurrentHashMap<StatementPattern, Node> content = new ConcurrentHashMap<StatementPattern, Node>();
 
-	private List<Bucket> cache;
+	// Recently inserted entries, oldest first
+	private final ArrayDeque<Node> window = new ArrayDeque<Node>();
 
-	/** Defines the cache size per bucket */
-	private static final int CACHE_SIZE = 4;
+	// Entries admitted in the main space
+	private final List<Node> main = new ArrayList<Node>();
 
-	/** Defines the number of buckets */
-	private static final int NB_BUCKETS = 500000;
+	// Serialises the changes to the window and the main space
+	private final ReentrantLock evictionLock = new ReentrantLock();
+
+	// Popularity of the patterns
+	private final FrequencySketch sketch;
+
+	// Maximum number of values kept
+	private final long maximumWeight;
+
+	// Number of values kept, plus one per entry
+	private final AtomicLong weight = new AtomicLong(0);
+
+	// Answers kept on disk, may be null
+	private PersistentCache persistentCache = null;
+
+	// Listeners for the evictions
+	private final List<EvictionListener> listeners = new CopyOnWriteArrayList<EvictionListener>();
+
+	// Statistics
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	private final AtomicLong evictions = new AtomicLong(0);
+	private final AtomicLong rejections = new AtomicLong(0);
+	private final AtomicLong skippedRequests = new AtomicLong(0);
 
 	/**
 	 * Create a new cache instance
 	 * 
-	 * @param directory
+	 * @param executors
 	 *            the collection of {@link EndPointExecutor} to use
 	 * 
 	 */
 	public Cache(Collection<EndPointExecutor> executors) {
+		this(executors, DEFAULT_MAXIMUM_WEIGHT);
+	}
+
+	/**
+	 * Create a new cache instance
+	 * 
+	 * @param executors
+	 *            the collection of {@link EndPointExecutor} to use
+	 * @param maximumWeight
+	 *            the maximum number of values to keep
+	 */
+	public Cache(Collection<EndPointExecutor> executors, long maximumWeight) {
 		this.executors = executors;
+		this.maximumWeight = maximumWeight;
+		this.sketch = new FrequencySketch((int) Math.max(1024, Math.min(maximumWeight / 8, 1 << 22)));
+	}
 
-		clear();
+	/**
+	 * @param persistentCache
+	 *            the answers kept on disk, null to disable
+	 */
+	public void setPersistentCache(PersistentCache persistentCache) {
+		this.persistentCache = persistentCache;
 	}
 
 	/**
-	 * Returns a bucket for a given hash code
-	 * 
-	 * @param hashCode
-	 * @return the bucket associated to the hash code
+	 * @return the answers kept on disk, may be null
 	 */
-	private Bucket getBucket(StatementPattern pattern) {
-		return cache.get(Math.abs(pattern.hashCode()) % NB_BUCKETS);
+	public PersistentCache getPersistentCache() {
+		return persistentCache;
+	}
+
+	/**
+	 * @param listener
+	 *            a listener to inform about the evictions
+	 */
+	public void addEvictionListener(EvictionListener listener) {
+		listeners.add(listener);
 	}
 
 	/**
@@ -68,73 +165,333 @@ public class Cache {
 	 * @return the object associated to the hasCode
 	 */
 	public NodeSet get(StatementPattern pattern) {
-		// Get the bucket
-		Bucket bucket = getBucket(pattern);
+		sketch.increment(pattern);
 
-		bucket.lock.lock();
+		// Look for the entry
+		Node node = content.get(pattern);
+		if (node != null) {
+			hits.incrementAndGet();
+			node.lastAccess = System.nanoTime();
+			node.resources.touch();
+			return node.resources;
+		}
+
+		// If the content is not in the cache, add it and trigger a request to
+		// fill it
+		List<EndPointExecutor> sources = selectSources(pattern);
+		NodeSet resources = null;
+		evictionLock.lock();
 		try {
-			// Find the entry
-			NodeSet entry = null;
-			Iterator<NodeSet> iterator = bucket.content.iterator();
-			while (iterator.hasNext() && (entry == null)) {
-				NodeSet tmp = iterator.next();
-				if (tmp.getPattern().equals(pattern))
-					entry = tmp;
+			// Some other thread may have been faster
+			node = content.get(pattern);
+			if (node != null) {
+				hits.incrementAndGet();
+				node.lastAccess = System.nanoTime();
+				node.resources.touch();
+				return node.resources;
 			}
+			misses.incrementAndGet();
+
+			// Create the new resource set, it must be ready before the
+			// requests are emitted. With no source at all, the set is made
+			// final right after its creation
+			resources = new NodeSet(pattern);
+			resources.touch();
+			resources.setUpdateTasksCounter(Math.max(1, sources.size()));
+			resources.attachWeightCounter(weight);
+			weight.incrementAndGet();
+			node = new Node(resources);
+			content.put(pattern, node);
+			window.addLast(node);
 
-			// If the content is not in the cache, add it
-			// and trigger a request to fill it. Otherwise,
-			// just move it to the front
-			if (entry == null) {
-				// Create the new resource set
-				entry = new NodeSet(pattern);
+			// Make some room if needed
+			maintain();
+		} finally {
+			evictionLock.unlock();
+		}
 
-				// Emit requests to fill it up
-				emitRequests(entry);
+		// Emit requests to fill it up, the entry can be evicted from then on
+		try {
+			emitRequests(resources, sources);
+		} finally {
+			node.pending = false;
+		}
+
+		return resources;
+	}
+
+	/**
+	 * Look for a set already in the cache, no request is sent if it is not
+	 * there
+	 * 
+	 * @param pattern
+	 * @return the set or null if the pattern is not in the cache
+	 */
+	public NodeSet getIfPresent(StatementPattern pattern) {
+		Node node = content.get(pattern);
+		if (node == null)
+			return null;
+		node.lastAccess = System.nanoTime();
+		return node.resources;
+	}
 
-				// Append the element to the beginning of the list
-				bucket.content.addFirst(entry);
+	/**
+	 * Move the overflow of the window to the main space and evict entries until
+	 * the cache is within its budget. Must be called with the eviction lock
+	 * held
+	 */
+	private void maintain() {
+		// The window keeps about 1% of the entries
+		int windowSize = Math.max(MIN_WINDOW_SIZE, content.size() / 100);
+		while (window.size() > windowSize) {
+			Node candidate = window.pollFirst();
 
-				// If the list is too big, remove the last element
-				if (bucket.content.size() == CACHE_SIZE)
-					bucket.content.removeLast();
+			// No need to choose if there is enough room, nor for an entry
+			// whose requests have not been emitted yet
+			if (weight.get() <= maximumWeight || candidate.pending) {
+				addToMain(candidate);
+				continue;
+			}
 
+			// Only keep the candidate if it is more popular than the victim
+			Node victim = pickVictim();
+			if (victim == null) {
+				addToMain(candidate);
+			} else if (sketch.frequency(candidate.resources.getPattern()) > sketch.frequency(victim.resources
+					.getPattern())) {
+				evict(victim);
+				addToMain(candidate);
 			} else {
-				// Move it to the front
-				bucket.content.remove(entry);
-				bucket.content.addFirst(entry);
+				evict(candidate);
+				rejections.incrementAndGet();
 			}
+		}
 
-			// Return the result
-			return entry;
-		} finally {
-			bucket.lock.unlock();
+		// Enforce the budget, the sets keep growing after their insertion
+		while (weight.get() > maximumWeight) {
+			Node victim = pickVictim();
+			if (victim == null)
+				victim = pollWindow();
+			if (victim == null)
+				return;
+			evict(victim);
 		}
 	}
 
 	/**
+	 * @return the oldest entry of the window whose requests have been
+	 *         emitted, removed from the window, or null if there is none
+	 */
+	private Node pollWindow() {
+		Iterator<Node> nodes = window.iterator();
+		while (nodes.hasNext()) {
+			Node node = nodes.next();
+			if (!node.pending) {
+				nodes.remove();
+				return node;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param node
+	 */
+	private void addToMain(Node node) {
+		node.index = main.size();
+		main.add(node);
+	}
+
+	/**
+	 * Pick the least popular entry out of a sample of the main space. The sets
+	 * still being filled are only picked if nothing else is found, the entries
+	 * whose requests have not been emitted yet are never picked
 	 * 
+	 * @return the victim or null if the sample has no entry to evict
+	 */
+	private Node pickVictim() {
+		if (main.isEmpty())
+			return null;
+
+		Random random = Randomizer.instance();
+		Node victim = null;
+		boolean victimIsFinal = false;
+		int victimFrequency = 0;
+		for (int i = 0; i < SAMPLE_SIZE; i++) {
+			Node node = main.get(random.nextInt(main.size()));
+			if (node.pending)
+				continue;
+			boolean isFinal = node.resources.isFinal();
+			int frequency = sketch.frequency(node.resources.getPattern());
+			boolean isBetter = (victim == null) || (isFinal && !victimIsFinal);
+			if (!isBetter && isFinal == victimIsFinal) {
+				isBetter = (frequency < victimFrequency)
+						|| (frequency == victimFrequency && node.lastAccess < victim.lastAccess);
+			}
+			if (isBetter) {
+				victim = node;
+				victimIsFinal = isFinal;
+				victimFrequency = frequency;
+			}
+		}
+		return victim;
+	}
+
+	/**
+	 * Remove an entry from the cache. Must be called with the eviction lock
+	 * held
+	 * 
+	 * @param node
+	 */
+	private void evict(Node node) {
+		content.remove(node.resources.getPattern(), node);
+
+		// Swap the last entry of the main space into the free slot
+		if (node.index != -1) {
+			Node last = main.remove(main.size() - 1);
+			if (last != node) {
+				main.set(node.index, last);
+				last.index = node.index;
+			}
+			node.index = -1;
+		}
+
+		weight.addAndGet(-(1 + node.resources.detachWeightCounter()));
+		node.resources.setEvicted();
+		evictions.incrementAndGet();
+		for (EvictionListener listener : listeners)
+			listener.evicted(node.resources);
+	}
+
+	/**
+	 * Remove all the entries, the statistics are kept
 	 */
 	public void clear() {
-		// Create the buckets;
-		cache = null;
-		cache = new ArrayList<Bucket>();
-		for (int index = 0; index < NB_BUCKETS; index++)
-			cache.add(new Bucket());
+		evictionLock.lock();
+		try {
+			List<Node> nodes = new ArrayList<Node>(content.values());
+			content.clear();
+			window.clear();
+			main.clear();
+			for (Node node : nodes) {
+				node.resources.detachWeightCounter();
+				node.resources.setEvicted();
+				for (EvictionListener listener : listeners)
+					listener.evicted(node.resources);
+			}
+			weight.set(0);
+			sketch.clear();
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * @param pattern
+	 * @return the end points that may have answers for the pattern
+	 */
+	private List<EndPointExecutor> selectSources(StatementPattern pattern) {
+		List<EndPointExecutor> sources = new ArrayList<EndPointExecutor>(executors.size());
+		for (EndPointExecutor executor : executors) {
+			if (executor.getSourceIndex().canAnswer(pattern))
+				sources.add(executor);
+			else
+				skippedRequests.incrementAndGet();
+		}
+		return sources;
 	}
 
 	/**
 	 * Emits requests to populate a cache entry
 	 * 
 	 * @param resources
+	 * @param sources
+	 *            the end points to ask
 	 */
-	private void emitRequests(NodeSet resources) {
-		// Declare to the resourceSet the number of updating tasks for it
-		resources.setUpdateTasksCounter(executors.size());
+	private void emitRequests(NodeSet resources, List<EndPointExecutor> sources) {
+		if (sources.isEmpty()) {
+			resources.decreaseUpdateTasksCounter();
+			return;
+		}
 
-		// Queue an update task for that end point
-		for (EndPointExecutor executor : executors) {
-			executor.executeCacheUpdateTask(resources);
+		PersistentCache store = persistentCache;
+		for (EndPointExecutor executor : sources) {
+			// Use the answer stored on disk if there is one
+			List<Value> values = null;
+			if (store != null)
+				values = store.get(executor.getEndPoint(), resources.getPattern());
+			if (values != null) {
+				resources.addAll(values);
+				resources.decreaseUpdateTasksCounter();
+				continue;
+			}
+
+			// Don't wait for the end points that keep failing, a disabled one
+			// only gets a query from time to time
+			if (!executor.tryAcquireProbe()) {
+				resources.decreaseUpdateTasksCounter();
+				continue;
+			}
+
+			// Queue an update task for that end point
+			executor.executeCacheUpdateTask(resources, store);
 		}
 	}
+
+	/**
+	 * @return the number of sets in the cache
+	 */
+	public int size() {
+		return content.size();
+	}
+
+	/**
+	 * @return the number of values in the cache, plus one per set
+	 */
+	public long getWeight() {
+		return weight.get();
+	}
+
+	/**
+	 * @return the maximum number of values kept
+	 */
+	public long getMaximumWeight() {
+		return maximumWeight;
+	}
+
+	/**
+	 * @return the number of requests answered by a set already in the cache
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of requests that created a new set
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of sets removed from the cache
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return the number of new sets not admitted in the main space
+	 */
+	public long getRejections() {
+		return rejections.get();
+	}
+
+	/**
+	 * @return the number of requests not sent because the end point was known
+	 *         to have no answer
+	 */
+	public long getSkippedRequests() {
+		return skippedRequests.get();
+	}
 }
@@ -3,34 +3,36 @@
  */
 package nl.erdf.datalayer.sparql;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
-
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 
 import nl.erdf.util.Converter;
+import nl.erdf.util.PriorityTaskQueue;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
 import org.openrdf.model.BNode;
+import org.openrdf.model.URI;
 import org.openrdf.model.Value;
-import org.openrdf.model.ValueFactory;
-import org.openrdf.model.impl.ValueFactoryImpl;
 import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.Var;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xml.sax.Attributes;
-import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * @author tolgam
  */
-public class CacheUpdateTask implements Runnable {
+public class CacheUpdateTask implements PriorityTaskQueue.Task {
 	// Logging stuff
 	protected final static Logger logger = LoggerFactory.getLogger(CacheUpdateTask.class);
 
@@ -40,12 +42,43 @@ public class CacheUpdateTask implements Runnable {
 	// The end point to query
 	private final EndPointExecutor endpoint;
 
+	// Where to store the complete answer, may be null
+	private final PersistentCache persistentCache;
+
+	// All the values found, if they have to be stored
+	private final List<Value> found;
+
 	// Is it a cancelled job?
-	private boolean isCancelled = false;
+	private volatile boolean isCancelled = false;
 
 	// Delimiter to source the blank nodes
 	protected final static String BNODE_SRC_MARKER = "####";
 
+	// Maximum number of results fetched for one pattern
+	private final static int MAX_RESULTS = 50000;
+
+	// Longest query sent with a GET, longer ones are posted
+	private final static int MAX_GET_QUERY_LENGTH = 2000;
+
+	// Weight of a caller blocked on the result set in the priority of a task
+	protected final static double WAITER_WEIGHT = 10;
+
+	// Time for the priority of a task to lose one point, in milliseconds
+	private final static double AGE_SCALE = 10000;
+
+	// Name of the variable bound to the keys of merged tasks
+	private final static String KEY = "key";
+
+	// Position of the resource that varies between merged tasks, -2 if not
+	// computed yet and -1 if the task can not be merged
+	private int keyPosition = -2;
+
+	// What the tasks that can be merged with this one have in common
+	private String shape = null;
+
+	// When the task was created
+	private final long creationTime = System.currentTimeMillis();
+
 	/**
 	 * @param endpoint
 	 *            The endpoint to query
@@ -53,262 +86,416 @@ public class CacheUpdateTask implements Runnable {
 	 *            The result to update
 	 */
 	public CacheUpdateTask(EndPointExecutor endpoint, NodeSet resourceSet) {
+		this(endpoint, resourceSet, null);
+	}
+
+	/**
+	 * @param endpoint
+	 *            The endpoint to query
+	 * @param resourceSet
+	 *            The result to update
+	 * @param persistentCache
+	 *            Where to store the complete answer, may be null
+	 */
+	public CacheUpdateTask(EndPointExecutor endpoint, NodeSet resourceSet, PersistentCache persistentCache) {
 		this.endpoint = endpoint;
 		this.resourceSet = resourceSet;
+		this.persistentCache = persistentCache;
+		this.found = (persistentCache == null ? null : new ArrayList<Value>());
 	}
 
 	/**
-	 * Parse the result from a SPARQL query
+	 * Thrown when the end point does not take a query with VALUES in it
 	 */
-	private class Handler extends DefaultHandler {
-		// Lock system
-		private boolean isFinished = false;
-		private ReentrantLock finishLock = new ReentrantLock();
-		private Condition finished = finishLock.newCondition();
-
-		// The end point providing the results
-		private final EndPointExecutor source;
-
-		// The set of resources parsed
-		private final NodeSet resources;
-
-		// Tracks how many resources have been parsed
-		private int total = 0;
-
-		// Values factory
-		ValueFactory factory = ValueFactoryImpl.getInstance();
-
-		private boolean inBind = false;
-		private Value node = null;
-		private String literType = null;
-		private String literLang = null;
-		private StringBuffer buffer = new StringBuffer();
+	@SuppressWarnings("serial")
+	private static class ValuesRejectedException extends Exception {
+	}
 
+	/**
+	 * Parses the answer to one page of a query
+	 */
+	private interface PageParser {
 		/**
-		 * @param source
-		 *            the address of the sparql endpoint
-		 * @param resources
+		 * @param input
+		 *            the answer of the end point
+		 * @param contentType
+		 *            the content type announced by the end point, may be null
+		 * @return the number of results parsed
+		 * @throws Exception
 		 */
-		public Handler(EndPointExecutor source, NodeSet resources) {
-			this.resources = resources;
-			this.source = source;
-		}
-
-		/*
-		 * (non-Javadoc)
-		 * 
-		 * @see
-		 * org.xml.sax.helpers.DefaultHandler#startElement(java.lang.String,
-		 * java.lang.String, java.lang.String, org.xml.sax.Attributes)
-		 */
-		@Override
-		public void startElement(String uri, String localName, String qname, Attributes attr) {
-			if (qname.equals("uri")) {
-				inBind = true;
-			} else if (qname.equals("bnode")) {
-				inBind = true;
-			} else if (qname.equals("literal")) {
-				inBind = true;
-				literType = attr.getValue("datatype");
-				literLang = attr.getValue("xml:lang");
-			}
-		}
+		public int parse(InputStream input, String contentType) throws Exception;
+	}
 
-		/*
-		 * (non-Javadoc)
-		 * 
-		 * @see org.xml.sax.helpers.DefaultHandler#characters(char[], int, int)
-		 */
-		@Override
-		public void characters(char[] ch, int start, int length) {
-			if (!inBind) {
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		List<CacheUpdateTask> group = null;
+		try {
+			// If cancelled, return right away
+			if (isObsolete())
 				return;
-			}
-			String s = new String(ch, start, length);
-			if (s.trim().length() == 0) {
+
+			// Don't query if a blank node not issued by that peer is in use
+			if (!isQueryable())
 				return;
+
+			// Merge the tasks waiting for a similar pattern into one query, if
+			// the end point takes VALUES
+			if (getShape() != null && endpoint.isValuesSupported())
+				group = endpoint.takeSimilarCacheUpdateTasks(this);
+			if (group != null && !group.isEmpty()) {
+				group.add(this);
+				runGroup(group);
+			} else {
+				runSingle();
 			}
-			buffer.append(s);
+		} finally {
+			// logger.info(endpoint.getName() + " " + pattern);
+			resourceSet.decreaseUpdateTasksCounter();
+			if (group != null)
+				for (CacheUpdateTask task : group)
+					if (task != this)
+						task.resourceSet.decreaseUpdateTasksCounter();
 		}
+	}
 
-		/*
-		 * (non-Javadoc)
-		 * 
-		 * @see org.xml.sax.helpers.DefaultHandler#endElement(java.lang.String,
-		 * java.lang.String, java.lang.String)
-		 */
-		@Override
-		public void endElement(String uri, String localName, String qname) {
-			if (qname.equals("result")) {
-				if (node != null) {
-					resources.add(node);
-					total++;
-					node = null;
-				}
-			} else if (qname.equals("uri")) {
-				node = factory.createURI(buffer.toString());
-				buffer.delete(0, buffer.length());
-			} else if (qname.equals("bnode")) {
-				buffer.append(BNODE_SRC_MARKER).append(Integer.toString(source.hashCode()));
-				node = factory.createBNode(buffer.toString());
-				buffer.delete(0, buffer.length());
-			} else if (qname.equals("literal")) {
-				if (literLang != null && literType == null)
-					node = factory.createLiteral(buffer.toString(), literLang);
-				if (literLang == null && literType != null)
-					node = factory.createLiteral(buffer.toString(), factory.createURI(literType));
-				if (literLang == null && literType == null)
-					node = factory.createLiteral(buffer.toString());
-				buffer.delete(0, buffer.length());
+	/**
+	 * @return false if a blank node issued by another end point is used
+	 */
+	private boolean isQueryable() {
+		StatementPattern pattern = resourceSet.getPattern();
+		String srcid = Integer.toString(endpoint.hashCode());
+		if (pattern.getSubjectVar().hasValue())
+			if (pattern.getSubjectVar().getValue() instanceof BNode)
+				if (!pattern.getSubjectVar().getValue().toString().split(BNODE_SRC_MARKER)[1].equals(srcid))
+					return false;
+		if (pattern.getPredicateVar().hasValue())
+			if (pattern.getPredicateVar().getValue() instanceof BNode)
+				if (!pattern.getPredicateVar().getValue().toString().split(BNODE_SRC_MARKER)[1].equals(srcid))
+					return false;
+		if (pattern.getObjectVar().hasValue())
+			if (pattern.getObjectVar().getValue() instanceof BNode)
+				if (!pattern.getObjectVar().getValue().toString().split(BNODE_SRC_MARKER)[1].equals(srcid))
+					return false;
+		return true;
+	}
+
+	/**
+	 * Query the end point for the pattern of this task only
+	 */
+	private void runSingle() {
+		// Generate the query
+		StatementPattern pattern = resourceSet.getPattern();
+		StringBuffer queryBuffer = new StringBuffer();
+		queryBuffer.append("SELECT DISTINCT ?").append(SPARQLDataLayer.RETURN.getName()).append(" WHERE {");
+		queryBuffer.append(Converter.toN3(pattern)).append("} ");
+
+		// The values are added to the set as they are parsed so that the
+		// readers don't wait for the end of the page. The blank nodes are
+		// tagged with their source
+		final String bnodeSuffix = BNODE_SRC_MARKER + Integer.toString(endpoint.hashCode());
+		final ResultsParser.BatchHandler handler = new ResultsParser.BatchHandler() {
+			public void handle(List<Value> values) {
+				publish(values);
 			}
+		};
+		PageParser parser = new PageParser() {
+			public int parse(InputStream input, String contentType) throws Exception {
+				return ResultsParser.getInstance().parse(input, contentType, SPARQLDataLayer.RETURN.getName(),
+						bnodeSuffix, handler);
+			}
+		};
+
+		// Keep the answer for the next runs
+		try {
+			if (fetch(queryBuffer.toString(), parser, false))
+				store();
+		} catch (ValuesRejectedException e) {
+			// There is no VALUES in that query
 		}
+	}
 
-		/*
-		 * (non-Javadoc)
-		 * 
-		 * @see org.xml.sax.helpers.DefaultHandler#endDocument()
-		 */
-		@Override
-		public void endDocument() {
-			finishLock.lock();
-			try {
-				isFinished = true;
-				finished.signalAll();
-			} finally {
-				finishLock.unlock();
-			}
+	/**
+	 * Query the end point for the patterns of several tasks at once. The
+	 * resources that vary from one pattern to the other are bound with VALUES
+	 * and returned along with the results to know which set they go to. If
+	 * the end point does not take VALUES, the tasks are run one by one
+	 * 
+	 * @param group
+	 *            the tasks to merge, all with the same shape
+	 */
+	private void runGroup(List<CacheUpdateTask> group) {
+		// Index the tasks by their key
+		final Map<Value, CacheUpdateTask> tasks = new HashMap<Value, CacheUpdateTask>();
+		StringBuffer keys = new StringBuffer();
+		for (CacheUpdateTask task : group) {
+			Value key = task.getKey();
+			if (tasks.put(key, task) == null)
+				keys.append(" ").append(Converter.toN3(key));
 		}
 
-		/**
-		 * @return the number of items that have been added to the set
-		 * 
-		 */
-		public int waitForCompletion() {
-			// Wait for completion
-			finishLock.lock();
-			try {
-				while (!isFinished)
-					finished.await();
-			} catch (InterruptedException ie) {
-			} finally {
-				finishLock.unlock();
+		// Generate the query, the pattern gets a variable instead of the key
+		StatementPattern pattern = resourceSet.getPattern().clone();
+		Var key = new Var(KEY);
+		if (keyPosition == 0)
+			pattern.setSubjectVar(key);
+		else
+			pattern.setObjectVar(key);
+		StringBuffer queryBuffer = new StringBuffer();
+		queryBuffer.append("SELECT DISTINCT ?").append(KEY).append(" ?").append(SPARQLDataLayer.RETURN.getName());
+		queryBuffer.append(" WHERE { VALUES ?").append(KEY).append(" {").append(keys).append(" } ");
+		queryBuffer.append(Converter.toN3(pattern)).append("} ");
+
+		// Send every run of values to the set of its key
+		final String bnodeSuffix = BNODE_SRC_MARKER + Integer.toString(endpoint.hashCode());
+		final ResultsParser.KeyedBatchHandler handler = new ResultsParser.KeyedBatchHandler() {
+			public void handle(List<Value> keys, List<Value> values) {
+				int from = 0;
+				for (int i = 1; i <= values.size(); i++) {
+					if (i == values.size() || !keys.get(i).equals(keys.get(from))) {
+						CacheUpdateTask task = tasks.get(keys.get(from));
+						if (task != null)
+							task.publish(values.subList(from, i));
+						from = i;
+					}
+				}
+			}
+		};
+		PageParser parser = new PageParser() {
+			public int parse(InputStream input, String contentType) throws Exception {
+				return ResultsParser.getInstance().parse(input, contentType, KEY, SPARQLDataLayer.RETURN.getName(),
+						bnodeSuffix, handler);
 			}
+		};
 
-			// Return the number of resources found
-			return total;
+		// Keep the answers for the next runs
+		try {
+			if (fetch(queryBuffer.toString(), parser, true))
+				for (CacheUpdateTask task : tasks.values())
+					task.store();
+		} catch (ValuesRejectedException e) {
+			for (CacheUpdateTask task : group)
+				if (!task.isObsolete())
+					task.runSingle();
 		}
-
 	}
 
-	/*
-	 * (non-Javadoc)
+	/**
+	 * Send a query page by page, the size of the pages depends on how fast
+	 * the end point answered so far
 	 * 
-	 * @see java.lang.Runnable#run()
+	 * @param query
+	 *            the query, without LIMIT and OFFSET
+	 * @param parser
+	 *            what to do with the answers
+	 * @param usesValues
+	 *            if the query has VALUES in it
+	 * @return true if all the results have been fetched
+	 * @throws ValuesRejectedException
+	 *             if the end point does not take the VALUES of the query, that
+	 *             is not counted as a failure of the end point
 	 */
-	public void run() {
+	private boolean fetch(String query, PageParser parser, boolean usesValues) throws ValuesRejectedException {
+		HttpUriRequest request = null;
 		try {
-			// If cancelled, return right away
-			if (isCancelled)
-				return;
+			boolean isComplete = true;
+			boolean getNextPage = true;
+			int totalResults = 0;
+			long offset = 0;
+
+			// Get current time
+			long start = System.nanoTime();
+
+			while (getNextPage) {
+				// Stop if nobody needs the results anymore
+				if (isObsolete()) {
+					isComplete = false;
+					break;
+				}
 
-			// Get the triple
-			StatementPattern pattern = resourceSet.getPattern();
+				// Assume it will be the last page
+				getNextPage = false;
+
+				// Get the query for this page
+				int limit = endpoint.getPageSize();
+				StringBuffer localQueryBuffer = new StringBuffer(query);
+				localQueryBuffer.append(" LIMIT ").append(limit);
+				localQueryBuffer.append(" OFFSET ").append(offset);
+				String encodedQuery = URLEncoder.encode(localQueryBuffer.toString(), "UTF-8");
+
+				// Record the request
+				endpoint.setRequestsCounter(endpoint.getRequestsCounter() + 1);
+				long pageStart = System.nanoTime();
+
+				// Prepare the query, a GET could be too long for some servers.
+				// The formats that are cheaper to parse come first
+				if (encodedQuery.length() > MAX_GET_QUERY_LENGTH) {
+					HttpPost httppost = new HttpPost(endpoint.getEndPoint().getURI().toString());
+					StringEntity body = new StringEntity("query=" + encodedQuery, "UTF-8");
+					body.setContentType("application/x-www-form-urlencoded");
+					httppost.setEntity(body);
+					request = httppost;
+				} else {
+					request = new HttpGet(endpoint.getEndPoint().getURI() + "?query=" + encodedQuery);
+				}
+				request.setHeader("Accept", ResultsParser.ACCEPT);
+				HttpResponse response;
+				try {
+					response = endpoint.getHttpClient().execute(request);
+				} catch (Exception e) {
+					endpoint.recordPageFailure();
+					throw e;
+				}
+				HttpEntity entity = response.getEntity();
+
+				// The end point is up but did not take the query
+				int status = response.getStatusLine().getStatusCode();
+				if (usesValues && EndPointExecutor.isValuesRejection(status))
+					throw new ValuesRejectedException();
+
+				// The end point is down, overloaded or needs a login
+				if (status >= 400)
+					throw new IOException("HTTP status " + status);
+
+				if (entity != null) {
+					// Parse the results as they arrive
+					String contentType = null;
+					if (entity.getContentType() != null)
+						contentType = entity.getContentType().getValue();
+					InputStream instream = entity.getContent();
+					int total = 0;
+					try {
+						total = parser.parse(instream, contentType);
+					} catch (Exception e) {
+						// An error message instead of the first results
+						if (usesValues && offset == 0)
+							throw new ValuesRejectedException();
+						endpoint.recordPageFailure();
+						throw e;
+					} finally {
+						instream.close();
+					}
 
-			// Don't query if a blank node not issued by that peer is in use
-			String srcid = Integer.toString(endpoint.hashCode());
-			if (pattern.getSubjectVar().hasValue())
-				if (pattern.getSubjectVar().getValue() instanceof BNode)
-					if (!pattern.getSubjectVar().getValue().toString().split(BNODE_SRC_MARKER)[1].equals(srcid))
-						return;
-			if (pattern.getPredicateVar().hasValue())
-				if (pattern.getPredicateVar().getValue() instanceof BNode)
-					if (!pattern.getPredicateVar().getValue().toString().split(BNODE_SRC_MARKER)[1].equals(srcid))
-						return;
-			if (pattern.getObjectVar().hasValue())
-				if (pattern.getObjectVar().getValue() instanceof BNode)
-					if (!pattern.getObjectVar().getValue().toString().split(BNODE_SRC_MARKER)[1].equals(srcid))
-						return;
-
-			HttpGet httpget = null;
-			HttpEntity entity = null;
-			String uri = null;
-
-			// Generate the query
-			StringBuffer queryBuffer = new StringBuffer();
-			queryBuffer.append("SELECT DISTINCT ?").append(SPARQLDataLayer.RETURN.getName()).append(" WHERE {");
-			queryBuffer.append(Converter.toN3(pattern)).append("} ");
-
-			try {
-				boolean getNextPage = true;
-				int totalResults = 0;
-				int pageSize = 100;
-				int limit = 1000;
-				long offset = 0;
-
-				// Get current time
-				long start = System.nanoTime();
-
-				while (getNextPage) {
-					// Assume it will be the last page
-					getNextPage = false;
-
-					// Get the query for this page
-					StringBuffer localQueryBuffer = new StringBuffer(queryBuffer);
-					localQueryBuffer.append(" LIMIT ").append(limit);
-					localQueryBuffer.append(" OFFSET ").append(offset);
-
-					uri = endpoint.getEndPoint().getURI() + "?query="
-							+ URLEncoder.encode(localQueryBuffer.toString(), "UTF-8");
-
-					// Record the request
-					endpoint.setRequestsCounter(endpoint.getRequestsCounter() + 1);
-
-					// Prepare the query
-					httpget = new HttpGet(uri);
-					HttpResponse response = endpoint.getHttpClient().execute(httpget);
-					entity = response.getEntity();
-
-					if (entity != null) {
-						// Get the results
-						InputStream instream = entity.getContent();
-						Handler handler = new Handler(endpoint, resourceSet);
-
-						// Get a parser for the results
-						SAXParserFactory factory = SAXParserFactory.newInstance();
-						SAXParser saxParser = factory.newSAXParser();
-						saxParser.parse(instream, handler);
-
-						// Wait for completion
-						int total = handler.waitForCompletion();
-						if (total == pageSize) {
+					// Adapt the size of the next pages
+					long pageLatency = TimeUnit.MILLISECONDS.convert(System.nanoTime() - pageStart,
+							TimeUnit.NANOSECONDS);
+					endpoint.recordPage(limit, total, pageLatency);
+
+					// A full page means there may be more
+					totalResults += total;
+					if (total == limit) {
+						offset += total;
+						if (totalResults < MAX_RESULTS)
 							getNextPage = true;
-							offset += pageSize;
-						}
-						totalResults += total;
-					} else {
-						if (httpget != null)
-							httpget.abort();
+						else
+							isComplete = false;
 					}
+				} else {
+					isComplete = false;
+					request.abort();
 				}
+			}
 
-				// Update statistics
-				long latency = TimeUnit.MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
-				endpoint.setTotalLatency(endpoint.getTotalLatency() + latency);
-				if (totalResults > 0)
-					endpoint.setInformativeCounter(endpoint.getInformativeCounter() + 1);
-
-			} catch (Exception e) {
-				// There was an error when asking the provider
-				endpoint.setErrorsCounter(endpoint.getErrorsCounter() + 1);
-				// logger.error("Failed to query " + endpoint.getURI() + " for "
-				// + queryStr);
-				if (httpget != null)
-					httpget.abort();
+			// Update statistics
+			long latency = TimeUnit.MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			endpoint.setTotalLatency(endpoint.getTotalLatency() + latency);
+			if (totalResults > 0)
+				endpoint.setInformativeCounter(endpoint.getInformativeCounter() + 1);
+			endpoint.recordSuccess();
+
+			return isComplete && !getNextPage;
+		} catch (ValuesRejectedException e) {
+			if (request != null)
+				request.abort();
+			endpoint.setValuesUnsupported();
+			endpoint.recordSuccess();
+			throw e;
+		} catch (Exception e) {
+			// There was an error when asking the provider
+			endpoint.recordFailure();
+			// logger.error("Failed to query " + endpoint.getURI() + " for "
+			// + queryStr);
+			if (request != null)
+				request.abort();
+			return false;
+		}
+	}
+
+	/**
+	 * Add values to the set and remember them if the answer is to be stored
+	 * 
+	 * @param values
+	 */
+	private void publish(List<Value> values) {
+		resourceSet.addAll(values);
+		if (found != null)
+			found.addAll(values);
+	}
+
+	/**
+	 * Store the complete answer for the next runs
+	 */
+	private void store() {
+		if (persistentCache != null && !isCancelled)
+			persistentCache.put(endpoint.getEndPoint(), resourceSet.getPattern(), found);
+	}
+
+	/**
+	 * Tasks can be merged if their patterns only differ by the URI in the
+	 * subject position, or in the object position when the subject is asked
+	 * for
+	 * 
+	 * @return what the tasks that can be merged with this one have in common,
+	 *         null if it can not be merged
+	 */
+	protected synchronized String getShape() {
+		if (keyPosition != -2)
+			return shape;
+		keyPosition = -1;
+
+		// Only patterns with one variable can be merged
+		StatementPattern pattern = resourceSet.getPattern();
+		Var[] vars = { pattern.getSubjectVar(), pattern.getPredicateVar(), pattern.getObjectVar() };
+		int variables = 0;
+		for (Var var : vars)
+			if (!var.hasValue())
+				variables++;
+		if (variables != 1)
+			return null;
+
+		// Find the key, it has to be a URI
+		int position = (vars[0].hasValue() ? 0 : 2);
+		if (!(vars[position].getValue() instanceof URI))
+			return null;
+
+		// The rest of the pattern is the shape, blank nodes are left alone
+		StringBuffer buffer = new StringBuffer();
+		for (int i = 0; i < vars.length; i++) {
+			if (i == position) {
+				buffer.append("?").append(KEY);
+			} else if (!vars[i].hasValue()) {
+				buffer.append("?").append(vars[i].getName());
+			} else if (vars[i].getValue() instanceof BNode) {
+				return null;
+			} else {
+				buffer.append(Converter.toN3(vars[i].getValue()));
 			}
-		} finally {
-			// logger.info(endpoint.getName() + " " + pattern);
-			resourceSet.decreaseUpdateTasksCounter();
+			buffer.append(" ");
 		}
+		keyPosition = position;
+		shape = buffer.toString();
+		return shape;
+	}
+
+	/**
+	 * @return the resource that varies between the tasks that can be merged
+	 */
+	protected Value getKey() {
+		StatementPattern pattern = resourceSet.getPattern();
+		return (keyPosition == 0 ? pattern.getSubjectVar() : pattern.getObjectVar()).getValue();
 	}
 
 	/**
@@ -317,6 +504,59 @@ public class CacheUpdateTask implements Runnable {
 	public synchronized void cancel() {
 		isCancelled = true;
 	}
+
+	/**
+	 * @return true if the task has been cancelled
+	 */
+	public boolean isCancelled() {
+		return isCancelled;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.util.PriorityTaskQueue.Task#getPriority()
+	 */
+	public double getPriority() {
+		// The look-ups blocking the search come first, then those asked for
+		// the most often
+		double priority = WAITER_WEIGHT * resourceSet.getWaiters() + Math.log(1 + resourceSet.getRequests());
+
+		// The older tasks are less likely to matter for the current generation
+		priority -= (System.currentTimeMillis() - creationTime) / AGE_SCALE;
+
+		// Without a subject the answer can be large (e.g. all the instances of
+		// a class) and slow to get
+		if (!resourceSet.getPattern().getSubjectVar().hasValue())
+			priority -= 1;
+
+		return priority;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.util.PriorityTaskQueue.Task#isObsolete()
+	 */
+	public boolean isObsolete() {
+		return isCancelled || resourceSet.isEvicted();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.util.PriorityTaskQueue.Task#discard()
+	 */
+	public void discard() {
+		resourceSet.decreaseUpdateTasksCounter();
+	}
+
+	/**
+	 * @return the set of resources updated by the task
+	 */
+	public NodeSet getResourceSet() {
+		return resourceSet;
+	}
 }
 
 // @see
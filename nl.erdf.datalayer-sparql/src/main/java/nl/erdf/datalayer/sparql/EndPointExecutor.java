@@ -4,13 +4,14 @@
 package nl.erdf.datalayer.sparql;
 
 import java.net.URISyntaxException;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import nl.erdf.model.EndPoint;
-import nl.erdf.util.LIFOQueue;
+import nl.erdf.util.PriorityTaskQueue;
 import nl.erdf.util.RetryHandler;
 
 import org.apache.http.HttpVersion;
@@ -31,12 +32,54 @@ public class EndPointExecutor {
 	// Logger instance
 	static final Logger logger = LoggerFactory.getLogger(EndPointExecutor.class);
 
+	/** Smallest number of results asked for in one request */
+	public static final int MIN_PAGE_SIZE = 100;
+
+	/** Number of results asked for in the first request */
+	public static final int DEFAULT_PAGE_SIZE = 1000;
+
+	/** Largest number of results asked for in one request */
+	public static final int MAX_PAGE_SIZE = 10000;
+
+	/** Time a request should take, in milliseconds */
+	public static final long TARGET_PAGE_LATENCY = 400;
+
+	/** Maximum number of queries sent at the same time */
+	public static final int MAX_THREADS = 4;
+
+	/** Number of failures in a row after which the end point is disabled */
+	public static final int MAX_CONSECUTIVE_ERRORS = 5;
+
+	/** Time before a disabled end point is tried again, in milliseconds */
+	public static final long RETRY_DELAY = 30 * 1000;
+
+	/** Longest time before a disabled end point is tried again */
+	public static final long MAX_RETRY_DELAY = 30 * 60 * 1000;
+
+	// Number of requests after which the yield of the end point is judged
+	private static final int MIN_REQUESTS_FOR_YIELD = 50;
+
+	// Below this ratio of informative requests the end point gets one thread
+	private static final double MIN_YIELD = 0.01;
+
+	// Number of queued tasks per thread before an other one is started
+	private static final int TASKS_PER_THREAD = 8;
+
+	/** Time before VALUES are tried again on an end point that refused them */
+	public static final long VALUES_RETRY_DELAY = 60 * 60 * 1000;
+
+	/** Maximum number of update tasks merged into one query */
+	public static final int MAX_COALESCED_TASKS = 50;
+
+	// Weight of the last page in the average latency
+	private static final double LATENCY_SMOOTHING = 0.3;
+
 	// The end point
 	private final EndPoint endPoint;
 
 	// Executor to run the update tasks against this end point
 	private ExecutorService executor;
-	private BlockingQueue<Runnable> jobQueue;
+	private PriorityTaskQueue jobQueue;
 
 	// The http client used to connect to the end point
 	private DefaultHttpClient httpClient;
@@ -53,6 +96,32 @@ public class EndPointExecutor {
 	// Number of queries that returned some results
 	private int informativeCounter = 0;
 
+	// Number of questions asked to fill the source index, and the time they
+	// took. They are kept apart from the requests for the data
+	private long probesCounter = 0;
+	private long probesLatency = 0;
+
+	// Number of results to ask for in the next request
+	private int pageSize = DEFAULT_PAGE_SIZE;
+
+	// Moving average of the latency of the requests, in milliseconds
+	private double pageLatency = -1;
+
+	// Called every time a task is done, to tell that the queue got shorter
+	private volatile Runnable loadListener = null;
+
+	// What the end point can answer
+	private final SourceIndex sourceIndex = new SourceIndex(this);
+
+	// Circuit breaker, the end point is disabled after too many failures and
+	// probed again from time to time
+	private int consecutiveErrors = 0;
+	private long retryDelay = RETRY_DELAY;
+	private long retryTime = 0;
+
+	// Time until which the queries with VALUES in them are not sent
+	private volatile long valuesUnsupportedUntil = 0;
+
 	/**
 	 * @param name
 	 * @param address
@@ -71,11 +140,15 @@ public class EndPointExecutor {
 		totalLatency = 0;
 		errorsCounter = 0;
 		informativeCounter = 0;
+		synchronized (this) {
+			probesCounter = 0;
+			probesLatency = 0;
+			pageSize = DEFAULT_PAGE_SIZE;
+			pageLatency = -1;
+		}
 
-		// Cancel remaining tasks
-		for (Runnable runnable : jobQueue)
-			if (runnable instanceof CacheUpdateTask)
-				((CacheUpdateTask) runnable).cancel();
+		// Cancel remaining tasks, they are discarded by the queue
+		cancelQueuedTasks();
 		jobQueue.clear();
 
 		// Wait for the running ones to be stopped
@@ -91,10 +164,8 @@ public class EndPointExecutor {
 	 * 
 	 */
 	public void shutdown() {
-		// Cancel remaining tasks
-		for (Runnable runnable : jobQueue)
-			if (runnable instanceof CacheUpdateTask)
-				((CacheUpdateTask) runnable).cancel();
+		// Cancel remaining tasks, they are discarded by the queue
+		cancelQueuedTasks();
 		jobQueue.clear();
 
 		// Wait for the running ones to be stopped
@@ -140,16 +211,195 @@ public class EndPointExecutor {
 
 		// Create an other executor for the data service
 		// executor = Executors.newFixedThreadPool(5);
-		jobQueue = new LIFOQueue<Runnable>();
-		executor = new ThreadPoolExecutor(2, 2, 10, TimeUnit.SECONDS, jobQueue);
+		jobQueue = new PriorityTaskQueue();
+		executor = new ThreadPoolExecutor(2, MAX_THREADS, 10, TimeUnit.SECONDS, jobQueue) {
+			@Override
+			protected void afterExecute(Runnable r, Throwable t) {
+				Runnable listener = loadListener;
+				if (listener != null)
+					listener.run();
+			}
+		};
 		((ThreadPoolExecutor) executor).prestartAllCoreThreads();
 	}
 
+	/**
+	 * Tell if queries could be sent to the end point. A disabled end point
+	 * only gets a query from time to time, to see if it is back. Nothing is
+	 * changed, use tryAcquireProbe() before sending a query
+	 * 
+	 * @return true if the end point is enabled or if it is time to probe it
+	 */
+	public synchronized boolean acceptsRequests() {
+		return endPoint.isEnabled() || System.currentTimeMillis() >= retryTime;
+	}
+
+	/**
+	 * To be called before sending a query. If the end point is disabled and
+	 * it is time to probe it, the query is the probe and the next one is only
+	 * allowed after the retry delay
+	 * 
+	 * @return true if the query can be sent
+	 */
+	public synchronized boolean tryAcquireProbe() {
+		if (endPoint.isEnabled())
+			return true;
+
+		// Let a probe go through
+		long now = System.currentTimeMillis();
+		if (now < retryTime)
+			return false;
+		retryTime = now + retryDelay;
+		return true;
+	}
+
+	/**
+	 * Record a request that went through
+	 */
+	public synchronized void recordSuccess() {
+		consecutiveErrors = 0;
+		if (!endPoint.isEnabled()) {
+			logger.info(endPoint.getURI() + " is back");
+			endPoint.setEnabled(true);
+			retryDelay = RETRY_DELAY;
+		}
+		adjustThreads();
+	}
+
+	/**
+	 * Record a failed request, the end point is disabled when it keeps failing
+	 */
+	public synchronized void recordFailure() {
+		errorsCounter++;
+		consecutiveErrors++;
+		if (endPoint.isEnabled() && consecutiveErrors < MAX_CONSECUTIVE_ERRORS)
+			return;
+
+		// A failed probe doubles the time before the next one
+		if (!endPoint.isEnabled())
+			retryDelay = Math.min(MAX_RETRY_DELAY, retryDelay * 2);
+		else
+			logger.warn(endPoint.getURI() + " disabled after " + consecutiveErrors + " errors");
+		endPoint.setEnabled(false);
+		retryTime = System.currentTimeMillis() + retryDelay;
+		adjustThreads();
+
+		// Don't let the queued tasks wait for time outs
+		cancelQueuedTasks();
+	}
+
+	/**
+	 * Adapt the number of threads to the health of the end point and to the
+	 * number of tasks waiting. Must be called with the lock held
+	 */
+	private void adjustThreads() {
+		if (executor == null)
+			return;
+		ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+		int threads = pool.getCorePoolSize();
+
+		if (!endPoint.isEnabled()) {
+			// Only the probes go through
+			threads = 1;
+		} else if (requestsCounter >= MIN_REQUESTS_FOR_YIELD
+				&& informativeCounter < MIN_YIELD * requestsCounter) {
+			// Rarely useful, don't spend much on it
+			threads = 1;
+		} else if (pageLatency > TARGET_PAGE_LATENCY) {
+			// Slow, don't make it worse
+			threads = Math.max(1, threads - 1);
+		} else if (jobQueue.size() > threads * TASKS_PER_THREAD) {
+			// Fast and busy
+			threads = Math.min(MAX_THREADS, threads + 1);
+		}
+
+		if (threads != pool.getCorePoolSize())
+			pool.setCorePoolSize(threads);
+	}
+
+	/**
+	 * Cancel all the tasks waiting in the queue
+	 */
+	private void cancelQueuedTasks() {
+		for (Runnable runnable : jobQueue)
+			if (runnable instanceof CacheUpdateTask)
+				((CacheUpdateTask) runnable).cancel();
+			else if (runnable instanceof ValidityCheckTask)
+				((ValidityCheckTask) runnable).cancel();
+			else if (runnable instanceof SourceProbeTask)
+				((SourceProbeTask) runnable).cancel();
+	}
+
+	/**
+	 * @return the number of queries that can be sent at the same time
+	 */
+	public int getThreads() {
+		return ((ThreadPoolExecutor) executor).getCorePoolSize();
+	}
+
 	/**
 	 * @param resources
 	 */
 	public void executeCacheUpdateTask(NodeSet resources) {
-		executor.execute(new CacheUpdateTask(this, resources));
+		executeCacheUpdateTask(resources, null);
+	}
+
+	/**
+	 * @param resources
+	 * @param persistentCache
+	 *            where to store the complete answer, may be null
+	 */
+	public void executeCacheUpdateTask(NodeSet resources, PersistentCache persistentCache) {
+		executor.execute(new CacheUpdateTask(this, resources, persistentCache));
+	}
+
+	/**
+	 * Take out of the queue the update tasks that can be merged with a given
+	 * one into a single query
+	 * 
+	 * @param task
+	 *            the task about to be run
+	 * @return the tasks taken, they have to be run by the caller
+	 */
+	public List<CacheUpdateTask> takeSimilarCacheUpdateTasks(CacheUpdateTask task) {
+		List<CacheUpdateTask> tasks = new ArrayList<CacheUpdateTask>();
+		String shape = task.getShape();
+		if (shape == null)
+			return tasks;
+
+		for (Runnable runnable : jobQueue) {
+			if (tasks.size() == MAX_COALESCED_TASKS - 1)
+				break;
+			if (!(runnable instanceof CacheUpdateTask))
+				continue;
+			CacheUpdateTask other = (CacheUpdateTask) runnable;
+			if (!other.isObsolete() && shape.equals(other.getShape()))
+				tasks.add(other);
+		}
+
+		// An other thread may have taken some of them in the mean time
+		return jobQueue.removeTasks(tasks);
+	}
+
+	/**
+	 * @param task
+	 */
+	public void executeSourceProbeTask(SourceProbeTask task) {
+		executor.execute(task);
+	}
+
+	/**
+	 * @return the index of what the end point can answer
+	 */
+	public SourceIndex getSourceIndex() {
+		return sourceIndex;
+	}
+
+	/**
+	 * @param task
+	 */
+	public void executeValidityCheckTask(ValidityCheckTask task) {
+		executor.execute(task);
 	}
 
 	/*
@@ -235,6 +485,113 @@ public class EndPointExecutor {
 		return informativeCounter;
 	}
 
+	/**
+	 * Record a question asked to fill the source index
+	 * 
+	 * @param latency
+	 *            the time it took, in milliseconds
+	 */
+	public synchronized void recordProbe(long latency) {
+		probesCounter++;
+		probesLatency += latency;
+	}
+
+	/**
+	 * @return the number of questions asked to fill the source index
+	 */
+	public synchronized long getProbesCounter() {
+		return probesCounter;
+	}
+
+	/**
+	 * @return the time taken by the questions asked to fill the source index,
+	 *         in milliseconds
+	 */
+	public synchronized long getProbesLatency() {
+		return probesLatency;
+	}
+
+	/**
+	 * @return the number of results to ask for in the next request
+	 */
+	public synchronized int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Adapt the size of the pages to the latency of the end point. The size
+	 * doubles as long as full pages come back quickly and shrinks in
+	 * proportion when the requests get slower than the target
+	 * 
+	 * @param requested
+	 *            the number of results asked for
+	 * @param received
+	 *            the number of results received
+	 * @param latency
+	 *            the time taken by the request, in milliseconds
+	 */
+	public synchronized void recordPage(int requested, int received, long latency) {
+		if (pageLatency < 0)
+			pageLatency = latency;
+		else
+			pageLatency = LATENCY_SMOOTHING * latency + (1 - LATENCY_SMOOTHING) * pageLatency;
+
+		if (pageLatency > TARGET_PAGE_LATENCY) {
+			int size = (int) (pageSize * TARGET_PAGE_LATENCY / pageLatency);
+			pageSize = Math.max(MIN_PAGE_SIZE, size);
+		} else if (received == requested && requested == pageSize && pageLatency < TARGET_PAGE_LATENCY / 2) {
+			pageSize = Math.min(MAX_PAGE_SIZE, pageSize * 2);
+		}
+
+		adjustThreads();
+	}
+
+	/**
+	 * A request failed, most likely because it timed out, try smaller pages
+	 */
+	public synchronized void recordPageFailure() {
+		pageSize = Math.max(MIN_PAGE_SIZE, pageSize / 2);
+	}
+
+	/**
+	 * @return false if the end point recently turned down a query with VALUES
+	 *         in it
+	 */
+	public boolean isValuesSupported() {
+		return System.currentTimeMillis() >= valuesUnsupportedUntil;
+	}
+
+	/**
+	 * The end point answered a query with VALUES in it with an error, the
+	 * next queries are sent without VALUES for a while
+	 */
+	public void setValuesUnsupported() {
+		if (isValuesSupported())
+			logger.info(endPoint.getURI() + " does not take VALUES");
+		valuesUnsupportedUntil = System.currentTimeMillis() + VALUES_RETRY_DELAY;
+	}
+
+	/**
+	 * Tell if an HTTP status means that the end point did not understand a
+	 * query with VALUES in it. The end points that are overloaded, down or
+	 * that require a login answer with other statuses, which are failures
+	 * 
+	 * @param status
+	 *            the status of the answer to a query with VALUES in it
+	 * @return true if the VALUES were most likely rejected
+	 */
+	public static boolean isValuesRejection(int status) {
+		return status == 400;
+	}
+
+	/**
+	 * @param listener
+	 *            called by the worker threads every time a task is done
+	 */
+	public void setLoadListener(Runnable listener) {
+		this.loadListener = listener;
+	}
+
 	/**
 	 * @return the job queue size
 	 */
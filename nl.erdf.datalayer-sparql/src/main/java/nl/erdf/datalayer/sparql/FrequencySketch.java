@@ -0,0 +1,122 @@
+/**
+ * 
+ */
+package nl.erdf.datalayer.sparql;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Approximate count of how often keys have been asked for (count-min sketch).
+ * Every key is counted at four positions of a table of small counters and its
+ * frequency is the lowest of them. The counters are halved after a number of
+ * increments so that the history fades away. Updates are lock-free.
+ * 
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ */
+public class FrequencySketch {
+	/** Maximum value of a counter */
+	private static final int MAXIMUM_FREQUENCY = 15;
+
+	// Odd multipliers used to derive the four positions of a key
+	private static final int[] SEEDS = { 0x97cb3127, 0xb4b82e7d, 0xd3a59a2b, 0x4a1c6e7f };
+
+	// The counters
+	private final AtomicIntegerArray table;
+
+	// Mask to turn a hash into a position in the table
+	private final int mask;
+
+	// Number of increments after which all the counters are halved
+	private final int sampleSize;
+
+	// Number of increments since the last halving
+	private final AtomicInteger additions = new AtomicInteger(0);
+
+	/**
+	 * @param width
+	 *            the number of counters, rounded up to a power of two
+	 */
+	public FrequencySketch(int width) {
+		int size = 1;
+		while (size < width)
+			size <<= 1;
+		table = new AtomicIntegerArray(size);
+		mask = size - 1;
+		sampleSize = 10 * size;
+	}
+
+	/**
+	 * @param hash
+	 * @param row
+	 * @return the position of the key in the table for a given row
+	 */
+	private int indexOf(int hash, int row) {
+		int h = hash * SEEDS[row];
+		h ^= h >>> 17;
+		return h & mask;
+	}
+
+	/**
+	 * @param key
+	 * @return a well spread hash of the key
+	 */
+	private int spread(Object key) {
+		int h = key.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		return h ^ (h >>> 7) ^ (h >>> 4);
+	}
+
+	/**
+	 * Record one more occurrence of a key
+	 * 
+	 * @param key
+	 */
+	public void increment(Object key) {
+		int hash = spread(key);
+		boolean added = false;
+		for (int row = 0; row < SEEDS.length; row++) {
+			int index = indexOf(hash, row);
+			int value = table.get(index);
+			while (value < MAXIMUM_FREQUENCY && !table.compareAndSet(index, value, value + 1))
+				value = table.get(index);
+			added |= (value < MAXIMUM_FREQUENCY);
+		}
+
+		if (added && additions.incrementAndGet() >= sampleSize)
+			reset();
+	}
+
+	/**
+	 * @param key
+	 * @return the estimated number of occurrences of the key
+	 */
+	public int frequency(Object key) {
+		int hash = spread(key);
+		int frequency = MAXIMUM_FREQUENCY;
+		for (int row = 0; row < SEEDS.length; row++)
+			frequency = Math.min(frequency, table.get(indexOf(hash, row)));
+		return frequency;
+	}
+
+	/**
+	 * Halve all the counters
+	 */
+	private synchronized void reset() {
+		if (additions.get() < sampleSize)
+			return;
+		additions.set(0);
+		for (int i = 0; i < table.length(); i++)
+			table.set(i, table.get(i) >>> 1);
+	}
+
+	/**
+	 * Forget everything
+	 */
+	public synchronized void clear() {
+		additions.set(0);
+		for (int i = 0; i < table.length(); i++)
+			table.set(i, 0);
+	}
+}
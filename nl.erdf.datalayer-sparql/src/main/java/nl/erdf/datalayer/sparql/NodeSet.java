@@ -3,10 +3,15 @@
  */
 package nl.erdf.datalayer.sparql;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -16,6 +21,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * The values in a set are appended to an array and indexed in a hash map for
+ * the membership tests. Only the writers take the lock, the readers get the
+ * published size of the array and never see a partially added value
+ * 
  * @author cgueret
  * 
  */
@@ -26,8 +35,16 @@ public class NodeSet {
 	/** Constant for an empty set */
 	public final static NodeSet EMPTY_SET = new NodeSet(null);
 
-	// Actual content of the set
-	private final Set<Value> content = Collections.synchronizedSet(new HashSet<Value>());
+	// Initial size of the array of values
+	private static final int INITIAL_CAPACITY = 16;
+
+	// Actual content of the set, in the order the values were added. The array
+	// is replaced by a larger copy when full, it is published before the size
+	private volatile Value[] values = new Value[INITIAL_CAPACITY];
+	private volatile int size = 0;
+
+	// Index of the content for the membership tests
+	private final ConcurrentHashMap<Value, Boolean> index = new ConcurrentHashMap<Value, Boolean>();
 
 	// The query pattern this set of resources correspond to
 	private final StatementPattern pattern;
@@ -40,7 +57,26 @@ public class NodeSet {
 	private final Condition resultArrived = contentLock.newCondition();
 	private final Condition noMoreUpdates = contentLock.newCondition();
 
-	private int updateTasksCounter = 0;
+	// Number of update tasks, only changed with the lock held
+	private volatile int updateTasksCounter = 0;
+
+	// Call-backs waiting for some content or for the final content, they are
+	// run outside of the lock
+	private List<Runnable> contentListeners = null;
+	private List<Runnable> finalListeners = null;
+
+	// Number of threads and call-backs waiting on the set, only changed with
+	// the lock held
+	private volatile int waiters = 0;
+
+	// Number of times the set was asked for
+	private final AtomicInteger requests = new AtomicInteger(0);
+
+	// True once the set is not in the cache anymore
+	private volatile boolean isEvicted = false;
+
+	// Counter of the number of values held by the cache owning the set
+	private AtomicLong weightCounter = null;
 
 	/**
 	 * A resource set must be associated to a given pattern
@@ -67,47 +103,137 @@ public class NodeSet {
 	 *            the resource to add
 	 */
 	public void add(Value resource) {
+		List<Runnable> toRun = null;
+
 		// Lock the access
 		contentLock.lock();
 
 		try {
 			// Add the resource to the set
-			content.add(resource);
+			if (append(resource) && weightCounter != null)
+				weightCounter.incrementAndGet();
 
 			// Inform all the processes waiting for some content
 			if (!hasResult) {
 				hasResult = true;
 				resultArrived.signalAll();
+				toRun = contentListeners;
+				contentListeners = null;
+				if (toRun != null)
+					waiters -= toRun.size();
 			}
 		} finally {
 			// Release the lock
 			contentLock.unlock();
 		}
+		run(toRun);
 	}
 
 	/**
-	 * Get a random resource from the set
+	 * Add several resources to the set at once
 	 * 
-	 * @param random
-	 *            a random number generator
-	 * @return a resource from the set or URI.BLANK if the set is empty
+	 * @param resources
+	 *            the resources to add
 	 */
-	public Value get(Random random) {
-		// Lock access to the content
+	public void addAll(Collection<Value> resources) {
+		if (resources.isEmpty())
+			return;
+		List<Runnable> toRun = null;
+
+		// Lock the access
 		contentLock.lock();
 
 		try {
-			// If the resource set is empty, we return a blank
-			if (content.isEmpty())
-				return null;
+			// Add the resources to the set
+			int added = 0;
+			for (Value resource : resources)
+				if (append(resource))
+					added++;
+			if (added > 0 && weightCounter != null)
+				weightCounter.addAndGet(added);
 
-			// Uniformly pick one of the resources
-			int index = random.nextInt(content.size());
-			return (Value) content.toArray()[index];
+			// Inform all the processes waiting for some content
+			if (!hasResult) {
+				hasResult = true;
+				resultArrived.signalAll();
+				toRun = contentListeners;
+				contentListeners = null;
+				if (toRun != null)
+					waiters -= toRun.size();
+			}
 		} finally {
 			// Release the lock
 			contentLock.unlock();
 		}
+		run(toRun);
+	}
+
+	/**
+	 * Append a resource to the array if it is not already in the set. Must be
+	 * called with the lock held
+	 * 
+	 * @param resource
+	 * @return true if the resource was added
+	 */
+	private boolean append(Value resource) {
+		if (index.putIfAbsent(resource, Boolean.TRUE) != null)
+			return false;
+
+		// Make some room, the new array is published before the size
+		Value[] array = values;
+		int n = size;
+		if (n == array.length) {
+			Value[] larger = new Value[array.length * 2];
+			System.arraycopy(array, 0, larger, 0, n);
+			values = larger;
+			array = larger;
+		}
+		array[n] = resource;
+		size = n + 1;
+		return true;
+	}
+
+	/**
+	 * Get a random resource from the set
+	 * 
+	 * @param random
+	 *            a random number generator
+	 * @return a resource from the set or URI.BLANK if the set is empty
+	 */
+	public Value get(Random random) {
+		// The size is read before the array, which holds at least that many
+		// values
+		int n = size;
+		if (n == 0)
+			return null;
+
+		// Uniformly pick one of the resources
+		return values[random.nextInt(n)];
+	}
+
+	/**
+	 * Get several random resources from the set
+	 * 
+	 * @param k
+	 *            the number of resources to draw
+	 * @param random
+	 *            a random number generator
+	 * @return a list of at most k resources, empty if the set is empty
+	 */
+	public List<Value> sample(int k, Random random) {
+		List<Value> sample = new ArrayList<Value>(k);
+
+		// The size is read before the array, which holds at least that many
+		// values
+		int n = size;
+		if (n == 0)
+			return sample;
+		Value[] array = values;
+
+		// Uniformly pick the resources
+		for (int i = 0; i < k; i++)
+			sample.add(array[random.nextInt(n)]);
+		return sample;
 	}
 
 	/**
@@ -118,16 +244,8 @@ public class NodeSet {
 	 * @return true if the resource is in the set
 	 */
 	public boolean contains(Value resource) {
-		// Lock access to the content
-		contentLock.lock();
-
-		try {
-			// TODO Implement different similarity measures here
-			return content.contains(resource);
-		} finally {
-			// Release the lock
-			contentLock.unlock();
-		}
+		// TODO Implement different similarity measures here
+		return index.containsKey(resource);
 	}
 
 	/*
@@ -141,16 +259,8 @@ public class NodeSet {
 		if (!(obj instanceof NodeSet))
 			return false;
 
-		// Lock access to the content
-		contentLock.lock();
-
-		try {
-			// Compare
-			return content.equals(((NodeSet) obj).content);
-		} finally {
-			// Release the lock
-			contentLock.unlock();
-		}
+		// Compare
+		return index.keySet().equals(((NodeSet) obj).index.keySet());
 	}
 
 	/*
@@ -160,37 +270,57 @@ public class NodeSet {
 	 */
 	@Override
 	public int hashCode() {
-		// Lock access to the content
-		contentLock.lock();
-		try {
-			return content.hashCode();
-		} finally {
-			// Release the lock
-			contentLock.unlock();
-		}
+		return index.keySet().hashCode();
 	}
 
 	/**
 	 * @return the size of the set
 	 */
 	public int size() {
-		// Lock access to the content
+		return size;
+	}
+
+	/**
+	 * Shortcut to test if the size is equal to zero
+	 * 
+	 * @return true if the set is empty
+	 */
+	public boolean isEmpty() {
+		return (this.size() == 0);
+	}
+
+	/**
+	 * Let a cache keep track of the number of values in that set. Every value
+	 * added from now on increments the counter
+	 * 
+	 * @param counter
+	 *            the counter of the cache
+	 */
+	public void attachWeightCounter(AtomicLong counter) {
 		contentLock.lock();
 		try {
-			return content.size();
+			weightCounter = counter;
+			counter.addAndGet(size);
 		} finally {
-			// Release the lock
 			contentLock.unlock();
 		}
 	}
 
 	/**
-	 * Shortcut to test if the size is equal to zero
+	 * Stop updating the counter of the cache
 	 * 
-	 * @return true if the set is empty
+	 * @return the number of values that were accounted for in the counter
 	 */
-	public boolean isEmpty() {
-		return (this.size() == 0);
+	public int detachWeightCounter() {
+		contentLock.lock();
+		try {
+			if (weightCounter == null)
+				return 0;
+			weightCounter = null;
+			return size;
+		} finally {
+			contentLock.unlock();
+		}
 	}
 
 	/**
@@ -212,43 +342,49 @@ public class NodeSet {
 	/**
 	 */
 	public void decreaseUpdateTasksCounter() {
+		List<Runnable> toRun = new ArrayList<Runnable>();
+
 		// Lock access to the content
 		contentLock.lock();
 
 		try {
 			updateTasksCounter = updateTasksCounter - 1;
 			if (updateTasksCounter == 0) {
-				// Announce that no more updates will be provided
-				if (isBeingUpdated) {
-					isBeingUpdated = false;
-					noMoreUpdates.signalAll();
-				}
-
 				// The threads waiting for something to be added to the set can
 				// also continue their activity
 				if (!hasResult) {
 					hasResult = true;
 					resultArrived.signalAll();
+					if (contentListeners != null) {
+						toRun.addAll(contentListeners);
+						waiters -= contentListeners.size();
+					}
+					contentListeners = null;
+				}
+
+				// Announce that no more updates will be provided
+				if (isBeingUpdated) {
+					isBeingUpdated = false;
+					noMoreUpdates.signalAll();
+					if (finalListeners != null) {
+						toRun.addAll(finalListeners);
+						waiters -= finalListeners.size();
+					}
+					finalListeners = null;
 				}
 			}
 		} finally {
 			// Release the lock
 			contentLock.unlock();
 		}
+		run(toRun);
 	}
 
 	/**
 	 * @return true if there is no thread scheduled to update that resource set
 	 */
 	public boolean isFinal() {
-		// Lock access to the content
-		contentLock.lock();
-		try {
-			return (updateTasksCounter == 0);
-		} finally {
-			// Release the lock
-			contentLock.unlock();
-		}
+		return (updateTasksCounter == 0);
 	}
 
 	/**
@@ -259,12 +395,14 @@ public class NodeSet {
 	public void waitForSomeContent() {
 		// Lock access to the content
 		contentLock.lock();
+		waiters++;
 		try {
 			while (!hasResult)
 				resultArrived.await();
 		} catch (InterruptedException ignore) {
 		} finally {
 			// Release the lock
+			waiters--;
 			contentLock.unlock();
 		}
 	}
@@ -276,40 +414,138 @@ public class NodeSet {
 	public void waitForFinalContent() {
 		// Lock access to the content
 		contentLock.lock();
+		waiters++;
 		try {
 			while (isBeingUpdated)
 				noMoreUpdates.await();
 		} catch (InterruptedException ignore) {
 		} finally {
 			// Release the lock
+			waiters--;
 			contentLock.unlock();
 		}
 	}
 
-	/*
-	 * (non-Javadoc)
+	/**
+	 * Non blocking version of waitForSomeContent(), the call-back is run as
+	 * soon as some content is added or no more update processes are attached
+	 * to the set. It is run right away if that is already the case
 	 * 
-	 * @see java.lang.Object#toString()
+	 * @param callback
 	 */
-	@Override
-	public String toString() {
-		StringBuffer buffer = new StringBuffer();
+	public void whenSomeContent(Runnable callback) {
 		contentLock.lock();
 		try {
-			for (Value node : content)
-				buffer.append(node.toString() + "(" + node.getClass() + ") ");
-			return buffer.toString();
+			if (!hasResult) {
+				if (contentListeners == null)
+					contentListeners = new ArrayList<Runnable>();
+				contentListeners.add(callback);
+				waiters++;
+				return;
+			}
+		} finally {
+			contentLock.unlock();
+		}
+		callback.run();
+	}
+
+	/**
+	 * Non blocking version of waitForFinalContent(), the call-back is run as
+	 * soon as no process is updating the content of the set. It is run right
+	 * away if that is already the case
+	 * 
+	 * @param callback
+	 */
+	public void whenFinalContent(Runnable callback) {
+		contentLock.lock();
+		try {
+			if (isBeingUpdated) {
+				if (finalListeners == null)
+					finalListeners = new ArrayList<Runnable>();
+				finalListeners.add(callback);
+				waiters++;
+				return;
+			}
 		} finally {
-			// Release the lock
 			contentLock.unlock();
 		}
+		callback.run();
+	}
+
+	/**
+	 * Run the call-backs released by a change of the set, errors are not
+	 * passed to the updating thread
+	 * 
+	 * @param callbacks
+	 *            may be null
+	 */
+	private void run(List<Runnable> callbacks) {
+		if (callbacks == null)
+			return;
+		for (Runnable callback : callbacks) {
+			try {
+				callback.run();
+			} catch (RuntimeException e) {
+				logger.error("Error in a call-back of " + pattern, e);
+			}
+		}
+	}
 
+	/**
+	 * @return the number of threads and call-backs waiting for the set to be
+	 *         updated
+	 */
+	public int getWaiters() {
+		return waiters;
+	}
+
+	/**
+	 * Record that the set has been asked for
+	 */
+	public void touch() {
+		requests.incrementAndGet();
+	}
+
+	/**
+	 * @return the number of times the set has been asked for
+	 */
+	public int getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * Flag the set as removed from the cache, nobody will ask for it anymore
+	 */
+	public void setEvicted() {
+		isEvicted = true;
+	}
+
+	/**
+	 * @return true if the set has been removed from the cache
+	 */
+	public boolean isEvicted() {
+		return isEvicted;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		StringBuffer buffer = new StringBuffer();
+		int n = size;
+		Value[] array = values;
+		for (int i = 0; i < n; i++)
+			buffer.append(array[i].toString() + "(" + array[i].getClass() + ") ");
+		return buffer.toString();
 	}
 
 	/**
-	 * @return
+	 * @return a read-only view of the content
 	 */
 	public Set<Value> content() {
-		return content;
+		return Collections.unmodifiableSet(index.keySet());
 	}
 }
@@ -0,0 +1,527 @@
+/**
+ * 
+ */
+package nl.erdf.datalayer.sparql;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import nl.erdf.model.EndPoint;
+import nl.erdf.util.Converter;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.Var;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Second tier of the cache, kept on disk so that it survives restarts. It
+ * stores the complete answer of an end point to a pattern along with an
+ * expiry date. The records are appended to a single file which is read
+ * through a memory mapping. The records appended after the file was mapped
+ * are read through the channel, the file is mapped again once they make up as
+ * much as the mapped part. The position and the size of the last record of
+ * every key are kept in memory. The file is compacted when it is opened if
+ * most of it is made of outdated records. A mapping is limited to 2GB, which
+ * bounds the size of the file. The mappings replaced are released right away
+ * instead of waiting for the garbage collector, no record read from them is
+ * kept.
+ * 
+ * The identifiers of the blank nodes are stored without the tag of their end
+ * point, which depends on the run, and tagged again when they are read. The
+ * answers to patterns with a blank node in them are not stored.
+ * 
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ */
+public class PersistentCache {
+	/** Logger instance */
+	protected final static Logger logger = LoggerFactory.getLogger(PersistentCache.class);
+
+	/** Default time to live of the records, one week */
+	public static final long DEFAULT_TIME_TO_LIVE = 7 * 24 * 3600 * 1000L;
+
+	/** Name of the file holding the records */
+	public static final String FILE_NAME = "patterns.cache";
+
+	// Marks the start of every record
+	private static final int MAGIC = 0x65524446;
+
+	// Size of the header of a record: magic number and length
+	private static final int HEADER_SIZE = 8;
+
+	// Size of the expiry date and of the length of the key
+	private static final int KEY_HEADER_SIZE = 12;
+
+	// Types of values
+	private static final byte URI_TYPE = 0;
+	private static final byte BNODE_TYPE = 1;
+	private static final byte LITERAL_TYPE = 2;
+	private static final byte LANGUAGE_LITERAL_TYPE = 3;
+	private static final byte TYPED_LITERAL_TYPE = 4;
+
+	// Size of the file under which it is never compacted nor mapped again
+	private static final int MIN_COMPACT_SIZE = 1024 * 1024;
+
+	// Encoding of the strings
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// The file
+	private final File file;
+	private RandomAccessFile randomAccessFile;
+	private FileChannel channel;
+
+	// Read only mapping of the file
+	private MappedByteBuffer mapping;
+
+	// Position and size of the last record of every key
+	private final Map<String, int[]> index = new HashMap<String, int[]>();
+
+	// Total size of the records in the index
+	private long liveSize = 0;
+
+	// Time to live of the records, in milliseconds
+	private final long timeToLive;
+
+	// Values factory
+	private final ValueFactory factory = ValueFactoryImpl.getInstance();
+
+	/**
+	 * @param directory
+	 *            the directory in which the cache is stored
+	 * @throws IOException
+	 */
+	public PersistentCache(File directory) throws IOException {
+		this(directory, DEFAULT_TIME_TO_LIVE);
+	}
+
+	/**
+	 * @param directory
+	 *            the directory in which the cache is stored
+	 * @param timeToLive
+	 *            how long the answers are valid, in milliseconds
+	 * @throws IOException
+	 */
+	public PersistentCache(File directory, long timeToLive) throws IOException {
+		this.timeToLive = timeToLive;
+		if (!directory.exists() && !directory.mkdirs())
+			throw new IOException("Can not create " + directory);
+		file = new File(directory, FILE_NAME);
+
+		open();
+		load();
+
+		// Get rid of the outdated records
+		if (channel.size() > MIN_COMPACT_SIZE && channel.size() > 2 * liveSize)
+			compact();
+
+		logger.info("Loaded " + index.size() + " answers from " + file);
+	}
+
+	/**
+	 * Open the file and map it
+	 * 
+	 * @throws IOException
+	 */
+	private void open() throws IOException {
+		randomAccessFile = new RandomAccessFile(file, "rw");
+		channel = randomAccessFile.getChannel();
+		remap(channel.size());
+	}
+
+	/**
+	 * Replace the mapping of the file by a new one
+	 * 
+	 * @param size
+	 *            the size of the file to map
+	 * @throws IOException
+	 */
+	private void remap(long size) throws IOException {
+		MappedByteBuffer old = mapping;
+		mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		unmap(old);
+	}
+
+	/**
+	 * Release a mapping without waiting for the garbage collector. Not every
+	 * JVM allows it, the mapping is left to the garbage collector otherwise
+	 * 
+	 * @param buffer
+	 *            the mapping, may be null
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		if (buffer == null)
+			return;
+		try {
+			// Java 9 and later
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			invokeCleaner.invoke(theUnsafe.get(null), buffer);
+			return;
+		} catch (Exception e) {
+			// Try the older way
+		}
+		try {
+			// Java 8 and before
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null)
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+		} catch (Exception e) {
+			logger.debug("Could not release a mapping of " + FILE_NAME + ": " + e);
+		}
+	}
+
+	/**
+	 * Index the records, a damaged end of file is cut off. A record is damaged
+	 * if its header is wrong or if its key does not fit in it
+	 * 
+	 * @throws IOException
+	 */
+	private void load() throws IOException {
+		long now = System.currentTimeMillis();
+		int position = 0;
+		while (position + HEADER_SIZE <= mapping.capacity()) {
+			int length = mapping.getInt(position + 4);
+			if (mapping.getInt(position) != MAGIC || length < KEY_HEADER_SIZE
+					|| position + HEADER_SIZE + length > mapping.capacity())
+				break;
+			int keyLength = mapping.getInt(position + HEADER_SIZE + 8);
+			if (keyLength < 0 || keyLength > length - KEY_HEADER_SIZE)
+				break;
+
+			// Index the records that are still valid
+			String key = readKey(position);
+			long expiry = mapping.getLong(position + HEADER_SIZE);
+			unindex(key);
+			if (expiry > now) {
+				index.put(key, new int[] { position, HEADER_SIZE + length });
+				liveSize += HEADER_SIZE + length;
+			}
+
+			position += HEADER_SIZE + length;
+		}
+
+		if (position < channel.size()) {
+			logger.warn("Truncate " + file + " at " + position);
+			channel.truncate(position);
+			remap(channel.size());
+		}
+	}
+
+	/**
+	 * Rewrite the file with the live records only
+	 * 
+	 * @throws IOException
+	 */
+	private void compact() throws IOException {
+		File tmp = new File(file.getParentFile(), FILE_NAME + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+		Map<String, int[]> newIndex = new HashMap<String, int[]>();
+		try {
+			out.setLength(0);
+			FileChannel outChannel = out.getChannel();
+			long position = 0;
+			for (Entry<String, int[]> entry : index.entrySet()) {
+				ByteBuffer record = getRecord(entry.getValue()[0], entry.getValue()[1]);
+				newIndex.put(entry.getKey(), new int[] { (int) position, entry.getValue()[1] });
+				while (record.hasRemaining())
+					position += outChannel.write(record, position);
+			}
+		} finally {
+			out.close();
+		}
+
+		close();
+		if (!tmp.renameTo(file)) {
+			// Keep using the old file
+			logger.warn("Could not replace " + file + " by its compacted version");
+			tmp.delete();
+		} else {
+			index.clear();
+			index.putAll(newIndex);
+		}
+		open();
+	}
+
+	/**
+	 * @param endPoint
+	 * @param pattern
+	 * @return the key used to identify the answer of an end point to a
+	 *         pattern
+	 */
+	private String getKey(EndPoint endPoint, StatementPattern pattern) {
+		StringBuffer key = new StringBuffer();
+		key.append(endPoint.getURI()).append(" ");
+		key.append(endPoint.getDefaultGraph()).append(" ");
+		key.append(Converter.toN3(pattern));
+		return key.toString();
+	}
+
+	/**
+	 * @param endPoint
+	 *            the end point that gave the answer
+	 * @param pattern
+	 *            the pattern asked for
+	 * @return the values or null if the answer is unknown or too old
+	 */
+	public synchronized List<Value> get(EndPoint endPoint, StatementPattern pattern) {
+		if (channel == null)
+			return null;
+
+		String key = getKey(endPoint, pattern);
+		int[] entry = index.get(key);
+		if (entry == null)
+			return null;
+
+		// The record may have been appended after the file was mapped
+		ByteBuffer record;
+		try {
+			record = getRecord(entry[0], entry[1]);
+		} catch (IOException e) {
+			logger.error("Could not read " + file + ": " + e.getMessage());
+			return null;
+		}
+
+		// Check the expiry date
+		if (record.getLong(HEADER_SIZE) <= System.currentTimeMillis()) {
+			unindex(key);
+			return null;
+		}
+
+		// Skip the header, the expiry date and the key
+		record.position(HEADER_SIZE + 8);
+		record.position(record.position() + 4 + record.getInt());
+
+		// Read the values
+		String bnodeSuffix = getBNodeSuffix(endPoint);
+		int count = record.getInt();
+		List<Value> values = new ArrayList<Value>(count);
+		for (int i = 0; i < count; i++) {
+			byte type = record.get();
+			String label = readString(record);
+			if (type == URI_TYPE)
+				values.add(factory.createURI(label));
+			else if (type == BNODE_TYPE)
+				values.add(factory.createBNode(label + bnodeSuffix));
+			else if (type == LANGUAGE_LITERAL_TYPE)
+				values.add(factory.createLiteral(label, readString(record)));
+			else if (type == TYPED_LITERAL_TYPE)
+				values.add(factory.createLiteral(label, factory.createURI(readString(record))));
+			else
+				values.add(factory.createLiteral(label));
+		}
+		return values;
+	}
+
+	/**
+	 * Record the complete answer of an end point to a pattern
+	 * 
+	 * @param endPoint
+	 *            the end point that gave the answer
+	 * @param pattern
+	 *            the pattern asked for
+	 * @param values
+	 *            all the values returned
+	 */
+	public synchronized void put(EndPoint endPoint, StatementPattern pattern, Collection<Value> values) {
+		if (channel == null)
+			return;
+
+		// The blank nodes are not known from one run to the other
+		for (Var var : pattern.getVarList())
+			if (var.hasValue() && var.getValue() instanceof BNode)
+				return;
+
+		try {
+			// Serialise the record
+			String key = getKey(endPoint, pattern);
+			String bnodeSuffix = getBNodeSuffix(endPoint);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream output = new DataOutputStream(bytes);
+			output.writeInt(MAGIC);
+			output.writeInt(0);
+			output.writeLong(System.currentTimeMillis() + timeToLive);
+			writeString(output, key);
+			output.writeInt(values.size());
+			for (Value value : values) {
+				if (value instanceof URI) {
+					output.writeByte(URI_TYPE);
+					writeString(output, value.stringValue());
+				} else if (value instanceof BNode) {
+					output.writeByte(BNODE_TYPE);
+					String id = ((BNode) value).getID();
+					if (id.endsWith(bnodeSuffix))
+						id = id.substring(0, id.length() - bnodeSuffix.length());
+					writeString(output, id);
+				} else {
+					Literal literal = (Literal) value;
+					if (literal.getLanguage() != null) {
+						output.writeByte(LANGUAGE_LITERAL_TYPE);
+						writeString(output, literal.getLabel());
+						writeString(output, literal.getLanguage());
+					} else if (literal.getDatatype() != null) {
+						output.writeByte(TYPED_LITERAL_TYPE);
+						writeString(output, literal.getLabel());
+						writeString(output, literal.getDatatype().stringValue());
+					} else {
+						output.writeByte(LITERAL_TYPE);
+						writeString(output, literal.getLabel());
+					}
+				}
+			}
+			output.flush();
+			ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+			record.putInt(4, record.capacity() - HEADER_SIZE);
+
+			// Append it
+			long position = channel.size();
+			if (position + record.capacity() > Integer.MAX_VALUE)
+				return;
+			while (record.hasRemaining())
+				channel.write(record, position + record.position());
+
+			unindex(key);
+			index.put(key, new int[] { (int) position, record.capacity() });
+			liveSize += record.capacity();
+		} catch (IOException e) {
+			logger.error("Could not write to " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @param endPoint
+	 * @return the tag added to the identifiers of the blank nodes given by
+	 *         that end point
+	 */
+	private static String getBNodeSuffix(EndPoint endPoint) {
+		return CacheUpdateTask.BNODE_SRC_MARKER + Integer.toString(endPoint.hashCode());
+	}
+
+	/**
+	 * Get a record, from the mapping if it is in it or through the channel
+	 * otherwise. The file is mapped again when the part read through the
+	 * channel gets as large as the mapped one
+	 * 
+	 * @param position
+	 *            the position of the record
+	 * @param size
+	 *            the size of the record
+	 * @return the record, starting at 0
+	 * @throws IOException
+	 */
+	private ByteBuffer getRecord(int position, int size) throws IOException {
+		if (position + size > mapping.capacity()) {
+			long fileSize = channel.size();
+			if (fileSize - mapping.capacity() > Math.max(MIN_COMPACT_SIZE, mapping.capacity()))
+				remap(fileSize);
+		}
+
+		if (position + size <= mapping.capacity()) {
+			ByteBuffer record = mapping.duplicate();
+			record.position(position);
+			record.limit(position + size);
+			return record.slice();
+		}
+
+		ByteBuffer record = ByteBuffer.allocate(size);
+		while (record.hasRemaining())
+			if (channel.read(record, position + record.position()) < 0)
+				throw new EOFException();
+		record.flip();
+		return record;
+	}
+
+	/**
+	 * Forget the current record of a key
+	 * 
+	 * @param key
+	 */
+	private void unindex(String key) {
+		int[] entry = index.remove(key);
+		if (entry != null)
+			liveSize -= entry[1];
+	}
+
+	/**
+	 * @param position
+	 *            the position of a record
+	 * @return the key of the record
+	 */
+	private String readKey(int position) {
+		ByteBuffer record = mapping.duplicate();
+		record.position(position + HEADER_SIZE + 8);
+		return readString(record);
+	}
+
+	/**
+	 * @param buffer
+	 * @return a length prefixed string
+	 */
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * @param output
+	 * @param value
+	 * @throws IOException
+	 */
+	private static void writeString(DataOutputStream output, String value) throws IOException {
+		byte[] bytes = value.getBytes(UTF8);
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	/**
+	 * @return the number of answers stored
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * Close the file, the cache is not usable afterwards
+	 */
+	public synchronized void close() {
+		try {
+			if (channel != null)
+				channel.close();
+			if (randomAccessFile != null)
+				randomAccessFile.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		channel = null;
+		randomAccessFile = null;
+		unmap(mapping);
+		mapping = null;
+	}
+}
@@ -0,0 +1,940 @@
+/**
+ * 
+ */
+package nl.erdf.datalayer.sparql;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Streaming parser for the results of SELECT queries. Either the values of a
+ * single variable are extracted, or pairs of values of a key variable and a
+ * value variable. The JSON and TSV formats are parsed directly from the
+ * stream, the XML format is kept as a fallback for the end points not
+ * supporting the others. The values are handed over in batches. Every thread
+ * gets its own parser, which keeps its buffers from one parse to the next.
+ * 
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ */
+public class ResultsParser {
+	/** Logger instance */
+	protected final static Logger logger = LoggerFactory.getLogger(ResultsParser.class);
+
+	/** Accept header to send along with the queries, preferred formats first */
+	public static final String ACCEPT = "application/sparql-results+json, text/tab-separated-values;q=0.9, "
+			+ "application/sparql-results+xml;q=0.8";
+
+	/** Maximum number of values handed over at once */
+	private static final int BATCH_SIZE = 64;
+
+	// Data types of the unquoted literals of the TSV format
+	private static final String XSD = "http://www.w3.org/2001/XMLSchema#";
+
+	/**
+	 * Receives the values parsed
+	 */
+	public interface BatchHandler {
+		/**
+		 * @param values
+		 *            the values parsed, the list is reused after the call
+		 */
+		public void handle(List<Value> values);
+	}
+
+	/**
+	 * Receives the pairs of values parsed
+	 */
+	public interface KeyedBatchHandler {
+		/**
+		 * @param keys
+		 *            the values of the key variable, the list is reused after
+		 *            the call
+		 * @param values
+		 *            the values matching the keys, the list is reused after the
+		 *            call
+		 */
+		public void handle(List<Value> keys, List<Value> values);
+	}
+
+	// One parser per thread
+	private static final ThreadLocal<ResultsParser> parsers = new ThreadLocal<ResultsParser>() {
+		@Override
+		protected ResultsParser initialValue() {
+			return new ResultsParser();
+		}
+	};
+
+	// Values factory
+	private final ValueFactory factory = ValueFactoryImpl.getInstance();
+
+	// Input buffer
+	private final char[] buffer = new char[8192];
+	private int position = 0;
+	private int limit = 0;
+	private Reader reader = null;
+
+	// Buffers for the strings being parsed
+	private final StringBuilder text = new StringBuilder();
+	private final StringBuilder extra = new StringBuilder();
+
+	// Values not handed over yet
+	private final List<Value> batch = new ArrayList<Value>(BATCH_SIZE);
+	private final List<Value> keys = new ArrayList<Value>(BATCH_SIZE);
+
+	// Current parse
+	private BatchHandler handler;
+	private KeyedBatchHandler keyedHandler;
+	private String variable;
+	private String keyVariable;
+	private String bnodeSuffix;
+	private int total;
+
+	// Current row
+	private Value rowKey;
+	private Value rowValue;
+
+	// XML fallback, created on first use
+	private SAXParser saxParser = null;
+	private XMLHandler xmlHandler = null;
+
+	/**
+	 * @return the parser of the current thread
+	 */
+	public static ResultsParser getInstance() {
+		return parsers.get();
+	}
+
+	/**
+	 * Parse a result set
+	 * 
+	 * @param input
+	 *            the stream to parse
+	 * @param contentType
+	 *            the content type announced by the end point, may be null
+	 * @param variable
+	 *            the name of the variable to get the values of
+	 * @param bnodeSuffix
+	 *            appended to the labels of the blank nodes, may be null
+	 * @param handler
+	 *            receives the values
+	 * @return the number of values parsed
+	 * @throws Exception
+	 */
+	public int parse(InputStream input, String contentType, String variable, String bnodeSuffix,
+			BatchHandler handler) throws Exception {
+		this.handler = handler;
+		this.keyedHandler = null;
+		return parse(input, contentType, null, variable, bnodeSuffix);
+	}
+
+	/**
+	 * Parse a result set made of pairs of values
+	 * 
+	 * @param input
+	 *            the stream to parse
+	 * @param contentType
+	 *            the content type announced by the end point, may be null
+	 * @param keyVariable
+	 *            the name of the variable holding the keys
+	 * @param variable
+	 *            the name of the variable to get the values of
+	 * @param bnodeSuffix
+	 *            appended to the labels of the blank nodes, may be null
+	 * @param handler
+	 *            receives the pairs
+	 * @return the number of pairs parsed
+	 * @throws Exception
+	 */
+	public int parse(InputStream input, String contentType, String keyVariable, String variable,
+			String bnodeSuffix, KeyedBatchHandler handler) throws Exception {
+		this.handler = null;
+		this.keyedHandler = handler;
+		return parse(input, contentType, keyVariable, variable, bnodeSuffix);
+	}
+
+	/**
+	 * @param input
+	 * @param contentType
+	 * @param keyVariable
+	 * @param variable
+	 * @param bnodeSuffix
+	 * @return the number of rows parsed
+	 * @throws Exception
+	 */
+	private int parse(InputStream input, String contentType, String keyVariable, String variable,
+			String bnodeSuffix) throws Exception {
+		this.keyVariable = keyVariable;
+		this.variable = variable;
+		this.bnodeSuffix = bnodeSuffix;
+		this.total = 0;
+		batch.clear();
+		keys.clear();
+
+		try {
+			String type = (contentType == null ? "" : contentType.toLowerCase());
+			if (type.contains("json")) {
+				reset(new InputStreamReader(input, "UTF-8"));
+				parseJSON();
+			} else if (type.contains("tab-separated")) {
+				reset(new InputStreamReader(input, "UTF-8"));
+				parseTSV();
+			} else {
+				parseXML(input);
+			}
+			flush();
+		} finally {
+			this.reader = null;
+			this.handler = null;
+			this.keyedHandler = null;
+			batch.clear();
+			keys.clear();
+		}
+
+		return total;
+	}
+
+	/**
+	 * Parse the answer to an ASK query, in JSON or in XML
+	 * 
+	 * @param input
+	 *            the stream to parse
+	 * @param contentType
+	 *            the content type announced by the end point, may be null
+	 * @return the answer
+	 * @throws IOException
+	 */
+	public boolean parseBoolean(InputStream input, String contentType) throws IOException {
+		// The answer is small, read it all. Some end points do not announce
+		// the format they use, so it is told by the first character
+		reset(new InputStreamReader(input, "UTF-8"));
+		text.setLength(0);
+		try {
+			for (int c = read(); c != -1; c = read())
+				text.append((char) c);
+		} finally {
+			reader = null;
+		}
+		String document = text.toString();
+		String type = (contentType == null ? "" : contentType.toLowerCase());
+		boolean isJSON = document.trim().startsWith("{")
+				|| (!document.trim().startsWith("<") && type.contains("json"));
+
+		try {
+			if (isJSON) {
+				reset(new StringReader(document));
+				return parseJSONBoolean();
+			}
+			return parseXMLBoolean(document);
+		} finally {
+			reader = null;
+		}
+	}
+
+	/**
+	 * Start a new row
+	 */
+	private void startRow() {
+		rowKey = null;
+		rowValue = null;
+	}
+
+	/**
+	 * Queue the row just parsed, if it is complete
+	 */
+	private void endRow() {
+		if (rowValue == null || (keyVariable != null && rowKey == null))
+			return;
+		batch.add(rowValue);
+		if (keyVariable != null)
+			keys.add(rowKey);
+		total++;
+		if (batch.size() == BATCH_SIZE)
+			flush();
+	}
+
+	/**
+	 * Hand the pending values over
+	 */
+	private void flush() {
+		if (batch.isEmpty())
+			return;
+		if (keyedHandler != null)
+			keyedHandler.handle(keys, batch);
+		else
+			handler.handle(batch);
+		batch.clear();
+		keys.clear();
+	}
+
+	/**
+	 * @param label
+	 * @return a blank node tagged with its source
+	 */
+	private Value createBNode(String label) {
+		if (bnodeSuffix != null)
+			label = label + bnodeSuffix;
+		return factory.createBNode(label);
+	}
+
+	/**
+	 * @param newReader
+	 */
+	private void reset(Reader newReader) {
+		reader = newReader;
+		position = 0;
+		limit = 0;
+	}
+
+	/**
+	 * @return the next character or -1 at the end of the stream
+	 * @throws IOException
+	 */
+	private int read() throws IOException {
+		if (position == limit) {
+			limit = reader.read(buffer, 0, buffer.length);
+			position = 0;
+			if (limit <= 0) {
+				limit = 0;
+				return -1;
+			}
+		}
+		return buffer[position++];
+	}
+
+	/**
+	 * @return the next character, without consuming it, or -1
+	 * @throws IOException
+	 */
+	private int peek() throws IOException {
+		int c = read();
+		if (c != -1)
+			position--;
+		return c;
+	}
+
+	/*
+	 * JSON
+	 */
+
+	/**
+	 * @return the next non blank character or -1
+	 * @throws IOException
+	 */
+	private int nextToken() throws IOException {
+		int c = read();
+		while (c == ' ' || c == '\n' || c == '\r' || c == '\t')
+			c = read();
+		return c;
+	}
+
+	/**
+	 * @param expected
+	 * @throws IOException
+	 */
+	private void expect(char expected) throws IOException {
+		int c = nextToken();
+		if (c != expected)
+			throw new IOException("Expected '" + expected + "' but got '" + (char) c + "'");
+	}
+
+	/**
+	 * Parse the document, only results.bindings is looked at
+	 * 
+	 * @throws IOException
+	 */
+	private void parseJSON() throws IOException {
+		expect('{');
+		if (nextMember(true)) {
+			do {
+				if ("results".contentEquals(text))
+					parseResults();
+				else
+					skipValue();
+			} while (nextMember(false));
+		}
+	}
+
+	/**
+	 * Parse the answer to an ASK query, as in {"head":{}, "boolean":true}
+	 * 
+	 * @return the answer
+	 * @throws IOException
+	 */
+	private boolean parseJSONBoolean() throws IOException {
+		expect('{');
+		Boolean answer = null;
+		if (nextMember(true)) {
+			do {
+				if (!"boolean".contentEquals(text)) {
+					skipValue();
+					continue;
+				}
+
+				// Some end points quote the value
+				int c = nextToken();
+				extra.setLength(0);
+				if (c == '"') {
+					readJSONString(extra);
+				} else {
+					extra.append((char) c);
+					for (int next = peek(); next != -1 && Character.isLetter(next); next = peek())
+						extra.append((char) read());
+				}
+				if ("true".contentEquals(extra))
+					answer = Boolean.TRUE;
+				else if ("false".contentEquals(extra))
+					answer = Boolean.FALSE;
+				else
+					throw new IOException("Invalid boolean '" + extra + "'");
+			} while (nextMember(false));
+		}
+
+		if (answer == null)
+			throw new IOException("Not the answer to an ASK query");
+		return answer.booleanValue();
+	}
+
+	/**
+	 * Read the name of the next member of an object into the text buffer
+	 * 
+	 * @param first
+	 *            true if it is the first member
+	 * @return false if the end of the object is reached
+	 * @throws IOException
+	 */
+	private boolean nextMember(boolean first) throws IOException {
+		int c = nextToken();
+		if (c == '}')
+			return false;
+		if (!first) {
+			if (c != ',')
+				throw new IOException("Expected ',' but got '" + (char) c + "'");
+			c = nextToken();
+		}
+		if (c != '"')
+			throw new IOException("Expected a member name");
+		readJSONString(text);
+		expect(':');
+		return true;
+	}
+
+	/**
+	 * @throws IOException
+	 */
+	private void parseResults() throws IOException {
+		expect('{');
+		if (nextMember(true)) {
+			do {
+				if ("bindings".contentEquals(text))
+					parseBindings();
+				else
+					skipValue();
+			} while (nextMember(false));
+		}
+	}
+
+	/**
+	 * @throws IOException
+	 */
+	private void parseBindings() throws IOException {
+		expect('[');
+		int c = nextToken();
+		while (c != ']') {
+			if (c == ',')
+				c = nextToken();
+			if (c != '{')
+				throw new IOException("Expected a binding");
+			startRow();
+			if (nextMember(true)) {
+				do {
+					if (variable.contentEquals(text))
+						rowValue = parseTerm();
+					else if (keyVariable != null && keyVariable.contentEquals(text))
+						rowKey = parseTerm();
+					else
+						skipValue();
+				} while (nextMember(false));
+			}
+			endRow();
+			c = nextToken();
+		}
+	}
+
+	/**
+	 * Parse a term, as in {"type":"literal", "value":"x", "xml:lang":"en"}
+	 * 
+	 * @return the term, null if it is incomplete
+	 * @throws IOException
+	 */
+	private Value parseTerm() throws IOException {
+		expect('{');
+		String type = null;
+		String value = null;
+		String language = null;
+		String datatype = null;
+		if (nextMember(true)) {
+			do {
+				if ("type".contentEquals(text)) {
+					expect('"');
+					readJSONString(extra);
+					type = extra.toString();
+				} else if ("value".contentEquals(text)) {
+					expect('"');
+					readJSONString(extra);
+					value = extra.toString();
+				} else if ("xml:lang".contentEquals(text)) {
+					expect('"');
+					readJSONString(extra);
+					language = extra.toString();
+				} else if ("datatype".contentEquals(text)) {
+					expect('"');
+					readJSONString(extra);
+					datatype = extra.toString();
+				} else {
+					skipValue();
+				}
+			} while (nextMember(false));
+		}
+
+		if (type == null || value == null)
+			return null;
+		if (type.equals("uri"))
+			return factory.createURI(value);
+		if (type.equals("bnode"))
+			return createBNode(value);
+		if (language != null)
+			return factory.createLiteral(value, language);
+		if (datatype != null)
+			return factory.createLiteral(value, factory.createURI(datatype));
+		return factory.createLiteral(value);
+	}
+
+	/**
+	 * Read a string whose opening quote has been consumed
+	 * 
+	 * @param target
+	 *            the buffer to fill with the unescaped string
+	 * @throws IOException
+	 */
+	private void readJSONString(StringBuilder target) throws IOException {
+		target.setLength(0);
+		while (true) {
+			int c = read();
+			if (c == -1)
+				throw new IOException("Unterminated string");
+			if (c == '"')
+				return;
+			if (c != '\\') {
+				target.append((char) c);
+				continue;
+			}
+			c = read();
+			switch (c) {
+			case 'b':
+				target.append('\b');
+				break;
+			case 'f':
+				target.append('\f');
+				break;
+			case 'n':
+				target.append('\n');
+				break;
+			case 'r':
+				target.append('\r');
+				break;
+			case 't':
+				target.append('\t');
+				break;
+			case 'u':
+				target.append(readHex(4));
+				break;
+			default:
+				target.append((char) c);
+			}
+		}
+	}
+
+	/**
+	 * @param digits
+	 * @return the character encoded by the hexadecimal digits
+	 * @throws IOException
+	 */
+	private char readHex(int digits) throws IOException {
+		int value = 0;
+		for (int i = 0; i < digits; i++) {
+			int digit = Character.digit(read(), 16);
+			if (digit == -1)
+				throw new IOException("Invalid escape sequence");
+			value = value * 16 + digit;
+		}
+		return (char) value;
+	}
+
+	/**
+	 * Skip a value of any type
+	 * 
+	 * @throws IOException
+	 */
+	private void skipValue() throws IOException {
+		int depth = 0;
+		do {
+			int c = nextToken();
+			if (c == -1)
+				throw new IOException("Unexpected end of document");
+			if (c == '"') {
+				readJSONString(extra);
+			} else if (c == '{' || c == '[') {
+				depth++;
+			} else if (c == '}' || c == ']') {
+				depth--;
+			} else if (c != ',' && c != ':') {
+				// Number, true, false or null
+				int next = peek();
+				while (next != -1 && next != ',' && next != '}' && next != ']' && !Character.isWhitespace(next)) {
+					read();
+					next = peek();
+				}
+			}
+		} while (depth > 0);
+	}
+
+	/*
+	 * TSV
+	 */
+
+	/**
+	 * @throws IOException
+	 */
+	private void parseTSV() throws IOException {
+		// Find the columns of the variables in the header
+		if (!readLine())
+			return;
+		int column = -1;
+		int keyColumn = -1;
+		int index = 0;
+		int start = 0;
+		for (int i = 0; i <= text.length(); i++) {
+			if (i == text.length() || text.charAt(i) == '\t') {
+				if (isColumn(variable, start, i))
+					column = index;
+				else if (keyVariable != null && isColumn(keyVariable, start, i))
+					keyColumn = index;
+				index++;
+				start = i + 1;
+			}
+		}
+		if (column == -1 || (keyVariable != null && keyColumn == -1))
+			return;
+
+		// Parse the rows
+		while (readLine()) {
+			startRow();
+			index = 0;
+			start = 0;
+			for (int i = 0; i <= text.length(); i++) {
+				if (i == text.length() || text.charAt(i) == '\t') {
+					if (i > start && index == column)
+						rowValue = parseTSVTerm(start, i);
+					else if (i > start && index == keyColumn)
+						rowKey = parseTSVTerm(start, i);
+					index++;
+					start = i + 1;
+				}
+			}
+			endRow();
+		}
+	}
+
+	/**
+	 * @param name
+	 *            the name of a variable
+	 * @param start
+	 *            first character of the column name in the text buffer
+	 * @param end
+	 *            position after the last character of the column name
+	 * @return true if the column holds the variable
+	 */
+	private boolean isColumn(String name, int start, int end) {
+		int from = (start < end && text.charAt(start) == '?') ? start + 1 : start;
+		return (end - from == name.length() && text.indexOf(name, from) == from);
+	}
+
+	/**
+	 * Read a line into the text buffer
+	 * 
+	 * @return false at the end of the stream
+	 * @throws IOException
+	 */
+	private boolean readLine() throws IOException {
+		text.setLength(0);
+		int c = read();
+		if (c == -1)
+			return false;
+		while (c != -1 && c != '\n') {
+			if (c != '\r')
+				text.append((char) c);
+			c = read();
+		}
+		return true;
+	}
+
+	/**
+	 * Parse a term written in the Turtle syntax
+	 * 
+	 * @param start
+	 *            first character of the term in the text buffer
+	 * @param end
+	 *            position after the last character of the term
+	 * @return the value
+	 * @throws IOException
+	 */
+	private Value parseTSVTerm(int start, int end) throws IOException {
+		char first = text.charAt(start);
+
+		// Resources
+		if (first == '<')
+			return factory.createURI(unescape(start + 1, text.lastIndexOf(">", end - 1)));
+		if (first == '_' && start + 1 < end && text.charAt(start + 1) == ':')
+			return createBNode(text.substring(start + 2, end));
+
+		// Unquoted literals
+		if (first != '"') {
+			String label = text.substring(start, end);
+			if (label.equals("true") || label.equals("false"))
+				return factory.createLiteral(label, factory.createURI(XSD + "boolean"));
+			if (label.indexOf('e') != -1 || label.indexOf('E') != -1)
+				return factory.createLiteral(label, factory.createURI(XSD + "double"));
+			if (label.indexOf('.') != -1)
+				return factory.createLiteral(label, factory.createURI(XSD + "decimal"));
+			return factory.createLiteral(label, factory.createURI(XSD + "integer"));
+		}
+
+		// Quoted literals, find the closing quote
+		int close = start + 1;
+		while (close < end && text.charAt(close) != '"')
+			close += (text.charAt(close) == '\\' ? 2 : 1);
+		String label = unescape(start + 1, Math.min(close, end));
+		if (close + 1 < end && text.charAt(close + 1) == '@')
+			return factory.createLiteral(label, text.substring(close + 2, end));
+		if (close + 3 < end && text.charAt(close + 1) == '^' && text.charAt(close + 3) == '<') {
+			URI datatype = factory.createURI(text.substring(close + 4, text.lastIndexOf(">", end - 1)));
+			return factory.createLiteral(label, datatype);
+		}
+		return factory.createLiteral(label);
+	}
+
+	/**
+	 * @param start
+	 * @param end
+	 * @return the unescaped content of the text buffer between the two
+	 *         positions
+	 * @throws IOException
+	 */
+	private String unescape(int start, int end) throws IOException {
+		if (text.indexOf("\\", start) == -1 || text.indexOf("\\", start) >= end)
+			return text.substring(start, end);
+
+		extra.setLength(0);
+		for (int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			if (c != '\\' || i + 1 == end) {
+				extra.append(c);
+				continue;
+			}
+			c = text.charAt(++i);
+			if (c == 't')
+				extra.append('\t');
+			else if (c == 'n')
+				extra.append('\n');
+			else if (c == 'r')
+				extra.append('\r');
+			else if ((c == 'u' && i + 4 < end) || (c == 'U' && i + 8 < end)) {
+				int digits = (c == 'u' ? 4 : 8);
+				extra.appendCodePoint(Integer.parseInt(text.substring(i + 1, i + 1 + digits), 16));
+				i += digits;
+			} else
+				extra.append(c);
+		}
+		return extra.toString();
+	}
+
+	/*
+	 * XML
+	 */
+
+	/**
+	 * @param input
+	 * @throws Exception
+	 */
+	private void parseXML(InputStream input) throws Exception {
+		if (saxParser == null) {
+			saxParser = SAXParserFactory.newInstance().newSAXParser();
+			xmlHandler = new XMLHandler();
+		} else {
+			saxParser.reset();
+		}
+		saxParser.parse(input, xmlHandler);
+	}
+
+	/**
+	 * Parse the answer to an ASK query, as in
+	 * <sparql><head/><boolean>true</boolean></sparql>
+	 * 
+	 * @param document
+	 * @return the answer
+	 * @throws IOException
+	 */
+	private boolean parseXMLBoolean(String document) throws IOException {
+		final StringBuilder value = new StringBuilder();
+		final boolean[] found = { false };
+		try {
+			if (saxParser == null) {
+				saxParser = SAXParserFactory.newInstance().newSAXParser();
+				xmlHandler = new XMLHandler();
+			} else {
+				saxParser.reset();
+			}
+			saxParser.parse(new InputSource(new StringReader(document)), new DefaultHandler() {
+				private boolean inBoolean = false;
+
+				@Override
+				public void startElement(String uri, String localName, String qname, Attributes attr) {
+					inBoolean = qname.equals("boolean") || qname.endsWith(":boolean");
+					if (inBoolean) {
+						found[0] = true;
+						value.setLength(0);
+					}
+				}
+
+				@Override
+				public void characters(char[] ch, int start, int length) {
+					if (inBoolean)
+						value.append(ch, start, length);
+				}
+
+				@Override
+				public void endElement(String uri, String localName, String qname) {
+					inBoolean = false;
+				}
+			});
+		} catch (SAXException e) {
+			throw new IOException("Invalid XML answer: " + e.getMessage());
+		} catch (ParserConfigurationException e) {
+			throw new IOException("No XML parser: " + e.getMessage());
+		}
+
+		if (!found[0])
+			throw new IOException("Not the answer to an ASK query");
+		String answer = value.toString().trim();
+		if (answer.equals("true") || answer.equals("1"))
+			return true;
+		if (answer.equals("false") || answer.equals("0"))
+			return false;
+		throw new IOException("Invalid boolean '" + answer + "'");
+	}
+
+	/**
+	 * Parse the XML format
+	 */
+	private class XMLHandler extends DefaultHandler {
+		private boolean inBinding = false;
+		private boolean inKey = false;
+		private boolean inValue = false;
+		private String literalType = null;
+		private String literalLanguage = null;
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * org.xml.sax.helpers.DefaultHandler#startElement(java.lang.String,
+		 * java.lang.String, java.lang.String, org.xml.sax.Attributes)
+		 */
+		@Override
+		public void startElement(String uri, String localName, String qname, Attributes attr) {
+			if (qname.equals("result")) {
+				startRow();
+			} else if (qname.equals("binding")) {
+				String name = attr.getValue("name");
+				inKey = (name != null && keyVariable != null && name.equals(keyVariable));
+				inBinding = inKey || (name == null || name.equals(variable));
+			} else if (inBinding && (qname.equals("uri") || qname.equals("bnode") || qname.equals("literal"))) {
+				inValue = true;
+				text.setLength(0);
+				literalType = attr.getValue("datatype");
+				literalLanguage = attr.getValue("xml:lang");
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see org.xml.sax.helpers.DefaultHandler#characters(char[], int, int)
+		 */
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			if (inValue)
+				text.append(ch, start, length);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see org.xml.sax.helpers.DefaultHandler#endElement(java.lang.String,
+		 * java.lang.String, java.lang.String)
+		 */
+		@Override
+		public void endElement(String uri, String localName, String qname) {
+			if (qname.equals("result")) {
+				endRow();
+				return;
+			}
+			if (qname.equals("binding")) {
+				inBinding = false;
+				return;
+			}
+			if (!inValue)
+				return;
+
+			Value value = null;
+			if (qname.equals("uri")) {
+				value = factory.createURI(text.toString().trim());
+			} else if (qname.equals("bnode")) {
+				value = createBNode(text.toString().trim());
+			} else if (qname.equals("literal")) {
+				if (literalLanguage != null)
+					value = factory.createLiteral(text.toString(), literalLanguage);
+				else if (literalType != null)
+					value = factory.createLiteral(text.toString(), factory.createURI(literalType));
+				else
+					value = factory.createLiteral(text.toString());
+			}
+			if (inKey)
+				rowKey = value;
+			else
+				rowValue = value;
+			inValue = false;
+		}
+	}
+}
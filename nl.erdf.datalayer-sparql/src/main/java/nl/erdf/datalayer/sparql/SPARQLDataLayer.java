@@ -2,16 +2,24 @@ package nl.erdf.datalayer.sparql;
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Observable;
 import java.util.Random;
-import java.util.Set;
-
-import nl.erdf.datalayer.DataLayer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import nl.erdf.datalayer.AsyncDataLayer;
+import nl.erdf.datalayer.DataFuture;
 import nl.erdf.model.Directory;
 import nl.erdf.model.EndPoint;
 import nl.erdf.model.Triple;
 import nl.erdf.util.Converter;
+import nl.erdf.util.Randomizer;
 
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.http.conn.scheme.PlainSocketFactory;
@@ -19,6 +27,7 @@ import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.openrdf.model.BNode;
 import org.openrdf.model.Statement;
 import org.openrdf.model.Value;
 import org.openrdf.query.QueryEvaluationException;
@@ -32,7 +41,7 @@ import org.slf4j.LoggerFactory;
  * @author tolgam
  * 
  */
-public class SPARQLDataLayer extends Observable implements DataLayer {
+public class SPARQLDataLayer extends Observable implements AsyncDataLayer {
 	// Logger instance
 	protected final Logger logger = LoggerFactory.getLogger(SPARQLDataLayer.class);
 
@@ -42,6 +51,16 @@ public class SPARQLDataLayer extends Observable implements DataLayer {
 
 	public static final Var RETURN = new Var("erdf");
 
+	// Maximum number of triples checked with a single VALUES query
+	private static final int VALUES_BLOCK_SIZE = 100;
+
+	// Longest wait for the validity of a list of triples, in milliseconds
+	private static final long MAX_VALIDITY_WAIT = 60 * 1000;
+
+	// Average number of queued tasks per end point above which the optimizer
+	// waits
+	private static final int MAX_LOAD = 4;
+
 	// Query cache for gets
 	private final Cache cache;
 
@@ -51,28 +70,71 @@ public class SPARQLDataLayer extends Observable implements DataLayer {
 	// Executors for processing SPARQL queries
 	List<EndPointExecutor> executors = new ArrayList<EndPointExecutor>();
 
+	// Signalled by the executors every time one of their task is done
+	private final ReentrantLock loadLock = new ReentrantLock();
+	private final Condition loadDropped = loadLock.newCondition();
+
 	/**
 	 * @param directory
 	 */
 	public SPARQLDataLayer(Directory directory) {
+		this(directory, Cache.DEFAULT_MAXIMUM_WEIGHT);
+	}
+
+	/**
+	 * @param directory
+	 * @param cacheSize
+	 *            the maximum number of values kept in the cache
+	 */
+	public SPARQLDataLayer(Directory directory, long cacheSize) {
+		this(directory, cacheSize, null);
+	}
+
+	/**
+	 * @param directory
+	 * @param cacheSize
+	 *            the maximum number of values kept in the cache
+	 * @param persistentCache
+	 *            answers kept on disk from previous runs, may be null
+	 */
+	public SPARQLDataLayer(Directory directory, long cacheSize, PersistentCache persistentCache) {
 		// Create a scheme registry
 		SchemeRegistry schemeRegistry = new SchemeRegistry();
 		schemeRegistry.register(new Scheme("http", 80, PlainSocketFactory.getSocketFactory()));
 
 		// Create a connection manager
 		connManager = new ThreadSafeClientConnManager(schemeRegistry);
-		connManager.setDefaultMaxPerRoute(2);
+		connManager.setDefaultMaxPerRoute(EndPointExecutor.MAX_THREADS);
 		connManager.setMaxTotal(200);
 
 		// Start the end points
+		Runnable loadListener = new Runnable() {
+			public void run() {
+				loadLock.lock();
+				try {
+					loadDropped.signalAll();
+				} finally {
+					loadLock.unlock();
+				}
+			}
+		};
 		for (EndPoint endPoint : directory) {
 			EndPointExecutor executor = new EndPointExecutor(endPoint);
 			executor.start(connManager);
+			executor.setLoadListener(loadListener);
 			executors.add(executor);
 		}
 
 		// Create a cache
-		cache = new Cache(executors);
+		cache = new Cache(executors, cacheSize);
+		cache.setPersistentCache(persistentCache);
+	}
+
+	/**
+	 * @return the cache of the query results
+	 */
+	public Cache getCache() {
+		return cache;
 	}
 
 	/*
@@ -132,8 +194,19 @@ public class SPARQLDataLayer extends Observable implements DataLayer {
 	 * @see nl.erdf.datalayer.DataLayer#getResource(nl.erdf.model.impl.Triple)
 	 */
 	public Value getResource(Triple pa) {
+		List<Value> values = sample(pa, 1, Randomizer.instance());
+		return (values.isEmpty() ? null : values.get(0));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.DataLayer#sample(nl.erdf.model.Triple, int,
+	 * java.util.Random)
+	 */
+	public List<Value> sample(Triple pa, int k, Random random) {
 		if (pa.getNumberNulls() > 1)
-			return null;
+			return new ArrayList<Value>();
 
 		// Scan the pattern to replace the variable with the return var
 		Var s = (pa.getSubject() == null ? RETURN : new Var("s", pa.getSubject()));
@@ -141,25 +214,58 @@ public class SPARQLDataLayer extends Observable implements DataLayer {
 		Var o = (pa.getObject() == null ? RETURN : new Var("o", pa.getObject()));
 		StatementPattern triplePattern = new StatementPattern(s, p, o);
 
-		// Default resourceSet to use
-		NodeSet resources = NodeSet.EMPTY_SET;
-
 		// Get a set of resources from the cache
-		resources = cache.get(triplePattern);
+		NodeSet resources = cache.get(triplePattern);
 
 		// If blocking, wait until the result set has something in it
 		if (BLOCKING)
 			resources.waitForSomeContent();
 
-		// logger.info(queryPattern.toString());
-		// logger.info(""+resources.size());
-		Set<Value> values = resources.content();
-		if (values.size() > 0) {
-			int index = (new Random()).nextInt(values.size());
-			return (Value) values.toArray()[index];
-		} else {
-			return null;
-		}
+		// Draw all the values at once
+		return resources.sample(k, random);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * nl.erdf.datalayer.AsyncDataLayer#getNumberOfResourcesAsync(nl.erdf.model
+	 * .Triple)
+	 */
+	public DataFuture<Long> getNumberOfResourcesAsync(Triple pattern) {
+		if (pattern.getNumberNulls() != 1)
+			return DataFuture.completed(Long.valueOf(0));
+
+		// Answer when the result set is finished
+		final NodeSet resources = cache.get(toStatementPattern(pattern));
+		final DataFuture<Long> result = new DataFuture<Long>();
+		resources.whenFinalContent(new Runnable() {
+			public void run() {
+				result.complete(Long.valueOf(resources.size()));
+			}
+		});
+		return result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.AsyncDataLayer#sampleAsync(nl.erdf.model.Triple,
+	 * int, long)
+	 */
+	public DataFuture<List<Value>> sampleAsync(Triple pattern, final int k, final long seed) {
+		if (pattern.getNumberNulls() > 1)
+			return DataFuture.completed((List<Value>) new ArrayList<Value>());
+
+		// Draw the values when the result set has something in it
+		final NodeSet resources = cache.get(toStatementPattern(pattern));
+		final DataFuture<List<Value>> result = new DataFuture<List<Value>>();
+		resources.whenSomeContent(new Runnable() {
+			public void run() {
+				result.complete(resources.sample(k, new Random(seed)));
+			}
+		});
+		return result;
 	}
 
 	/*
@@ -168,11 +274,22 @@ public class SPARQLDataLayer extends Observable implements DataLayer {
 	 * @see nl.erdf.datalayer.DataLayer#isValid(nl.erdf.model.impl.Triple)
 	 */
 	public boolean isValid(Triple pattern) {
-		// Create a pattern
-		Var s = (pattern.getSubject() == null ? RETURN : new Var("s", pattern.getSubject()));
-		Var p = (pattern.getPredicate() == null ? RETURN : new Var("p", pattern.getPredicate()));
-		Var o = (pattern.getObject() == null ? RETURN : new Var("o", pattern.getObject()));
-		StatementPattern triplePattern = new StatementPattern(s, p, o);
+		DataFuture<Boolean> valid = isValidAsync(pattern);
+
+		// If blocking, wait until the answer is known. Otherwise, what is not
+		// known yet is considered as not valid
+		if (BLOCKING)
+			return Boolean.TRUE.equals(valid.getUninterruptibly());
+		return (valid.isDone() && Boolean.TRUE.equals(valid.getUninterruptibly()));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.AsyncDataLayer#isValidAsync(nl.erdf.model.Triple)
+	 */
+	public DataFuture<Boolean> isValidAsync(Triple pattern) {
+		StatementPattern triplePattern = toStatementPattern(pattern);
 
 		// Deal with fully instantiated patterns
 		if (pattern.getNumberNulls() == 0)
@@ -184,10 +301,145 @@ public class SPARQLDataLayer extends Observable implements DataLayer {
 
 		// Deal with patterns with 2 variables
 		if (pattern.getNumberNulls() == 2)
-			return isValidWithTwoVars(triplePattern);
-		
+			return DataFuture.completed(Boolean.valueOf(isValidWithTwoVars(triplePattern)));
+
 		// Three variables are always true
-		return true;
+		return DataFuture.completed(Boolean.TRUE);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.datalayer.DataLayer#isValid(java.util.List)
+	 */
+	public BitSet isValid(List<Triple> patterns) {
+		BitSet valid = new BitSet(patterns.size());
+
+		// Sort the patterns between those that can be checked with a VALUES
+		// query and the others. The answers already in the cache are used,
+		// no request is sent to know them
+		List<Triple> triples = new ArrayList<Triple>();
+		List<Integer> positions = new ArrayList<Integer>();
+		List<Integer> others = new ArrayList<Integer>();
+		for (int index = 0; index < patterns.size(); index++) {
+			Triple pattern = patterns.get(index);
+			if (pattern.getNumberNulls() == 0 && !(pattern.getSubject() instanceof BNode)
+					&& !(pattern.getObject() instanceof BNode)) {
+				Boolean known = lookupFullyValid(toStatementPattern(pattern));
+				if (known == null) {
+					triples.add(pattern);
+					positions.add(index);
+				} else if (known.booleanValue()) {
+					valid.set(index);
+				}
+			} else {
+				others.add(index);
+			}
+		}
+
+		// Send the VALUES queries, every working end point that takes them
+		// gets all of them
+		List<EndPointExecutor> available = new ArrayList<EndPointExecutor>();
+		boolean isComplete = true;
+		for (EndPointExecutor executor : executors) {
+			if (!executor.acceptsRequests())
+				continue;
+			if (executor.isValuesSupported() && executor.tryAcquireProbe())
+				available.add(executor);
+			else
+				isComplete = false;
+		}
+		BitSet found = new BitSet(patterns.size());
+		int blocks = (triples.size() + VALUES_BLOCK_SIZE - 1) / VALUES_BLOCK_SIZE;
+		CountDownLatch done = new CountDownLatch(blocks * available.size());
+		List<ValidityCheckTask> tasks = new ArrayList<ValidityCheckTask>();
+		for (int block = 0; block < blocks; block++) {
+			int from = block * VALUES_BLOCK_SIZE;
+			int to = Math.min(from + VALUES_BLOCK_SIZE, triples.size());
+			for (EndPointExecutor executor : available) {
+				ValidityCheckTask task = new ValidityCheckTask(executor, triples.subList(from, to), positions.subList(
+						from, to), found, done);
+				tasks.add(task);
+				executor.executeValidityCheckTask(task);
+			}
+		}
+
+		// Check the other patterns through the cache while the queries are
+		// running, their requests are all sent at once
+		List<DataFuture<Boolean>> answers = new ArrayList<DataFuture<Boolean>>();
+		List<Integer> answerPositions = new ArrayList<Integer>();
+		for (Integer index : others) {
+			answers.add(isValidAsync(patterns.get(index)));
+			answerPositions.add(index);
+		}
+
+		// Wait for the answers of the end points. The wait is bounded, the
+		// triples not known in time are taken as not valid
+		long deadline = System.currentTimeMillis() + MAX_VALIDITY_WAIT;
+		boolean interrupted = false;
+		try {
+			if (!done.await(MAX_VALIDITY_WAIT, TimeUnit.MILLISECONDS))
+				logger.warn("Gave up waiting for the VALUES queries");
+		} catch (InterruptedException e) {
+			interrupted = true;
+			deadline = 0;
+		}
+		for (ValidityCheckTask task : tasks)
+			task.cancel();
+		synchronized (found) {
+			valid.or(found);
+		}
+
+		// The triples the VALUES queries did not give a full answer for are
+		// checked through the cache
+		for (int block = 0; block < blocks; block++) {
+			boolean isAnswered = isComplete;
+			for (int i = 0; isAnswered && i < available.size(); i++)
+				isAnswered = tasks.get(block * available.size() + i).isAnswered();
+			if (isAnswered || interrupted)
+				continue;
+			int from = block * VALUES_BLOCK_SIZE;
+			int to = Math.min(from + VALUES_BLOCK_SIZE, triples.size());
+			for (int i = from; i < to; i++) {
+				if (!valid.get(positions.get(i))) {
+					answers.add(isFullyValid(toStatementPattern(triples.get(i))));
+					answerPositions.add(positions.get(i));
+				}
+			}
+		}
+
+		// Collect the answers given through the cache
+		for (int i = 0; i < answers.size(); i++) {
+			try {
+				long timeout = Math.max(0, deadline - System.currentTimeMillis());
+				if (Boolean.TRUE.equals(answers.get(i).get(timeout, TimeUnit.MILLISECONDS)))
+					valid.set(answerPositions.get(i));
+			} catch (TimeoutException e) {
+				// Not known in time
+			} catch (InterruptedException e) {
+				interrupted = true;
+				deadline = 0;
+			} catch (ExecutionException e) {
+				// The answers are always set, never failed
+			}
+		}
+
+		// Let the caller know about the interruption
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		return valid;
+	}
+
+	/**
+	 * @param pattern
+	 * @return a statement pattern with the variable replaced by RETURN
+	 */
+	private StatementPattern toStatementPattern(Triple pattern) {
+		Var s = (pattern.getSubject() == null ? RETURN : new Var("s", pattern.getSubject()));
+		Var p = (pattern.getPredicate() == null ? RETURN : new Var("p", pattern.getPredicate()));
+		Var o = (pattern.getObject() == null ? RETURN : new Var("o", pattern.getObject()));
+		return new StatementPattern(s, p, o);
 	}
 
 	/**
@@ -216,10 +468,9 @@ public class SPARQLDataLayer extends Observable implements DataLayer {
 	}
 
 	/**
-	 * Test if a fully instantiated triple is valid. First, check if the object
-	 * is cached amongst one of the *PO index. Then, is needed, check if the
-	 * object is cached in a SP* index. If that also fails, ask for the SP* and
-	 * wait to see what result comes out. NOTE: asking for *PO may not help as
+	 * Test if a fully instantiated triple is valid. First, check if the answer
+	 * is in the SP* or the *PO sets already cached. If that fails, ask for the
+	 * SP* and wait to see what result comes out. NOTE: asking for *PO may not help as
 	 * it may request subjects having generic PO such as rdf:type Person. The
 	 * SP* are expected to lead to fewer results and a complete check.
 	 * 
@@ -227,67 +478,93 @@ public class SPARQLDataLayer extends Observable implements DataLayer {
 	 *            Pattern
 	 * @return True if this triple exists, false otherwise
 	 */
-	private boolean isFullyValid(StatementPattern pattern) {
+	private DataFuture<Boolean> isFullyValid(final StatementPattern pattern) {
 		// logger.info("[F-VALID] " + s + " " + p + " " + o);
 
-		// Try to see if we have seen SP* before. We start with that
-		// one as we assume there will be less SP->O than PO->S
+		// Use what is already in the cache
+		Boolean known = lookupFullyValid(pattern);
+		if (known != null)
+			return DataFuture.completed(known);
+
+		// Ask for SP*, we assume there will be less SP->O than PO->S
 		// (for instance, <X,Type,Thing> versus <blah,Type,Y>)
 		StatementPattern partialSP = pattern.clone();
 		partialSP.setObjectVar(RETURN);
-		NodeSet resourcesSP = cache.get(partialSP);
+		final NodeSet resourcesSP = cache.get(partialSP);
 		if (resourcesSP.contains(pattern.getObjectVar().getValue()))
-			return true;
-		// If SP is final, we are sure about the answer
+			return DataFuture.completed(Boolean.TRUE);
 		if (resourcesSP.isFinal())
-			return false;
+			return DataFuture.completed(Boolean.FALSE);
+
+		// Answer when resultSP is final, we bet on it as it is likely to be
+		// the smallest
+		final DataFuture<Boolean> result = new DataFuture<Boolean>();
+		resourcesSP.whenFinalContent(new Runnable() {
+			public void run() {
+				result.complete(Boolean.valueOf(resourcesSP.contains(pattern.getObjectVar().getValue())));
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Look for the answer of a fully instantiated triple in the sets already
+	 * in the cache, first SP* then *PO. No request is sent
+	 * 
+	 * @param pattern
+	 *            Pattern
+	 * @return the answer, null if the cache does not know it yet
+	 */
+	private Boolean lookupFullyValid(StatementPattern pattern) {
+		StatementPattern partialSP = pattern.clone();
+		partialSP.setObjectVar(RETURN);
+		NodeSet resourcesSP = cache.getIfPresent(partialSP);
+		if (resourcesSP != null) {
+			if (resourcesSP.contains(pattern.getObjectVar().getValue()))
+				return Boolean.TRUE;
+			// If SP is final, we are sure about the answer
+			if (resourcesSP.isFinal())
+				return Boolean.FALSE;
+		}
 
-		// Try to see if we have seen *PO before
 		StatementPattern partialPO = pattern.clone();
 		partialPO.setSubjectVar(RETURN);
-		NodeSet resourcesPO = cache.get(partialPO);
-		if (resourcesPO.contains(pattern.getSubjectVar().getValue()))
-			return true;
-		// If the content of PO is final, then the definitive answer is a NO
-		if (resourcesPO.isFinal())
-			return false;
-
-		// If blocking, wait until resultSP has some result in it
-		// we bet on it as it is likely to be the smallest
-		if (BLOCKING) {
-			resourcesSP.waitForFinalContent();
-			return resourcesSP.contains(pattern.getObjectVar().getValue());
-		} else {
-			// Maybe future content will arrive for one of the two sets,
-			// meanwhile we are not sure of the result
-			return false;
+		NodeSet resourcesPO = cache.getIfPresent(partialPO);
+		if (resourcesPO != null) {
+			if (resourcesPO.contains(pattern.getSubjectVar().getValue()))
+				return Boolean.TRUE;
+			// If the content of PO is final, then the definitive answer is a NO
+			if (resourcesPO.isFinal())
+				return Boolean.FALSE;
 		}
+
+		return null;
 	}
 
 	/**
 	 * @param pattern
 	 * @return
 	 */
-	private boolean isPartiallyValid(StatementPattern pattern) {
+	private DataFuture<Boolean> isPartiallyValid(StatementPattern pattern) {
 		// logger.info("[P-VALID] " + partialQueryPattern);
 
 		// If the set is not empty, we are sure the triple is partially valid
-		NodeSet resources = cache.get(pattern);
+		final NodeSet resources = cache.get(pattern);
 		if (!resources.isEmpty())
-			return true;
+			return DataFuture.completed(Boolean.TRUE);
 		// If the content of the set is final, we are sure the pattern is not
 		// valid
 		if (resources.isFinal())
-			return false;
+			return DataFuture.completed(Boolean.FALSE);
 
-		// If blocking, wait until the result has some result in it
-		if (BLOCKING) {
-			resources.waitForSomeContent();
-			return (!resources.isEmpty());
-		} else {
-			// Not sure yet, something may be added in the future
-			return false;
-		}
+		// Answer when the result has some result in it
+		final DataFuture<Boolean> result = new DataFuture<Boolean>();
+		resources.whenSomeContent(new Runnable() {
+			public void run() {
+				result.complete(Boolean.valueOf(!resources.isEmpty()));
+			}
+		});
+		return result;
 	};
 
 	/*
@@ -298,6 +575,8 @@ public class SPARQLDataLayer extends Observable implements DataLayer {
 	public void shutdown() {
 		for (EndPointExecutor executor : executors)
 			executor.shutdown();
+		if (cache.getPersistentCache() != null)
+			cache.getPersistentCache().close();
 	}
 
 	/*
@@ -306,23 +585,35 @@ public class SPARQLDataLayer extends Observable implements DataLayer {
 	 * @see nl.erdf.main.datalayer.DataLayer#waitForData()
 	 */
 	public void waitForLatencyBuffer() {
-		// This function blocks until there is on average less that 4
-		// jobs per end point queuing to be executed
-		double load = Double.MAX_VALUE;
-		while (load > 4) {
-			load = 0;
-			for (EndPointExecutor executor : executors)
-				load += executor.getQueueSize();
-			load = load / executors.size();
-
-			try {
-				Thread.sleep((long) (50 + 2 * load));
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+		// This function blocks until there is on average less that MAX_LOAD
+		// jobs per end point queuing to be executed. The executors wake it up
+		// every time they finish a task
+		if (executors.isEmpty())
+			return;
+		loadLock.lock();
+		try {
+			while (getLoad() > MAX_LOAD) {
+				// Tasks merged into others leave the queue without telling,
+				// look again from time to time
+				loadDropped.await(1, TimeUnit.SECONDS);
 			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} finally {
+			loadLock.unlock();
 		}
 	}
 
+	/**
+	 * @return the average number of tasks queued per end point
+	 */
+	private double getLoad() {
+		double load = 0;
+		for (EndPointExecutor executor : executors)
+			load += executor.getQueueSize();
+		return load / executors.size();
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
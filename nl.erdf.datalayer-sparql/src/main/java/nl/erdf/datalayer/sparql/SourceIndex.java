@@ -0,0 +1,167 @@
+/**
+ * 
+ */
+package nl.erdf.datalayer.sparql;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+import nl.erdf.util.Converter;
+
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.query.algebra.StatementPattern;
+import org.openrdf.query.algebra.Var;
+
+/**
+ * Tells which patterns an end point may have answers for. The index knows
+ * about the predicates used by the end point, and about its classes for the
+ * patterns on rdf:type. It is either filled from a summary of the end point,
+ * such as the property partitions of its VoID description, or learnt with an
+ * ASK query sent the first time a predicate or a class is seen. Until the
+ * answer is known the patterns are sent to the end point.
+ * 
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ */
+public class SourceIndex {
+	// What is known about a predicate or a class
+	private enum State {
+		PENDING, PRESENT, ABSENT
+	}
+
+	// The end point described
+	private final EndPointExecutor executor;
+
+	// Knowledge about the predicates and the classes, indexed by the triple
+	// pattern used to ask about them
+	private final ConcurrentHashMap<String, State> content = new ConcurrentHashMap<String, State>();
+
+	// True if the index is filled from a summary, in which case nothing is
+	// learnt
+	private volatile boolean isComplete = false;
+
+	// True if the patterns on rdf:type are checked against the classes
+	private volatile boolean isTypeIndexed = true;
+
+	/**
+	 * @param executor
+	 *            the end point to describe
+	 */
+	public SourceIndex(EndPointExecutor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * @param pattern
+	 *            a pattern about to be sent to the end point
+	 * @return false if the end point is known to have no answer for it
+	 */
+	public boolean canAnswer(StatementPattern pattern) {
+		String key = getKey(pattern);
+		if (key == null)
+			return true;
+
+		State state = content.get(key);
+		if (state == null) {
+			if (isComplete)
+				return false;
+
+			// Ask the end point, only once. As for the other queries, a
+			// disabled end point is only asked when it is time to probe it,
+			// otherwise the question is left for later
+			if (content.putIfAbsent(key, State.PENDING) == null) {
+				if (executor.tryAcquireProbe())
+					executor.executeSourceProbeTask(new SourceProbeTask(executor, this, key));
+				else
+					forget(key);
+			}
+			return true;
+		}
+		return (state != State.ABSENT);
+	}
+
+	/**
+	 * Record the answer of the end point to a probe
+	 * 
+	 * @param key
+	 *            the triple pattern asked for
+	 * @param isPresent
+	 *            true if the end point has some triples matching it
+	 */
+	public void record(String key, boolean isPresent) {
+		content.put(key, isPresent ? State.PRESENT : State.ABSENT);
+	}
+
+	/**
+	 * Forget about a probe that could not be answered, it will be sent again
+	 * 
+	 * @param key
+	 */
+	public void forget(String key) {
+		content.remove(key, State.PENDING);
+	}
+
+	/**
+	 * Fill the index from a summary of the end point. The patterns using a
+	 * predicate not listed are not sent to the end point anymore
+	 * 
+	 * @param predicates
+	 *            all the predicates used by the end point
+	 * @param classes
+	 *            all the classes used by the end point, null if unknown
+	 */
+	public void setSummary(Collection<URI> predicates, Collection<URI> classes) {
+		content.clear();
+		for (URI predicate : predicates)
+			content.put(getKey(predicate, null), State.PRESENT);
+		if (classes != null)
+			for (URI type : classes)
+				content.put(getKey(RDF.TYPE, type), State.PRESENT);
+		isTypeIndexed = (classes != null);
+		isComplete = true;
+	}
+
+	/**
+	 * @return the number of predicates and classes known to be absent
+	 */
+	public int getAbsentCount() {
+		int count = 0;
+		for (State state : content.values())
+			if (state == State.ABSENT)
+				count++;
+		return count;
+	}
+
+	/**
+	 * @param pattern
+	 * @return the triple pattern to ask for to know if the end point can
+	 *         answer, null if the pattern is always sent
+	 */
+	private String getKey(StatementPattern pattern) {
+		Var predicate = pattern.getPredicateVar();
+		if (!predicate.hasValue() || !(predicate.getValue() instanceof URI))
+			return null;
+
+		// The classes are checked for the patterns on rdf:type
+		Var object = pattern.getObjectVar();
+		if (isTypeIndexed && RDF.TYPE.equals(predicate.getValue()) && object.hasValue()
+				&& object.getValue() instanceof URI)
+			return getKey(RDF.TYPE, object.getValue());
+		return getKey(predicate.getValue(), null);
+	}
+
+	/**
+	 * @param predicate
+	 * @param type
+	 *            the class for the patterns on rdf:type, may be null
+	 * @return the triple pattern identifying the predicate or the class
+	 */
+	private static String getKey(Value predicate, Value type) {
+		StringBuffer key = new StringBuffer();
+		key.append("?s ").append(Converter.toN3(predicate)).append(" ");
+		key.append(type == null ? "?o" : Converter.toN3(type));
+		return key.toString();
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ * 
+ */
+package nl.erdf.datalayer.sparql;
+
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.util.concurrent.TimeUnit;
+
+import nl.erdf.util.PriorityTaskQueue;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Ask an end point if it has some triples matching a pattern and record the
+ * answer in its source index.
+ * 
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ */
+public class SourceProbeTask implements PriorityTaskQueue.Task {
+	// Logging stuff
+	protected final static Logger logger = LoggerFactory.getLogger(SourceProbeTask.class);
+
+	// The end point to query
+	private final EndPointExecutor endpoint;
+
+	// The index to update
+	private final SourceIndex index;
+
+	// The triple pattern to ask for
+	private final String key;
+
+	// Is it a cancelled job?
+	private volatile boolean isCancelled = false;
+
+	/**
+	 * @param endpoint
+	 *            The end point to query
+	 * @param index
+	 *            The index to update with the answer
+	 * @param key
+	 *            The triple pattern to ask for
+	 */
+	public SourceProbeTask(EndPointExecutor endpoint, SourceIndex index, String key) {
+		this.endpoint = endpoint;
+		this.index = index;
+		this.key = key;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		// If cancelled, let an other pattern ask again
+		if (isCancelled) {
+			index.forget(key);
+			return;
+		}
+
+		HttpGet httpget = null;
+		try {
+			String query = "ASK { " + key + " }";
+			String uri = endpoint.getEndPoint().getURI() + "?query=" + URLEncoder.encode(query, "UTF-8");
+
+			// Get current time
+			long start = System.nanoTime();
+
+			httpget = new HttpGet(uri);
+			httpget.setHeader("Accept", ResultsParser.ACCEPT);
+			HttpResponse response = endpoint.getHttpClient().execute(httpget);
+			HttpEntity entity = response.getEntity();
+
+			if (entity != null) {
+				String contentType = null;
+				if (entity.getContentType() != null)
+					contentType = entity.getContentType().getValue();
+				InputStream instream = entity.getContent();
+				try {
+					index.record(key, ResultsParser.getInstance().parseBoolean(instream, contentType));
+				} finally {
+					instream.close();
+				}
+			} else {
+				index.forget(key);
+				httpget.abort();
+			}
+
+			// Update statistics, apart from those of the requests for data
+			long latency = TimeUnit.MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			endpoint.recordProbe(latency);
+			endpoint.recordSuccess();
+		} catch (Exception e) {
+			// There was an error when asking the provider, keep sending it
+			// the patterns
+			index.forget(key);
+			endpoint.recordFailure();
+			if (httpget != null)
+				httpget.abort();
+		}
+	}
+
+	/**
+	 * 
+	 */
+	public void cancel() {
+		isCancelled = true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.util.PriorityTaskQueue.Task#getPriority()
+	 */
+	public double getPriority() {
+		// The answer is small and saves queries to every pattern with that
+		// predicate, it is worth a blocked caller
+		return CacheUpdateTask.WAITER_WEIGHT;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.util.PriorityTaskQueue.Task#isObsolete()
+	 */
+	public boolean isObsolete() {
+		return isCancelled;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.util.PriorityTaskQueue.Task#discard()
+	 */
+	public void discard() {
+		// Let an other pattern ask again
+		index.forget(key);
+	}
+}
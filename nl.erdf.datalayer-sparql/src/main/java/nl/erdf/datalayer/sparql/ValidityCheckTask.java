@@ -0,0 +1,289 @@
+/**
+ * 
+ */
+package nl.erdf.datalayer.sparql;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import nl.erdf.model.Triple;
+import nl.erdf.util.Converter;
+import nl.erdf.util.PriorityTaskQueue;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Check the existence of a group of fully instantiated triples against an end
+ * point with a single VALUES query. The query returns the position of the
+ * triples found, which are then flagged in a shared bit set. An end point that
+ * answers the query with an error is taken as not knowing VALUES, rather than
+ * as failing, and the triples are then to be checked an other way.
+ * 
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ */
+public class ValidityCheckTask implements PriorityTaskQueue.Task {
+	// Logging stuff
+	protected final static Logger logger = LoggerFactory.getLogger(ValidityCheckTask.class);
+
+	// The end point to query
+	private final EndPointExecutor endpoint;
+
+	// The triples to check
+	private final List<Triple> triples;
+
+	// The position of every triple in the bit set
+	private final List<Integer> positions;
+
+	// The bit set to update with the valid triples
+	private final BitSet valid;
+
+	// Signal the end of the task
+	private final CountDownLatch done;
+
+	// Is the task over, either run or cancelled?
+	private final AtomicBoolean isFinished = new AtomicBoolean(false);
+
+	// Did the end point answer the query?
+	private volatile boolean isAnswered = false;
+
+	/**
+	 * @param endpoint
+	 *            The end point to query
+	 * @param triples
+	 *            The fully instantiated triples to check
+	 * @param positions
+	 *            The position of every triple in the bit set
+	 * @param valid
+	 *            The bit set to update, shared with other tasks
+	 * @param done
+	 *            Counted down when the task is over
+	 */
+	public ValidityCheckTask(EndPointExecutor endpoint, List<Triple> triples, List<Integer> positions, BitSet valid,
+			CountDownLatch done) {
+		this.endpoint = endpoint;
+		this.triples = triples;
+		this.positions = positions;
+		this.valid = valid;
+		this.done = done;
+	}
+
+	/**
+	 * Parse the positions returned by the query
+	 */
+	private class Handler extends DefaultHandler {
+		// Tracks how many triples have been found
+		private int total = 0;
+
+		private boolean inBind = false;
+		private StringBuffer buffer = new StringBuffer();
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * org.xml.sax.helpers.DefaultHandler#startElement(java.lang.String,
+		 * java.lang.String, java.lang.String, org.xml.sax.Attributes)
+		 */
+		@Override
+		public void startElement(String uri, String localName, String qname, Attributes attr) {
+			if (qname.equals("literal"))
+				inBind = true;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see org.xml.sax.helpers.DefaultHandler#characters(char[], int, int)
+		 */
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			if (inBind)
+				buffer.append(ch, start, length);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see org.xml.sax.helpers.DefaultHandler#endElement(java.lang.String,
+		 * java.lang.String, java.lang.String)
+		 */
+		@Override
+		public void endElement(String uri, String localName, String qname) {
+			if (qname.equals("literal")) {
+				try {
+					int index = Integer.parseInt(buffer.toString().trim());
+					if (index >= 0 && index < positions.size()) {
+						synchronized (valid) {
+							valid.set(positions.get(index));
+						}
+						total++;
+					}
+				} catch (NumberFormatException e) {
+					// Not one of our positions, ignore it
+				}
+				buffer.delete(0, buffer.length());
+				inBind = false;
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		// If cancelled, return right away
+		if (isFinished.get())
+			return;
+
+		HttpPost httppost = null;
+		try {
+			// Generate the query, the position of the triple is bound along with
+			// its resources
+			StringBuffer queryBuffer = new StringBuffer();
+			queryBuffer.append("SELECT DISTINCT ?").append(SPARQLDataLayer.RETURN.getName()).append(" WHERE {");
+			queryBuffer.append(" VALUES (?").append(SPARQLDataLayer.RETURN.getName()).append(" ?s ?p ?o) {");
+			for (int index = 0; index < triples.size(); index++) {
+				Triple triple = triples.get(index);
+				queryBuffer.append(" (").append(index);
+				queryBuffer.append(" ").append(Converter.toN3(triple.getSubject()));
+				queryBuffer.append(" ").append(Converter.toN3(triple.getPredicate()));
+				queryBuffer.append(" ").append(Converter.toN3(triple.getObject())).append(")");
+			}
+			queryBuffer.append(" } ?s ?p ?o . }");
+
+			// Get current time
+			long start = System.nanoTime();
+			int found = 0;
+
+			// Record the request
+			endpoint.setRequestsCounter(endpoint.getRequestsCounter() + 1);
+
+			// Post the query, a GET could be too long for some servers
+			httppost = new HttpPost(endpoint.getEndPoint().getURI().toString());
+			StringEntity body = new StringEntity("query=" + URLEncoder.encode(queryBuffer.toString(), "UTF-8"),
+					"UTF-8");
+			body.setContentType("application/x-www-form-urlencoded");
+			httppost.setEntity(body);
+			HttpResponse response = endpoint.getHttpClient().execute(httppost);
+			HttpEntity entity = response.getEntity();
+
+			// The end point is up but did not take the query
+			int status = response.getStatusLine().getStatusCode();
+			if (EndPointExecutor.isValuesRejection(status)) {
+				httppost.abort();
+				endpoint.setValuesUnsupported();
+				endpoint.recordSuccess();
+				return;
+			}
+
+			// The end point is down, overloaded or needs a login
+			if (status >= 400)
+				throw new IOException("HTTP status " + status);
+
+			if (entity != null) {
+				// Parse the results
+				InputStream instream = entity.getContent();
+				SAXParserFactory factory = SAXParserFactory.newInstance();
+				SAXParser saxParser = factory.newSAXParser();
+				Handler handler = new Handler();
+				try {
+					saxParser.parse(instream, handler);
+				} catch (SAXException e) {
+					// Not a result set
+					httppost.abort();
+					endpoint.setValuesUnsupported();
+					endpoint.recordSuccess();
+					return;
+				}
+				found = handler.total;
+			} else {
+				httppost.abort();
+			}
+
+			// Update statistics
+			long latency = TimeUnit.MILLISECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			endpoint.setTotalLatency(endpoint.getTotalLatency() + latency);
+			if (found > 0)
+				endpoint.setInformativeCounter(endpoint.getInformativeCounter() + 1);
+			endpoint.recordSuccess();
+			isAnswered = (entity != null);
+		} catch (Exception e) {
+			// There was an error when asking the provider
+			endpoint.recordFailure();
+			if (httppost != null)
+				httppost.abort();
+		} finally {
+			finish();
+		}
+	}
+
+	/**
+	 * @return true if the end point gave its answer for all the triples
+	 */
+	public boolean isAnswered() {
+		return isAnswered;
+	}
+
+	/**
+	 * Cancel the task, the latch is released as if it had run
+	 */
+	public void cancel() {
+		finish();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.util.PriorityTaskQueue.Task#getPriority()
+	 */
+	public double getPriority() {
+		// The optimizer waits for all the checks before going on
+		return Double.MAX_VALUE;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.util.PriorityTaskQueue.Task#isObsolete()
+	 */
+	public boolean isObsolete() {
+		return isFinished.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see nl.erdf.util.PriorityTaskQueue.Task#discard()
+	 */
+	public void discard() {
+		// The latch has been released by cancel()
+	}
+
+	/**
+	 * Release the latch, only once
+	 */
+	private void finish() {
+		if (isFinished.compareAndSet(false, true))
+			done.countDown();
+	}
+}
@@ -0,0 +1,518 @@
+/**
+ * 
+ */
+package nl.erdf.util;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A blocking queue of tasks handing out the task with the highest priority.
+ * The tasks are kept in a heap ordered by the last priority computed for
+ * them. The priority of the task at the top is computed again before it is
+ * handed out, and all the priorities are refreshed from time to time, so they
+ * can change while the task waits. Among tasks with the same priority the
+ * newest one is taken first. The tasks that became useless are dropped
+ * instead of being handed out
+ * 
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ */
+public class PriorityTaskQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+	/**
+	 * A task with a priority. The other runnables get a priority of 0
+	 */
+	public interface Task extends Runnable {
+		/**
+		 * @return the priority of the task, the highest is run first
+		 */
+		public double getPriority();
+
+		/**
+		 * @return true if the task does not need to be run anymore
+		 */
+		public boolean isObsolete();
+
+		/**
+		 * Called, outside of the lock of the queue, when a task is dropped
+		 * instead of being run
+		 */
+		public void discard();
+	}
+
+	// Time between two updates of all the priorities, in milliseconds
+	private static final long REFRESH_INTERVAL = 500;
+
+	// A queued task with its last known priority
+	private static class Entry {
+		final Runnable task;
+		final long sequence;
+		double priority;
+		long stamp;
+
+		Entry(Runnable task, long sequence) {
+			this.task = task;
+			this.sequence = sequence;
+		}
+
+		boolean isBefore(Entry other) {
+			if (priority != other.priority)
+				return priority > other.priority;
+			return sequence > other.sequence;
+		}
+	}
+
+	// The heap of tasks, the next one to run is first
+	private final List<Entry> heap = new ArrayList<Entry>();
+
+	// Number of tasks added so far
+	private long sequence = 0;
+
+	// Number of look-ups for the next task so far
+	private long stamp = 0;
+
+	// Last time all the priorities were computed
+	private long lastRefresh = System.currentTimeMillis();
+
+	// Lock protecting the tasks
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.Queue#offer(java.lang.Object)
+	 */
+	public boolean offer(Runnable task) {
+		if (task == null)
+			throw new NullPointerException();
+		double priority = priorityOf(task);
+		lock.lock();
+		try {
+			Entry entry = new Entry(task, sequence++);
+			entry.priority = priority;
+			heap.add(entry);
+			siftUp(heap.size() - 1);
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object, long,
+	 * java.util.concurrent.TimeUnit)
+	 */
+	public boolean offer(Runnable task, long timeout, TimeUnit unit) {
+		return offer(task);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.BlockingQueue#put(java.lang.Object)
+	 */
+	public void put(Runnable task) {
+		offer(task);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.Queue#poll()
+	 */
+	public Runnable poll() {
+		List<Task> dropped = new ArrayList<Task>();
+		lock.lock();
+		try {
+			return dequeue(dropped);
+		} finally {
+			lock.unlock();
+			discard(dropped);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.BlockingQueue#take()
+	 */
+	public Runnable take() throws InterruptedException {
+		List<Task> dropped = new ArrayList<Task>();
+		lock.lockInterruptibly();
+		try {
+			Runnable task;
+			while ((task = dequeue(dropped)) == null)
+				notEmpty.await();
+			return task;
+		} finally {
+			lock.unlock();
+			discard(dropped);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.BlockingQueue#poll(long,
+	 * java.util.concurrent.TimeUnit)
+	 */
+	public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+		List<Task> dropped = new ArrayList<Task>();
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			Runnable task;
+			while ((task = dequeue(dropped)) == null) {
+				if (nanos <= 0)
+					return null;
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return task;
+		} finally {
+			lock.unlock();
+			discard(dropped);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.Queue#peek()
+	 */
+	public Runnable peek() {
+		lock.lock();
+		try {
+			return (heap.isEmpty() ? null : heap.get(0).task);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Take out the task with the highest priority, and the obsolete ones met
+	 * on the way. Must be called with the lock held
+	 * 
+	 * @param dropped
+	 *            where to put the obsolete tasks
+	 * @return the task to run, null if there is none
+	 */
+	private Runnable dequeue(List<Task> dropped) {
+		long now = System.currentTimeMillis();
+		if (now - lastRefresh >= REFRESH_INTERVAL)
+			refresh(dropped, now);
+
+		// Check the priority of the task at the top before handing it out,
+		// every task is computed at most once
+		stamp++;
+		while (!heap.isEmpty()) {
+			Entry top = heap.get(0);
+			if (top.task instanceof Task && ((Task) top.task).isObsolete()) {
+				dropped.add((Task) top.task);
+				removeAt(0);
+				continue;
+			}
+			if (top.stamp == stamp) {
+				removeAt(0);
+				return top.task;
+			}
+			top.priority = priorityOf(top.task);
+			top.stamp = stamp;
+			siftDown(0);
+		}
+		return null;
+	}
+
+	/**
+	 * Compute all the priorities again and drop the obsolete tasks. Must be
+	 * called with the lock held
+	 * 
+	 * @param dropped
+	 *            where to put the obsolete tasks
+	 * @param now
+	 *            the current time
+	 */
+	private void refresh(List<Task> dropped, long now) {
+		int size = 0;
+		for (int i = 0; i < heap.size(); i++) {
+			Entry entry = heap.get(i);
+			if (entry.task instanceof Task && ((Task) entry.task).isObsolete()) {
+				dropped.add((Task) entry.task);
+				continue;
+			}
+			entry.priority = priorityOf(entry.task);
+			heap.set(size++, entry);
+		}
+		truncate(size);
+		heapify();
+		lastRefresh = now;
+	}
+
+	/**
+	 * @param task
+	 * @return the priority of the task
+	 */
+	private static double priorityOf(Runnable task) {
+		return (task instanceof Task ? ((Task) task).getPriority() : 0);
+	}
+
+	/**
+	 * @param dropped
+	 *            the tasks to discard
+	 */
+	private void discard(List<Task> dropped) {
+		for (Task task : dropped)
+			task.discard();
+	}
+
+	/**
+	 * Move an entry up to its place in the heap
+	 * 
+	 * @param i
+	 */
+	private void siftUp(int i) {
+		Entry entry = heap.get(i);
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!entry.isBefore(heap.get(parent)))
+				break;
+			heap.set(i, heap.get(parent));
+			i = parent;
+		}
+		heap.set(i, entry);
+	}
+
+	/**
+	 * Move an entry down to its place in the heap
+	 * 
+	 * @param i
+	 */
+	private void siftDown(int i) {
+		Entry entry = heap.get(i);
+		int size = heap.size();
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && heap.get(child + 1).isBefore(heap.get(child)))
+				child++;
+			if (!heap.get(child).isBefore(entry))
+				break;
+			heap.set(i, heap.get(child));
+			i = child;
+		}
+		heap.set(i, entry);
+	}
+
+	/**
+	 * Restore the order of the whole heap
+	 */
+	private void heapify() {
+		for (int i = heap.size() / 2 - 1; i >= 0; i--)
+			siftDown(i);
+	}
+
+	/**
+	 * Take an entry out of the heap
+	 * 
+	 * @param i
+	 */
+	private void removeAt(int i) {
+		Entry last = heap.remove(heap.size() - 1);
+		if (i == heap.size())
+			return;
+		heap.set(i, last);
+		siftDown(i);
+		if (heap.get(i) == last)
+			siftUp(i);
+	}
+
+	/**
+	 * Drop the entries after a given size
+	 * 
+	 * @param size
+	 */
+	private void truncate(int size) {
+		heap.subList(size, heap.size()).clear();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.AbstractCollection#remove(java.lang.Object)
+	 */
+	@Override
+	public boolean remove(Object task) {
+		lock.lock();
+		try {
+			for (int i = 0; i < heap.size(); i++) {
+				if (heap.get(i).task.equals(task)) {
+					removeAt(i);
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Take some tasks out of the queue in a single pass
+	 * 
+	 * @param tasks
+	 *            the tasks to take out
+	 * @return those that were still in the queue
+	 */
+	public <T extends Runnable> List<T> removeTasks(Collection<T> tasks) {
+		List<T> removed = new ArrayList<T>();
+		if (tasks.isEmpty())
+			return removed;
+
+		Map<Runnable, T> wanted = new IdentityHashMap<Runnable, T>();
+		for (T task : tasks)
+			wanted.put(task, task);
+		lock.lock();
+		try {
+			int size = 0;
+			for (int i = 0; i < heap.size(); i++) {
+				Entry entry = heap.get(i);
+				T task = wanted.get(entry.task);
+				if (task != null)
+					removed.add(task);
+				else
+					heap.set(size++, entry);
+			}
+			if (!removed.isEmpty()) {
+				truncate(size);
+				heapify();
+			}
+		} finally {
+			lock.unlock();
+		}
+		return removed;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.AbstractQueue#clear()
+	 */
+	@Override
+	public void clear() {
+		// The tasks are discarded as they will not be run
+		List<Task> dropped = new ArrayList<Task>();
+		lock.lock();
+		try {
+			for (Entry entry : heap)
+				if (entry.task instanceof Task)
+					dropped.add((Task) entry.task);
+			heap.clear();
+		} finally {
+			lock.unlock();
+			discard(dropped);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.AbstractCollection#size()
+	 */
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return heap.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.BlockingQueue#remainingCapacity()
+	 */
+	public int remainingCapacity() {
+		return Integer.MAX_VALUE;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.AbstractCollection#iterator()
+	 */
+	@Override
+	public Iterator<Runnable> iterator() {
+		// Iterate over a copy, removals go to the queue
+		final List<Runnable> snapshot;
+		lock.lock();
+		try {
+			snapshot = new ArrayList<Runnable>(heap.size());
+			for (Entry entry : heap)
+				snapshot.add(entry.task);
+		} finally {
+			lock.unlock();
+		}
+		final Iterator<Runnable> it = snapshot.iterator();
+		return new Iterator<Runnable>() {
+			private Runnable last = null;
+
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			public Runnable next() {
+				last = it.next();
+				return last;
+			}
+
+			public void remove() {
+				if (last == null)
+					throw new IllegalStateException();
+				PriorityTaskQueue.this.remove(last);
+				last = null;
+			}
+		};
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection)
+	 */
+	public int drainTo(Collection<? super Runnable> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection,
+	 * int)
+	 */
+	public int drainTo(Collection<? super Runnable> c, int maxElements) {
+		if (c == this)
+			throw new IllegalArgumentException();
+		int n = 0;
+		Runnable task;
+		while (n < maxElements && (task = poll()) != null) {
+			c.add(task);
+			n++;
+		}
+		return n;
+	}
+}
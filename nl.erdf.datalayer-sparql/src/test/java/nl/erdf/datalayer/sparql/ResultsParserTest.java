@@ -0,0 +1,138 @@
+/**
+ * 
+ */
+package nl.erdf.datalayer.sparql;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+
+/**
+ * @author Christophe Guéret <christophe.gueret@gmail.com>
+ * 
+ */
+public class ResultsParserTest {
+	private static final String XSD = "http://www.w3.org/2001/XMLSchema#";
+
+	/**
+	 * @param document
+	 * @return a stream over the document
+	 * @throws IOException
+	 */
+	private static InputStream stream(String document) throws IOException {
+		return new ByteArrayInputStream(document.getBytes("UTF-8"));
+	}
+
+	/**
+	 * @param document
+	 * @param contentType
+	 * @return the values of ?x, the blank nodes are tagged with "@ep"
+	 * @throws Exception
+	 */
+	private static List<Value> parse(String document, String contentType) throws Exception {
+		final List<Value> values = new ArrayList<Value>();
+		ResultsParser.getInstance().parse(stream(document), contentType, "x", "@ep",
+				new ResultsParser.BatchHandler() {
+					public void handle(List<Value> batch) {
+						values.addAll(batch);
+					}
+				});
+		return values;
+	}
+
+	/**
+	 * @param document
+	 * @param contentType
+	 * @return true if the document is rejected as the answer to an ASK query
+	 */
+	private static boolean isRejected(String document, String contentType) {
+		try {
+			ResultsParser.getInstance().parseBoolean(stream(document), contentType);
+			return false;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		ValueFactory f = new ValueFactoryImpl();
+		List<Value> expected = new ArrayList<Value>();
+		expected.add(f.createURI("http://example.com/a"));
+		expected.add(f.createLiteral("say \"hi\"\né€"));
+		expected.add(f.createLiteral("chat", "fr"));
+		expected.add(f.createLiteral("42", f.createURI(XSD + "integer")));
+		expected.add(f.createBNode("b0@ep"));
+
+		// JSON, the other variables and the unknown members are skipped
+		String json = "{\"head\":{\"vars\":[\"x\",\"y\"]}, \"results\":{\"distinct\":false, \"bindings\":["
+				+ "{\"y\":{\"type\":\"uri\",\"value\":\"http://example.com/y\"},"
+				+ "\"x\":{\"type\":\"uri\",\"value\":\"http://example.com/a\"}},"
+				+ "{\"x\":{\"type\":\"literal\",\"value\":\"say \\\"hi\\\"\\n\\u00e9\\u20AC\"}},"
+				+ "{\"x\":{\"type\":\"literal\",\"xml:lang\":\"fr\",\"value\":\"chat\"}},"
+				+ "{\"x\":{\"type\":\"typed-literal\",\"datatype\":\"" + XSD + "integer\",\"value\":\"42\"}},"
+				+ "{\"x\":{\"type\":\"bnode\",\"value\":\"b0\"}},"
+				+ "{\"y\":{\"type\":\"uri\",\"value\":\"http://example.com/z\"}}]}}";
+		System.out.println(parse(json, "application/sparql-results+json").equals(expected));
+
+		// TSV, with the Turtle escapes and an unquoted number
+		String tsv = "?y\t?x\n" + "<http://example.com/y>\t<http://example.com/a>\r\n"
+				+ "\t\"say \\\"hi\\\"\\n\\u00e9\\U000020AC\"\n" + "\t\"chat\"@fr\n" + "\t42\n" + "\t_:b0\n"
+				+ "<http://example.com/z>\t\n";
+		System.out.println(parse(tsv, "text/tab-separated-values; charset=utf-8").equals(expected));
+
+		// XML
+		String xml = "<?xml version=\"1.0\"?><sparql xmlns=\"http://www.w3.org/2005/sparql-results#\">"
+				+ "<head><variable name=\"x\"/><variable name=\"y\"/></head><results>"
+				+ "<result><binding name=\"y\"><uri>http://example.com/y</uri></binding>"
+				+ "<binding name=\"x\"><uri>http://example.com/a</uri></binding></result>"
+				+ "<result><binding name=\"x\"><literal>say \"hi\"&#10;&#xe9;&#x20AC;</literal></binding></result>"
+				+ "<result><binding name=\"x\"><literal xml:lang=\"fr\">chat</literal></binding></result>"
+				+ "<result><binding name=\"x\"><literal datatype=\"" + XSD
+				+ "integer\">42</literal></binding></result>"
+				+ "<result><binding name=\"x\"><bnode>b0</bnode></binding></result>"
+				+ "<result><binding name=\"y\"><uri>http://example.com/z</uri></binding></result>"
+				+ "</results></sparql>";
+		System.out.println(parse(xml, "application/sparql-results+xml").equals(expected));
+
+		// Pairs of values
+		final List<Value> keys = new ArrayList<Value>();
+		ResultsParser.getInstance().parse(stream(json), "application/json", "y", "x", null,
+				new ResultsParser.KeyedBatchHandler() {
+					public void handle(List<Value> k, List<Value> v) {
+						keys.addAll(k);
+						keys.addAll(v);
+					}
+				});
+		System.out.println(keys.size() == 2 && keys.get(0).equals(f.createURI("http://example.com/y"))
+				&& keys.get(1).equals(expected.get(0)));
+
+		// Answers to ASK queries, the word "boolean" may appear elsewhere
+		ResultsParser parser = ResultsParser.getInstance();
+		System.out.println(parser.parseBoolean(stream("{\"head\":{\"link\":[\"boolean\"]}, \"boolean\" : true}"),
+				"application/sparql-results+json"));
+		System.out.println(!parser.parseBoolean(stream("{ \"boolean\": false, \"head\": {} }"), null));
+		System.out.println(parser.parseBoolean(stream("{\"boolean\":\"true\"}"), "text/plain"));
+		System.out.println(!parser.parseBoolean(stream("{\"head\":{\"vars\":[\"true\"]},\"boolean\":false}"),
+				"application/json"));
+		System.out.println(parser.parseBoolean(stream("<?xml version=\"1.0\"?>"
+				+ "<sparql xmlns=\"http://www.w3.org/2005/sparql-results#\"><head><link href=\"boolean\"/></head>"
+				+ "<boolean> true </boolean></sparql>"), "application/sparql-results+xml"));
+		System.out.println(!parser.parseBoolean(stream("<sparql><head/><boolean>false</boolean></sparql>"),
+				"application/sparql-results+json"));
+		System.out.println(isRejected("{\"head\":{\"vars\":[\"boolean\"]}, \"results\":{\"bindings\":[]}}", null));
+		System.out.println(isRejected("{\"boolean\":maybe}", "application/json"));
+		System.out.println(isRejected("<sparql><head/><results/></sparql>", null));
+		System.out.println(isRejected("Service unavailable", "text/html"));
+	}
+
+}